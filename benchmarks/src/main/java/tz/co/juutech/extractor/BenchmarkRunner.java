@@ -0,0 +1,19 @@
+package tz.co.juutech.extractor;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler so that the allocation rate (gc.alloc.rate.norm, bytes per operation) is reported
+ * along with the throughput. Takes the usual JMH command line options, for example a regular expression selecting the
+ * benchmarks to run or -rf json -rff result.json to save the results for comparison.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class);
+        new Runner(options.build()).run();
+    }
+}
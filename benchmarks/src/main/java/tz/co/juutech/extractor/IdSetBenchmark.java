@@ -0,0 +1,93 @@
+package tz.co.juutech.extractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building sets of ids and writing them as SQL lists. The HashSet benchmarks are the baseline, that is how the ids were held and
+ * stringified (stringifySetOfIntegers) before {@link IdSet}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdSetBenchmark {
+    @Param({ "1000", "100000" })
+    public int size;
+
+    /**
+     * Whether the ids come in ascending order (for example read from a primary key) or in any order with duplicates.
+     */
+    @Param({ "true", "false" })
+    public boolean sorted;
+
+    private int[] ids;
+    private IdSet idSet;
+    private Set<Integer> hashSet;
+
+    @Setup
+    public void setUp() {
+        ids = new int[size];
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            ids[i] = sorted ? i * 3 + 1 : random.nextInt(size * 2);
+        }
+        idSet = buildIdSet();
+        hashSet = buildHashSet();
+    }
+
+    @Benchmark
+    public IdSet buildIdSet() {
+        IdSet set = new IdSet();
+        for (int id : ids) {
+            set.add(id);
+        }
+        // Sorts and removes duplicates.
+        set.size();
+        return set;
+    }
+
+    @Benchmark
+    public Set<Integer> buildHashSet() {
+        Set<Integer> set = new HashSet<>();
+        for (int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    @Benchmark
+    public String idSetToSqlList() {
+        return idSet.toSqlList();
+    }
+
+    @Benchmark
+    public String hashSetToSqlList() {
+        StringBuilder sb = new StringBuilder("(");
+        hashSet.forEach(integer -> sb.append(integer).append(","));
+        sb.deleteCharAt(sb.length() - 1);
+        sb.append(")");
+        return sb.toString();
+    }
+
+    @Benchmark
+    public boolean idSetContains() {
+        return idSet.contains(ids[ids.length / 2]);
+    }
+}
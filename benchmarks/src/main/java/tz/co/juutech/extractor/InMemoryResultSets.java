@@ -0,0 +1,48 @@
+package tz.co.juutech.extractor;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Result sets held in memory (cached row sets of the JDK) for the benchmarks reading rows, rewind them with beforeFirst()
+ * before each read.
+ */
+final class InMemoryResultSets {
+    private InMemoryResultSets() {}
+
+    /**
+     * @param columns the column names
+     * @param types the JDBC types of the columns
+     * @param typeNames the database type names of the columns
+     * @param rows the rows, values are Integer, Double, String, java.sql.Timestamp, byte[] or null.
+     * @return the result set positioned before the first row.
+     * @throws SQLException
+     */
+    static CachedRowSet create(final String[] columns, final int[] types, final String[] typeNames, final List<Object[]> rows)
+            throws SQLException {
+        CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+        RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+        metaData.setColumnCount(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            metaData.setColumnName(i + 1, columns[i]);
+            metaData.setColumnLabel(i + 1, columns[i]);
+            metaData.setColumnType(i + 1, types[i]);
+            metaData.setColumnTypeName(i + 1, typeNames[i]);
+            metaData.setNullable(i + 1, RowSetMetaDataImpl.columnNullable);
+        }
+        rowSet.setMetaData(metaData);
+        rowSet.moveToInsertRow();
+        for (Object[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                rowSet.updateObject(i + 1, row[i]);
+            }
+            rowSet.insertRow();
+        }
+        rowSet.moveToCurrentRow();
+        rowSet.beforeFirst();
+        return rowSet;
+    }
+}
@@ -0,0 +1,70 @@
+package tz.co.juutech.extractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sql.rowset.CachedRowSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collecting the ids in the first column of a result set, as done for the cohort of the plan mode and for the
+ * cohort fingerprint. The HashSet benchmark is the baseline loop used before {@link IdSet#fromResultSet}. The in-memory
+ * result set has its own cost which is the same for both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultSetIdsBenchmark {
+    @Param({ "1000", "100000" })
+    public int rows;
+
+    private CachedRowSet resultSet;
+
+    @Setup
+    public void setUp() throws SQLException {
+        Random random = new Random(42);
+        List<Object[]> values = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            // Some nulls as in nullable person_id columns.
+            values.add(new Object[] { i % 50 == 0 ? null : random.nextInt(rows * 2) });
+        }
+        resultSet = InMemoryResultSets.create(new String[] { "person_id" }, new int[] { Types.INTEGER }, new String[] { "INT" }, values);
+    }
+
+    @Benchmark
+    public IdSet idSetFromResultSet() throws SQLException {
+        resultSet.beforeFirst();
+        IdSet ids = IdSet.fromResultSet(resultSet);
+        ids.size();
+        return ids;
+    }
+
+    @Benchmark
+    public Set<Integer> hashSetFromResultSet() throws SQLException {
+        resultSet.beforeFirst();
+        Set<Integer> ids = new HashSet<>();
+        while (resultSet.next()) {
+            ids.add(resultSet.getInt(1));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,198 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * End to end benchmark running the whole extraction over synthetic databases of several scale factors. For each scale factor
+ * the database synthetic_&lt;obs&gt; is generated (unless it already exists) then the extractor is run in its own JVM in the
+ * directory &lt;work.dir&gt;/sf_&lt;obs&gt; which gets the application.properties, log, dump and metrics report of the run.
+ * The wall time and the time of each phase read from the metrics report are printed and appended to
+ * &lt;work.dir&gt;/scale-benchmark.csv.
+ *
+ * Run with key=value arguments: jdbc.url (server to create the databases on, without database), db.username, db.password,
+ * scale.factors (comma separated numbers of obs, default 10000,100000,1000000), seed (default 42), regenerate (default false),
+ * locations (default 1,2,3), work.dir (default scale-benchmark) and jvm.args (space separated, for example -Xmx2g). Arguments
+ * starting with extractor. are passed to the extractor, extractor.workers.max=4 sets workers.max.
+ */
+public class ScaleBenchmark {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScaleBenchmark.class);
+    private static final String EXTRACTOR_PREFIX = "extractor.";
+    private static final String RESULTS_FILE = "scale-benchmark.csv";
+    private static final Pattern PHASES = Pattern.compile("\"phases\": \\{(.*)\\},");
+    private static final Pattern PHASE = Pattern.compile("\"(\\w+)\": \\{\"millis\": (\\d+)\\}");
+    private static final Pattern TABLE_ROWS = Pattern.compile("\"(\\w+)\": \\{\"rows\": (\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        Properties arguments = SyntheticDataset.parseArguments(args);
+        Path workDir = Paths.get(arguments.getProperty("work.dir", "scale-benchmark"));
+        Files.createDirectories(workDir);
+        List<Map<String, String>> results = new ArrayList<>();
+        for (String scaleFactor : arguments.getProperty("scale.factors", "10000,100000,1000000").split(",")) {
+            long obs = Long.parseLong(scaleFactor.trim());
+            String database = "synthetic_" + obs;
+            ensureDataset(arguments, database, obs);
+            results.add(runExtraction(arguments, workDir.resolve("sf_" + obs), database, obs));
+        }
+        writeResults(workDir.resolve(RESULTS_FILE), results);
+    }
+
+    private static void ensureDataset(final Properties arguments, final String database, final long obs) throws SQLException, IOException {
+        try (Connection connection = SyntheticDataset.connect(arguments)) {
+            boolean exists;
+            try (ResultSet rs = connection.getMetaData().getCatalogs()) {
+                exists = false;
+                while (rs.next() && !exists) {
+                    exists = database.equalsIgnoreCase(rs.getString(1));
+                }
+            }
+            if(exists && !Boolean.parseBoolean(arguments.getProperty("regenerate", "false"))) {
+                LOGGER.info("Using the existing database {}, pass regenerate=true to generate it again", database);
+                return;
+            }
+            new SyntheticDataset(database, obs, Long.parseLong(arguments.getProperty("seed", "42"))).generate(connection);
+        }
+    }
+
+    private static Map<String, String> runExtraction(final Properties arguments, final Path runDir, final String database, final long obs)
+            throws IOException, InterruptedException {
+        Files.createDirectories(runDir);
+        try (Stream<Path> previousReports = Files.list(runDir)) {
+            for (Path report : previousReports.filter(p -> p.toString().endsWith(".metrics.json")).collect(Collectors.toList())) {
+                Files.delete(report);
+            }
+        }
+
+        Properties properties = new Properties();
+        String url = arguments.getProperty("jdbc.url");
+        int query = url.indexOf('?');
+        String server = query < 0 ? url : url.substring(0, query);
+        properties.setProperty(AppProperties.JDBC_URL_PROP, (server.endsWith("/") ? server : server.concat("/")).concat(database)
+                .concat(query < 0 ? "?useSSL=false" : url.substring(query)));
+        properties.setProperty(AppProperties.DB_USERNAME_PROP, arguments.getProperty("db.username"));
+        properties.setProperty(AppProperties.DB_PASSWORD_PROP, arguments.getProperty("db.password", ""));
+        properties.setProperty(AppProperties.NEW_DB_NAME_PROP, database.concat("_extract"));
+        properties.setProperty(AppProperties.LOCATIONS_IDS_PROP, arguments.getProperty("locations", "1,2,3"));
+        properties.setProperty(AppProperties.RESTRICT_EXTRACTION_PROP, "false");
+        properties.setProperty(AppProperties.DROP_NEW_DB_AFTER_PROP, "true");
+        properties.setProperty(AppProperties.METRICS_REPORT_DIR_PROP, ".");
+        for (String name : arguments.stringPropertyNames()) {
+            if(name.startsWith(EXTRACTOR_PREFIX)) {
+                properties.setProperty(name.substring(EXTRACTOR_PREFIX.length()), arguments.getProperty(name));
+            }
+        }
+        try (OutputStream out = Files.newOutputStream(runDir.resolve(AppProperties.APPLICATION_PROPERTIES_FILENAME))) {
+            properties.store(out, "Scale benchmark of " + database);
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        String jvmArgs = arguments.getProperty("jvm.args", "").trim();
+        if(!jvmArgs.isEmpty()) {
+            command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> Paths.get(entry).toAbsolutePath().toString()).collect(Collectors.joining(File.pathSeparator)));
+        command.add(FGHExtractorOrchestrator.class.getName());
+
+        LOGGER.info("Extracting locations {} of {} ({} obs) in {}", properties.getProperty(AppProperties.LOCATIONS_IDS_PROP), database,
+                obs, runDir.toAbsolutePath());
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(runDir.toFile()).redirectErrorStream(true)
+                .redirectOutput(runDir.resolve("extraction.log").toFile()).start();
+        int exitCode = process.waitFor();
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+
+        Map<String, String> result = new LinkedHashMap<>();
+        result.put("obs", String.valueOf(obs));
+        result.put("exit_code", String.valueOf(exitCode));
+        result.put("wall_millis", String.valueOf(wallMillis));
+        readMetricsReport(runDir, result);
+        LOGGER.info("{} obs: {}", obs, result);
+        if(exitCode != 0) {
+            LOGGER.warn("The extraction of {} failed, see {}", database, runDir.resolve("extraction.log").toAbsolutePath());
+        }
+        return result;
+    }
+
+    /**
+     * Adds the time of each phase and the number of obs copied into the result.
+     */
+    private static void readMetricsReport(final Path runDir, final Map<String, String> result) throws IOException {
+        Path report;
+        try (Stream<Path> files = Files.list(runDir)) {
+            report = files.filter(p -> p.toString().endsWith(".metrics.json")).findFirst().orElse(null);
+        }
+        if(report == null) {
+            LOGGER.warn("No metrics report was written in {}", runDir.toAbsolutePath());
+            return;
+        }
+        String json = new String(Files.readAllBytes(report), StandardCharsets.UTF_8);
+        Matcher phases = PHASES.matcher(json);
+        if(phases.find()) {
+            Matcher phase = PHASE.matcher(phases.group(1));
+            while (phase.find()) {
+                result.put(phase.group(1).concat("_millis"), phase.group(2));
+            }
+        }
+        Matcher tableRows = TABLE_ROWS.matcher(json);
+        while (tableRows.find()) {
+            if("obs".equals(tableRows.group(1))) {
+                result.put("obs_copied", tableRows.group(2));
+            }
+        }
+    }
+
+    private static void writeResults(final Path file, final List<Map<String, String>> results) throws IOException {
+        TreeSet<String> phaseColumns = new TreeSet<>();
+        results.forEach(result -> result.keySet().stream().filter(c -> c.endsWith("_millis") && !"wall_millis".equals(c))
+                .forEach(phaseColumns::add));
+        List<String> columns = new ArrayList<>(Arrays.asList("run", "obs", "exit_code", "wall_millis", "obs_copied"));
+        columns.addAll(phaseColumns);
+
+        String run = String.valueOf(System.currentTimeMillis());
+        StringBuilder csv = new StringBuilder();
+        if(!Files.exists(file)) {
+            csv.append(String.join(",", columns)).append("\n");
+        }
+        StringBuilder table = new StringBuilder("\n");
+        for (String column : columns) {
+            table.append(String.format("%-16s", column));
+        }
+        for (Map<String, String> result : results) {
+            result.put("run", run);
+            csv.append(columns.stream().map(c -> result.getOrDefault(c, "")).collect(Collectors.joining(","))).append("\n");
+            table.append("\n");
+            for (String column : columns) {
+                table.append(String.format("%-16s", result.getOrDefault(column, "-")));
+            }
+        }
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        System.out.println(table);
+        LOGGER.info("Results appended to {}", file.toAbsolutePath());
+    }
+}
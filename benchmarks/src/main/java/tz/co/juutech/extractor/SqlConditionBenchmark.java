@@ -0,0 +1,91 @@
+package tz.co.juutech.extractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building of the SQL copying, selecting and paging the records of a table and of the conditions selecting them, this is done
+ * for every batch of every table. The conditions are rendered as written, the planned forms are as long.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SqlConditionBenchmark {
+    @Param({ "100", "1000" })
+    public int ids;
+
+    private PrimaryKey primaryKey;
+    private PrimaryKey compositeKey;
+    private CopyCondition condition;
+    private IdSet idSet;
+    private Map<String, TableReferencingAnother> locationRefs;
+
+    @Setup
+    public void setUp() throws SQLException {
+        primaryKey = new PrimaryKey("obs", Collections.singletonList("obs_id"));
+        compositeKey = new PrimaryKey("concept_set", Arrays.asList("concept_id", "concept_set"));
+        condition = FGHExtractorOrchestrator.getScopedCondition("obs", "person_id", "person", "person_id", null);
+        Random random = new Random(42);
+        idSet = new IdSet();
+        for (int i = 0; i < ids; i++) {
+            idSet.add(random.nextInt(5000000));
+        }
+        locationRefs = new HashMap<>();
+        locationRefs.put("obs", new TableReferencingAnother("obs", "location_id"));
+    }
+
+    @Benchmark
+    public String copyingSqlWithKeyset() throws SQLException {
+        return ExtractionUtils.getCopyingSQLWithKeyset("obs", condition, ConditionPlanner.AS_WRITTEN, primaryKey, true, true);
+    }
+
+    @Benchmark
+    public String copyingSqlWithCompositeKeyset() throws SQLException {
+        return ExtractionUtils.getCopyingSQLWithKeyset("concept_set", condition, ConditionPlanner.AS_WRITTEN, compositeKey, true, true);
+    }
+
+    @Benchmark
+    public String selectingSql() {
+        return ExtractionUtils.getSelectingSQL("obs", condition, ConditionPlanner.AS_WRITTEN, primaryKey, true, true, true);
+    }
+
+    @Benchmark
+    public String keysetBoundaryQuery() {
+        return ExtractionUtils.getKeysetBoundaryQuery("obs", primaryKey, true, true, 20000);
+    }
+
+    @Benchmark
+    public String scopedConditionWithLocation() throws SQLException {
+        CopyCondition tableCondition = FGHExtractorOrchestrator.withLocationCondition(FGHExtractorOrchestrator.getScopedCondition("obs",
+                "person_id", "person", "person_id", null), "obs", locationRefs);
+        return ConditionPlanner.AS_WRITTEN.render(tableCondition);
+    }
+
+    @Benchmark
+    public String idSetCondition() throws SQLException {
+        // Below id.list.threshold the ids are written in the condition, no table is created.
+        try (IdSetCondition idSetCondition = new IdSetCondition(idSet)) {
+            return idSetCondition.getCondition("t.person_id");
+        }
+    }
+}
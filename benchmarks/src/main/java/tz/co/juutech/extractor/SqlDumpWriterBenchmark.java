@@ -0,0 +1,87 @@
+package tz.co.juutech.extractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sql.rowset.CachedRowSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding obs like rows (numbers, text needing escapes, dates and binary values) into INSERT statements and writing them into
+ * a dump file with each compression. Reports rows written per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SqlDumpWriterBenchmark {
+    private static final int ROWS = 10000;
+
+    @Param({ "NONE", "GZIP", "ZSTD" })
+    public SqlDumpWriter.Compression compression;
+
+    @Param({ "false", "true" })
+    public boolean upsert;
+
+    private CachedRowSet resultSet;
+    private Path file;
+
+    @Setup
+    public void setUp() throws SQLException, IOException {
+        Random random = new Random(42);
+        List<Object[]> rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            byte[] complex = null;
+            if(i % 10 == 0) {
+                complex = new byte[64];
+                random.nextBytes(complex);
+            }
+            rows.add(new Object[] { i + 1, random.nextInt(100000), random.nextInt(10000), random.nextDouble() * 1000,
+                    i % 3 == 0 ? null : "Patient's note\nline " + i + " \"quoted\" \\ path", new Timestamp(1700000000000L + i * 60000L),
+                    UUID.randomUUID().toString(), complex });
+        }
+        resultSet = InMemoryResultSets.create(
+                new String[] { "obs_id", "person_id", "concept_id", "value_numeric", "value_text", "obs_datetime", "uuid", "value_complex" },
+                new int[] { Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.DOUBLE, Types.VARCHAR, Types.TIMESTAMP, Types.CHAR, Types.VARBINARY },
+                new String[] { "INT", "INT", "INT", "DOUBLE", "TEXT", "DATETIME", "CHAR", "VARBINARY" }, rows);
+        file = Files.createTempFile("dump-benchmark", ".sql" + compression.getFileExtension());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long writeRows() throws SQLException, IOException {
+        resultSet.beforeFirst();
+        try (SqlDumpWriter writer = new SqlDumpWriter(file, compression, 1048576, upsert)) {
+            writer.writeRows("obs", resultSet);
+            return writer.getBytesWritten();
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates an OpenMRS shaped database of made up patients so that extractions can be benchmarked and their performance
+ * problems reproduced without sharing real patient data. The size is set by the number of obs (the scale factor), the other
+ * tables follow with fan outs close to those of a production database: about 8 encounters per patient and 12 obs per
+ * encounter, a program enrolment or two per patient, a relationship for a third of the patients, one user per 500 patients
+ * and half as many providers. The same scale factor and seed always give the same database.
+ *
+ * The patients are spread over 20 locations of unequal sizes, they have the encounters, programs and obs selected by the
+ * patient list query shipped with the application. The records are written into tab separated files which are loaded with
+ * LOAD DATA LOCAL INFILE (the server has to allow local_infile), otherwise they are loaded with multi-row inserts.
+ *
+ * Run with key=value arguments: jdbc.url (server to create the database on), db.username, db.password, database, obs
+ * (default 100000) and seed (default 42).
+ */
+public class SyntheticDataset {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyntheticDataset.class);
+    public static final int LOCATIONS = 20;
+    public static final int OBS_PER_PATIENT = 100;
+    private static final int ENCOUNTERS_PER_PATIENT = 8;
+    private static final int OBS_PER_ENCOUNTER = 12;
+    private static final int PATIENTS_PER_USER = 500;
+    private static final int CONCEPTS = 400;
+    // Concept of the obs selected by the patient list query (with encounter type 53)
+    private static final int ART_START_DATE_CONCEPT = 23891;
+    private static final int[] INITIAL_ENCOUNTER_TYPES = { 5, 7 };
+    private static final int[] FOLLOW_UP_ENCOUNTER_TYPES = { 6, 9, 18, 35, 53 };
+    private static final int ENCOUNTER_TYPES = 60;
+    private static final int PROGRAMS = 8;
+    private static final int ROWS_PER_FILE = 1000000;
+    private static final int INSERT_STATEMENT_SIZE = 1048576;
+    private static final LocalDateTime FIRST_ENCOUNTER = LocalDateTime.of(2010, 1, 1, 0, 0);
+    private static final long ENCOUNTER_SPAN_MINUTES = 16L * 365 * 24 * 60;
+    private static final DateTimeFormatter SQL_DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Definition of each table, in the order they are created.
+    static final Map<String, String> TABLES = new LinkedHashMap<>();
+    static {
+        String audit = "creator INT NOT NULL, date_created DATETIME NOT NULL, ";
+        String voided = "voided TINYINT(1) NOT NULL DEFAULT 0, voided_by INT NULL, date_voided DATETIME NULL, ";
+        TABLES.put("users", "user_id INT NOT NULL, system_id VARCHAR(50) NOT NULL, username VARCHAR(50) NULL, person_id INT NOT NULL, "
+                + audit + "changed_by INT NULL, date_changed DATETIME NULL, retired TINYINT(1) NOT NULL DEFAULT 0, uuid CHAR(38) NOT NULL, "
+                + "PRIMARY KEY (user_id), UNIQUE KEY (uuid), FOREIGN KEY (person_id) REFERENCES person (person_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id), FOREIGN KEY (changed_by) REFERENCES users (user_id)");
+        TABLES.put("person", "person_id INT NOT NULL, gender VARCHAR(50) NULL, birthdate DATE NULL, dead TINYINT(1) NOT NULL DEFAULT 0, "
+                + audit + "changed_by INT NULL, date_changed DATETIME NULL, " + voided + "uuid CHAR(38) NOT NULL, "
+                + "PRIMARY KEY (person_id), UNIQUE KEY (uuid), FOREIGN KEY (creator) REFERENCES users (user_id), "
+                + "FOREIGN KEY (changed_by) REFERENCES users (user_id), FOREIGN KEY (voided_by) REFERENCES users (user_id)");
+        TABLES.put("role", "role VARCHAR(50) NOT NULL, description VARCHAR(255) NULL, uuid CHAR(38) NOT NULL, PRIMARY KEY (role)");
+        TABLES.put("user_role", "user_id INT NOT NULL, role VARCHAR(50) NOT NULL, PRIMARY KEY (user_id, role), "
+                + "FOREIGN KEY (user_id) REFERENCES users (user_id), FOREIGN KEY (role) REFERENCES role (role)");
+        TABLES.put("user_property", "user_id INT NOT NULL, property VARCHAR(100) NOT NULL, property_value VARCHAR(255) NOT NULL, "
+                + "PRIMARY KEY (user_id, property), FOREIGN KEY (user_id) REFERENCES users (user_id)");
+        TABLES.put("location", "location_id INT NOT NULL, name VARCHAR(255) NOT NULL, description VARCHAR(255) NULL, " + audit
+                + "retired TINYINT(1) NOT NULL DEFAULT 0, uuid CHAR(38) NOT NULL, PRIMARY KEY (location_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("concept", "concept_id INT NOT NULL, short_name VARCHAR(255) NULL, datatype_id INT NOT NULL, " + audit
+                + "retired TINYINT(1) NOT NULL DEFAULT 0, uuid CHAR(38) NOT NULL, PRIMARY KEY (concept_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("encounter_type", "encounter_type_id INT NOT NULL, name VARCHAR(50) NOT NULL, " + audit
+                + "retired TINYINT(1) NOT NULL DEFAULT 0, uuid CHAR(38) NOT NULL, PRIMARY KEY (encounter_type_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("program", "program_id INT NOT NULL, concept_id INT NOT NULL, name VARCHAR(50) NOT NULL, " + audit
+                + "retired TINYINT(1) NOT NULL DEFAULT 0, uuid CHAR(38) NOT NULL, PRIMARY KEY (program_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (concept_id) REFERENCES concept (concept_id), FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("patient", "patient_id INT NOT NULL, " + audit + "changed_by INT NULL, date_changed DATETIME NULL, " + voided
+                + "PRIMARY KEY (patient_id), FOREIGN KEY (patient_id) REFERENCES person (person_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id), FOREIGN KEY (voided_by) REFERENCES users (user_id)");
+        TABLES.put("person_name", "person_name_id INT NOT NULL, preferred TINYINT(1) NOT NULL DEFAULT 0, person_id INT NOT NULL, "
+                + "given_name VARCHAR(50) NULL, family_name VARCHAR(50) NULL, " + audit + voided + "uuid CHAR(38) NOT NULL, "
+                + "PRIMARY KEY (person_name_id), UNIQUE KEY (uuid), FOREIGN KEY (person_id) REFERENCES person (person_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("provider", "provider_id INT NOT NULL, person_id INT NULL, identifier VARCHAR(255) NULL, " + audit
+                + "retired TINYINT(1) NOT NULL DEFAULT 0, uuid CHAR(38) NOT NULL, PRIMARY KEY (provider_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (person_id) REFERENCES person (person_id), FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("relationship", "relationship_id INT NOT NULL, person_a INT NOT NULL, relationship INT NOT NULL, person_b INT NOT NULL, "
+                + audit + voided + "uuid CHAR(38) NOT NULL, PRIMARY KEY (relationship_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (person_a) REFERENCES person (person_id), FOREIGN KEY (person_b) REFERENCES person (person_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("patient_program", "patient_program_id INT NOT NULL, patient_id INT NOT NULL, program_id INT NOT NULL, "
+                + "date_enrolled DATETIME NULL, date_completed DATETIME NULL, location_id INT NULL, " + audit + voided
+                + "uuid CHAR(38) NOT NULL, PRIMARY KEY (patient_program_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (patient_id) REFERENCES patient (patient_id), FOREIGN KEY (program_id) REFERENCES program (program_id), "
+                + "FOREIGN KEY (location_id) REFERENCES location (location_id), FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("patient_state", "patient_state_id INT NOT NULL, patient_program_id INT NOT NULL, state INT NOT NULL, "
+                + "start_date DATE NULL, end_date DATE NULL, " + audit + voided + "uuid CHAR(38) NOT NULL, "
+                + "PRIMARY KEY (patient_state_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (patient_program_id) REFERENCES patient_program (patient_program_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("encounter", "encounter_id INT NOT NULL, encounter_type INT NOT NULL, patient_id INT NOT NULL, location_id INT NULL, "
+                + "encounter_datetime DATETIME NOT NULL, " + audit + "changed_by INT NULL, date_changed DATETIME NULL, " + voided
+                + "uuid CHAR(38) NOT NULL, PRIMARY KEY (encounter_id), UNIQUE KEY (uuid), KEY (encounter_datetime), "
+                + "FOREIGN KEY (encounter_type) REFERENCES encounter_type (encounter_type_id), "
+                + "FOREIGN KEY (patient_id) REFERENCES patient (patient_id), FOREIGN KEY (location_id) REFERENCES location (location_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id), FOREIGN KEY (changed_by) REFERENCES users (user_id)");
+        TABLES.put("encounter_provider", "encounter_provider_id INT NOT NULL, encounter_id INT NOT NULL, provider_id INT NOT NULL, "
+                + audit + voided + "uuid CHAR(38) NOT NULL, PRIMARY KEY (encounter_provider_id), UNIQUE KEY (uuid), "
+                + "FOREIGN KEY (encounter_id) REFERENCES encounter (encounter_id), FOREIGN KEY (provider_id) REFERENCES provider (provider_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+        TABLES.put("obs", "obs_id INT NOT NULL, person_id INT NOT NULL, concept_id INT NOT NULL, encounter_id INT NULL, "
+                + "obs_datetime DATETIME NOT NULL, location_id INT NULL, value_coded INT NULL, value_datetime DATETIME NULL, "
+                + "value_numeric DOUBLE NULL, value_text TEXT NULL, " + audit + voided + "uuid CHAR(38) NOT NULL, "
+                + "PRIMARY KEY (obs_id), UNIQUE KEY (uuid), KEY (obs_datetime), FOREIGN KEY (person_id) REFERENCES person (person_id), "
+                + "FOREIGN KEY (concept_id) REFERENCES concept (concept_id), FOREIGN KEY (encounter_id) REFERENCES encounter (encounter_id), "
+                + "FOREIGN KEY (location_id) REFERENCES location (location_id), FOREIGN KEY (value_coded) REFERENCES concept (concept_id), "
+                + "FOREIGN KEY (creator) REFERENCES users (user_id)");
+    }
+
+    private final String database;
+    private final long targetObs;
+    private final Random random;
+    private final int[] concepts = new int[CONCEPTS];
+    private final Map<String, Long> rowCounts = new LinkedHashMap<>();
+    private int users;
+    private int providers;
+
+    public SyntheticDataset(final String database, final long targetObs, final long seed) {
+        this.database = database;
+        this.targetObs = targetObs;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties arguments = parseArguments(args);
+        try (Connection connection = connect(arguments)) {
+            new SyntheticDataset(arguments.getProperty("database"), Long.parseLong(arguments.getProperty("obs", "100000")),
+                    Long.parseLong(arguments.getProperty("seed", "42"))).generate(connection);
+        }
+    }
+
+    /**
+     * @param args key=value arguments
+     * @return the arguments as properties
+     */
+    static Properties parseArguments(final String[] args) {
+        Properties arguments = new Properties();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if(equals <= 0) {
+                throw new IllegalArgumentException("Arguments are passed as key=value, got " + arg);
+            }
+            arguments.setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+        }
+        return arguments;
+    }
+
+    /**
+     * @param arguments with jdbc.url, db.username and db.password
+     * @return connection allowing LOAD DATA LOCAL INFILE
+     * @throws SQLException
+     */
+    static Connection connect(final Properties arguments) throws SQLException {
+        String url = arguments.getProperty("jdbc.url");
+        url = url.concat(url.contains("?") ? "&" : "?").concat("allowLoadLocalInfile=true&useSSL=false");
+        return DriverManager.getConnection(url, arguments.getProperty("db.username"), arguments.getProperty("db.password"));
+    }
+
+    /**
+     * Drops and creates the database then generates its records.
+     * @param connection connection to the server
+     * @return the number of records of each table
+     * @throws SQLException
+     * @throws IOException
+     */
+    public Map<String, Long> generate(final Connection connection) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        boolean loadData;
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP DATABASE IF EXISTS ".concat(database));
+            statement.execute("CREATE DATABASE ".concat(database).concat(" DEFAULT CHARACTER SET utf8"));
+            statement.execute("SET FOREIGN_KEY_CHECKS = 0");
+            statement.execute("SET UNIQUE_CHECKS = 0");
+            for (Map.Entry<String, String> table : TABLES.entrySet()) {
+                statement.execute(new StringBuilder("CREATE TABLE ").append(database).append(".").append(table.getKey()).append(" (")
+                        .append(table.getValue()).append(") ENGINE=InnoDB").toString());
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT @@local_infile")) {
+                loadData = rs.next() && rs.getBoolean(1);
+            }
+        }
+        if(!loadData) {
+            LOGGER.warn("The server does not allow LOAD DATA LOCAL INFILE (local_infile is OFF), loading with inserts which is slower");
+        }
+
+        Path directory = Files.createTempDirectory(database);
+        try {
+            generate(table -> newSink(connection, directory, loadData, table));
+        } finally {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET FOREIGN_KEY_CHECKS = 1");
+                statement.execute("SET UNIQUE_CHECKS = 1");
+            }
+            Files.deleteIfExists(directory);
+        }
+        LOGGER.info("Generated {} in {}ms: {}", database, System.currentTimeMillis() - start, rowCounts);
+        return rowCounts;
+    }
+
+    /**
+     * Generates the records of all the tables, they are written into the sinks returned by the factory.
+     * @param sinks returns the sink of a table
+     * @throws SQLException
+     * @throws IOException
+     */
+    void generate(final SinkFactory sinks) throws SQLException, IOException {
+        int patients = (int) Math.max(10, targetObs / OBS_PER_PATIENT);
+        users = Math.max(10, patients / PATIENTS_PER_USER);
+        providers = Math.max(5, users / 2);
+        LOGGER.info("Generating {} with {} patients, {} users and about {} obs", database, patients, users, targetObs);
+        generateMetadata(sinks);
+        generatePeople(sinks, patients);
+        generateClinicalData(sinks, patients);
+    }
+
+    private void generateMetadata(final SinkFactory sinks) throws SQLException, IOException {
+        LocalDateTime created = FIRST_ENCOUNTER.minusYears(1);
+        try (RowSink sink = sinks.newSink("role")) {
+            for (String role : Arrays.asList("System Developer", "Provider", "Data Clerk", "Clinician")) {
+                sink.row(role, role, uuid());
+            }
+        }
+        try (RowSink sink = sinks.newSink("location")) {
+            for (int i = 1; i <= LOCATIONS; i++) {
+                sink.row(i, "Health Facility " + i, "Synthetic health facility " + i, 1, format(created), 0, uuid());
+            }
+        }
+        // Concept ids of the obs, the concept of the patient list query is one of them.
+        try (RowSink sink = sinks.newSink("concept")) {
+            for (int i = 0; i < CONCEPTS; i++) {
+                concepts[i] = i == 0 ? ART_START_DATE_CONCEPT : 1000 + i * 7;
+                sink.row(concepts[i], "CONCEPT " + concepts[i], 1 + i % 10, 1, format(created), 0, uuid());
+            }
+        }
+        try (RowSink sink = sinks.newSink("encounter_type")) {
+            for (int i = 1; i <= ENCOUNTER_TYPES; i++) {
+                sink.row(i, "Encounter type " + i, 1, format(created), 0, uuid());
+            }
+        }
+        try (RowSink sink = sinks.newSink("program")) {
+            for (int i = 1; i <= PROGRAMS; i++) {
+                sink.row(i, concepts[i], "Program " + i, 1, format(created), 0, uuid());
+            }
+        }
+    }
+
+    /**
+     * Persons are numbered users' persons first (the first ones being providers), then patients then their relatives.
+     */
+    private void generatePeople(final SinkFactory sinks, final int patients) throws SQLException, IOException {
+        int relatives = patients * 3 / 10;
+        int persons = users + patients + relatives;
+        try (RowSink sink = sinks.newSink("users");
+             RowSink roles = sinks.newSink("user_role");
+             RowSink properties = sinks.newSink("user_property")) {
+            for (int userId = 1; userId <= users; userId++) {
+                LocalDateTime created = randomDateTime();
+                sink.row(userId, "user-" + userId, userId == 1 ? "admin" : "clerk" + userId, userId, 1, format(created),
+                        random.nextInt(10) == 0 ? randomUser() : null, null, random.nextInt(20) == 0 ? 1 : 0, uuid());
+                roles.row(userId, userId == 1 ? "System Developer" : userId <= providers ? "Provider" : "Data Clerk");
+                properties.row(userId, "defaultLocation", String.valueOf(1 + random.nextInt(LOCATIONS)));
+            }
+        }
+        try (RowSink sink = sinks.newSink("person");
+             RowSink names = sinks.newSink("person_name")) {
+            for (int personId = 1; personId <= persons; personId++) {
+                LocalDateTime created = randomDateTime();
+                boolean voided = random.nextInt(100) == 0;
+                sink.row(personId, random.nextBoolean() ? "M" : "F", created.toLocalDate().minusYears(random.nextInt(70)).toString(),
+                        random.nextInt(50) == 0 ? 1 : 0, randomUser(), format(created), null, null, voided ? 1 : 0,
+                        voided ? randomUser() : null, voided ? format(created.plusDays(1)) : null, uuid());
+                names.row(personId, 1, personId, "Given" + personId, "Family" + random.nextInt(5000), randomUser(), format(created),
+                        0, null, null, uuid());
+            }
+        }
+        try (RowSink sink = sinks.newSink("provider")) {
+            for (int providerId = 1; providerId <= providers; providerId++) {
+                sink.row(providerId, providerId, "PROV-" + providerId, 1, format(FIRST_ENCOUNTER), 0, uuid());
+            }
+        }
+        try (RowSink sink = sinks.newSink("relationship")) {
+            int relationshipId = 0;
+            for (int i = 0; i < relatives; i++) {
+                int patientId = users + 1 + random.nextInt(patients);
+                int relativeId = users + patients + 1 + i;
+                sink.row(++relationshipId, patientId, 1 + random.nextInt(6), relativeId, randomUser(), format(randomDateTime()), 0,
+                        null, null, uuid());
+                // Some patients are related to each other (for example mother and child both on treatment)
+                if(random.nextInt(10) == 0) {
+                    sink.row(++relationshipId, patientId, 2, users + 1 + random.nextInt(patients), randomUser(),
+                            format(randomDateTime()), 0, null, null, uuid());
+                }
+            }
+        }
+    }
+
+    private void generateClinicalData(final SinkFactory sinks, final int patients) throws SQLException, IOException {
+        int encounterId = 0;
+        int encounterProviderId = 0;
+        int patientProgramId = 0;
+        int patientStateId = 0;
+        int obsId = 0;
+        try (RowSink patientSink = sinks.newSink("patient");
+             RowSink programSink = sinks.newSink("patient_program");
+             RowSink stateSink = sinks.newSink("patient_state");
+             RowSink encounterSink = sinks.newSink("encounter");
+             RowSink encounterProviderSink = sinks.newSink("encounter_provider");
+             RowSink obsSink = sinks.newSink("obs")) {
+            for (int patientId = users + 1; patientId <= users + patients; patientId++) {
+                LocalDateTime registered = randomDateTime();
+                boolean voided = random.nextInt(100) == 0;
+                patientSink.row(patientId, randomUser(), format(registered), null, null, voided ? 1 : 0, voided ? randomUser() : null,
+                        voided ? format(registered.plusDays(1)) : null);
+                int location = homeLocation();
+
+                int programs = random.nextInt(10) < 3 ? 2 : 1;
+                for (int p = 0; p < programs; p++) {
+                    LocalDateTime enrolled = registered.plusDays(random.nextInt(60));
+                    sink(programSink, ++patientProgramId, patientId, p == 0 ? 1 + random.nextInt(2) : 3 + random.nextInt(PROGRAMS - 2),
+                            format(enrolled), random.nextInt(5) == 0 ? format(enrolled.plusDays(365)) : null, location, randomUser(),
+                            format(enrolled));
+                    sink(stateSink, ++patientStateId, patientProgramId, 1 + random.nextInt(12), enrolled.toLocalDate().toString(), null,
+                            randomUser(), format(enrolled));
+                }
+
+                int encounters = 1 + random.nextInt(ENCOUNTERS_PER_PATIENT * 2 - 1);
+                LocalDateTime encounterDate = registered;
+                for (int e = 0; e < encounters; e++) {
+                    int type = e == 0 ? INITIAL_ENCOUNTER_TYPES[random.nextInt(INITIAL_ENCOUNTER_TYPES.length)] :
+                            FOLLOW_UP_ENCOUNTER_TYPES[random.nextInt(FOLLOW_UP_ENCOUNTER_TYPES.length)];
+                    int encounterLocation = random.nextInt(10) == 0 ? 1 + random.nextInt(LOCATIONS) : location;
+                    boolean encounterVoided = random.nextInt(50) == 0;
+                    encounterSink.row(++encounterId, type, patientId, encounterLocation, format(encounterDate), randomUser(),
+                            format(encounterDate), null, null, encounterVoided ? 1 : 0, encounterVoided ? randomUser() : null,
+                            encounterVoided ? format(encounterDate.plusDays(1)) : null, uuid());
+                    encounterProviderSink.row(++encounterProviderId, encounterId, 1 + random.nextInt(providers), randomUser(),
+                            format(encounterDate), 0, null, null, uuid());
+
+                    int obs = 1 + random.nextInt(OBS_PER_ENCOUNTER * 2 - 1);
+                    for (int o = 0; o < obs; o++) {
+                        boolean obsVoided = encounterVoided || random.nextInt(50) == 0;
+                        Object[] value = type == 53 && o == 0 ? new Object[] { null, format(registered.plusDays(random.nextInt(30))), null, null } :
+                                randomValue();
+                        obsSink.row(++obsId, patientId, type == 53 && o == 0 ? ART_START_DATE_CONCEPT : concepts[1 + random.nextInt(CONCEPTS - 1)],
+                                encounterId, format(encounterDate), encounterLocation, value[0], value[1], value[2], value[3], randomUser(),
+                                format(encounterDate), obsVoided ? 1 : 0, obsVoided ? randomUser() : null,
+                                obsVoided ? format(encounterDate.plusDays(1)) : null, uuid());
+                    }
+                    encounterDate = encounterDate.plusDays(14 + random.nextInt(90));
+                }
+            }
+        }
+    }
+
+    private void sink(final RowSink sink, final Object... values) throws SQLException, IOException {
+        // patient_program and patient_state rows end with the voided columns and the uuid.
+        Object[] row = Arrays.copyOf(values, values.length + 4);
+        row[values.length] = 0;
+        row[values.length + 3] = uuid();
+        sink.row(row);
+    }
+
+    private Object[] randomValue() {
+        int kind = random.nextInt(10);
+        if(kind < 5) {
+            return new Object[] { null, null, Math.round(random.nextDouble() * 100000) / 100.0, null };
+        } else if(kind < 8) {
+            return new Object[] { concepts[1 + random.nextInt(CONCEPTS - 1)], null, null, null };
+        } else if(kind < 9) {
+            return new Object[] { null, format(randomDateTime()), null, null };
+        }
+        return new Object[] { null, null, null, "Free text note\twith a tab, a \\ and a new\nline " + random.nextInt(1000) };
+    }
+
+    /**
+     * @return a location, the first locations have more patients like the big urban facilities.
+     */
+    private int homeLocation() {
+        double skewed = Math.pow(random.nextDouble(), 2);
+        return 1 + (int) (skewed * LOCATIONS);
+    }
+
+    private int randomUser() {
+        return 1 + random.nextInt(users);
+    }
+
+    private LocalDateTime randomDateTime() {
+        return FIRST_ENCOUNTER.plusMinutes((long) (random.nextDouble() * ENCOUNTER_SPAN_MINUTES));
+    }
+
+    private String uuid() {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    private static String format(final LocalDateTime dateTime) {
+        return dateTime.format(SQL_DATE_TIME);
+    }
+
+    private RowSink newSink(final Connection connection, final Path directory, final boolean loadData, final String table) {
+        String qualifiedTable = database.concat(".").concat(table);
+        return loadData ? new LoadDataSink(connection, directory, qualifiedTable, table, rowCounts) :
+                new InsertSink(connection, qualifiedTable, table, rowCounts);
+    }
+
+    interface SinkFactory {
+        RowSink newSink(String table);
+    }
+
+    /**
+     * Receives the rows of a table, the values are in the order of the columns of the table.
+     */
+    interface RowSink extends AutoCloseable {
+        void row(Object... values) throws SQLException, IOException;
+
+        @Override
+        void close() throws SQLException, IOException;
+    }
+
+    /**
+     * Writes the rows into tab separated files of at most ROWS_PER_FILE rows which are loaded with LOAD DATA LOCAL INFILE.
+     */
+    private static class LoadDataSink implements RowSink {
+        private final Connection connection;
+        private final Path directory;
+        private final String qualifiedTable;
+        private final String table;
+        private final Map<String, Long> rowCounts;
+        private Path file;
+        private BufferedWriter writer;
+        private int rowsInFile = 0;
+
+        LoadDataSink(final Connection connection, final Path directory, final String qualifiedTable, final String table,
+                     final Map<String, Long> rowCounts) {
+            this.connection = connection;
+            this.directory = directory;
+            this.qualifiedTable = qualifiedTable;
+            this.table = table;
+            this.rowCounts = rowCounts;
+        }
+
+        @Override
+        public void row(final Object... values) throws SQLException, IOException {
+            if(writer == null) {
+                file = directory.resolve(table.concat(".tsv"));
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            }
+            for (int i = 0; i < values.length; i++) {
+                if(i > 0) writer.write('\t');
+                if(values[i] == null) {
+                    writer.write("\\N");
+                } else {
+                    String value = values[i].toString();
+                    for (int c = 0; c < value.length(); c++) {
+                        char ch = value.charAt(c);
+                        if(ch == '\t') writer.write("\\t");
+                        else if(ch == '\n') writer.write("\\n");
+                        else if(ch == '\\') writer.write("\\\\");
+                        else writer.write(ch);
+                    }
+                }
+            }
+            writer.write('\n');
+            rowCounts.merge(table, 1L, Long::sum);
+            if(++rowsInFile == ROWS_PER_FILE) {
+                load();
+            }
+        }
+
+        private void load() throws SQLException, IOException {
+            if(writer == null) return;
+            writer.close();
+            writer = null;
+            String sql = new StringBuilder("LOAD DATA LOCAL INFILE '").append(file.toAbsolutePath().toString().replace("\\", "\\\\"))
+                    .append("' INTO TABLE ").append(qualifiedTable).append(" CHARACTER SET utf8").toString();
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(sql);
+            } catch (SQLException e) {
+                LOGGER.error("An error occurred while running sql: {}", sql, e);
+                throw e;
+            } finally {
+                Files.deleteIfExists(file);
+            }
+            LOGGER.debug("Loaded {} rows into {}", rowsInFile, qualifiedTable);
+            rowsInFile = 0;
+        }
+
+        @Override
+        public void close() throws SQLException, IOException {
+            load();
+        }
+    }
+
+    /**
+     * Writes the rows with multi-row inserts of about INSERT_STATEMENT_SIZE bytes, used when LOAD DATA LOCAL INFILE is not allowed.
+     */
+    private static class InsertSink implements RowSink {
+        private final Connection connection;
+        private final String qualifiedTable;
+        private final String table;
+        private final Map<String, Long> rowCounts;
+        private final StringBuilder sql = new StringBuilder();
+
+        InsertSink(final Connection connection, final String qualifiedTable, final String table, final Map<String, Long> rowCounts) {
+            this.connection = connection;
+            this.qualifiedTable = qualifiedTable;
+            this.table = table;
+            this.rowCounts = rowCounts;
+        }
+
+        @Override
+        public void row(final Object... values) throws SQLException {
+            sql.append(sql.length() == 0 ? "INSERT INTO ".concat(qualifiedTable).concat(" VALUES (") : ",(");
+            for (int i = 0; i < values.length; i++) {
+                if(i > 0) sql.append(",");
+                if(values[i] == null) {
+                    sql.append("NULL");
+                } else if(values[i] instanceof Number) {
+                    sql.append(values[i]);
+                } else {
+                    sql.append("'").append(values[i].toString().replace("\\", "\\\\").replace("'", "\\'")).append("'");
+                }
+            }
+            sql.append(")");
+            rowCounts.merge(table, 1L, Long::sum);
+            if(sql.length() >= INSERT_STATEMENT_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws SQLException {
+            if(sql.length() == 0) return;
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(sql.toString());
+            } catch (SQLException e) {
+                LOGGER.error("An error occurred while inserting into {}", qualifiedTable, e);
+                throw e;
+            }
+            sql.setLength(0);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SyntheticDatasetTest {
+    private static final Pattern FOREIGN_KEY = Pattern.compile("FOREIGN KEY \\((\\w+)\\) REFERENCES (\\w+) \\((\\w+)\\)");
+    private static final Pattern PRIMARY_KEY = Pattern.compile("PRIMARY KEY \\(([\\w, ]+)\\)");
+    private static final long OBS = 20000;
+
+    @Test
+    public void generateShouldCreateTheRequestedNumberOfRecords() throws Exception {
+        Map<String, List<Object[]>> rows = generate(42);
+
+        int patients = (int) (OBS / SyntheticDataset.OBS_PER_PATIENT);
+        assertEquals(patients, rows.get("patient").size());
+        assertEquals(10, rows.get("users").size());
+        assertEquals(5, rows.get("provider").size());
+        assertEquals(10 + patients + patients * 3 / 10, rows.get("person").size());
+        assertEquals(SyntheticDataset.LOCATIONS, rows.get("location").size());
+        long obs = rows.get("obs").size();
+        assertTrue(obs > OBS * 3 / 4 && obs < OBS * 5 / 4, obs + " obs");
+        for (String table : SyntheticDataset.TABLES.keySet()) {
+            assertFalse(rows.get(table).isEmpty(), table);
+        }
+    }
+
+    @Test
+    public void generateShouldOnlyReferenceGeneratedRecords() throws Exception {
+        Map<String, List<Object[]>> rows = generate(7);
+
+        Map<String, List<String>> columns = new HashMap<>();
+        SyntheticDataset.TABLES.forEach((table, definition) -> columns.put(table, getColumns(definition)));
+        for (Map.Entry<String, String> table : SyntheticDataset.TABLES.entrySet()) {
+            List<String> tableColumns = columns.get(table.getKey());
+            for (Object[] row : rows.get(table.getKey())) {
+                assertEquals(tableColumns.size(), row.length, table.getKey());
+            }
+
+            Matcher primaryKey = PRIMARY_KEY.matcher(table.getValue());
+            assertTrue(primaryKey.find(), table.getKey());
+            Set<List<String>> keys = new HashSet<>();
+            for (Object[] row : rows.get(table.getKey())) {
+                List<String> key = new ArrayList<>();
+                for (String column : primaryKey.group(1).split(", ")) {
+                    key.add(String.valueOf(row[tableColumns.indexOf(column)]));
+                }
+                assertTrue(keys.add(key), "Duplicate key " + key + " in " + table.getKey());
+            }
+
+            Matcher foreignKey = FOREIGN_KEY.matcher(table.getValue());
+            while (foreignKey.find()) {
+                String referencedTable = foreignKey.group(2);
+                Set<String> referencedKeys = getValues(rows.get(referencedTable), columns.get(referencedTable).indexOf(foreignKey.group(3)));
+                int column = tableColumns.indexOf(foreignKey.group(1));
+                for (Object[] row : rows.get(table.getKey())) {
+                    assertTrue(row[column] == null || referencedKeys.contains(row[column].toString()), table.getKey() + "."
+                            + foreignKey.group(1) + " references missing " + referencedTable + " " + row[column]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void generateShouldGiveTheSameRecordsForTheSameSeed() throws Exception {
+        Map<String, List<Object[]>> first = generate(42);
+        Map<String, List<Object[]>> second = generate(42);
+        for (String table : SyntheticDataset.TABLES.keySet()) {
+            assertEquals(first.get(table).size(), second.get(table).size(), table);
+        }
+        List<Object[]> obs = first.get("obs");
+        assertEquals(getValues(obs, obs.get(0).length - 1), getValues(second.get("obs"), obs.get(0).length - 1));
+    }
+
+    private static Map<String, List<Object[]>> generate(final long seed) throws Exception {
+        Map<String, List<Object[]>> rows = new HashMap<>();
+        new SyntheticDataset("synthetic", OBS, seed).generate(table -> new SyntheticDataset.RowSink() {
+            @Override
+            public void row(final Object... values) {
+                rows.computeIfAbsent(table, t -> new ArrayList<>()).add(values);
+            }
+
+            @Override
+            public void close() {
+                assertNotNull(rows.get(table), "No rows generated for " + table);
+            }
+        });
+        return rows;
+    }
+
+    /**
+     * @return the names of the columns of a table definition in order, the constraints are left out.
+     */
+    private static List<String> getColumns(final String definition) {
+        List<String> columns = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= definition.length(); i++) {
+            char c = i < definition.length() ? definition.charAt(i) : ',';
+            if(c == '(') depth++;
+            if(c == ')') depth--;
+            if(c == ',' && depth == 0) {
+                String item = definition.substring(start, i).trim();
+                if(!item.matches("^(PRIMARY|UNIQUE|KEY|FOREIGN) .*")) {
+                    columns.add(item.substring(0, item.indexOf(' ')));
+                }
+                start = i + 1;
+            }
+        }
+        return columns;
+    }
+
+    private static Set<String> getValues(final List<Object[]> rows, final int column) {
+        Set<String> values = new HashSet<>();
+        for (Object[] row : rows) {
+            values.add(String.valueOf(row[column]));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,180 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of copy workers running at the same time and adjusts that limit while the extraction runs (AIMD). Copy
+ * tasks report the table, rows and time taken by every batch. Tables differ widely in row width so the latency per row of a
+ * batch is compared with the baseline of its table: the lowest latency per row seen for the table, which decays (rises a
+ * little every interval) so that a baseline measured on an idle server is eventually forgotten. At the end of every adjustment
+ * interval the throughput (rows per second) is compared with the one of the previous interval, and:
+ * <ul>
+ *     <li>the throughput rose while all the workers were busy and the latency of the batches stayed close to their baselines:
+ *     one more worker (additive increase)</li>
+ *     <li>the latency was degraded or the throughput fell while all the workers were busy for {@value #DEGRADED_INTERVALS}
+ *     intervals in a row: a quarter of the workers are removed (multiplicative decrease)</li>
+ *     <li>otherwise the limit is kept, more workers no longer bring more throughput: this is the throughput knee</li>
+ * </ul>
+ * The limit always stays between {@link AppProperties#getMinWorkers()} and {@link AppProperties#getMaxWorkers()}.
+ */
+public class AdaptiveConcurrencyController {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyController.class);
+    private static final double INCREASE_TOLERANCE = 1.25;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final int DEGRADED_INTERVALS = 2;
+    private static final double BASELINE_DECAY = 1.05;
+    private static final double THROUGHPUT_GAIN = 1.02;
+    private static final double THROUGHPUT_LOSS = 0.9;
+    private static AdaptiveConcurrencyController instance;
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long adjustIntervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+
+    private int limit;
+    private int active;
+    private boolean saturated;
+    private long windowStart = System.nanoTime();
+    private long windowRows;
+    private long windowBatches;
+    private double windowLatencyRatios;
+    private int degradedIntervals;
+    private double previousThroughput;
+    private final Map<String, Double> baselineNanosPerRow = new HashMap<>();
+
+    AdaptiveConcurrencyController(final int minWorkers, final int maxWorkers, final long adjustIntervalMillis) {
+        assert minWorkers > 0 && maxWorkers >= minWorkers;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.adjustIntervalNanos = TimeUnit.MILLISECONDS.toNanos(adjustIntervalMillis);
+        this.limit = minWorkers;
+    }
+
+    public static synchronized AdaptiveConcurrencyController getInstance() {
+        if(instance == null) {
+            instance = new AdaptiveConcurrencyController(AppProperties.getInstance().getMinWorkers(),
+                    AppProperties.getInstance().getMaxWorkers(), AppProperties.getInstance().getWorkersAdjustInterval());
+        }
+        return instance;
+    }
+
+    /**
+     * Blocks until the number of running workers is below the current limit.
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (active >= limit) {
+                permitReleased.await();
+            }
+            active++;
+            if(active >= limit) {
+                saturated = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            active--;
+            permitReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a copied batch, this is where the limit is adjusted at the end of each interval.
+     * @param table the table the batch was copied into
+     * @param rows the number of rows copied by the batch
+     * @param elapsedNanos the time taken by the batch
+     */
+    public void recordBatch(final String table, final long rows, final long elapsedNanos) {
+        recordBatch(table, rows, elapsedNanos, System.nanoTime());
+    }
+
+    /**
+     * @param now the value of {@link System#nanoTime()} when the batch was done
+     */
+    void recordBatch(final String table, final long rows, final long elapsedNanos, final long now) {
+        lock.lock();
+        try {
+            double nanosPerRow = elapsedNanos / (double) Math.max(1, rows);
+            Double baseline = baselineNanosPerRow.get(table);
+            if(baseline == null || nanosPerRow < baseline) {
+                baseline = nanosPerRow;
+                baselineNanosPerRow.put(table, baseline);
+            }
+            windowRows += rows;
+            windowBatches++;
+            windowLatencyRatios += baseline > 0 ? nanosPerRow / baseline : 1;
+            if(now - windowStart >= adjustIntervalNanos) {
+                adjust(now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    private void adjust(final long now) {
+        double throughput = windowRows / (Math.max(1, now - windowStart) / 1e9);
+        // Average latency of the batches relative to the baseline of their table, 1 is as fast as the baseline.
+        double latencyRatio = windowLatencyRatios / windowBatches;
+        // The throughput only says something about the number of workers when all of them were busy, otherwise there was no
+        // demand for more.
+        boolean throughputRose = saturated && throughput > previousThroughput * THROUGHPUT_GAIN;
+        boolean throughputFell = saturated && throughput < previousThroughput * THROUGHPUT_LOSS;
+
+        int previousLimit = limit;
+        degradedIntervals = latencyRatio > LATENCY_TOLERANCE || throughputFell ? degradedIntervals + 1 : 0;
+        if(degradedIntervals >= DEGRADED_INTERVALS) {
+            limit = Math.max(minWorkers, (int) (limit * DECREASE_FACTOR));
+            degradedIntervals = 0;
+        } else if(throughputRose && latencyRatio <= INCREASE_TOLERANCE) {
+            limit = Math.min(maxWorkers, limit + 1);
+        }
+        if(limit != previousLimit) {
+            LOGGER.debug("Copy workers changed from {} to {} (throughput: {} rows/sec, batch latency: {}x the baseline)", previousLimit,
+                    limit, Math.round(throughput), String.format("%.2f", latencyRatio));
+            permitReleased.signalAll();
+        } else {
+            LOGGER.trace("Copy workers kept at {} (throughput: {} rows/sec, batch latency: {}x the baseline)", limit, Math.round(throughput),
+                    String.format("%.2f", latencyRatio));
+        }
+
+        baselineNanosPerRow.replaceAll((table, baseline) -> baseline * BASELINE_DECAY);
+        previousThroughput = throughput;
+        windowStart = now;
+        windowRows = 0;
+        windowBatches = 0;
+        windowLatencyRatios = 0;
+        saturated = active >= limit;
+    }
+}
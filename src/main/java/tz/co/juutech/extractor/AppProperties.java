@@ -10,6 +10,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
@@ -17,12 +19,13 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 /**
  * @uthor Willa Mhawila<a.mhawila@gmail.com> on 6/21/21.
  */
-public class AppProperties {
+public class AppProperties implements Cloneable {
     private static final Logger LOGGER = LoggerFactory.getLogger(AppProperties.class);
 
     public final static String JDBC_URL_PROP = "jdbc.url";
@@ -37,6 +40,35 @@ public class AppProperties {
     public final static String ONLY_STRUCTURE_TABLES_PROP = "copy.only.structure";
     public final static String DROP_NEW_DB_AFTER_PROP = "drop.newDb.after";
     public final static String BATCH_SIZE_PROP = "batch.size";
+    public final static String COMMIT_ROWS_PROP = "commit.rows";
+    public final static String COMMIT_BYTES_PROP = "commit.bytes";
+    public final static String WORKERS_MIN_PROP = "workers.min";
+    public final static String WORKERS_MAX_PROP = "workers.max";
+    public final static String WORKERS_ADJUST_INTERVAL_PROP = "workers.adjust.interval.ms";
+    public final static String SPLIT_THRESHOLD_PROP = "split.threshold";
+    public final static String SPLIT_MAX_RANGES_PROP = "split.max.ranges";
+    public final static String DUMP_COMPRESSION_PROP = "dump.compression";
+    public final static String DUMP_STATEMENT_SIZE_PROP = "dump.statement.size";
+    public final static String DUMP_CHUNK_SIZE_PROP = "dump.chunk.size";
+    public final static String DIRECT_DUMP_PROP = "direct.dump";
+    public final static String DEFER_SECONDARY_INDEXES_PROP = "defer.secondary.indexes";
+    public final static String SCRATCH_PROFILE_PROP = "scratch.profile";
+    public final static String SCRATCH_ENGINE_PROP = "scratch.engine";
+    public final static String TARGET_JDBC_URL_PROP = "target.jdbc.url";
+    public final static String TARGET_DB_USERNAME_PROP = "target.db.username";
+    public final static String TARGET_DB_PASSWORD_PROP = "target.db.password";
+    public final static String COPY_QUEUE_DEPTH_PROP = "copy.queue.depth";
+    public final static String COPY_WRITER_BATCH_SIZE_PROP = "copy.writer.batch.size";
+    public final static String COPY_WRITERS_PROP = "copy.writers";
+    public final static String ID_LIST_THRESHOLD_PROP = "id.list.threshold";
+    public final static String REWRITE_CONDITIONS_PROP = "rewrite.conditions";
+    public final static String INCREMENTAL_PROP = "incremental";
+    public final static String INCREMENTAL_STATE_DIR_PROP = "incremental.state.dir";
+    public final static String INCREMENTAL_SINCE_PROP = "incremental.since";
+    public final static String BATCH_SITES_FILE_PROP = "batch.sites.file";
+    public final static String BATCH_CONCURRENT_SITES_PROP = "batch.concurrent.sites";
+    public final static String METRICS_REPORT_DIR_PROP = "metrics.report.dir";
+    public final static String METRICS_PROMETHEUS_DIR_PROP = "metrics.prometheus.dir";
     public final static String APPLICATION_PROPERTIES_FILENAME = "application.properties";
     public final static String DEV_APPLICATION_PROPERTIES_FILENAME = "dev-application.properties";
     public static final String LOG_LEVEL_PROP = "log.level";
@@ -44,8 +76,23 @@ public class AppProperties {
     private static final String PATIENT_LIST_QUERY_FILE = "patient_list_query.sql";
     private static final String DEFAULT_END_DATE_PATTERN = "dd-MM-yyyy";
     private static final int DEFAULT_BATCH_SIZE = 20000;
+    private static final int DEFAULT_WORKERS_MIN = 2;
+    private static final int DEFAULT_WORKERS_MAX = 8;
+    private static final long DEFAULT_WORKERS_ADJUST_INTERVAL = 5000;
+    private static final long DEFAULT_SPLIT_THRESHOLD = 1000000;
+    private static final long DEFAULT_COMMIT_ROWS = 100000;
+    private static final long DEFAULT_COMMIT_BYTES = 67108864;
+    private static final int DEFAULT_DUMP_STATEMENT_SIZE = 1048576;
+    private static final long DEFAULT_DUMP_CHUNK_SIZE = 0;
+    private static final int DEFAULT_COPY_QUEUE_DEPTH = 16;
+    private static final int DEFAULT_COPY_WRITER_BATCH_SIZE = 1000;
+    private static final int DEFAULT_COPY_WRITERS = 2;
+    private static final int DEFAULT_ID_LIST_THRESHOLD = 1000;
+    private static final int DEFAULT_BATCH_CONCURRENT_SITES = 2;
 
     private static AppProperties appProperties = null;
+    // The properties of the site being extracted by the current thread in batch mode.
+    private static final ThreadLocal<AppProperties> SITE_PROPERTIES = new ThreadLocal<>();
     private static final Properties APP_PROPS = new Properties();
     private String locationsIdsString;
     private Set<Integer> locationsIds = new HashSet<>();
@@ -58,13 +105,43 @@ public class AppProperties {
 
     private Boolean dropNewDbAfter;
     private Integer batchSize;
+    private Integer minWorkers;
+    private Integer maxWorkers;
+    private Long workersAdjustInterval;
+    private Long splitThreshold;
+    private Long commitRows;
+    private Long commitBytes;
+    private Integer splitMaxRanges;
+    private SqlDumpWriter.Compression dumpCompression;
+    private Integer dumpStatementSize;
+    private Long dumpChunkSize;
+    private Boolean directDump;
+    private Boolean deferSecondaryIndexes;
+    private Boolean scratchProfile;
+    private Integer copyQueueDepth;
+    private Integer copyWriterBatchSize;
+    private Integer copyWriters;
+    private Integer idListThreshold;
+    private Boolean rewriteConditions;
+    private Boolean incremental;
+    private LocalDate incrementalSince;
+    private Integer batchConcurrentSites;
+    // Name of the new database of a site in batch mode.
+    private String newDatabaseName;
 
     private Set<String> excludedTables = new HashSet<>();
     private Set<String> onlyStructureTables = new HashSet<>();
 
     private AppProperties() {}
 
+    /**
+     * @return the properties of the site being extracted by the current thread in batch mode, otherwise the application properties.
+     */
     public static AppProperties getInstance() {
+        AppProperties siteProperties = SITE_PROPERTIES.get();
+        if(siteProperties != null) {
+            return siteProperties;
+        }
         if(appProperties == null) {
             appProperties = new AppProperties();
 
@@ -126,6 +203,42 @@ public class AppProperties {
                     LOGGER.debug("Invalid value set for {}, ignoring and using default of {}", BATCH_SIZE_PROP, DEFAULT_BATCH_SIZE);
                     appProperties.batchSize = DEFAULT_BATCH_SIZE;
                 }
+                appProperties.minWorkers = getIntegerProperty(WORKERS_MIN_PROP, DEFAULT_WORKERS_MIN);
+                appProperties.maxWorkers = Math.max(appProperties.minWorkers, getIntegerProperty(WORKERS_MAX_PROP, DEFAULT_WORKERS_MAX));
+                appProperties.workersAdjustInterval = getLongProperty(WORKERS_ADJUST_INTERVAL_PROP, DEFAULT_WORKERS_ADJUST_INTERVAL);
+                appProperties.splitThreshold = getLongProperty(SPLIT_THRESHOLD_PROP, DEFAULT_SPLIT_THRESHOLD);
+                appProperties.commitRows = Math.max(1, getLongProperty(COMMIT_ROWS_PROP, DEFAULT_COMMIT_ROWS));
+                appProperties.commitBytes = Math.max(1, getLongProperty(COMMIT_BYTES_PROP, DEFAULT_COMMIT_BYTES));
+                appProperties.splitMaxRanges = getIntegerProperty(SPLIT_MAX_RANGES_PROP, appProperties.maxWorkers);
+                String compression = APP_PROPS.getProperty(DUMP_COMPRESSION_PROP, "").trim();
+                try {
+                    appProperties.dumpCompression = StringUtils.isNullOrEmpty(compression) ? SqlDumpWriter.Compression.NONE :
+                            SqlDumpWriter.Compression.valueOf(compression.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOGGER.error("Invalid value set for {}, use one of none, gzip or zstd", DUMP_COMPRESSION_PROP);
+                    throw e;
+                }
+                appProperties.dumpStatementSize = getIntegerProperty(DUMP_STATEMENT_SIZE_PROP, DEFAULT_DUMP_STATEMENT_SIZE);
+                appProperties.dumpChunkSize = Math.max(0, getLongProperty(DUMP_CHUNK_SIZE_PROP, DEFAULT_DUMP_CHUNK_SIZE));
+                appProperties.directDump = Boolean.valueOf(APP_PROPS.getProperty(DIRECT_DUMP_PROP, "FALSE"));
+                appProperties.deferSecondaryIndexes = Boolean.valueOf(APP_PROPS.getProperty(DEFER_SECONDARY_INDEXES_PROP, "FALSE"));
+                appProperties.scratchProfile = Boolean.valueOf(APP_PROPS.getProperty(SCRATCH_PROFILE_PROP, "FALSE"));
+                appProperties.copyQueueDepth = getIntegerProperty(COPY_QUEUE_DEPTH_PROP, DEFAULT_COPY_QUEUE_DEPTH);
+                appProperties.copyWriterBatchSize = getIntegerProperty(COPY_WRITER_BATCH_SIZE_PROP, DEFAULT_COPY_WRITER_BATCH_SIZE);
+                appProperties.copyWriters = getIntegerProperty(COPY_WRITERS_PROP, DEFAULT_COPY_WRITERS);
+                appProperties.idListThreshold = getIntegerProperty(ID_LIST_THRESHOLD_PROP, DEFAULT_ID_LIST_THRESHOLD);
+                appProperties.rewriteConditions = Boolean.valueOf(APP_PROPS.getProperty(REWRITE_CONDITIONS_PROP, "TRUE"));
+                appProperties.incremental = Boolean.valueOf(APP_PROPS.getProperty(INCREMENTAL_PROP, "FALSE"));
+                String incrementalSince = APP_PROPS.getProperty(INCREMENTAL_SINCE_PROP, "").trim();
+                if(!StringUtils.isNullOrEmpty(incrementalSince)) {
+                    try {
+                        appProperties.incrementalSince = LocalDate.parse(incrementalSince, appProperties.endDateFormatter);
+                    } catch (DateTimeParseException e) {
+                        LOGGER.error("Invalid value set for property {}, it has to be in the {} pattern", INCREMENTAL_SINCE_PROP, END_DATE_PATTERN_PROP);
+                        throw e;
+                    }
+                }
+                appProperties.batchConcurrentSites = Math.max(1, getIntegerProperty(BATCH_CONCURRENT_SITES_PROP, DEFAULT_BATCH_CONCURRENT_SITES));
                 //Host and port
                 appProperties.determineMysqlHostAndPortFromJdbcUrl();
             } catch (Exception e) {
@@ -137,6 +250,54 @@ public class AppProperties {
         return appProperties;
     }
 
+    /**
+     * @param site the site
+     * @return a copy of these properties with the new database name, locations and end date of the site.
+     */
+    public AppProperties forSite(final SiteDefinition site) {
+        try {
+            AppProperties siteProperties = (AppProperties) clone();
+            siteProperties.newDatabaseName = getNewDatabaseName().concat("_").concat(site.getName());
+            siteProperties.locationsIds = site.getLocationsIds();
+            siteProperties.locationsIdsString = site.getLocationsIdsString();
+            siteProperties.endDate = site.getEndDate();
+            return siteProperties;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the site properties bound to the current thread or null if none.
+     */
+    public static AppProperties getSiteProperties() {
+        return SITE_PROPERTIES.get();
+    }
+
+    /**
+     * Runs a task with the passed site properties returned by {@link #getInstance()} in the current thread.
+     * @param siteProperties the site properties or null to run with the properties currently in effect.
+     * @param task the task
+     * @return what the task returns
+     * @throws Exception what the task throws
+     */
+    public static <T> T callWithSite(final AppProperties siteProperties, final Callable<T> task) throws Exception {
+        if(siteProperties == null) {
+            return task.call();
+        }
+        AppProperties previous = SITE_PROPERTIES.get();
+        SITE_PROPERTIES.set(siteProperties);
+        try {
+            return task.call();
+        } finally {
+            if(previous == null) {
+                SITE_PROPERTIES.remove();
+            } else {
+                SITE_PROPERTIES.set(previous);
+            }
+        }
+    }
+
     public String getJdbcUrl() {
         return APP_PROPS.getProperty(JDBC_URL_PROP);
     }
@@ -166,6 +327,9 @@ public class AppProperties {
     }
 
     public String getNewDatabaseName() {
+        if(newDatabaseName != null) {
+            return newDatabaseName;
+        }
         return APP_PROPS.getProperty(NEW_DB_NAME_PROP);
     }
 
@@ -193,10 +357,169 @@ public class AppProperties {
         return batchSize;
     }
 
+    /**
+     * @return the number of rows after which the copy of a table is committed.
+     */
+    public Long getCommitRows() {
+        return commitRows;
+    }
+
+    /**
+     * @return the (estimated) number of bytes after which the copy of a table is committed.
+     */
+    public Long getCommitBytes() {
+        return commitBytes;
+    }
+
+    public Integer getMinWorkers() {
+        return minWorkers;
+    }
+
+    public Integer getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    public Long getWorkersAdjustInterval() {
+        return workersAdjustInterval;
+    }
+
+    public Long getSplitThreshold() {
+        return splitThreshold;
+    }
+
+    public Integer getSplitMaxRanges() {
+        return splitMaxRanges;
+    }
+
+    public SqlDumpWriter.Compression getDumpCompression() {
+        return dumpCompression;
+    }
+
+    public Integer getDumpStatementSize() {
+        return dumpStatementSize;
+    }
+
+    /**
+     * @return the maximum size in bytes (before compression) of a chunk of the dump, 0 if the dump is written into a single file.
+     */
+    public Long getDumpChunkSize() {
+        return dumpChunkSize;
+    }
+
+    public Boolean getDirectDump() {
+        return directDump;
+    }
+
+    public Boolean getDeferSecondaryIndexes() {
+        return deferSecondaryIndexes;
+    }
+
+    public Boolean getScratchProfile() {
+        return scratchProfile;
+    }
+
+    /**
+     * @return the storage engine of the tables created in the new database, null to keep the engine of the source tables.
+     */
+    public String getScratchEngine() {
+        String engine = APP_PROPS.getProperty(SCRATCH_ENGINE_PROP, "").trim();
+        return StringUtils.isNullOrEmpty(engine) ? null : engine;
+    }
+
+    /**
+     * @return true if the new database is on a different server than the source database.
+     */
+    public boolean isCrossServer() {
+        return !StringUtils.isNullOrEmpty(getTargetJdbcUrl());
+    }
+
+    public String getTargetJdbcUrl() {
+        return APP_PROPS.getProperty(TARGET_JDBC_URL_PROP);
+    }
+
+    public String getTargetDbUsername() {
+        return APP_PROPS.getProperty(TARGET_DB_USERNAME_PROP, getDbUsername());
+    }
+
+    public String getTargetDbPassword() {
+        return APP_PROPS.getProperty(TARGET_DB_PASSWORD_PROP, getDbPassword());
+    }
+
+    public Integer getCopyQueueDepth() {
+        return copyQueueDepth;
+    }
+
+    public Integer getCopyWriterBatchSize() {
+        return copyWriterBatchSize;
+    }
+
+    public Integer getCopyWriters() {
+        return copyWriters;
+    }
+
+    /**
+     * @return the maximum number of ids written as a literal IN list in a condition, more ids are loaded into a table.
+     */
+    public Integer getIdListThreshold() {
+        return idListThreshold;
+    }
+
+    /**
+     * @return true if the subqueries of copy conditions are rendered in the form the server plans best, see {@link ConditionPlanner}.
+     */
+    public Boolean getRewriteConditions() {
+        return rewriteConditions;
+    }
+
+    /**
+     * @return true if only the records created, changed or voided since the previous extraction of the site are extracted.
+     */
+    public Boolean getIncremental() {
+        return incremental;
+    }
+
+    public Path getIncrementalStateDir() {
+        return Paths.get(APP_PROPS.getProperty(INCREMENTAL_STATE_DIR_PROP, "."));
+    }
+
+    /**
+     * @return the date (parsed with the end date pattern) overriding the watermark of the previous extraction or null.
+     */
+    public LocalDate getIncrementalSince() {
+        return incrementalSince;
+    }
+
+    public Path getBatchSitesFile() {
+        return Paths.get(APP_PROPS.getProperty(BATCH_SITES_FILE_PROP, "sites.txt"));
+    }
+
+    /**
+     * @return the number of sites extracted at the same time in batch mode, they share the copy workers.
+     */
+    public Integer getBatchConcurrentSites() {
+        return batchConcurrentSites;
+    }
+
+    public Path getMetricsReportDir() {
+        return Paths.get(APP_PROPS.getProperty(METRICS_REPORT_DIR_PROP, "."));
+    }
+
+    /**
+     * @return the directory to write the Prometheus textfile of the run metrics into or null if none is to be written.
+     */
+    public Path getMetricsPrometheusDir() {
+        String dir = APP_PROPS.getProperty(METRICS_PROMETHEUS_DIR_PROP, "").trim();
+        return StringUtils.isNullOrEmpty(dir) ? null : Paths.get(dir);
+    }
+
     public LocalDate getEndDate() {
         return endDate;
     }
 
+    public DateTimeFormatter getEndDateFormatter() {
+        return endDateFormatter;
+    }
+
     public String getFormattedEndDate(String pattern) {
         if(pattern == null) return endDate.format(endDateFormatter);
         else {
@@ -242,6 +565,32 @@ public class AppProperties {
         }
     }
 
+    private static int getIntegerProperty(final String property, final int defaultValue) {
+        String value = APP_PROPS.getProperty(property);
+        if(StringUtils.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Invalid value set for {}, ignoring and using default of {}", property, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static long getLongProperty(final String property, final long defaultValue) {
+        String value = APP_PROPS.getProperty(property);
+        if(StringUtils.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Invalid value set for {}, ignoring and using default of {}", property, defaultValue);
+            return defaultValue;
+        }
+    }
+
     private static Properties applyPropertiesFromUser() {
         String dir = System.getProperty("user.dir");
         String filePath;
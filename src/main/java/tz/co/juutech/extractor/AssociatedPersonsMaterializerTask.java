@@ -0,0 +1,90 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+
+/**
+ * Selects the persons referenced by records copied into the new database whose person records are not copied, for example the
+ * relatives of the patients through relationship or the persons of the providers and users, into a primary keyed scratch table
+ * of the new database. The persons are selected by INSERT ... SELECT statements run on the new database, the tasks copying
+ * the records of those persons (one per table, see {@link #getCondition(Collection, String)}) select from that table.
+ *
+ * The table each person was found through is stored with the person so that the records of that table are not copied for
+ * them, for example the relationships of the relatives are not followed.
+ */
+public class AssociatedPersonsMaterializerTask implements Callable<Integer> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AssociatedPersonsMaterializerTask.class);
+    private final String personsTable;
+    private final List<TableReferencingAnother> references;
+
+    /**
+     * @param personsTable the fully qualified name of the scratch table
+     * @param references the columns referencing person of the tables whose records the persons are found through, a person
+     *                   found through more than one is stored with the first.
+     */
+    public AssociatedPersonsMaterializerTask(final String personsTable, final List<TableReferencingAnother> references) {
+        assert personsTable != null;
+        assert references != null;
+        this.personsTable = personsTable;
+        this.references = Collections.unmodifiableList(references);
+    }
+
+    public List<TableReferencingAnother> getReferences() {
+        return references;
+    }
+
+    /**
+     * @param columns the columns holding person ids, for example person_a and person_b
+     * @param table the table whose records are selected
+     * @return condition selecting the records of the associated persons, but those found through the table.
+     */
+    public CopyCondition getCondition(final Collection<String> columns, final String table) {
+        CopyCondition foundElsewhere = references.stream().anyMatch(ref -> ref.getTable().equals(table)) ?
+                CopyCondition.notInList("found_in", Collections.singletonList(table)) : null;
+        return CopyCondition.or(columns.stream().map(column -> CopyCondition.in(column, personsTable, "person_id", foundElsewhere))
+                .toArray(CopyCondition[]::new));
+    }
+
+    /**
+     * @return the number of persons selected.
+     * @throws SQLException
+     */
+    @Override
+    public Integer call() throws SQLException {
+        final String newDb = AppProperties.getInstance().getNewDatabaseName();
+        List<String> copiedTables = ExtractionUtils.getListOfTablesInNewDatabase();
+        String sql = null;
+        int count = 0;
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement()) {
+            sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(personsTable)
+                    .append(" (person_id INT NOT NULL, found_in VARCHAR(64) NOT NULL, PRIMARY KEY (person_id))").toString();
+            statement.execute(sql);
+            for (TableReferencingAnother reference : references) {
+                if(!copiedTables.contains(reference.getTable())) continue;
+                String column = "u.".concat(reference.getColumnName());
+                sql = new StringBuilder("INSERT IGNORE INTO ").append(personsTable).append(" (person_id, found_in) SELECT ").append(column)
+                        .append(", '").append(reference.getTable()).append("' FROM ").append(newDb).append(".").append(reference.getTable())
+                        .append(" u WHERE ").append(column).append(" IS NOT NULL AND NOT EXISTS (SELECT 1 FROM ").append(newDb)
+                        .append(".person p WHERE p.person_id = ").append(column).append(")").toString();
+                LOGGER.trace("Selecting the persons referenced by {} but not yet copied: {}", reference, sql);
+                count += statement.executeUpdate(sql);
+            }
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while selecting the persons associated with copied records, running SQL: {}", sql, e);
+            throw e;
+        }
+        LOGGER.debug("{} persons associated with the records of {} selected into {}", count,
+                references.stream().map(TableReferencingAnother::getTable).distinct().collect(Collectors.toList()), personsTable);
+        return count;
+    }
+}
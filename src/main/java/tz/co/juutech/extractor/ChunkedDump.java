@@ -0,0 +1,251 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dumps the new database into a directory of chunks written concurrently instead of a single file:
+ * <ul>
+ *     <li>schema.sql creating all the tables, it is loaded first.</li>
+ *     <li>The records of each table in chunks named table.range.part.sql of about dump.chunk.size bytes (before compression).
+ *     Tables with more records than split.threshold are read in key ranges by concurrent tasks, each range being written into
+ *     as many chunks as needed. Every chunk is a self-contained SQL file with foreign key checks disabled so the chunks can be
+ *     loaded in any order, concurrently.</li>
+ *     <li>manifest.json listing the files in load order with their records, size and SHA-256 digest, it is written last so a
+ *     directory without a manifest is an incomplete dump.</li>
+ * </ul>
+ */
+public class ChunkedDump {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedDump.class);
+    private static final String SCHEMA_FILENAME = "schema.sql";
+    private static final String MANIFEST_FILENAME = "manifest.json";
+    private static final String DUMP_TASK_PREFIX = "dump:";
+
+    private final Path directory;
+    private final List<Chunk> chunks = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param directory the directory of the dump, it is created if it does not exist.
+     */
+    public ChunkedDump(final Path directory) {
+        assert directory != null;
+        this.directory = directory;
+    }
+
+    /**
+     * Writes the schema, the chunks of records and the manifest.
+     * @param service the executor running the tasks dumping the records.
+     * @throws Exception
+     */
+    public void write(final ExecutorService service) throws Exception {
+        Files.createDirectories(directory);
+        List<String> tables = ExtractionUtils.getListOfTablesInNewDatabase();
+        Chunk schema = writeSchema(tables);
+
+        // The tasks dump from the new database which is complete, there is nothing to resume.
+        CopyTaskScheduler scheduler = new CopyTaskScheduler(AdaptiveConcurrencyController.getInstance());
+        for (String table : tables) {
+            if(ExtractionUtils.isDumpedWithRecords(table)) {
+                addDumpTasks(scheduler, table);
+            }
+        }
+        scheduler.run(service);
+
+        List<Chunk> dataChunks = new ArrayList<>(chunks);
+        dataChunks.sort(Comparator.comparing(chunk -> chunk.filename));
+        writeManifest(schema, dataChunks);
+        LOGGER.debug("Dumped {} into {} chunks in {}", AppProperties.getInstance().getNewDatabaseName(), dataChunks.size(), directory);
+    }
+
+    private Chunk writeSchema(final List<String> tables) throws SQLException, IOException {
+        String filename = SCHEMA_FILENAME.concat(AppProperties.getInstance().getDumpCompression().getFileExtension());
+        MessageDigest digest = newDigest();
+        try (SqlDumpWriter writer = newWriter(filename, digest)) {
+            writer.writeHeader();
+            for (String table : tables) {
+                writer.writeCreateTable(ExtractionUtils.getDumpCreateTableStatement(table));
+            }
+            writer.writeFooter();
+        }
+        return new Chunk(filename, null, 0, Files.size(directory.resolve(filename)), toHex(digest.digest()));
+    }
+
+    /**
+     * Adds the task(s) dumping a table, one per key range for the tables with more records than the split threshold.
+     */
+    private void addDumpTasks(final CopyTaskScheduler scheduler, final String table) throws SQLException {
+        long rows = RunMetrics.getInstance().getCommittedRows(table);
+        if(rows == 0) {
+            // Tables dumped from the source or copied by a single statement have no commits recorded.
+            rows = ExtractionUtils.getEstimatedRowCount(table);
+        }
+        long threshold = AppProperties.getInstance().getSplitThreshold();
+        List<KeyRange> ranges = Collections.singletonList(KeyRange.ALL);
+        if(threshold > 0 && rows > threshold) {
+            int count = (int) Math.min(AppProperties.getInstance().getSplitMaxRanges(), (rows + threshold - 1) / threshold);
+            ranges = ExtractionUtils.getKeyRanges(table, count);
+        }
+        if(ranges.size() == 1) {
+            scheduler.addTask(DUMP_TASK_PREFIX.concat(table), () -> dumpRange(table, 1, KeyRange.ALL));
+            return;
+        }
+        LOGGER.debug("Dumping about {} records of {} in {} concurrent key ranges", rows, table, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            final int range = i + 1;
+            final KeyRange keyRange = ranges.get(i);
+            scheduler.addTask(new StringBuilder(DUMP_TASK_PREFIX).append(table).append("#").append(range).toString(),
+                    () -> dumpRange(table, range, keyRange));
+        }
+    }
+
+    /**
+     * Streams the records of a key range of a table into chunks, a new chunk is started when the current one reaches the chunk
+     * size.
+     * @return the number of records dumped.
+     */
+    private long dumpRange(final String table, final int range, final KeyRange keyRange) throws SQLException, IOException {
+        PrimaryKey primaryKey = keyRange == KeyRange.ALL ? null : ExtractionUtils.getPrimaryKey(table);
+        String sql = ExtractionUtils.getDumpQuery(table, primaryKey, keyRange.hasLowerKey(), keyRange.hasUpperKey());
+        long chunkSize = AppProperties.getInstance().getDumpChunkSize();
+        long total = 0;
+        try (Connection connection = ExtractionUtils.isDumpedFromSource(table) ? ConnectionPool.getConnection() :
+                ConnectionPool.getTargetConnection();
+             PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // Makes Connector/J stream the rows one by one instead of reading the whole range into memory.
+            statement.setFetchSize(Integer.MIN_VALUE);
+            int index = 1;
+            if(keyRange.hasLowerKey()) {
+                index = primaryKey.bindAfter(statement, index, keyRange.getLowerKey());
+            }
+            if(keyRange.hasUpperKey()) {
+                primaryKey.bindUpTo(statement, index, keyRange.getUpperKey());
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                boolean exhausted = false;
+                for (int part = 1; !exhausted; part++) {
+                    long start = System.nanoTime();
+                    String filename = String.format("%s.%03d.%03d.sql%s", table, range, part,
+                            AppProperties.getInstance().getDumpCompression().getFileExtension());
+                    MessageDigest digest = newDigest();
+                    long rows;
+                    long bytesWritten;
+                    try (SqlDumpWriter writer = newWriter(filename, digest)) {
+                        writer.writeHeader();
+                        // The chunk size excludes the header so that a chunk always has room for records.
+                        long limit = writer.getBytesWritten() + chunkSize;
+                        rows = writer.writeRows(table, rs, limit);
+                        exhausted = writer.getBytesWritten() < limit;
+                        writer.writeFooter();
+                        bytesWritten = writer.getBytesWritten();
+                    }
+                    Path file = directory.resolve(filename);
+                    if(rows == 0) {
+                        // The range is empty or the previous chunk ended with its last record.
+                        Files.delete(file);
+                        break;
+                    }
+                    chunks.add(new Chunk(filename, table, rows, Files.size(file), toHex(digest.digest())));
+                    RunMetrics.getInstance().recordDump(table, rows, bytesWritten, System.nanoTime() - start);
+                    LOGGER.debug("Dumped {} records of {} into {} in {} ms", rows, table, filename,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    total += rows;
+                }
+            }
+        } catch (SQLException|IOException e) {
+            LOGGER.error("An error occurred while dumping the records of {} in range {} into {}", table, keyRange, directory, e);
+            throw e;
+        }
+        return total;
+    }
+
+    private void writeManifest(final Chunk schema, final List<Chunk> dataChunks) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"database\": ").append(RunMetrics.quote(AppProperties.getInstance().getNewDatabaseName())).append(",\n");
+        json.append("  \"createdAt\": ").append(RunMetrics.quote(LocalDateTime.now().toString())).append(",\n");
+        json.append("  \"upsert\": ").append(AppProperties.getInstance().getIncremental()).append(",\n");
+        json.append("  \"compression\": ").append(RunMetrics.quote(AppProperties.getInstance().getDumpCompression().name())).append(",\n");
+        json.append("  \"schema\": ");
+        schema.appendJson(json);
+        json.append(",\n  \"chunks\": [");
+        for (int i = 0; i < dataChunks.size(); i++) {
+            json.append(i > 0 ? ",\n    " : "\n    ");
+            dataChunks.get(i).appendJson(json);
+        }
+        json.append(dataChunks.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+
+        // Written to a temporary file first so that a manifest is never partial.
+        Path temporary = directory.resolve(MANIFEST_FILENAME.concat(".tmp"));
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+        Files.move(temporary, directory.resolve(MANIFEST_FILENAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private SqlDumpWriter newWriter(final String filename, final MessageDigest digest) throws IOException {
+        return new SqlDumpWriter(directory.resolve(filename), AppProperties.getInstance().getDumpCompression(),
+                AppProperties.getInstance().getDumpStatementSize(), AppProperties.getInstance().getIncremental(), digest);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A file of the dump.
+     */
+    private static final class Chunk {
+        private final String filename;
+        private final String table;
+        private final long rows;
+        private final long bytes;
+        private final String sha256;
+
+        private Chunk(final String filename, final String table, final long rows, final long bytes, final String sha256) {
+            this.filename = filename;
+            this.table = table;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.sha256 = sha256;
+        }
+
+        private void appendJson(final StringBuilder json) {
+            json.append("{\"file\": ").append(RunMetrics.quote(filename));
+            if(table != null) {
+                json.append(", \"table\": ").append(RunMetrics.quote(table)).append(", \"rows\": ").append(rows);
+            }
+            json.append(", \"bytes\": ").append(bytes).append(", \"sha256\": ").append(RunMetrics.quote(sha256)).append("}");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the patient list query once and stores the resulting patient ids into the primary keyed cohort table in the new
+ * database, all the subsequent conditions selecting the patients to copy join against this table instead of re-evaluating
+ * the patient list query.
+ */
+public class CohortMaterializerTask implements Callable<Integer> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CohortMaterializerTask.class);
+    private final String patientListQuery;
+
+    public CohortMaterializerTask(final String patientListQuery) {
+        assert patientListQuery != null;
+        this.patientListQuery = patientListQuery;
+    }
+
+    /**
+     * @return the number of patients in the cohort.
+     * @throws SQLException
+     */
+    @Override
+    public Integer call() throws SQLException {
+        final String cohortTable = ExtractionUtils.getCohortTableName();
+        String sql = null;
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement()) {
+            sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(cohortTable)
+                    .append(" (patient_id INT NOT NULL, PRIMARY KEY (patient_id))").toString();
+            statement.execute(sql);
+
+            int cohortSize;
+            if(AppProperties.getInstance().isCrossServer()) {
+                // The patient list query runs on the source server, its results are streamed into the cohort table.
+                sql = patientListQuery;
+                LOGGER.debug("Materializing the cohort by streaming the results of: {}", sql);
+                try (Connection sourceConnection = ConnectionPool.getConnection();
+                     PreparedStatement query = sourceConnection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    cohortSize = (int) new StreamingCopier(cohortTable).copy(query, Collections.singletonList("patient_id"));
+                }
+            } else {
+                sql = new StringBuilder("INSERT IGNORE INTO ").append(cohortTable).append(" (patient_id) ").append(patientListQuery).toString();
+                LOGGER.debug("Materializing the cohort by running: {}", sql);
+                cohortSize = statement.executeUpdate(sql);
+            }
+
+            sql = "SELECT COUNT(*) FROM ".concat(cohortTable);
+            try (ResultSet rs = statement.executeQuery(sql)) {
+                if(rs.next()) {
+                    cohortSize = rs.getInt(1);
+                }
+            }
+            LOGGER.info("Cohort of {} patients materialized into {}", cohortSize, cohortTable);
+            return cohortSize;
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while materializing the cohort, running SQL: {}", sql, e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Renders the {@link CopyCondition} of a table to SQL for the server running the statement, each semi-join or anti-join is
+ * rendered in the form the server plans best given its version and the estimated records of the table and of the keys:
+ * <ul>
+ *     <li>EXISTS (NOT EXISTS) on servers older than MySQL 5.6 which have no semi-join strategies and run IN subqueries as
+ *     correlated subqueries anyway, and when there are many more keys than records ({@value #EXISTS_RATIO} times): probing
+ *     the key column's index for each record beats materializing all the keys. An anti-join is only rendered NOT EXISTS when
+ *     neither its column nor the key column can be NULL, NOT IN selects no record when one of the keys is NULL and never
+ *     selects the records whose column is NULL while NOT EXISTS does.</li>
+ *     <li>A derived table for a semi-join in a disjunction on MySQL 5.6 and 5.7 which only turn the subqueries of conjunctions
+ *     into semi-joins, the keys are materialized once instead of running the subquery for each record.</li>
+ *     <li>IN (NOT IN) otherwise, the optimizer picks the semi-join strategy.</li>
+ * </ul>
+ * The keys of the new database are estimated from the records copied in this run and the statistics of the new database,
+ * when they can't be estimated the subquery is rendered as written. A planner is used by a single task.
+ */
+public class ConditionPlanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConditionPlanner.class);
+    private static final int EXISTS_RATIO = 10;
+    private static final Pattern VERSION = Pattern.compile("^(\\d+)\\.(\\d+)(?:\\.(\\d+))?");
+    private static final String ALIAS = "t";
+
+    /**
+     * Renders the subqueries as written, IN or NOT IN.
+     */
+    public static final ConditionPlanner AS_WRITTEN = new ConditionPlanner(null, null);
+
+    public enum Form { IN, EXISTS, DERIVED }
+
+    private final String table;
+    private final int serverVersion;
+    private final Map<String, Long> estimatedRowCounts = new HashMap<>();
+    private final Map<CopyCondition.SemiJoin, Form> forms = new IdentityHashMap<>();
+
+    /**
+     * @param table the table whose records are selected or null to render the subqueries as written
+     * @param serverVersion the version of the server, for example 5.7.33-log
+     */
+    ConditionPlanner(final String table, final String serverVersion) {
+        this.table = table;
+        int version = 0;
+        Matcher matcher = VERSION.matcher(serverVersion == null ? "" : serverVersion);
+        if(matcher.find()) {
+            version = Integer.parseInt(matcher.group(1)) * 10000 + Integer.parseInt(matcher.group(2)) * 100
+                    + (matcher.group(3) == null ? 0 : Integer.parseInt(matcher.group(3)));
+        }
+        this.serverVersion = version;
+    }
+
+    /**
+     * @param connection the connection the statements selecting the records run on
+     * @param table the table whose records are selected
+     * @return the planner of the table's conditions, the conditions are rendered as written if rewrite.conditions is false.
+     * @throws SQLException
+     */
+    public static ConditionPlanner forTable(final Connection connection, final String table) throws SQLException {
+        if(!AppProperties.getInstance().getRewriteConditions()) {
+            return AS_WRITTEN;
+        }
+        return new ConditionPlanner(table, connection.getMetaData().getDatabaseProductVersion());
+    }
+
+    /**
+     * @param condition the condition or null
+     * @return the SQL of the condition referencing the table as t, null if the condition is null.
+     */
+    public String render(final CopyCondition condition) {
+        if(condition == null) {
+            return null;
+        }
+        StringBuilder sql = new StringBuilder();
+        condition.appendTo(sql, ALIAS, 0, false, this);
+        return sql.toString();
+    }
+
+    /**
+     * Sets the number of keys of a table, used for tables which are not in the statistics of the server such as temporary tables.
+     * @param keysTable the name of the table as used in the conditions
+     * @param rows the number of rows
+     */
+    public void setEstimatedRowCount(final String keysTable, final long rows) {
+        if(this != AS_WRITTEN) {
+            estimatedRowCounts.put(keysTable, rows);
+        }
+    }
+
+    Form getForm(final CopyCondition.SemiJoin semiJoin, final boolean disjunct) {
+        if(table == null) {
+            return Form.IN;
+        }
+        Form form = forms.get(semiJoin);
+        if(form == null) {
+            form = chooseForm(semiJoin, disjunct);
+            forms.put(semiJoin, form);
+        }
+        return form;
+    }
+
+    private Form chooseForm(final CopyCondition.SemiJoin semiJoin, final boolean disjunct) {
+        long records;
+        long keys;
+        try {
+            records = ExtractionUtils.getEstimatedRowCount(table);
+            keys = getEstimatedRowCount(semiJoin.getTable());
+        } catch (SQLException e) {
+            LOGGER.warn("Could not estimate the keys of {} selecting the records of {}, the subquery is used as written ({})",
+                    semiJoin.getTable(), table, e.getMessage());
+            return Form.IN;
+        }
+        Form form;
+        if(serverVersion > 0 && serverVersion < 50600) {
+            form = Form.EXISTS;
+        } else if(records > 0 && keys > records * EXISTS_RATIO) {
+            form = Form.EXISTS;
+        } else if(!semiJoin.isAnti() && disjunct && serverVersion >= 50600 && serverVersion < 80000) {
+            form = Form.DERIVED;
+        } else {
+            form = Form.IN;
+        }
+        if(form == Form.EXISTS && semiJoin.isAnti() && !isNotNull(semiJoin)) {
+            form = Form.IN;
+        }
+        LOGGER.debug("Selecting the records of {} ({} estimated) through the keys of {} ({} estimated) with {}", table, records,
+                semiJoin.getTable(), keys, form);
+        return form;
+    }
+
+    /**
+     * @return true if neither the column of the anti-join nor its key column can be NULL, NOT EXISTS then selects the same
+     * records as NOT IN.
+     */
+    private boolean isNotNull(final CopyCondition.SemiJoin semiJoin) {
+        try {
+            return isNotNull(table, semiJoin.getColumn()) && isNotNull(semiJoin.getTable(), semiJoin.getKeyColumn());
+        } catch (SQLException e) {
+            LOGGER.warn("Could not check whether {}.{} or {}.{} can be NULL, NOT IN is used ({})", table, semiJoin.getColumn(),
+                    semiJoin.getTable(), semiJoin.getKeyColumn(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean isNotNull(final String table, final String column) throws SQLException {
+        String name = table.substring(table.indexOf('.') + 1);
+        if(ExtractionUtils.isScratchTable(name)) {
+            // The keys of the scratch tables are NOT NULL primary keys.
+            return true;
+        }
+        // The tables of the new database have the columns of the source tables, primary key columns are NOT NULL.
+        String definition = ExtractionUtils.getColumnDefinitions(name).get(column);
+        return definition != null && definition.endsWith(" NOT NULL");
+    }
+
+    private long getEstimatedRowCount(final String keysTable) throws SQLException {
+        Long rows = estimatedRowCounts.get(keysTable);
+        if(rows != null) {
+            return rows;
+        }
+        int dot = keysTable.indexOf('.');
+        String database = dot < 0 ? AppProperties.getInstance().getDatabaseName() : keysTable.substring(0, dot);
+        String name = keysTable.substring(dot + 1);
+        if(database.equals(AppProperties.getInstance().getDatabaseName())) {
+            rows = ExtractionUtils.getEstimatedRowCount(name);
+        } else {
+            // The statistics of the tables just copied may lag behind, the records copied in this run are counted as well.
+            rows = ExtractionUtils.isScratchTable(name) ? 0 : RunMetrics.getInstance().getCommittedRows(name);
+            try (Connection connection = ConnectionPool.getTargetConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                         "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?")) {
+                statement.setString(1, database);
+                statement.setString(2, name);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if(rs.next()) {
+                        rows = Math.max(rows, rs.getLong(1));
+                    }
+                }
+            }
+        }
+        estimatedRowCounts.put(keysTable, rows);
+        return rows;
+    }
+}
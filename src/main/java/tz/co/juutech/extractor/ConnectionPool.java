@@ -13,32 +13,113 @@ import java.sql.SQLException;
  * @uthor Willa Mhawila<a.mhawila@gmail.com> on 6/29/21.
  */
 public class ConnectionPool {
-    public static int MAX_CONNECTIONS = 100;
+    // A copy worker holds up to two connections at a time (copying and structure/metadata), plus a few for the main thread of
+    // each site extracted at the same time in batch mode, the workers are shared by the sites.
+    private static final int CONNECTIONS_PER_WORKER = 2;
+    private static final int EXTRA_CONNECTIONS = 4;
+    private static final int EXTRA_CONNECTIONS_TOTAL = EXTRA_CONNECTIONS * AppProperties.getInstance().getBatchConcurrentSites();
+    public static int MAX_CONNECTIONS = AppProperties.getInstance().getMaxWorkers() * CONNECTIONS_PER_WORKER + EXTRA_CONNECTIONS_TOTAL;
     private static DataSource ds;
+    private static DataSource targetDs;
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
     static {
-        DriverAdapterCPDS cpds = new DriverAdapterCPDS();
-        try {
-            cpds.setDriver("com.mysql.jdbc.Driver");
-        } catch (ClassNotFoundException fe) {
-            fe.printStackTrace();
+        if(AppProperties.getInstance().isCrossServer()) {
+            // Keys selected from the new database are batch inserted into temporary tables of the source sessions.
+            ds = createDataSource(withRewriteBatchedStatements(AppProperties.getInstance().getJdbcUrl()),
+                    AppProperties.getInstance().getDbUsername(), AppProperties.getInstance().getDbPassword(), MAX_CONNECTIONS);
+            // Each cross server copy has its writers on the target server, their batches are sent as multi-row inserts.
+            int maxTargetConnections = AppProperties.getInstance().getMaxWorkers() * (AppProperties.getInstance().getCopyWriters() + 1)
+                    + EXTRA_CONNECTIONS_TOTAL;
+            String targetUrl = withRewriteBatchedStatements(AppProperties.getInstance().getTargetJdbcUrl());
+            if(AppProperties.getInstance().getScratchProfile()) {
+                targetUrl = ScratchProfile.withSessionVariables(targetUrl, AppProperties.getInstance().getTargetDbUsername(),
+                        AppProperties.getInstance().getTargetDbPassword());
+            }
+            targetDs = createDataSource(targetUrl, AppProperties.getInstance().getTargetDbUsername(),
+                    AppProperties.getInstance().getTargetDbPassword(), maxTargetConnections);
+        } else {
+            // The records are copied by INSERT ... SELECT statements run on the source connections.
+            String url = AppProperties.getInstance().getJdbcUrl();
+            if(AppProperties.getInstance().getScratchProfile()) {
+                url = ScratchProfile.withSessionVariables(url, AppProperties.getInstance().getDbUsername(), AppProperties.getInstance().getDbPassword());
+            }
+            ds = createDataSource(url, AppProperties.getInstance().getDbUsername(), AppProperties.getInstance().getDbPassword(), MAX_CONNECTIONS);
+            targetDs = ds;
         }
-        cpds.setUrl(AppProperties.getInstance().getJdbcUrl());
-        cpds.setUser(AppProperties.getInstance().getDbUsername());
-        cpds.setPassword(AppProperties.getInstance().getDbPassword());
-        SharedPoolDataSource tds = new SharedPoolDataSource();
-        tds.setConnectionPoolDataSource(cpds); tds.setMaxTotal(MAX_CONNECTIONS);
-        ds = tds;
     }
 
+    /**
+     * @return a connection to the source database server.
+     * @throws SQLException
+     */
     public static Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
         try {
             return ds.getConnection();
         } catch (SQLException sqle) {
             LOGGER.error("Error connecting to the database using url: {}, username: {} and password: {}", AppProperties.getInstance().getJdbcUrl(),
                     AppProperties.getInstance().getDbUsername(), AppProperties.getInstance().getDbPassword());
             throw sqle;
+        } finally {
+            RunMetrics.getInstance().recordConnectionWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return a connection to the server hosting the new database, this is the source database server unless a target server is
+     * configured.
+     * @throws SQLException
+     */
+    public static Connection getTargetConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return targetDs.getConnection();
+        } catch (SQLException sqle) {
+            LOGGER.error("Error connecting to the target database using url: {}, username: {}", AppProperties.getInstance().getTargetJdbcUrl(),
+                    AppProperties.getInstance().getTargetDbUsername());
+            throw sqle;
+        } finally {
+            RunMetrics.getInstance().recordConnectionWait(System.nanoTime() - start);
         }
     }
 
+    /**
+     * Rolls back what was not committed and turns auto commit back on, called before a connection the records were copied in
+     * transactions with goes back to the pool. Failures are logged so they don't hide the error the connection is closed on.
+     * @param connection the connection
+     */
+    static void restoreAutoCommit(final Connection connection) {
+        try {
+            if(!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Could not restore auto commit on a pooled connection", e);
+        }
+    }
+
+    private static DataSource createDataSource(final String url, final String username, final String password, final int maxTotal) {
+        DriverAdapterCPDS cpds = new DriverAdapterCPDS();
+        try {
+            cpds.setDriver("com.mysql.jdbc.Driver");
+        } catch (ClassNotFoundException fe) {
+            fe.printStackTrace();
+        }
+        cpds.setUrl(url);
+        cpds.setUser(username);
+        cpds.setPassword(password);
+        SharedPoolDataSource tds = new SharedPoolDataSource();
+        tds.setConnectionPoolDataSource(cpds); tds.setMaxTotal(maxTotal);
+        // Connections are handed out in auto commit mode whatever the previous borrower left.
+        tds.setDefaultAutoCommit(true);
+        return tds;
+    }
+
+    private static String withRewriteBatchedStatements(final String url) {
+        if(url.contains("rewriteBatchedStatements")) {
+            return url;
+        }
+        return url.concat(url.contains("?") ? "&" : "?").concat("rewriteBatchedStatements=true");
+    }
 }
@@ -0,0 +1,321 @@
+package tz.co.juutech.extractor;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Condition selecting the records of a table to copy, the table being referenced as t. A condition is built from typed
+ * predicates: semi-joins and anti-joins (the column's value is or is not a key of another table), in-lists and ranges, combined
+ * with AND and OR. Conditions are rendered to SQL by a {@link ConditionPlanner} which picks the form of each subquery for the
+ * server running the statement, {@link #toString()} renders the condition as written (IN and NOT IN subqueries).
+ *
+ * Columns are not qualified, the planner qualifies them with the alias of the table they belong to. A null condition selects
+ * all the records.
+ */
+public abstract class CopyCondition {
+    private static final DateTimeFormatter SQL_DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * @param column the column of the table
+     * @param table the fully qualified name of the table holding the keys
+     * @param keyColumn the column of that table holding the keys
+     * @return condition selecting the records whose column value is a key of the table.
+     */
+    public static CopyCondition in(final String column, final String table, final String keyColumn) {
+        return new SemiJoin(column, table, keyColumn, null, false);
+    }
+
+    /**
+     * @param filter condition on the table holding the keys restricting the keys or null
+     * @see #in(String, String, String)
+     */
+    public static CopyCondition in(final String column, final String table, final String keyColumn, final CopyCondition filter) {
+        return new SemiJoin(column, table, keyColumn, filter, false);
+    }
+
+    /**
+     * @return condition selecting the records whose column value is not a key of the table, the key column holds no nulls.
+     * @see #in(String, String, String)
+     */
+    public static CopyCondition notIn(final String column, final String table, final String keyColumn) {
+        return new SemiJoin(column, table, keyColumn, null, true);
+    }
+
+    /**
+     * @param column the column of the table
+     * @param values the values, numbers, strings or date times
+     * @return condition selecting the records whose column value is one of the values.
+     */
+    public static CopyCondition inList(final String column, final Collection<?> values) {
+        return new InList(column, values, false);
+    }
+
+    /**
+     * @return condition selecting the records whose column value is none of the values.
+     * @see #inList(String, Collection)
+     */
+    public static CopyCondition notInList(final String column, final Collection<?> values) {
+        return new InList(column, values, true);
+    }
+
+    /**
+     * @param column the column of the table
+     * @param value the lower bound (exclusive)
+     * @return condition selecting the records whose column value comes after the value.
+     */
+    public static CopyCondition after(final String column, final Object value) {
+        return new Range(column, value, false, null, false);
+    }
+
+    /**
+     * @param conditions the conditions, null ones (all the records) are left out
+     * @return the conjunction of the conditions, null if all of them are null.
+     */
+    public static CopyCondition and(final CopyCondition... conditions) {
+        List<CopyCondition> operands = new ArrayList<>();
+        for (CopyCondition condition : conditions) {
+            if(condition != null) operands.add(condition);
+        }
+        if(operands.isEmpty()) {
+            return null;
+        }
+        return operands.size() == 1 ? operands.get(0) : new Conjunction(false, operands);
+    }
+
+    /**
+     * @param conditions the conditions
+     * @return the disjunction of the conditions, null (all the records) if one of them is null.
+     */
+    public static CopyCondition or(final CopyCondition... conditions) {
+        if(Arrays.asList(conditions).contains(null)) {
+            return null;
+        }
+        return conditions.length == 1 ? conditions[0] : new Conjunction(true, Arrays.asList(conditions));
+    }
+
+    /**
+     * Appends the SQL of the condition.
+     * @param alias the alias of the table the columns belong to
+     * @param depth the number of subqueries the condition is in, used to name the aliases of the tables of the subqueries
+     * @param disjunct whether the condition is an operand of a disjunction
+     */
+    abstract void appendTo(StringBuilder sql, String alias, int depth, boolean disjunct, ConditionPlanner planner);
+
+    @Override
+    public String toString() {
+        return ConditionPlanner.AS_WRITTEN.render(this);
+    }
+
+    static String toLiteral(final Object value) {
+        if(value instanceof Number) {
+            return value.toString();
+        }
+        String text = value instanceof LocalDateTime ? ((LocalDateTime) value).format(SQL_DATE_TIME) : String.valueOf(value);
+        return "'".concat(text.replace("\\", "\\\\").replace("'", "''")).concat("'");
+    }
+
+    /**
+     * The column's value is (or is not for an anti-join) a key of another table, the keys may be restricted by a filter on that
+     * table. The key column is the primary key of its table or an indexed column.
+     */
+    public static final class SemiJoin extends CopyCondition {
+        private final String column;
+        private final String table;
+        private final String keyColumn;
+        private final CopyCondition filter;
+        private final boolean anti;
+
+        private SemiJoin(final String column, final String table, final String keyColumn, final CopyCondition filter, final boolean anti) {
+            assert column != null;
+            assert table != null;
+            assert keyColumn != null;
+            this.column = column;
+            this.table = table;
+            this.keyColumn = keyColumn;
+            this.filter = filter;
+            this.anti = anti;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String getKeyColumn() {
+            return keyColumn;
+        }
+
+        public CopyCondition getFilter() {
+            return filter;
+        }
+
+        public boolean isAnti() {
+            return anti;
+        }
+
+        /**
+         * @return the same join with another table holding the keys and filter.
+         */
+        public SemiJoin withKeys(final String table, final String keyColumn, final CopyCondition filter) {
+            return new SemiJoin(column, table, keyColumn, filter, anti);
+        }
+
+        /**
+         * @return the query selecting the distinct keys.
+         */
+        String getKeysQuery(final ConditionPlanner planner) {
+            StringBuilder sql = new StringBuilder("SELECT DISTINCT ");
+            appendKeysSelection(sql, 0, planner);
+            return sql.toString();
+        }
+
+        @Override
+        void appendTo(final StringBuilder sql, final String alias, final int depth, final boolean disjunct, final ConditionPlanner planner) {
+            String keysAlias = "s".concat(String.valueOf(depth + 1));
+            switch (planner.getForm(this, disjunct)) {
+                case EXISTS:
+                    sql.append(anti ? "NOT EXISTS" : "EXISTS").append(" (SELECT 1 FROM ").append(table).append(" ").append(keysAlias)
+                            .append(" WHERE ").append(keysAlias).append(".").append(keyColumn).append(" = ").append(alias).append(".")
+                            .append(column);
+                    if(filter != null) {
+                        sql.append(" AND ");
+                        filter.appendTo(sql, keysAlias, depth + 1, false, planner);
+                    }
+                    sql.append(")");
+                    break;
+                case DERIVED:
+                    // DISTINCT keeps the derived table from being merged into the subquery, it is materialized once.
+                    String derivedAlias = "d".concat(String.valueOf(depth + 1));
+                    sql.append(alias).append(".").append(column).append(anti ? " NOT IN" : " IN").append(" (SELECT ").append(derivedAlias)
+                            .append(".").append(keyColumn).append(" FROM (SELECT DISTINCT ");
+                    appendKeysSelection(sql, depth, planner);
+                    sql.append(") ").append(derivedAlias).append(")");
+                    break;
+                default:
+                    sql.append(alias).append(".").append(column).append(anti ? " NOT IN" : " IN").append(" (SELECT ");
+                    appendKeysSelection(sql, depth, planner);
+                    sql.append(")");
+            }
+        }
+
+        private void appendKeysSelection(final StringBuilder sql, final int depth, final ConditionPlanner planner) {
+            String keysAlias = "s".concat(String.valueOf(depth + 1));
+            sql.append(keysAlias).append(".").append(keyColumn).append(" FROM ").append(table).append(" ").append(keysAlias);
+            if(filter != null) {
+                sql.append(" WHERE ");
+                filter.appendTo(sql, keysAlias, depth + 1, false, planner);
+            }
+        }
+    }
+
+    /**
+     * The column's value is (or is not) one of a list of values.
+     */
+    public static final class InList extends CopyCondition {
+        private final String column;
+        private final List<Object> values;
+        private final boolean negated;
+
+        private InList(final String column, final Collection<?> values, final boolean negated) {
+            assert column != null;
+            assert values != null;
+            this.column = column;
+            this.values = Collections.unmodifiableList(new ArrayList<>(values));
+            this.negated = negated;
+        }
+
+        @Override
+        void appendTo(final StringBuilder sql, final String alias, final int depth, final boolean disjunct, final ConditionPlanner planner) {
+            if(values.isEmpty()) {
+                sql.append(negated ? "1 = 1" : "1 = 0");
+                return;
+            }
+            sql.append(alias).append(".").append(column);
+            if(values.size() == 1) {
+                sql.append(negated ? " <> " : " = ").append(toLiteral(values.get(0)));
+                return;
+            }
+            sql.append(negated ? " NOT IN (" : " IN (");
+            for (int i = 0; i < values.size(); i++) {
+                if(i > 0) sql.append(", ");
+                sql.append(toLiteral(values.get(i)));
+            }
+            sql.append(")");
+        }
+    }
+
+    /**
+     * The column's value is within bounds, either bound may be left out.
+     */
+    public static final class Range extends CopyCondition {
+        private final String column;
+        private final Object lower;
+        private final boolean lowerInclusive;
+        private final Object upper;
+        private final boolean upperInclusive;
+
+        private Range(final String column, final Object lower, final boolean lowerInclusive, final Object upper, final boolean upperInclusive) {
+            assert column != null;
+            assert lower != null || upper != null;
+            this.column = column;
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        @Override
+        void appendTo(final StringBuilder sql, final String alias, final int depth, final boolean disjunct, final ConditionPlanner planner) {
+            boolean bothBounds = lower != null && upper != null;
+            if(bothBounds) sql.append("(");
+            if(lower != null) {
+                sql.append(alias).append(".").append(column).append(lowerInclusive ? " >= " : " > ").append(toLiteral(lower));
+            }
+            if(bothBounds) sql.append(" AND ");
+            if(upper != null) {
+                sql.append(alias).append(".").append(column).append(upperInclusive ? " <= " : " < ").append(toLiteral(upper));
+            }
+            if(bothBounds) sql.append(")");
+        }
+    }
+
+    /**
+     * Conditions combined with AND or OR.
+     */
+    public static final class Conjunction extends CopyCondition {
+        private final boolean disjunction;
+        private final List<CopyCondition> operands;
+
+        private Conjunction(final boolean disjunction, final List<CopyCondition> operands) {
+            assert operands.size() > 1;
+            this.disjunction = disjunction;
+            this.operands = Collections.unmodifiableList(new ArrayList<>(operands));
+        }
+
+        public boolean isDisjunction() {
+            return disjunction;
+        }
+
+        public List<CopyCondition> getOperands() {
+            return operands;
+        }
+
+        @Override
+        void appendTo(final StringBuilder sql, final String alias, final int depth, final boolean disjunct, final ConditionPlanner planner) {
+            sql.append("(");
+            for (int i = 0; i < operands.size(); i++) {
+                if(i > 0) sql.append(disjunction ? " OR " : " AND ");
+                operands.get(i).appendTo(sql, alias, depth, disjunct || disjunction, planner);
+            }
+            sql.append(")");
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs copy tasks as a dependency graph (DAG), a task is started as soon as all the tasks it depends on are done instead
+ * of waiting for a whole phase of tasks to finish. Dependencies are usually derived from the foreign keys, for example
+ * tables referencing person(person_id) depend on the person table being copied since their conditions select on the
+ * copied person records. The number of tasks running at the same time is limited by the {@link AdaptiveConcurrencyController}.
+ */
+public class CopyTaskScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CopyTaskScheduler.class);
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final AdaptiveConcurrencyController concurrencyController;
+    private final RunJournal journal;
+    private volatile long graphStartNanos;
+
+    /**
+     * @param concurrencyController controls how many of the tasks run at the same time.
+     */
+    public CopyTaskScheduler(final AdaptiveConcurrencyController concurrencyController) {
+        this(concurrencyController, null);
+    }
+
+    /**
+     * @param concurrencyController controls how many of the tasks run at the same time.
+     * @param journal where finished tasks are recorded, tasks already recorded as done are skipped. Can be null.
+     */
+    public CopyTaskScheduler(final AdaptiveConcurrencyController concurrencyController, final RunJournal journal) {
+        assert concurrencyController != null;
+        this.concurrencyController = concurrencyController;
+        this.journal = journal;
+    }
+
+    /**
+     * Adds a task to the graph, dependencies on tasks which are never added are ignored since the table they represent is
+     * not copied (for example it is excluded).
+     * @param name unique name of the task, usually the table being copied.
+     * @param task the task
+     * @param dependencies names of tasks that have to be done before this one starts.
+     */
+    public void addTask(final String name, final Callable<?> task, final Collection<String> dependencies) {
+        assert name != null;
+        assert task != null;
+        if(nodes.containsKey(name)) {
+            throw new IllegalArgumentException("A task named " + name + " is already scheduled");
+        }
+        nodes.put(name, new Node(name, task, dependencies == null ? Collections.emptySet() : new LinkedHashSet<>(dependencies)));
+    }
+
+    public void addTask(final String name, final Callable<?> task, final String... dependencies) {
+        addTask(name, task, Arrays.asList(dependencies));
+    }
+
+    public boolean contains(final String name) {
+        return nodes.containsKey(name);
+    }
+
+    /**
+     * @return names of all the tasks added so far.
+     */
+    public Set<String> getTaskNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(nodes.keySet()));
+    }
+
+    /**
+     * @param name the name of the task
+     * @return the task or null if no task has the name.
+     */
+    public Callable<?> getTask(final String name) {
+        Node node = nodes.get(name);
+        return node == null ? null : node.task;
+    }
+
+    /**
+     * @param name the name of the task
+     * @return the names of the added tasks the task depends on, dependencies on tasks which are not added are left out.
+     */
+    public Set<String> getDependencies(final String name) {
+        Node node = nodes.get(name);
+        if(node == null) {
+            return Collections.emptySet();
+        }
+        Set<String> dependencies = new LinkedHashSet<>();
+        for (String dependency : node.dependencies) {
+            if(nodes.containsKey(dependency)) {
+                dependencies.add(dependency);
+            }
+        }
+        return Collections.unmodifiableSet(dependencies);
+    }
+
+    /**
+     * Runs all the tasks using the passed executor, the method returns when all the tasks are done. If a task fails the
+     * tasks which are running are cancelled, the rest are not started and the failure is rethrown.
+     * @param service the executor to run the tasks in.
+     * @throws Exception the exception thrown by the failing task.
+     */
+    public void run(final ExecutorService service) throws Exception {
+        Map<String, List<Node>> dependents = new HashMap<>();
+        Map<String, Integer> pendingDependencies = new HashMap<>();
+        for (Node node : nodes.values()) {
+            int pending = 0;
+            for (String dependency : node.dependencies) {
+                if(nodes.containsKey(dependency)) {
+                    dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(node);
+                    pending++;
+                } else {
+                    LOGGER.trace("Ignoring dependency of {} on {} which is not scheduled", node.name, dependency);
+                }
+            }
+            pendingDependencies.put(node.name, pending);
+        }
+        checkForCycles(dependents, pendingDependencies);
+
+        CompletionService<Node> completionService = new ExecutorCompletionService<>(service);
+        List<Future<Node>> running = new ArrayList<>();
+        long graphStart = System.currentTimeMillis();
+        graphStartNanos = System.nanoTime();
+        for (Node node : nodes.values()) {
+            if(pendingDependencies.get(node.name) == 0) {
+                running.add(submit(completionService, node));
+            }
+        }
+
+        int remaining = nodes.size();
+        try {
+            while (remaining > 0) {
+                Future<Node> future = completionService.take();
+                running.remove(future);
+                Node done;
+                try {
+                    done = future.get();
+                } catch (ExecutionException e) {
+                    if(e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+                remaining--;
+                LOGGER.debug("Task {} done in {} ms", done.name, done.finishedAt - done.startedAt);
+                for (Node dependent : dependents.getOrDefault(done.name, Collections.emptyList())) {
+                    int pending = pendingDependencies.get(dependent.name) - 1;
+                    pendingDependencies.put(dependent.name, pending);
+                    if(pending == 0) {
+                        running.add(submit(completionService, dependent));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Cancelling {} running tasks because of a failed task", running.size());
+            running.forEach(future -> future.cancel(true));
+            throw e;
+        }
+        LOGGER.info("All {} tasks done in {} ms", nodes.size(), System.currentTimeMillis() - graphStart);
+        logCriticalPath();
+    }
+
+    /**
+     * The critical path is the chain of tasks that determined the total time of the run, it is found by walking back from
+     * the task which finished last through the dependency which finished last. Only meaningful after {@link #run(ExecutorService)}
+     * @return the names of tasks on the critical path in the order they ran.
+     */
+    public List<String> getCriticalPath() {
+        Deque<String> path = new ArrayDeque<>();
+        Node current = null;
+        for (Node node : nodes.values()) {
+            if(current == null || node.finishedAt > current.finishedAt) {
+                current = node;
+            }
+        }
+        while (current != null) {
+            path.addFirst(current.name);
+            Node latestDependency = null;
+            for (String dependency : current.dependencies) {
+                Node node = nodes.get(dependency);
+                if(node != null && (latestDependency == null || node.finishedAt > latestDependency.finishedAt)) {
+                    latestDependency = node;
+                }
+            }
+            current = latestDependency;
+        }
+        return new ArrayList<>(path);
+    }
+
+    private void logCriticalPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : getCriticalPath()) {
+            Node node = nodes.get(name);
+            if(sb.length() > 0) sb.append(" -> ");
+            sb.append(name).append(" (").append(node.finishedAt - node.startedAt).append(" ms)");
+        }
+        LOGGER.info("Critical path: {}", sb);
+    }
+
+    /**
+     * Submits a task whose dependencies are done, the time it waited for its dependencies and then for a copy worker is
+     * recorded in the {@link RunMetrics}.
+     */
+    private Future<Node> submit(final CompletionService<Node> completionService, final Node node) {
+        LOGGER.trace("Starting task {}", node.name);
+        final long readyNanos = System.nanoTime();
+        // In batch mode the workers are shared by the sites, tasks run with the properties of the site they belong to.
+        final AppProperties siteProperties = AppProperties.getSiteProperties();
+        return completionService.submit(() -> AppProperties.callWithSite(siteProperties, () -> {
+            if(journal != null && journal.isDone(node.name)) {
+                LOGGER.debug("Skipping task {} which is done according to the journal", node.name);
+                node.startedAt = node.finishedAt = System.currentTimeMillis();
+                return node;
+            }
+            concurrencyController.acquire();
+            node.startedAt = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            try {
+                node.task.call();
+            } finally {
+                node.finishedAt = System.currentTimeMillis();
+                concurrencyController.release();
+                RunMetrics.getInstance().recordTask(node.name, readyNanos - graphStartNanos, startNanos - readyNanos,
+                        System.nanoTime() - startNanos);
+            }
+            if(journal != null) {
+                journal.markDone(node.name);
+            }
+            return node;
+        }));
+    }
+
+    private void checkForCycles(final Map<String, List<Node>> dependents, final Map<String, Integer> pendingDependencies) {
+        Map<String, Integer> pending = new HashMap<>(pendingDependencies);
+        Deque<String> ready = new ArrayDeque<>();
+        pending.forEach((name, count) -> {
+            if(count == 0) ready.add(name);
+        });
+        int visited = 0;
+        while (!ready.isEmpty()) {
+            String name = ready.poll();
+            visited++;
+            for (Node dependent : dependents.getOrDefault(name, Collections.emptyList())) {
+                if(pending.merge(dependent.name, -1, Integer::sum) == 0) {
+                    ready.add(dependent.name);
+                }
+            }
+        }
+        if(visited != nodes.size()) {
+            throw new IllegalStateException("The copy tasks have cyclic dependencies");
+        }
+    }
+
+    private static class Node {
+        private final String name;
+        private final Callable<?> task;
+        private final Set<String> dependencies;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+
+        private Node(final String name, final Callable<?> task, final Set<String> dependencies) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = dependencies;
+        }
+    }
+}
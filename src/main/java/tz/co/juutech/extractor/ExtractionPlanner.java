@@ -0,0 +1,537 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Plans an extraction without copying anything (the plan mode). The copy tasks are the ones the extraction would run, the
+ * cohort is sized by running the patient list query and the records each task would copy are estimated from the table
+ * statistics of information_schema.TABLES and the selectivity of the task's condition on a sample of the table's records
+ * (read in short primary key ranges spread over the table). The sampled records are also written with the dump writer to
+ * measure the size of a record in the dump.
+ *
+ * The duration is estimated by running the task graph on a simulated pool of workers.max workers, using the throughput of
+ * the last successful run whose metrics report is in metrics.report.dir or defaults if there is none. Estimates are for a full
+ * extraction, an incremental one copies less.
+ */
+public class ExtractionPlanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExtractionPlanner.class);
+    private static final int SAMPLE_ROWS = 2000;
+    private static final int SAMPLE_RANGES = 20;
+    private static final long TASK_OVERHEAD_MILLIS = 50;
+    private static final double DEFAULT_ROWS_PER_SECOND = 20000;
+    private static final double DEFAULT_DUMP_BYTES_PER_SECOND = 20 * 1024 * 1024;
+    // Size of a record in an uncompressed dump relative to its average length when the table could not be sampled.
+    private static final double DUMP_EXPANSION = 2;
+    // Bytes of a row of the associated persons scratch table, its key and the table the person was found through.
+    private static final long ASSOCIATED_PERSON_BYTES = 48;
+
+    private final CopyTaskScheduler scheduler;
+    private final Set<TableReferencingAnother> personReferencingTables;
+    private final Set<TableReferencingAnother> patientReferencingTables;
+    private final Map<String, TableReferencingAnother> locationRefsMap;
+    private final List<String> tablesDumpedFromSource;
+    private final Map<String, Estimate> tableEstimates = new HashMap<>();
+    private IdSet cohort;
+    private long cohortMillis;
+    private double rowsPerSecond = DEFAULT_ROWS_PER_SECOND;
+    private double dumpBytesPerSecond = DEFAULT_DUMP_BYTES_PER_SECOND;
+    private String throughputSource = "defaults, no metrics report of a previous run";
+
+    /**
+     * @param scheduler the copy tasks of the extraction, they are not run.
+     * @param personReferencingTables tables referencing person
+     * @param patientReferencingTables tables referencing patient
+     * @param locationRefsMap tables referencing location
+     * @param tablesDumpedFromSource tables dumped from the source instead of being copied (batch mode)
+     */
+    public ExtractionPlanner(final CopyTaskScheduler scheduler, final Set<TableReferencingAnother> personReferencingTables,
+                             final Set<TableReferencingAnother> patientReferencingTables,
+                             final Map<String, TableReferencingAnother> locationRefsMap, final List<String> tablesDumpedFromSource) {
+        this.scheduler = scheduler;
+        this.personReferencingTables = personReferencingTables;
+        this.patientReferencingTables = patientReferencingTables;
+        this.locationRefsMap = locationRefsMap;
+        this.tablesDumpedFromSource = tablesDumpedFromSource;
+    }
+
+    /**
+     * @param patientListQuery the patient list query
+     * @return the plan, the tasks in the order they are expected to start with their estimates.
+     * @throws SQLException
+     * @throws IOException
+     */
+    public String plan(final String patientListQuery) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        sizeCohort(patientListQuery);
+        loadThroughput();
+
+        Map<String, Integer> tasksPerTable = new HashMap<>();
+        for (String name : scheduler.getTaskNames()) {
+            if(scheduler.getTask(name) instanceof TableCopierTask && getAssociatedPersonsTask(name) == null) {
+                tasksPerTable.merge(((TableCopierTask) scheduler.getTask(name)).getTable(), 1, Integer::sum);
+            }
+        }
+        Map<String, Estimate> taskEstimates = new LinkedHashMap<>();
+        for (String name : scheduler.getTaskNames()) {
+            Callable<?> task = scheduler.getTask(name);
+            String associatedPersonsTask = getAssociatedPersonsTask(name);
+            if(task instanceof TableCopierTask && associatedPersonsTask != null) {
+                taskEstimates.put(name, estimateAssociatedRecords(name, ((TableCopierTask) task).getTable(), taskEstimates.get(associatedPersonsTask)));
+            } else if(task instanceof TableCopierTask) {
+                TableCopierTask copierTask = (TableCopierTask) task;
+                Estimate tableEstimate = estimateTable(copierTask.getTable(), copierTask.getCondition(), name);
+                taskEstimates.put(name, tableEstimate.share(tasksPerTable.get(copierTask.getTable())));
+            } else if(task instanceof AssociatedPersonsMaterializerTask) {
+                taskEstimates.put(name, estimateAssociatedPersons(name, (AssociatedPersonsMaterializerTask) task));
+            } else {
+                taskEstimates.put(name, estimateOtherTask(name));
+            }
+        }
+        List<Estimate> dumpedFromSource = new ArrayList<>();
+        for (String table : tablesDumpedFromSource) {
+            Sample sample = sample(table, null, null);
+            dumpedFromSource.add(Estimate.ofTable(table, ExtractionUtils.getEstimatedRowCount(table), sample, "all rows, dumped from the source"));
+        }
+
+        Map<String, long[]> schedule = simulate(taskEstimates);
+        long copyMillis = schedule.values().stream().mapToLong(times -> times[1]).max().orElse(0);
+        long scratchBytes = 0;
+        long dumpBytes = 0;
+        for (Estimate estimate : taskEstimates.values()) {
+            scratchBytes += estimate.scratchBytes;
+            dumpBytes += estimate.dumpBytes;
+        }
+        for (Estimate estimate : dumpedFromSource) {
+            dumpBytes += estimate.dumpBytes;
+        }
+        long dumpMillis = (long) (dumpBytes / dumpBytesPerSecond * 1000);
+
+        StringBuilder plan = new StringBuilder();
+        plan.append("Cohort: ").append(cohort.size()).append(" patients (the patient list query took ").append(formatDuration(cohortMillis))
+                .append(")\n");
+        plan.append("Throughput: ").append(Math.round(rowsPerSecond)).append(" records/s per worker, ")
+                .append(formatBytes((long) dumpBytesPerSecond)).append("/s dumped (").append(throughputSource).append(")\n\n");
+        plan.append(String.format("%-4s %-9s %-9s %-36s %12s %10s %10s  %s%n", "#", "start", "end", "task", "records", "scratch", "dump", "estimated from"));
+        List<String> order = new ArrayList<>(schedule.keySet());
+        order.sort(Comparator.comparingLong((String name) -> schedule.get(name)[0]).thenComparingLong(name -> schedule.get(name)[1]));
+        int i = 0;
+        for (String name : order) {
+            Estimate estimate = taskEstimates.get(name);
+            plan.append(String.format("%-4d %-9s %-9s %-36s %12d %10s %10s  %s%n", ++i, formatDuration(schedule.get(name)[0]),
+                    formatDuration(schedule.get(name)[1]), name, estimate.rows, formatBytes(estimate.scratchBytes),
+                    formatBytes(estimate.dumpBytes), estimate.basis));
+        }
+        for (Estimate estimate : dumpedFromSource) {
+            plan.append(String.format("%-4s %-9s %-9s %-36s %12d %10s %10s  %s%n", "-", "dump", "", estimate.name, estimate.rows,
+                    "-", formatBytes(estimate.dumpBytes), estimate.basis));
+        }
+        plan.append("\nEstimated duration: ").append(formatDuration(copyMillis + dumpMillis)).append(" (copy ").append(formatDuration(copyMillis))
+                .append(" with ").append(AppProperties.getInstance().getMaxWorkers()).append(" workers, dump ").append(formatDuration(dumpMillis))
+                .append(")\n");
+        plan.append("Scratch disk of ").append(AppProperties.getInstance().getNewDatabaseName()).append(": ").append(formatBytes(scratchBytes))
+                .append("\nDump file (").append(AppProperties.getInstance().getDumpCompression().name().toLowerCase()).append("): ")
+                .append(formatBytes(dumpBytes)).append("\n");
+        plan.append("Planned in ").append(formatDuration(System.currentTimeMillis() - start));
+        return plan.toString();
+    }
+
+    private void sizeCohort(final String patientListQuery) throws SQLException {
+        long start = System.currentTimeMillis();
+        try (Connection connection = ConnectionPool.getConnection();
+             Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = statement.executeQuery(patientListQuery)) {
+                cohort = IdSet.fromResultSet(rs);
+            }
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while running the patient list query: {}", patientListQuery, e);
+            throw e;
+        }
+        cohortMillis = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Reads the copy and dump throughput of the last successful run from its metrics report.
+     */
+    private void loadThroughput() throws IOException {
+        Path reportDir = AppProperties.getInstance().getMetricsReportDir();
+        if(!Files.isDirectory(reportDir)) {
+            return;
+        }
+        List<Path> reports;
+        try (Stream<Path> files = Files.list(reportDir)) {
+            // The timestamp in the file names sorts them by run time.
+            reports = files.filter(file -> file.getFileName().toString().endsWith(".metrics.json"))
+                    .sorted(Comparator.comparing((Path file) -> file.getFileName().toString().replaceAll("^.*\\.(\\d{8}T\\d{6})\\.metrics\\.json$", "$1"))
+                            .reversed())
+                    .collect(Collectors.toList());
+        }
+        for (Path report : reports) {
+            MetricsReport metrics;
+            try {
+                metrics = MetricsReport.read(report);
+            } catch (IOException e) {
+                LOGGER.warn("Skipping the metrics report {} which could not be read: {}", report, e.getMessage());
+                continue;
+            }
+            if(!metrics.isSucceeded()) continue;
+            long copyMillis = metrics.getPhaseMillis("copy");
+            long dumpMillis = metrics.getPhaseMillis("dump");
+            long rows = metrics.getTablesTotal("rows");
+            long dumpBytes = metrics.getTablesTotal("dumpBytes");
+            if(copyMillis > 0 && rows > 0) {
+                rowsPerSecond = rows * 1000.0 / copyMillis / AppProperties.getInstance().getMaxWorkers();
+                if(dumpMillis > 0 && dumpBytes > 0) {
+                    dumpBytesPerSecond = dumpBytes * 1000.0 / dumpMillis;
+                }
+                throughputSource = "measured by the run of ".concat(report.getFileName().toString());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Estimates the records of a table copied by all the tasks copying it.
+     */
+    private Estimate estimateTable(final String table, final CopyCondition condition, final String taskName) throws SQLException, IOException {
+        Estimate estimate = tableEstimates.get(table);
+        if(estimate != null) {
+            return estimate;
+        }
+        long tableRows = ExtractionUtils.getEstimatedRowCount(table);
+        List<String> cohortColumns = new ArrayList<>();
+        Stream.concat(personReferencingTables.stream(), patientReferencingTables.stream())
+                .filter(ref -> ref.getTable().equals(table)).forEach(ref -> cohortColumns.add(ref.getColumnName()));
+        String locationColumn = AppProperties.getInstance().getRestrictExtraction() && locationRefsMap.containsKey(table) ?
+                locationRefsMap.get(table).getColumnName() : null;
+
+        if("person".equals(table) || "patient".equals(table)) {
+            estimate = Estimate.ofTable(table, cohort.size(), sample(table, null, null), "cohort size");
+        } else if(!cohortColumns.isEmpty() || (condition != null && locationColumn != null)) {
+            Sample sample = sample(table, cohortColumns, locationColumn);
+            estimate = Estimate.ofTable(table, Math.round(tableRows * sample.getSelectivity()), sample, new StringBuilder("sampled ")
+                    .append(sample.sampled).append(" records, ").append(String.format("%.2f%%", sample.getSelectivity() * 100)).append(" selected").toString());
+        } else if(condition == null || "provider".equals(table)) {
+            // provider copies the providers which are not copied yet, at most all of them.
+            estimate = Estimate.ofTable(table, tableRows, sample(table, null, null), condition == null ? "all rows" : "at most all rows");
+        } else {
+            // Tables selected through the records of the table they depend on, for example patient_state through patient_program.
+            Estimate dependency = null;
+            for (String name : scheduler.getDependencies(taskName)) {
+                if(scheduler.getTask(name) instanceof TableCopierTask && tableEstimates.containsKey(((TableCopierTask) scheduler.getTask(name)).getTable())) {
+                    dependency = tableEstimates.get(((TableCopierTask) scheduler.getTask(name)).getTable());
+                    break;
+                }
+            }
+            double selectivity = dependency == null ? 1 : dependency.getSelectivity();
+            estimate = Estimate.ofTable(table, Math.round(tableRows * selectivity), sample(table, null, null),
+                    dependency == null ? "at most all rows" : "same share as ".concat(dependency.name));
+        }
+        tableEstimates.put(table, estimate);
+        return estimate;
+    }
+
+    /**
+     * @return the task selecting the associated persons whose records the task copies, null if the task does not copy the records
+     * of associated persons.
+     */
+    private String getAssociatedPersonsTask(final String name) {
+        for (String dependency : scheduler.getDependencies(name)) {
+            if(scheduler.getTask(dependency) instanceof AssociatedPersonsMaterializerTask) {
+                return dependency;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Estimates the persons associated with the records copied (relatives, providers, users), at most one per record.
+     */
+    private Estimate estimateAssociatedPersons(final String name, final AssociatedPersonsMaterializerTask task) {
+        long persons = 0;
+        for (TableReferencingAnother reference : task.getReferences()) {
+            Estimate records = tableEstimates.get(reference.getTable());
+            persons += records == null ? 0 : records.rows;
+        }
+        String tables = task.getReferences().stream().map(TableReferencingAnother::getTable).distinct().collect(Collectors.joining(", "));
+        return new Estimate(name, persons, 0, persons * ASSOCIATED_PERSON_BYTES, 0,
+                new StringBuilder("at most one person per record of ").append(tables).toString());
+    }
+
+    /**
+     * Estimates the records of a table copied for the associated persons, as many per person as the table has per person.
+     */
+    private Estimate estimateAssociatedRecords(final String name, final String table, final Estimate persons) throws SQLException {
+        long associatedPersons = persons == null ? 0 : persons.rows;
+        double recordsPerPerson = "person".equals(table) || "patient".equals(table) ? 1 :
+                (double) ExtractionUtils.getEstimatedRowCount(table) / Math.max(1, ExtractionUtils.getEstimatedRowCount("person"));
+        long rows = Math.round(associatedPersons * recordsPerPerson);
+        Estimate tableEstimate = tableEstimates.get(table);
+        double scratchBytesPerRow;
+        double dumpBytesPerRow;
+        if(tableEstimate != null && tableEstimate.rows > 0) {
+            scratchBytesPerRow = (double) tableEstimate.scratchBytes / tableEstimate.rows;
+            dumpBytesPerRow = (double) tableEstimate.dumpBytes / tableEstimate.rows;
+        } else {
+            scratchBytesPerRow = ExtractionUtils.getAverageRowLength(table);
+            dumpBytesPerRow = scratchBytesPerRow * DUMP_EXPANSION;
+        }
+        return new Estimate(name, rows, 0, Math.round(rows * scratchBytesPerRow), Math.round(rows * dumpBytesPerRow),
+                new StringBuilder("at most ").append(associatedPersons).append(" persons, ").append(String.format("%.1f", recordsPerPerson))
+                        .append(" records each").toString());
+    }
+
+    /**
+     * Estimates the tasks which do not copy a single table: the cohort and the users.
+     */
+    private Estimate estimateOtherTask(final String name) throws SQLException, IOException {
+        if("users".equals(name)) {
+            long users = ExtractionUtils.getEstimatedRowCount("users");
+            Estimate estimate = Estimate.ofTable(name, users, sample("users", null, null), "at most all users");
+            // The persons of the users are found through the users copied.
+            tableEstimates.putIfAbsent("users", estimate);
+            return estimate;
+        } else if(tableEstimates.containsKey(name)) {
+            // Done when the key ranges of the table are copied.
+            return new Estimate(name, 0, 0, 0, 0, "key ranges of ".concat(name));
+        }
+        return new Estimate(name, cohort.size(), 0, cohort.size() * 4L, 0, "patient list query");
+    }
+
+    /**
+     * Reads a sample of the records of a table, the records are read in short ranges starting at random primary key values
+     * (or from the start of the table if it is small or its primary key is not a single number).
+     * @param cohortColumns columns one of which has to hold a cohort patient for the record to be selected, none if all are.
+     * @param locationColumn column which has to hold one of the locations for the record to be selected or null.
+     */
+    private Sample sample(final String table, final List<String> cohortColumns, final String locationColumn) throws SQLException, IOException {
+        List<String> queries = getSampleQueries(table);
+        Sample sample = new Sample();
+        Set<Integer> locations = AppProperties.getInstance().getLocationsIds();
+        boolean filtered = (cohortColumns != null && !cohortColumns.isEmpty()) || locationColumn != null;
+        Path file = Files.createTempFile(ExtractionUtils.SCRATCH_TABLE_PREFIX.concat(table), ".sql");
+        try (Connection connection = ConnectionPool.getConnection();
+             Statement statement = connection.createStatement()) {
+            try (SqlDumpWriter writer = new SqlDumpWriter(file, AppProperties.getInstance().getDumpCompression(),
+                    AppProperties.getInstance().getDumpStatementSize())) {
+                for (String query : queries) {
+                    try (ResultSet rs = statement.executeQuery(query)) {
+                        sample.sampled += writer.writeRows(table, rs);
+                    }
+                }
+            }
+            sample.dumpBytes = Files.size(file);
+            if(filtered) {
+                for (String query : queries) {
+                    try (ResultSet rs = statement.executeQuery(query)) {
+                        while (rs.next()) {
+                            boolean selected = cohortColumns == null || cohortColumns.isEmpty();
+                            for (int i = 0; cohortColumns != null && i < cohortColumns.size() && !selected; i++) {
+                                int id = rs.getInt(cohortColumns.get(i));
+                                selected = !rs.wasNull() && cohort.contains(id);
+                            }
+                            if(selected && locationColumn != null) {
+                                int location = rs.getInt(locationColumn);
+                                selected = !rs.wasNull() && locations.contains(location);
+                            }
+                            if(selected) sample.selected++;
+                        }
+                    }
+                }
+            } else {
+                sample.selected = sample.sampled;
+            }
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while sampling the records of {}", table, e);
+            throw e;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        LOGGER.debug("Sampled {} records of {}, {} selected, {} bytes dumped", sample.sampled, table, sample.selected, sample.dumpBytes);
+        return sample;
+    }
+
+    private List<String> getSampleQueries(final String table) throws SQLException {
+        String from = new StringBuilder("SELECT * FROM ").append(AppProperties.getInstance().getDatabaseName()).append(".").append(table).toString();
+        PrimaryKey primaryKey = ExtractionUtils.getPrimaryKey(table);
+        List<String> queries = new ArrayList<>();
+        if(ExtractionUtils.getEstimatedRowCount(table) > SAMPLE_ROWS && primaryKey.getColumns().size() == 1) {
+            String column = primaryKey.getColumns().get(0);
+            String sql = new StringBuilder("SELECT MIN(").append(column).append("), MAX(").append(column).append(") FROM ")
+                    .append(AppProperties.getInstance().getDatabaseName()).append(".").append(table).toString();
+            Object min;
+            Object max;
+            try (Connection connection = ConnectionPool.getConnection();
+                 Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery(sql)) {
+                rs.next();
+                min = rs.getObject(1);
+                max = rs.getObject(2);
+            }
+            if(min instanceof Number && max instanceof Number) {
+                long low = ((Number) min).longValue();
+                long width = ((Number) max).longValue() - low + 1;
+                // Seeded with the table so that planning twice gives the same estimates.
+                Random random = new Random(table.hashCode());
+                for (int i = 0; i < SAMPLE_RANGES; i++) {
+                    long startKey = low + (long) (random.nextDouble() * width);
+                    queries.add(new StringBuilder(from).append(" WHERE ").append(column).append(" >= ").append(startKey).append(" ORDER BY ")
+                            .append(column).append(" LIMIT ").append(SAMPLE_ROWS / SAMPLE_RANGES).toString());
+                }
+                return queries;
+            }
+        }
+        queries.add(from.concat(" LIMIT ").concat(String.valueOf(SAMPLE_ROWS)));
+        return queries;
+    }
+
+    /**
+     * Runs the tasks on a simulated pool of workers.max workers in the order the scheduler would start them.
+     * @return the estimated start and end (milliseconds from the start of the copy) of each task.
+     */
+    private Map<String, long[]> simulate(final Map<String, Estimate> estimates) {
+        long[] workers = new long[AppProperties.getInstance().getMaxWorkers()];
+        Map<String, long[]> schedule = new LinkedHashMap<>();
+        List<String> pending = new ArrayList<>(estimates.keySet());
+        while (!pending.isEmpty()) {
+            // The next task to start is the one whose dependencies are done the earliest, in the order the tasks were added.
+            String next = null;
+            long nextReady = Long.MAX_VALUE;
+            for (String name : pending) {
+                long ready = 0;
+                boolean blocked = false;
+                for (String dependency : scheduler.getDependencies(name)) {
+                    long[] times = schedule.get(dependency);
+                    if(times == null) {
+                        blocked = true;
+                        break;
+                    }
+                    ready = Math.max(ready, times[1]);
+                }
+                if(!blocked && ready < nextReady) {
+                    next = name;
+                    nextReady = ready;
+                }
+            }
+            pending.remove(next);
+            Estimate estimate = estimates.get(next);
+            long duration = estimate.rows == 0 ? 0 : TASK_OVERHEAD_MILLIS + (long) (estimate.rows / rowsPerSecond * 1000);
+            if("cohort".equals(next)) {
+                duration = cohortMillis;
+            }
+            int worker = 0;
+            for (int i = 1; i < workers.length; i++) {
+                if(workers[i] < workers[worker]) worker = i;
+            }
+            long start = duration == 0 ? nextReady : Math.max(nextReady, workers[worker]);
+            if(duration > 0) {
+                workers[worker] = start + duration;
+            }
+            schedule.put(next, new long[] { start, start + duration });
+        }
+        return schedule;
+    }
+
+    static String formatDuration(final long millis) {
+        long seconds = millis / 1000;
+        if(seconds < 60) {
+            return String.format("%.1fs", millis / 1000.0);
+        }
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    static String formatBytes(final long bytes) {
+        if(bytes < 1024) {
+            return bytes + " B";
+        }
+        String units = "KMGT";
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %siB", value, units.charAt(unit));
+    }
+
+    private static class Sample {
+        private long sampled;
+        private long selected;
+        private long dumpBytes;
+
+        private double getSelectivity() {
+            return sampled == 0 ? 0 : (double) selected / sampled;
+        }
+
+        private double getDumpBytesPerRecord() {
+            return sampled == 0 ? 0 : (double) dumpBytes / sampled;
+        }
+    }
+
+    private static class Estimate {
+        private final String name;
+        private final long rows;
+        private final double selectivity;
+        private final long scratchBytes;
+        private final long dumpBytes;
+        private final String basis;
+
+        private Estimate(final String name, final long rows, final double selectivity, final long scratchBytes, final long dumpBytes,
+                         final String basis) {
+            this.name = name;
+            this.rows = rows;
+            this.selectivity = selectivity;
+            this.scratchBytes = scratchBytes;
+            this.dumpBytes = dumpBytes;
+            this.basis = basis;
+        }
+
+        /**
+         * @param rows the estimated number of records copied
+         * @param sample sample of the table giving the size of a record in the dump
+         */
+        private static Estimate ofTable(final String table, final long rows, final Sample sample, final String basis) throws SQLException {
+            long tableRows = ExtractionUtils.getEstimatedRowCount(table);
+            // Records take about as much space (with their indexes) in the new database as in the source.
+            double bytesPerRow = tableRows == 0 ? ExtractionUtils.getAverageRowLength(table) :
+                    (double) (ExtractionUtils.getDataLength(table) + ExtractionUtils.getIndexLength(table)) / tableRows;
+            double dumpBytesPerRow = sample.sampled > 0 ? sample.getDumpBytesPerRecord() : ExtractionUtils.getAverageRowLength(table) * DUMP_EXPANSION;
+            return new Estimate(table, rows, tableRows == 0 ? 0 : Math.min(1, (double) rows / tableRows), Math.round(rows * bytesPerRow),
+                    Math.round(rows * dumpBytesPerRow), basis);
+        }
+
+        private double getSelectivity() {
+            return selectivity;
+        }
+
+        /**
+         * @return the share of this estimate of one of the tasks copying the table (a task per key range).
+         */
+        private Estimate share(final int tasks) {
+            if(tasks <= 1) {
+                return this;
+            }
+            return new Estimate(name, rows / tasks, selectivity, scratchBytes / tasks, dumpBytes / tasks, basis);
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -21,20 +22,53 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
  * @uthor Willa Mhawila<a.mhawila@gmail.com> on 6/21/21.
  */
 public class ExtractionUtils {
+    /**
+     * Prefix of the tables used by the extractor for its own bookkeeping in the new database, these are not part of the dump.
+     */
+    public static final String SCRATCH_TABLE_PREFIX = "fgh_extractor_";
+    public static final String COHORT_TABLE = SCRATCH_TABLE_PREFIX + "cohort";
+    public static final String USER_CLOSURE_TABLE = SCRATCH_TABLE_PREFIX + "user_closure";
+    public static final String ASSOCIATED_PERSONS_TABLE = SCRATCH_TABLE_PREFIX + "associated_persons";
+    public static final String USERS_PERSONS_TABLE = SCRATCH_TABLE_PREFIX + "users_persons";
     private static List<String> tablesToMove = null;
     private static List<String> allTables = null;
+    private static volatile Map<String, Long> estimatedRowCounts = null;
+    private static volatile Map<String, Long> averageRowLengths = null;
+    private static volatile Map<String, Long> dataLengths = null;
+    private static volatile Map<String, Long> indexLengths = null;
+    private static final Map<String, PrimaryKey> PRIMARY_KEYS = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, String>> COLUMN_DEFINITIONS = new ConcurrentHashMap<>();
+    private static final Map<String, String> CREATE_TABLE_STATEMENTS = new ConcurrentHashMap<>();
+    private static volatile Map<String, String> schemaSnapshot = Collections.emptyMap();
+    // Tables created in the new databases (qualified by the database) which the copy tasks copy into.
+    private static final Set<String> TABLES_CREATED = ConcurrentHashMap.newKeySet();
+    private static final Set<String> TABLES_DUMPED_FROM_SOURCE = ConcurrentHashMap.newKeySet();
+    private static final Set<String> PROBED_COLUMNS = ConcurrentHashMap.newKeySet();
+    // Definitions in SHOW CREATE TABLE output of the indexes & foreign keys which can be added after the records are copied.
+    private static final Pattern DEFERRABLE_INDEX = Pattern.compile("^(?:UNIQUE )?KEY `([^`]+)` \\(`([^`]+)`");
+    private static final Pattern DEFERRABLE_FOREIGN_KEY = Pattern.compile("^CONSTRAINT `([^`]+)` FOREIGN KEY ");
+    private static final DateTimeFormatter DUMP_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
     private static final Logger LOGGER = LoggerFactory.getLogger(ExtractionUtils.class);
 
-    public static List<String> getListOfAllTables() throws SQLException {
+    public static synchronized List<String> getListOfAllTables() throws SQLException {
         if(allTables == null) {
             List<String> tables = new CopyOnWriteArrayList<>();
             try (Connection connection = ConnectionPool.getConnection();
@@ -49,11 +83,12 @@ public class ExtractionUtils {
     }
 
     /**
-     * Returns a list of tables to be moved (Note: this list changes as the execution progress)
+     * Returns a list of tables to be moved, the tables are fetched once and each call returns a new list which the caller can
+     * change (in batch mode every site starts from the same list).
      * @return
      * @throws SQLException
      */
-    public static List<String> getListOfTablesToMove() throws SQLException {
+    public static synchronized List<String> getListOfTablesToMove() throws SQLException {
         if(tablesToMove == null) {
             tablesToMove = new CopyOnWriteArrayList<>();
             try (Connection connection = ConnectionPool.getConnection();
@@ -82,42 +117,367 @@ public class ExtractionUtils {
             // Remove excluded tables
             tablesToMove.removeAll(AppProperties.getInstance().getExcludedTables());
         }
-        return tablesToMove;
+        return new ArrayList<>(tablesToMove);
     }
 
-    public static String getCopyingSQL(final String table, final String condition) {
-        StringBuilder sql = new StringBuilder("INSERT IGNORE INTO ")
-                .append(AppProperties.getInstance().getNewDatabaseName())
-                .append(".").append(table).append(" (SELECT * FROM ").append(AppProperties.getInstance().getDatabaseName())
-                .append(".").append(table);
+    /**
+     * @param table the table being copied
+     * @param condition the condition or null
+     * @param planner renders the condition for the server
+     * @return the SQL copying the records of the table selected by the condition.
+     */
+    public static String getCopyingSQL(final String table, final CopyCondition condition, final ConditionPlanner planner) throws SQLException {
+        StringBuilder sql = getInsertIntoSelectFrom(table);
         if(condition != null) {
-            sql.append(" AS t WHERE ").append(condition);
+            sql.append(" WHERE ").append(planner.render(condition));
         }
         sql.append(")");
         return sql.toString();
     }
 
-    public static String getCopyingSQLWithOrderAndPaging(final String table, final String condition, final String orderColumn,
-                                                         final Integer startIndex, final Integer size) {
-        StringBuilder sql = new StringBuilder("INSERT IGNORE INTO ")
-                .append(AppProperties.getInstance().getNewDatabaseName())
-                .append(".").append(table).append(" (SELECT * FROM ").append(AppProperties.getInstance().getDatabaseName())
-                .append(".").append(table);
-        if(condition != null) {
-            sql.append(" AS t WHERE ").append(condition);
+    /**
+     * Builds the SQL copying the records of a table page by page in primary key order (keyset/seek pagination), the records
+     * copied are those coming after the lower key (exclusive) up to the upper key (inclusive). Parameters for the keys are
+     * to be bound using {@link PrimaryKey#bindAfter} and {@link PrimaryKey#bindUpTo} in that order.
+     * @param table the table being copied
+     * @param condition the condition or null
+     * @param planner renders the condition for the server
+     * @param primaryKey the primary key of the table
+     * @param afterLowerKey whether to include the lower key predicate (false for the first page)
+     * @param upToUpperKey whether to include the upper key predicate (false for the last page)
+     * @return String
+     */
+    public static String getCopyingSQLWithKeyset(final String table, final CopyCondition condition, final ConditionPlanner planner,
+                                                 final PrimaryKey primaryKey, final boolean afterLowerKey, final boolean upToUpperKey)
+            throws SQLException {
+        StringBuilder sql = getInsertIntoSelectFrom(table);
+        return appendKeysetWhereClause(sql, planner.render(condition), primaryKey, afterLowerKey, upToUpperKey).append(")").toString();
+    }
+
+    /**
+     * Builds the query selecting the records of a table in the source database, this is what is streamed to the new database
+     * when it is on another server. Only the records whose key is in the given range are selected if a primary key is passed.
+     * Parameters for the keys are to be bound using {@link PrimaryKey#bindAfter} and {@link PrimaryKey#bindUpTo} in that order.
+     * @param table the table being copied
+     * @param condition the condition or null
+     * @param planner renders the condition for the server
+     * @param primaryKey the primary key of the table or null if the whole table is selected.
+     * @param afterLowerKey whether to include the lower key predicate
+     * @param upToUpperKey whether to include the upper key predicate
+     * @param orderedByKey whether to select the records in key order, this is needed to checkpoint the copy.
+     * @return String
+     */
+    public static String getSelectingSQL(final String table, final CopyCondition condition, final ConditionPlanner planner,
+                                         final PrimaryKey primaryKey, final boolean afterLowerKey, final boolean upToUpperKey,
+                                         final boolean orderedByKey) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(AppProperties.getInstance().getDatabaseName()).append(".")
+                .append(table).append(" AS t");
+        appendKeysetWhereClause(sql, planner.render(condition), primaryKey, afterLowerKey && primaryKey != null,
+                upToUpperKey && primaryKey != null);
+        if(orderedByKey && primaryKey != null) {
+            sql.append(" ORDER BY ").append(primaryKey.getColumnList("t"));
         }
-        sql.append(" ORDER BY ").append(orderColumn).append(" LIMIT ").append(startIndex).append(", ").append(size).append(")");
         return sql.toString();
     }
 
-    public static String getCountingQuery(final String table, final String condition) {
-        StringBuilder countQuery = new StringBuilder("SELECT COUNT(*) FROM ")
-                .append(AppProperties.getInstance().getDatabaseName())
+    /**
+     * @param condition the rendered condition, a single predicate or parenthesized conjunction
+     */
+    private static StringBuilder appendKeysetWhereClause(final StringBuilder sql, final String condition, final PrimaryKey primaryKey,
+                                                         final boolean afterLowerKey, final boolean upToUpperKey) {
+        List<String> predicates = new ArrayList<>();
+        if(condition != null) {
+            predicates.add(condition);
+        }
+        if(afterLowerKey) {
+            predicates.add("(".concat(primaryKey.getAfterKeyPredicate("t")).concat(")"));
+        }
+        if(upToUpperKey) {
+            predicates.add("(".concat(primaryKey.getUpToKeyPredicate("t")).concat(")"));
+        }
+        if(predicates.isEmpty()) {
+            predicates.add("1 = 1");
+        }
+        return sql.append(" WHERE ").append(String.join(" AND ", predicates));
+    }
+
+    /**
+     * Builds the start of the statement copying records of a table up to the FROM clause, the source table is aliased as t. In
+     * direct dump mode only the bookkeeping columns are copied.
+     * @see #getBookkeepingColumns(String)
+     */
+    private static StringBuilder getInsertIntoSelectFrom(final String table) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT IGNORE INTO ").append(AppProperties.getInstance().getNewDatabaseName())
                 .append(".").append(table);
-        if(condition != null ) {
-            countQuery.append(" AS t WHERE ").append(condition);
+        List<String> columns = getBookkeepingColumns(table);
+        if(columns == null) {
+            sql.append(" (SELECT *");
+        } else {
+            sql.append(" (").append(String.join(", ", columns)).append(") (SELECT ");
+            for (int i = 0; i < columns.size(); i++) {
+                if(i > 0) sql.append(", ");
+                sql.append("t.").append(columns.get(i));
+            }
         }
-        return countQuery.toString();
+        return sql.append(" FROM ").append(AppProperties.getInstance().getDatabaseName()).append(".").append(table).append(" AS t");
+    }
+
+    /**
+     * In direct dump mode the new database only keeps for each table the columns needed to select the records to extract and
+     * the records of other tables, these are the primary key and foreign key columns. The records themselves are read from the
+     * source database when dumping by joining on the primary key.
+     * @param table the table
+     * @return the bookkeeping columns in table column order or null if the whole record is copied (not in direct dump mode or
+     * the table has no primary key to join on)
+     * @throws SQLException
+     */
+    public static List<String> getBookkeepingColumns(final String table) throws SQLException {
+        if(!AppProperties.getInstance().getDirectDump()) {
+            return null;
+        }
+        PrimaryKey primaryKey = getPrimaryKey(table);
+        if(primaryKey.isEmpty()) {
+            return null;
+        }
+        Set<String> keyColumns = new HashSet<>(primaryKey.getColumns());
+        ForeignKeyGraph.getInstance().getForeignKeys(table).forEach(foreignKey -> keyColumns.add(foreignKey.getColumn()));
+        return getColumnDefinitions(table).keySet().stream().filter(keyColumns::contains).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the columns of a table in the source database with their definitions as they would appear in a CREATE TABLE
+     * statement, for example "int(11) NOT NULL".
+     * @param table the table
+     * @return map of column name to definition in table column order.
+     * @throws SQLException
+     */
+    public static Map<String, String> getColumnDefinitions(final String table) throws SQLException {
+        Map<String, String> columns = COLUMN_DEFINITIONS.get(table);
+        if(columns == null) {
+            columns = new LinkedHashMap<>();
+            String sql = "SELECT COLUMN_NAME, COLUMN_TYPE, IS_NULLABLE FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = ? " +
+                    "AND TABLE_NAME = ? ORDER BY ORDINAL_POSITION";
+            try (Connection connection = ConnectionPool.getConnection();
+                 PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, AppProperties.getInstance().getDatabaseName());
+                statement.setString(2, table);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        columns.put(rs.getString("COLUMN_NAME"), rs.getString("COLUMN_TYPE")
+                                .concat("NO".equals(rs.getString("IS_NULLABLE")) ? " NOT NULL" : " NULL"));
+                    }
+                }
+            } catch (SQLException e) {
+                LOGGER.error("An error occurred while fetching the columns of table {}", table, e);
+                throw e;
+            }
+            columns = Collections.unmodifiableMap(columns);
+            COLUMN_DEFINITIONS.putIfAbsent(table, columns);
+        }
+        return columns;
+    }
+
+    /**
+     * Builds the query returning the key of the last record of the next page of a table, that is the key of the record which is
+     * pageSize records after the lower key in primary key order. This only walks the primary key index so it is cheap
+     * regardless of how far into the table the page is.
+     * @param table the table being paged
+     * @param primaryKey the primary key of the table
+     * @param afterLowerKey whether to include the lower key predicate (false for the first page)
+     * @param upToUpperKey whether to limit the page to the upper key of the range being copied.
+     * @param pageSize the page size
+     * @return String
+     */
+    public static String getKeysetBoundaryQuery(final String table, final PrimaryKey primaryKey, final boolean afterLowerKey,
+                                                final boolean upToUpperKey, final int pageSize) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(primaryKey.getColumnList("t")).append(" FROM ")
+                .append(AppProperties.getInstance().getDatabaseName()).append(".").append(table).append(" AS t");
+        List<String> predicates = new ArrayList<>();
+        if(afterLowerKey) {
+            predicates.add("(".concat(primaryKey.getAfterKeyPredicate("t")).concat(")"));
+        }
+        if(upToUpperKey) {
+            predicates.add("(".concat(primaryKey.getUpToKeyPredicate("t")).concat(")"));
+        }
+        if(!predicates.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", predicates));
+        }
+        sql.append(" ORDER BY ").append(primaryKey.getColumnList("t")).append(" LIMIT ").append(pageSize - 1).append(", 1");
+        return sql.toString();
+    }
+
+    /**
+     * Splits the primary key values of a table into ranges of about equal width using the minimum and maximum key values,
+     * the ranges are copied concurrently. Only tables with a single numeric primary key column can be split, for the others a
+     * single range covering the whole table is returned. The first and last ranges are open ended so that no record is missed.
+     * @param table the table to split
+     * @param count the number of ranges wanted.
+     * @return the ranges.
+     * @throws SQLException
+     */
+    public static List<KeyRange> getKeyRanges(final String table, final int count) throws SQLException {
+        PrimaryKey primaryKey = getPrimaryKey(table);
+        if(count < 2 || primaryKey.getColumns().size() != 1) {
+            return Collections.singletonList(KeyRange.ALL);
+        }
+        String column = primaryKey.getColumns().get(0);
+        String sql = new StringBuilder("SELECT MIN(").append(column).append("), MAX(").append(column).append(") FROM ")
+                .append(AppProperties.getInstance().getDatabaseName()).append(".").append(table).toString();
+        Object min;
+        Object max;
+        try (Connection connection = ConnectionPool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            min = rs.getObject(1);
+            max = rs.getObject(2);
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while running sql: {}", sql, e);
+            throw e;
+        }
+        if(!(min instanceof Number) || !(max instanceof Number)) {
+            return Collections.singletonList(KeyRange.ALL);
+        }
+
+        long low = ((Number) min).longValue();
+        long high = ((Number) max).longValue();
+        long width = (high - low) / count;
+        if(width < 1) {
+            return Collections.singletonList(KeyRange.ALL);
+        }
+        List<KeyRange> ranges = new ArrayList<>(count);
+        Object[] lowerKey = null;
+        for (int i = 1; i < count; i++) {
+            Object[] upperKey = new Object[] { low + width * i };
+            ranges.add(new KeyRange(lowerKey, upperKey));
+            lowerKey = upperKey;
+        }
+        ranges.add(new KeyRange(lowerKey, null));
+        return ranges;
+    }
+
+    /**
+     * Returns the primary key of a table in the source database as reported by the database metadata. The table has no primary
+     * key if the returned one is empty.
+     * @param table the table
+     * @return PrimaryKey
+     * @throws SQLException
+     */
+    public static PrimaryKey getPrimaryKey(final String table) throws SQLException {
+        PrimaryKey primaryKey = PRIMARY_KEYS.get(table);
+        if(primaryKey == null) {
+            SortedMap<Short, String> columns = new TreeMap<>();
+            try (Connection connection = ConnectionPool.getConnection();
+                 ResultSet rs = connection.getMetaData().getPrimaryKeys(AppProperties.getInstance().getDatabaseName(), null, table)) {
+                while (rs.next()) {
+                    columns.put(rs.getShort("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+                }
+            } catch (SQLException e) {
+                LOGGER.error("An error occurred while fetching the primary key of table {}", table, e);
+                throw e;
+            }
+            primaryKey = new PrimaryKey(table, new ArrayList<>(columns.values()));
+            PRIMARY_KEYS.putIfAbsent(table, primaryKey);
+        }
+        return primaryKey;
+    }
+
+    /**
+     * Returns the current time of the source database server, the watermark of an incremental extraction is compared with the
+     * dates of the source records so it must be taken from the same clock.
+     * @return the value of NOW() on the source database server.
+     * @throws SQLException
+     */
+    public static LocalDateTime getSourceTime() throws SQLException {
+        try (Connection connection = ConnectionPool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT DATE_FORMAT(NOW(), '%Y-%m-%dT%H:%i:%s')")) {
+            rs.next();
+            // Read as text so that the driver does not convert it to the time zone of the JVM.
+            return LocalDateTime.parse(rs.getString(1));
+        }
+    }
+
+    /**
+     * Returns the estimated number of records of a table in the source database as given by information_schema.TABLES, the
+     * statistics of all tables are fetched once at the first call.
+     * @param table the table
+     * @return the estimated number of rows or 0 if not known.
+     * @throws SQLException
+     */
+    public static long getEstimatedRowCount(final String table) throws SQLException {
+        if(estimatedRowCounts == null) {
+            loadTableStatistics();
+        }
+        return estimatedRowCounts.getOrDefault(table, 0L);
+    }
+
+    /**
+     * Returns the average length of the records of a table in the source database as given by information_schema.TABLES, this
+     * is used to estimate the bytes copied.
+     * @param table the table
+     * @return the average record length in bytes or 0 if not known.
+     * @throws SQLException
+     */
+    public static long getAverageRowLength(final String table) throws SQLException {
+        if(averageRowLengths == null) {
+            loadTableStatistics();
+        }
+        return averageRowLengths.getOrDefault(table, 0L);
+    }
+
+    /**
+     * Returns the disk space taken by the records of a table in the source database as given by information_schema.TABLES.
+     * @param table the table
+     * @return the data length in bytes or 0 if not known.
+     * @throws SQLException
+     */
+    public static long getDataLength(final String table) throws SQLException {
+        if(dataLengths == null) {
+            loadTableStatistics();
+        }
+        return dataLengths.getOrDefault(table, 0L);
+    }
+
+    /**
+     * Returns the disk space taken by the secondary indexes of a table in the source database as given by information_schema.TABLES.
+     * @param table the table
+     * @return the index length in bytes or 0 if not known.
+     * @throws SQLException
+     */
+    public static long getIndexLength(final String table) throws SQLException {
+        if(indexLengths == null) {
+            loadTableStatistics();
+        }
+        return indexLengths.getOrDefault(table, 0L);
+    }
+
+    private static void loadTableStatistics() throws SQLException {
+        Map<String, Long> counts = new HashMap<>();
+        Map<String, Long> lengths = new HashMap<>();
+        Map<String, Long> data = new HashMap<>();
+        Map<String, Long> indexes = new HashMap<>();
+        String sql = "SELECT TABLE_NAME, TABLE_ROWS, AVG_ROW_LENGTH, DATA_LENGTH, INDEX_LENGTH FROM information_schema.TABLES WHERE TABLE_SCHEMA = ?";
+        try (Connection connection = ConnectionPool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, AppProperties.getInstance().getDatabaseName());
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    counts.put(rs.getString("TABLE_NAME"), rs.getLong("TABLE_ROWS"));
+                    lengths.put(rs.getString("TABLE_NAME"), rs.getLong("AVG_ROW_LENGTH"));
+                    data.put(rs.getString("TABLE_NAME"), rs.getLong("DATA_LENGTH"));
+                    indexes.put(rs.getString("TABLE_NAME"), rs.getLong("INDEX_LENGTH"));
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while fetching table statistics from the source db {}",
+                    AppProperties.getInstance().getDatabaseName(), e);
+            throw e;
+        }
+        averageRowLengths = Collections.unmodifiableMap(lengths);
+        dataLengths = Collections.unmodifiableMap(data);
+        indexLengths = Collections.unmodifiableMap(indexes);
+        estimatedRowCounts = Collections.unmodifiableMap(counts);
     }
 
     public static void createNewDatabase(final Connection connection) throws SQLException {
@@ -138,7 +498,7 @@ public class ExtractionUtils {
 
     public static boolean databaseExists(String database) throws SQLException {
         String sql = "SHOW DATABASES LIKE '".concat(database).concat("'");
-        try (Connection connection = ConnectionPool.getConnection();
+        try (Connection connection = ConnectionPool.getTargetConnection();
             Statement statement = connection.createStatement();
             ResultSet resultSet = statement.executeQuery(sql)) {
             return resultSet.next();
@@ -155,16 +515,147 @@ public class ExtractionUtils {
     }
 
     public static void copyOnlyStructure(final String table) throws SQLException {
-        String createTableSql = null;
-        try (Connection connection = ConnectionPool.getConnection();
-             Statement s = connection.createStatement();
-             ResultSet resultSet =
-                     s.executeQuery("SHOW CREATE TABLE ".concat(AppProperties.getInstance().getDatabaseName()).concat(".").concat(table))) {
-            resultSet.next();
-            // The second column is named "Create Table"
-            createTableSql = resultSet.getString(2);
-            String createInNewDb = "CREATE TABLE IF NOT EXISTS ".concat(AppProperties.getInstance().getNewDatabaseName()).concat(".");
-            createTableSql = createTableSql.replace("CREATE TABLE ", createInNewDb);
+        List<String> bookkeepingColumns = getBookkeepingColumns(table);
+        if(bookkeepingColumns != null) {
+            createBookkeepingTable(table, bookkeepingColumns);
+            return;
+        }
+        createInNewDatabase(getCreateTableStatement(table));
+    }
+
+    /**
+     * Creates the table the copy tasks copy the records of a table into. With defer.secondary.indexes the secondary indexes and
+     * foreign keys are left out (except the indexes on the columns copy conditions select on, see
+     * {@link #registerProbedColumn(String, String)}) so the records are loaded in primary key order only, they are added by
+     * {@link #buildDeferredIndexes(String)} once all the records are copied.
+     * @param table the table
+     * @throws SQLException
+     */
+    public static void createTableToCopyInto(final String table) throws SQLException {
+        String newDbTable = AppProperties.getInstance().getNewDatabaseName().concat(".").concat(table);
+        if(TABLES_CREATED.contains(newDbTable)) {
+            return;
+        }
+        if(!AppProperties.getInstance().getDeferSecondaryIndexes() || getBookkeepingColumns(table) != null) {
+            copyOnlyStructure(table);
+        } else {
+            createInNewDatabase(splitDeferredIndexes(table, getCreateTableStatement(table), new ArrayList<>()));
+        }
+        TABLES_CREATED.add(newDbTable);
+    }
+
+    /**
+     * Registers a column of a table in the new database which the conditions of copy tasks select on, the indexes starting with
+     * the column are not deferred so that the lookups of later copy tasks don't scan the table.
+     * @param table the table in the new database
+     * @param column the column
+     */
+    public static void registerProbedColumn(final String table, final String column) {
+        PROBED_COLUMNS.add(table.concat(".").concat(column));
+    }
+
+    /**
+     * Adds the secondary indexes & foreign keys left out when the table was created (see {@link #createTableToCopyInto(String)})
+     * in a single ALTER TABLE so that InnoDB builds each index with one sort of the loaded records. The indexes and foreign keys
+     * already in the new database are skipped, nothing is done when the table has them all.
+     * @param table the table
+     * @throws SQLException
+     */
+    public static void buildDeferredIndexes(final String table) throws SQLException {
+        if(getBookkeepingColumns(table) != null) {
+            return;
+        }
+        List<String> deferred = new ArrayList<>();
+        splitDeferredIndexes(table, getCreateTableStatement(table), deferred);
+        if(deferred.isEmpty()) {
+            return;
+        }
+        final String newDb = AppProperties.getInstance().getNewDatabaseName();
+        Set<String> indexes = new HashSet<>();
+        Set<String> foreignKeys = new HashSet<>();
+        String sql = "SELECT INDEX_NAME, 'KEY' FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? UNION "
+                + "SELECT CONSTRAINT_NAME, CONSTRAINT_TYPE FROM information_schema.TABLE_CONSTRAINTS WHERE TABLE_SCHEMA = ? "
+                + "AND TABLE_NAME = ? AND CONSTRAINT_TYPE = 'FOREIGN KEY'";
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, newDb);
+            statement.setString(2, table);
+            statement.setString(3, newDb);
+            statement.setString(4, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    ("KEY".equals(rs.getString(2)) ? indexes : foreignKeys).add(rs.getString(1));
+                }
+            }
+
+            StringBuilder alter = new StringBuilder("ALTER TABLE ").append(newDb).append(".").append(table);
+            int added = 0;
+            for (String definition : deferred) {
+                Matcher foreignKey = DEFERRABLE_FOREIGN_KEY.matcher(definition);
+                Matcher index = DEFERRABLE_INDEX.matcher(definition);
+                if(foreignKey.find() ? foreignKeys.contains(foreignKey.group(1)) : index.find() && indexes.contains(index.group(1))) {
+                    continue;
+                }
+                alter.append(added++ == 0 ? " " : ", ").append("ADD ").append(definition);
+            }
+            if(added == 0) {
+                return;
+            }
+            sql = alter.toString();
+            LOGGER.debug("Adding {} deferred indexes & foreign keys to {}", added, table);
+            try (Statement s = connection.createStatement()) {
+                s.execute("set foreign_key_checks=0");
+                s.execute(sql);
+            }
+        } catch (SQLException sqle) {
+            LOGGER.error("An error occured while running sql: {}", sql, sqle);
+            throw sqle;
+        }
+    }
+
+    /**
+     * Splits the secondary indexes & foreign keys which can be added after the records are copied out of a CREATE TABLE statement
+     * (as returned by SHOW CREATE TABLE), full text & spatial indexes and the indexes starting with a probed column are kept.
+     * @param table the table
+     * @param createTableSql the CREATE TABLE statement
+     * @param deferred gets the definitions left out
+     * @return the statement without the definitions left out
+     */
+    static String splitDeferredIndexes(final String table, final String createTableSql, final List<String> deferred) {
+        String[] lines = createTableSql.split("\n");
+        int closingLine = 1;
+        while (closingLine < lines.length && !lines[closingLine].startsWith(")")) {
+            closingLine++;
+        }
+        if(closingLine < 2 || closingLine == lines.length) {
+            return createTableSql;
+        }
+        List<String> kept = new ArrayList<>();
+        for (int i = 1; i < closingLine; i++) {
+            String definition = lines[i].trim();
+            if(definition.endsWith(",")) {
+                definition = definition.substring(0, definition.length() - 1);
+            }
+            Matcher index = DEFERRABLE_INDEX.matcher(definition);
+            if(DEFERRABLE_FOREIGN_KEY.matcher(definition).find()
+                    || index.find() && !PROBED_COLUMNS.contains(table.concat(".").concat(index.group(2)))) {
+                deferred.add(definition);
+            } else {
+                kept.add(definition);
+            }
+        }
+        StringBuilder sql = new StringBuilder(lines[0]).append("\n  ").append(String.join(",\n  ", kept));
+        for (int i = closingLine; i < lines.length; i++) {
+            sql.append("\n").append(lines[i]);
+        }
+        return sql.toString();
+    }
+
+    private static void createInNewDatabase(final String createTableStatement) throws SQLException {
+        String createInNewDb = "CREATE TABLE IF NOT EXISTS ".concat(AppProperties.getInstance().getNewDatabaseName()).concat(".");
+        String createTableSql = ScratchProfile.withScratchEngine(createTableStatement).replace("CREATE TABLE ", createInNewDb);
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement s = connection.createStatement()) {
             s.execute("set foreign_key_checks=0");
             s.execute(createTableSql);
         } catch (SQLException sqle) {
@@ -174,16 +665,101 @@ public class ExtractionUtils {
     }
 
     /**
-     *
-     * @param integers set of integer to be transformed into a set acceptable in SQL for example "(4,5,98,71)"
-     * @return String
+     * Fetches the CREATE TABLE statements of all the tables of the source database (but the excluded ones) one after the other
+     * on a single connection into an immutable snapshot, the structure of the tables is then read from memory while copying and
+     * dumping. A table whose structure can't be fetched is left out of the snapshot and fetched when it is needed.
+     * @throws SQLException
+     */
+    public static synchronized void loadSchemaSnapshot() throws SQLException {
+        if(!schemaSnapshot.isEmpty()) {
+            return;
+        }
+        Map<String, String> statements = new HashMap<>();
+        try (Connection connection = ConnectionPool.getConnection();
+             Statement s = connection.createStatement()) {
+            for (String table : getListOfAllTables()) {
+                if(AppProperties.getInstance().getExcludedTables().contains(table)) continue;
+                try (ResultSet resultSet = s.executeQuery(new StringBuilder("SHOW CREATE TABLE ")
+                        .append(AppProperties.getInstance().getDatabaseName()).append(".`").append(table).append("`").toString())) {
+                    resultSet.next();
+                    statements.put(table, resultSet.getString(2));
+                } catch (SQLException e) {
+                    LOGGER.warn("Could not fetch the structure of table {} ({}), it is fetched again if needed", table, e.getMessage());
+                }
+            }
+        }
+        schemaSnapshot = Collections.unmodifiableMap(statements);
+        LOGGER.debug("Fetched the structure of {} tables", statements.size());
+    }
+
+    /**
+     * Returns the CREATE TABLE statement of a table in the source database from the schema snapshot (see
+     * {@link #loadSchemaSnapshot()}), statements of tables not in the snapshot are fetched once per table.
+     * @param table the table
+     * @return the statement as returned by SHOW CREATE TABLE
+     * @throws SQLException
+     */
+    public static String getCreateTableStatement(final String table) throws SQLException {
+        String createTableSql = schemaSnapshot.get(table);
+        if(createTableSql == null) {
+            createTableSql = CREATE_TABLE_STATEMENTS.get(table);
+        }
+        if(createTableSql == null) {
+            try (Connection connection = ConnectionPool.getConnection();
+                 Statement s = connection.createStatement();
+                 ResultSet resultSet =
+                         s.executeQuery("SHOW CREATE TABLE ".concat(AppProperties.getInstance().getDatabaseName()).concat(".").concat(table))) {
+                resultSet.next();
+                // The second column is named "Create Table"
+                createTableSql = resultSet.getString(2);
+            } catch (SQLException sqle) {
+                LOGGER.error("An error occured while fetching the structure of table {}", table, sqle);
+                throw sqle;
+            }
+            CREATE_TABLE_STATEMENTS.putIfAbsent(table, createTableSql);
+        }
+        return createTableSql;
+    }
+
+    /**
+     * Used in batch mode for tables whose records are all extracted, the records are the same for every site so instead of
+     * being copied into the new database of each site only the structure is copied and the records are read from the source
+     * database while dumping.
+     * @param table the table
+     * @throws SQLException
      */
-    public static String stringifySetOfIntegers(Set<Integer> integers) {
-        StringBuilder sb = new StringBuilder("(");
-        integers.forEach(integer -> sb.append(integer).append(","));
-        sb.deleteCharAt(sb.length() - 1);
-        sb.append(")");
-        return sb.toString();
+    public static void dumpFromSource(final String table) throws SQLException {
+        copyOnlyStructure(table);
+        TABLES_DUMPED_FROM_SOURCE.add(table);
+    }
+
+    /**
+     * @param table the table
+     * @return true if the records of the table are read from the source database while dumping.
+     * @see #dumpFromSource(String)
+     */
+    public static boolean isDumpedFromSource(final String table) {
+        return TABLES_DUMPED_FROM_SOURCE.contains(table);
+    }
+
+    private static void createBookkeepingTable(final String table, final List<String> columns) throws SQLException {
+        Map<String, String> definitions = getColumnDefinitions(table);
+        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(AppProperties.getInstance().getNewDatabaseName())
+                .append(".").append(table).append(" (");
+        for (String column : columns) {
+            sql.append("`").append(column).append("` ").append(definitions.get(column)).append(", ");
+        }
+        sql.append("PRIMARY KEY (").append(String.join(", ", getPrimaryKey(table).getColumns())).append("))");
+        if(AppProperties.getInstance().getScratchEngine() != null) {
+            sql.append(" ENGINE=").append(AppProperties.getInstance().getScratchEngine());
+        }
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement s = connection.createStatement()) {
+            s.execute(sql.toString());
+        } catch (SQLException sqle) {
+            LOGGER.error("An error occured while running sql: {}", sql, sqle);
+            throw sqle;
+        }
     }
 
     public static String getPatientListQueryFromFile() throws URISyntaxException, IOException {
@@ -200,9 +776,175 @@ public class ExtractionUtils {
         return getQueryFormPath(Paths.get(sqlFileUri));
     }
 
-    public static String getDumpFilename() {
+    /**
+     * Returns the tables of the new database which make up the extraction, the extractor's bookkeeping tables are left out.
+     * @return sorted list of table names
+     * @throws SQLException
+     */
+    public static List<String> getListOfTablesInNewDatabase() throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             ResultSet rs = connection.getMetaData().getTables(AppProperties.getInstance().getNewDatabaseName(), null, null,
+                     new String[] {"TABLE"})) {
+            while (rs.next()) {
+                String table = rs.getString("TABLE_NAME");
+                if(!isScratchTable(table)) {
+                    tables.add(table);
+                }
+            }
+        }
+        Collections.sort(tables);
+        return tables;
+    }
+
+    /**
+     * Dumps the structure and records of all the tables in the new database into an SQL file, the records are streamed from the
+     * server so memory use does not depend on the size of the tables.
+     * @param file the dump file
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static void dumpNewDatabase(final Path file) throws SQLException, IOException {
+        final String newDb = AppProperties.getInstance().getNewDatabaseName();
+        try (SqlDumpWriter writer = new SqlDumpWriter(file, AppProperties.getInstance().getDumpCompression(),
+                AppProperties.getInstance().getDumpStatementSize(), AppProperties.getInstance().getIncremental());
+             Connection streamingConnection = ConnectionPool.getTargetConnection();
+             Connection sourceStreamingConnection = ConnectionPool.getConnection()) {
+            writer.writeHeader();
+            for (String table : getListOfTablesInNewDatabase()) {
+                long start = System.currentTimeMillis();
+                writer.writeCreateTable(getDumpCreateTableStatement(table));
+                if(!isDumpedWithRecords(table)) {
+                    continue;
+                }
+                Connection recordsConnection = isDumpedFromSource(table) ? sourceStreamingConnection : streamingConnection;
+                try (Statement statement = recordsConnection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    // Makes Connector/J stream the rows one by one instead of reading the whole table into memory.
+                    statement.setFetchSize(Integer.MIN_VALUE);
+                    try (ResultSet rs = statement.executeQuery(getDumpQuery(table, null, false, false))) {
+                        long bytesBefore = writer.getBytesWritten();
+                        long rows = writer.writeRows(table, rs);
+                        RunMetrics.getInstance().recordDump(table, rows, writer.getBytesWritten() - bytesBefore,
+                                TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - start));
+                        LOGGER.debug("Dumped {} records of {}{} in {} ms", rows, table, isDumpedFromSource(table) ? " from the source" : "",
+                                System.currentTimeMillis() - start);
+                    }
+                }
+            }
+            writer.writeFooter();
+            LOGGER.debug("Wrote {} bytes of SQL (before compression)", writer.getBytesWritten());
+        } catch (SQLException|IOException e) {
+            LOGGER.error("An error occurred while dumping {} into {}", newDb, file, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @param table the table
+     * @return the statement creating the table in the dump, the one of the source table. The table in the new database can have
+     * the scratch.engine, lack the secondary indexes & foreign keys (defer.secondary.indexes) and in direct dump mode it only
+     * has the bookkeeping columns.
+     * @throws SQLException
+     */
+    static String getDumpCreateTableStatement(final String table) throws SQLException {
+        return getCreateTableStatement(table);
+    }
+
+    /**
+     * @return false if only the structure of the table is dumped.
+     */
+    static boolean isDumpedWithRecords(final String table) throws SQLException {
+        return isDumpedFromSource(table) || getBookkeepingColumns(table) == null
+                || !AppProperties.getInstance().getOnlyStructureTables().contains(table);
+    }
+
+    /**
+     * Builds the query selecting the records of a table to dump, it runs on the source connection for the tables dumped from the
+     * source and on the connection to the new database otherwise. In direct dump mode the records copied (whose keys are in the
+     * new database) are read from the source. Parameters for the keys are to be bound using {@link PrimaryKey#bindAfter} and
+     * {@link PrimaryKey#bindUpTo} in that order.
+     * @param table the table
+     * @param primaryKey the primary key of the table, null if all the records are selected
+     * @param afterLowerKey whether to include the lower key predicate
+     * @param upToUpperKey whether to include the upper key predicate
+     * @return the query
+     * @throws SQLException
+     */
+    static String getDumpQuery(final String table, final PrimaryKey primaryKey, final boolean afterLowerKey, final boolean upToUpperKey)
+            throws SQLException {
+        String newDbTable = AppProperties.getInstance().getNewDatabaseName().concat(".").concat(table);
+        String sourceTable = AppProperties.getInstance().getDatabaseName().concat(".").concat(table);
+        StringBuilder sql;
+        String keyAlias = "t";
+        if(isDumpedFromSource(table)) {
+            sql = new StringBuilder("SELECT t.* FROM ").append(sourceTable).append(" t");
+        } else if(getBookkeepingColumns(table) == null) {
+            sql = new StringBuilder("SELECT t.* FROM ").append(newDbTable).append(" t");
+        } else {
+            keyAlias = "k";
+            sql = new StringBuilder("SELECT s.* FROM ").append(sourceTable).append(" s INNER JOIN ").append(newDbTable).append(" k ON ");
+            List<String> keyColumns = getPrimaryKey(table).getColumns();
+            for (int i = 0; i < keyColumns.size(); i++) {
+                if(i > 0) sql.append(" AND ");
+                sql.append("s.").append(keyColumns.get(i)).append(" = k.").append(keyColumns.get(i));
+            }
+        }
+        List<String> predicates = new ArrayList<>();
+        if(afterLowerKey && primaryKey != null) {
+            predicates.add("(".concat(primaryKey.getAfterKeyPredicate(keyAlias)).concat(")"));
+        }
+        if(upToUpperKey && primaryKey != null) {
+            predicates.add("(".concat(primaryKey.getUpToKeyPredicate(keyAlias)).concat(")"));
+        }
+        if(!predicates.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", predicates));
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return the fully qualified name of the table in the new database holding the patient ids of the cohort being extracted.
+     */
+    public static String getCohortTableName() {
+        return AppProperties.getInstance().getNewDatabaseName().concat(".").concat(COHORT_TABLE);
+    }
+
+    /**
+     * @return the fully qualified name of the table in the new database holding the ids of the users referenced by the copied
+     * records.
+     */
+    public static String getUserClosureTableName() {
+        return AppProperties.getInstance().getNewDatabaseName().concat(".").concat(USER_CLOSURE_TABLE);
+    }
+
+    /**
+     * @param scratchTable one of the scratch tables, for example {@link #ASSOCIATED_PERSONS_TABLE}
+     * @return the fully qualified name of the scratch table in the new database.
+     */
+    public static String getScratchTableName(final String scratchTable) {
+        return AppProperties.getInstance().getNewDatabaseName().concat(".").concat(scratchTable);
+    }
+
+    /**
+     * @param table table name
+     * @return true if the table is one of the extractor's bookkeeping tables in the new database.
+     */
+    public static boolean isScratchTable(final String table) {
+        return table.startsWith(SCRATCH_TABLE_PREFIX);
+    }
+
+    /**
+     * @return the name of the dump, the new database name followed by the time (without colons which are not allowed in file
+     * names on Windows), the dump file and the directory of the dump chunks are named after it.
+     */
+    public static String getDumpName() {
         return new StringBuilder(AppProperties.getInstance().getNewDatabaseName()).append(".")
-                .append(LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME)).append(".sql").toString();
+                .append(LocalDateTime.now().format(DUMP_TIMESTAMP))
+                .append(AppProperties.getInstance().getIncremental() ? ".delta" : "").toString();
+    }
+
+    public static String getDumpFilename() {
+        return getDumpName().concat(".sql").concat(AppProperties.getInstance().getDumpCompression().getFileExtension());
     }
 
     private static String getQueryFormPath(Path path) throws IOException {
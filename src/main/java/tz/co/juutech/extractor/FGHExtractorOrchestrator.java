@@ -3,12 +3,13 @@ package tz.co.juutech.extractor;
 import ch.qos.logback.classic.Level;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tz.co.juutech.extractor.exception.CannotResumeException;
 import tz.co.juutech.extractor.exception.DatabaseAlreadyExistsException;
 import tz.co.juutech.extractor.exception.InvalidMandatoryPropertyValueException;
+import tz.co.juutech.extractor.exception.SitesExtractionFailedException;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -16,406 +17,829 @@ import java.sql.Statement;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FGHExtractorOrchestrator {
     private static final Logger LOGGER = LoggerFactory.getLogger(FGHExtractorOrchestrator.class);
-    static final int NUMBER_OF_THREADS = 5;
+    private static final String COHORT_TASK = "cohort";
+    private static final String ASSOCIATED_PERSONS_TASK = "associated:persons";
+    private static final String USERS_TASK = "users";
+    private static final String USERS_PERSONS_TASK = "users:persons";
+    private static final String INDEXES_TASK_PREFIX = "indexes:";
+    private static final String STRUCTURE_TASK_PREFIX = "structure:";
+    // Tables copied by tasks of their own, they are not copied through their references to person or patient.
+    private static final Set<String> TABLES_WITH_OWN_TASKS = new HashSet<>(Arrays.asList("person", "patient", "provider",
+            "encounter_provider", "patient_state", "users", "user_property", "user_role"));
+    private static final String RESUME_MODE = "resume";
+    private static final String BATCH_MODE = "batch";
+    private static final String PLAN_MODE = "plan";
 
+    /**
+     * @param args pass "resume" to continue a failed extraction whose new database was kept, pass "batch" to extract all the
+     *             sites of the batch sites file in one run (both can be passed), pass "plan" to only print the plan of the
+     *             extraction with its estimated duration and disk use.
+     */
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
         setLoggingLevel();
+        final Set<String> modes = Arrays.stream(args).map(String::toLowerCase).collect(Collectors.toSet());
+        final boolean resume = modes.contains(RESUME_MODE);
+        final boolean batch = modes.contains(BATCH_MODE);
+        final boolean plan = modes.contains(PLAN_MODE);
         LOGGER.info("START TIME: {}", LocalDateTime.now());
         LOGGER.info("Effective applicatin properties being used are {}", AppProperties.getInstance().toString());
 
+        if(AppProperties.getInstance().isCrossServer() && AppProperties.getInstance().getDirectDump()) {
+            LOGGER.error("{} can't be used with {} since the dump joins the source and new databases", AppProperties.DIRECT_DUMP_PROP,
+                    AppProperties.TARGET_JDBC_URL_PROP);
+            throw new InvalidMandatoryPropertyValueException(AppProperties.DIRECT_DUMP_PROP, String.valueOf(AppProperties.getInstance().getDirectDump()));
+        }
+
+        String scratchEngine = AppProperties.getInstance().getScratchEngine();
+        if(scratchEngine != null && !ScratchProfile.isValidEngine(scratchEngine)) {
+            LOGGER.error("Invalid storage engine set for {}", AppProperties.SCRATCH_ENGINE_PROP);
+            throw new InvalidMandatoryPropertyValueException(AppProperties.SCRATCH_ENGINE_PROP, scratchEngine);
+        }
+        if((AppProperties.getInstance().getScratchProfile() || scratchEngine != null) && !AppProperties.getInstance().getDropNewDbAfter()) {
+            LOGGER.warn("The scratch profile is meant for a new database dropped after the dump ({}=true), the kept database is tuned for loading",
+                    AppProperties.DROP_NEW_DB_AFTER_PROP);
+        }
+
+        Map<String, AppProperties> sites = new LinkedHashMap<>();
+        if(batch) {
+            Path sitesFile = AppProperties.getInstance().getBatchSitesFile();
+            for (SiteDefinition site : SiteDefinition.load(sitesFile)) {
+                sites.put(site.getName(), AppProperties.getInstance().forSite(site));
+            }
+            if(sites.isEmpty()) {
+                LOGGER.error("No site is defined in {}", sitesFile.toAbsolutePath());
+                throw new InvalidMandatoryPropertyValueException(AppProperties.BATCH_SITES_FILE_PROP, sitesFile.toString());
+            }
+            LOGGER.info("Extracting {} sites, {} at a time", sites.size(), AppProperties.getInstance().getBatchConcurrentSites());
+        } else {
+            if(AppProperties.getInstance().getLocationsIds().isEmpty()) {
+                LOGGER.error("All mandatory properties must be set with valid values");
+                throw new InvalidMandatoryPropertyValueException(AppProperties.LOCATIONS_IDS_PROP, AppProperties.getInstance().getLocationsIdsString());
+            }
+            sites.put(AppProperties.getInstance().getNewDatabaseName(), AppProperties.getInstance());
+        }
+        for (AppProperties site : sites.values()) {
+            if(plan) break;
+            AppProperties.callWithSite(site, () -> {
+                checkNewDatabase(resume);
+                return null;
+            });
+        }
+
+        // The copy workers are shared by the sites, the number of tables copied at the same time is limited by the
+        // AdaptiveConcurrencyController for all the sites together.
+        ExecutorService service = Executors.newFixedThreadPool(AppProperties.getInstance().getMaxWorkers());
+        if(AppProperties.getInstance().getScratchProfile() && !plan) {
+            ScratchProfile.relaxFlush();
+        }
+        try {
+            final SharedDiscovery discovery = discover(service);
+            if(plan) {
+                for (AppProperties site : sites.values()) {
+                    AppProperties.callWithSite(site, () -> {
+                        plan(discovery, batch);
+                        return null;
+                    });
+                }
+            } else if(!batch) {
+                extract(discovery, resume, false, service);
+            } else {
+                extractSites(sites, discovery, resume, service);
+            }
+            if(AppProperties.getInstance().isCrossServer()) {
+                StreamingCopier.logTotals();
+            }
+        } finally {
+            service.shutdown();
+            try {
+                service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                LOGGER.error("An error occured while waiting for executor to shutdown", e);
+                service.shutdownNow();
+            }
+            ScratchProfile.restoreFlush();
+
+            long timeTaken = System.currentTimeMillis() - start;
+            LOGGER.info("FINISH TIME: {}", LocalDateTime.now());
+            LOGGER.info("Time taken: {} ms", timeTaken);
+        }
+    }
+
+    /**
+     * Checks that the new database does not exist or, when resuming, that it exists and has a journal.
+     */
+    private static void checkNewDatabase(final boolean resume) throws Exception {
         LOGGER.trace("Checking if the chosen new database name {} already exists", AppProperties.getInstance().getNewDatabaseName());
-        if(ExtractionUtils.databaseExists(AppProperties.getInstance().getNewDatabaseName())) {
-            LOGGER.error("The database {} already exists. Either drop it or use a different name", AppProperties.getInstance().getNewDatabaseName());
+        if(resume) {
+            if(!ExtractionUtils.databaseExists(AppProperties.getInstance().getNewDatabaseName()) || !RunJournal.getInstance().exists()) {
+                throw new CannotResumeException(String.format("the database %s does not exist or has no journal",
+                        AppProperties.getInstance().getNewDatabaseName()));
+            }
+            LOGGER.info("Resuming the extraction into {}", AppProperties.getInstance().getNewDatabaseName());
+        } else if(ExtractionUtils.databaseExists(AppProperties.getInstance().getNewDatabaseName())) {
+            LOGGER.error("The database {} already exists. Either drop it, use a different name or resume the extraction",
+                    AppProperties.getInstance().getNewDatabaseName());
             throw new DatabaseAlreadyExistsException();
         }
+    }
 
-        if(AppProperties.getInstance().getLocationsIds().isEmpty()) {
-            LOGGER.error("All mandatory properties must be set with valid values");
-            throw new InvalidMandatoryPropertyValueException(AppProperties.LOCATIONS_IDS_PROP, AppProperties.getInstance().getLocationsIdsString());
+    /**
+     * Finds the tables referencing person, patient, location & users once for all the sites.
+     */
+    private static SharedDiscovery discover(final ExecutorService service) throws Exception {
+        long startOfStep = System.currentTimeMillis();
+        ExtractionUtils.loadSchemaSnapshot();
+        List<TablesReferencingAnotherTask> tablesReferencingAnotherTasks = new ArrayList<>(Arrays.asList(
+                new TablesReferencingAnotherTask("person", "person_id", "patient"),
+                new TablesReferencingAnotherTask("patient", "patient_id"),
+                new TablesReferencingAnotherTask( "users", "user_id", "user_property", "user_role")));
+
+        if(AppProperties.getInstance().getRestrictExtraction()) {
+            tablesReferencingAnotherTasks.add(new TablesReferencingAnotherTask("location", "location_id", "location"));
+        }
+        List<Future<Set<TableReferencingAnother>>> futures = service.invokeAll(tablesReferencingAnotherTasks);
+        Set<TableReferencingAnother> personReferencingTables = futures.get(0).get();
+        Set<TableReferencingAnother> patientReferencingTables = futures.get(1).get();
+        List<TableReferencingAnother> usersReferencingTables = new ArrayList<>(futures.get(2).get());
+        Collections.sort(usersReferencingTables);
+
+        Set<TableReferencingAnother> locationReferringTables = Collections.EMPTY_SET;
+        final Map<String, TableReferencingAnother> locationReferringTablesMap = new HashMap<>();
+        if(AppProperties.getInstance().getRestrictExtraction()) {
+            locationReferringTables = futures.get(3).get();
         }
 
+        // Remove excluded tables
+        if(!AppProperties.getInstance().getExcludedTables().isEmpty()) {
+            personReferencingTables = personReferencingTables.stream()
+                    .filter(personRefTable -> !AppProperties.getInstance().getExcludedTables().contains(personRefTable.getTable()))
+                    .collect(Collectors.toSet());
+
+            patientReferencingTables = patientReferencingTables.stream()
+                    .filter(patientRefTable -> !AppProperties.getInstance().getExcludedTables().contains(patientRefTable.getTable()))
+                    .collect(Collectors.toSet());
 
-        ExecutorService service = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+            locationReferringTables = locationReferringTables.stream()
+                    .filter(locationRefTable -> !AppProperties.getInstance().getExcludedTables().contains(locationRefTable.getTable()))
+                    .collect(Collectors.toSet());
+        }
+        locationReferringTables.forEach(locRefTable -> locationReferringTablesMap.put(locRefTable.getTable(), locRefTable));
+        long discoveryMillis = System.currentTimeMillis() - startOfStep;
+        LOGGER.debug("Time taken to find tables referencing person, patient, location & users: {} ms", discoveryMillis);
+        LOGGER.trace("Tables Referencing users: {}", usersReferencingTables);
+        return new SharedDiscovery(personReferencingTables, patientReferencingTables, locationReferringTablesMap, usersReferencingTables,
+                discoveryMillis);
+    }
+
+    /**
+     * Extracts the sites, batch.concurrent.sites at a time. A failed site does not stop the others, the sites which failed are
+     * reported at the end.
+     */
+    private static void extractSites(final Map<String, AppProperties> sites, final SharedDiscovery discovery, final boolean resume,
+                                     final ExecutorService service) throws Exception {
+        ExecutorService siteService = Executors.newFixedThreadPool(AppProperties.getInstance().getBatchConcurrentSites());
+        List<String> failedSites = new ArrayList<>();
+        try {
+            Map<String, Future<Object>> futures = new LinkedHashMap<>();
+            sites.forEach((name, site) -> futures.put(name, siteService.submit(() -> AppProperties.callWithSite(site, () -> {
+                LOGGER.info("Extracting site {} into {}", name, AppProperties.getInstance().getNewDatabaseName());
+                extract(discovery, resume, true, service);
+                return null;
+            }))));
+            for (Map.Entry<String, Future<Object>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("The extraction of site {} failed", entry.getKey(), e.getCause());
+                    failedSites.add(entry.getKey());
+                }
+            }
+        } finally {
+            siteService.shutdownNow();
+        }
+        if(!failedSites.isEmpty()) {
+            throw new SitesExtractionFailedException(failedSites);
+        }
+        LOGGER.info("All {} sites extracted", sites.size());
+    }
+
+    /**
+     * Extracts the site whose properties are in effect in the current thread into its new database and dumps it.
+     * @param discovery the tables referencing person, patient, location & users.
+     * @param resume whether to resume the extraction of the site.
+     * @param batch in batch mode the tables whose records are all extracted are dumped from the source (see
+     *              {@link ExtractionUtils#dumpFromSource(String)}) instead of being copied for every site.
+     * @param service the executor running the copy tasks.
+     */
+    private static void extract(final SharedDiscovery discovery, final boolean resume, final boolean batch,
+                                final ExecutorService service) throws Exception {
+        long start = System.currentTimeMillis();
+        final RunJournal journal = RunJournal.getInstance();
+        // Discovery is shared by the sites in batch mode, its time is part of every site's run.
+        RunMetrics.getInstance().recordPhase("discovery", TimeUnit.MILLISECONDS.toNanos(discovery.discoveryMillis));
+        boolean extracted = false;
         try {
             // Create the database to copy/extract to.
             LOGGER.debug("Creating the new database {}", AppProperties.getInstance().getNewDatabaseName());
-            ExtractionUtils.createNewDatabase(ConnectionPool.getConnection());
-
-            List<String> otherTablesToBeCopied = ExtractionUtils.getListOfTablesToMove();
+            ExtractionUtils.createNewDatabase(ConnectionPool.getTargetConnection());
+            journal.create();
 
             // Copy tables which only have to be copied for structure
             long startOfStep = System.currentTimeMillis();
             if(!AppProperties.getInstance().getOnlyStructureTables().isEmpty()) {
                 LOGGER.debug("Copying tables copied without data: {}", AppProperties.getInstance().getOnlyStructureTables());
                 ExtractionUtils.copyOnlyStructure(AppProperties.getInstance().getOnlyStructureTables());
-                LOGGER.debug("Time taken to copy tables for which we only want structure: {} ms", System.currentTimeMillis() - startOfStep);
+                LOGGER.debug("Time taken to copy tables for which we only want structure: {} ms", endPhase("structure", startOfStep));
             }
-            // Get the list of patients to copy.
-            startOfStep = System.currentTimeMillis();
+            // Get the list of patients to copy, the query is run once and the result stored in the cohort table.
             String patientListQuery = ExtractionUtils.getPatientListQueryFromFile();
             LOGGER.debug("Patient list query is: {}", patientListQuery);
+            final IncrementalExtraction incremental = AppProperties.getInstance().getIncremental() ? IncrementalExtraction.load() : null;
+            String configurationFingerprint = getConfigurationFingerprint(patientListQuery, incremental);
+            if(resume) {
+                verifyUnchanged(journal, patientListQuery, configurationFingerprint);
+            } else {
+                journal.saveFingerprint(RunJournal.CONFIGURATION_FINGERPRINT, configurationFingerprint);
+                // Records changed from now on are extracted again by the next incremental extraction, the time is taken on the
+                // source server whose clock dates the records.
+                journal.saveFingerprint(RunJournal.STARTED_AT, ExtractionUtils.getSourceTime().toString());
+            }
 
-            StringBuilder patCondition = new StringBuilder("t.patient_id in (").append(patientListQuery).append(")");
-            TableCopierTask patientCopier = new TableCopierTask("patient", patCondition.toString());
-
-            StringBuilder personCondition = new StringBuilder("t.person_id in (").append(patientListQuery).append(")");
-            TableCopierTask personCopier = new TableCopierTask("person", personCondition.toString());
-
-            service.invokeAll(Arrays.asList(patientCopier, personCopier));
+            // Build the graph of copy tasks, in batch mode the tables whose records are all extracted are dumped from the source.
+            List<String> tablesDumpedFromSource = new ArrayList<>();
+            CopyTaskScheduler scheduler = buildCopyGraph(discovery, ExtractionUtils.getListOfTablesToMove(), patientListQuery, incremental,
+                    journal, batch, tablesDumpedFromSource);
+            startOfStep = System.currentTimeMillis();
+            for (String table : tablesDumpedFromSource) {
+                ExtractionUtils.dumpFromSource(table);
+            }
+            createTablesToCopyInto(scheduler, service);
+            LOGGER.debug("Time taken to create the tables to copy into: {} ms", endPhase("structure", startOfStep));
 
-            LOGGER.debug("Time taken to copy patient & person table records: {} ms", System.currentTimeMillis() - startOfStep);
-            // Tables referencing person.
             startOfStep = System.currentTimeMillis();
-            List<TablesReferencingAnotherTask> tablesReferencingAnotherTasks = new ArrayList<>(Arrays.asList(
-                    new TablesReferencingAnotherTask("person", "person_id", "patient"),
-                    new TablesReferencingAnotherTask("patient", "patient_id")));
+            scheduler.run(service);
+            LOGGER.debug("Time taken to copy all records: {} ms", endPhase("copy", startOfStep));
+
+            if(AppProperties.getInstance().getDeferSecondaryIndexes() && AppProperties.getInstance().getDropNewDbAfter()) {
+                // The dump creates the tables from the statements of the source tables (see
+                // ExtractionUtils.getDumpCreateTableStatement), no need to index a database which is dropped.
+                LOGGER.debug("Not adding the deferred indexes since {} is dropped after the dump", AppProperties.getInstance().getNewDatabaseName());
+            } else if(AppProperties.getInstance().getDeferSecondaryIndexes()) {
+                startOfStep = System.currentTimeMillis();
+                CopyTaskScheduler indexes = new CopyTaskScheduler(AdaptiveConcurrencyController.getInstance(), journal);
+                for (String table : ExtractionUtils.getListOfTablesInNewDatabase()) {
+                    indexes.addTask(INDEXES_TASK_PREFIX.concat(table), () -> {
+                        ExtractionUtils.buildDeferredIndexes(table);
+                        return null;
+                    });
+                }
+                indexes.run(service);
+                LOGGER.debug("Time taken to add the deferred indexes: {} ms", endPhase("indexes", startOfStep));
+            }
 
-            if(AppProperties.getInstance().getRestrictExtraction()) {
-                tablesReferencingAnotherTasks.add(new TablesReferencingAnotherTask("location", "location_id", "location"));
+            // Extract
+            if(AppProperties.getInstance().getDumpChunkSize() > 0) {
+                String directory = ExtractionUtils.getDumpName();
+                LOGGER.info("Creating SQL dump chunks in {}", directory);
+                startOfStep = System.currentTimeMillis();
+                new ChunkedDump(Paths.get(directory)).write(service);
+                LOGGER.info("SQL dump chunks generated successfully in {} ms", endPhase("dump", startOfStep));
+            } else {
+                String filename = ExtractionUtils.getDumpFilename();
+                LOGGER.info("Creating SQL dump file {}", filename);
+                startOfStep = System.currentTimeMillis();
+                ExtractionUtils.dumpNewDatabase(Paths.get(filename));
+                LOGGER.info("SQL dump file generated successfully in {} ms", endPhase("dump", startOfStep));
             }
-            List<Future<Set<TableReferencingAnother>>> futures = service.invokeAll(tablesReferencingAnotherTasks);
-            Set<TableReferencingAnother> personReferencingTables = futures.get(0).get();
-            Set<TableReferencingAnother> patientReferencingTables = futures.get(1).get();
-
-            Set<TableReferencingAnother> locationReferringTables = Collections.EMPTY_SET;
-            Map<String, TableReferencingAnother> locationReferringTablesMap = new HashMap<>();
-            if(AppProperties.getInstance().getRestrictExtraction()) {
-                locationReferringTables = futures.get(2).get();
-                locationReferringTables.forEach(locRefTable -> locationReferringTablesMap.put(locRefTable.getTable(), locRefTable));
+            if(AppProperties.getInstance().getIncremental()) {
+                IncrementalExtraction.save(LocalDateTime.parse(journal.getFingerprint(RunJournal.STARTED_AT)));
             }
+            extracted = true;
+        } finally {
+            if(AppProperties.getInstance().getDropNewDbAfter() && !extracted) {
+                LOGGER.info("Keeping the database {} after the failure, run with the {} argument to continue the extraction",
+                        AppProperties.getInstance().getNewDatabaseName(), RESUME_MODE);
+            } else if(AppProperties.getInstance().getDropNewDbAfter()) {
+                String sql = "DROP DATABASE IF EXISTS " + AppProperties.getInstance().getNewDatabaseName();
+                try(Connection connection = ConnectionPool.getTargetConnection();
+                    Statement statement = connection.createStatement()) {
+                    LOGGER.debug("Running: {}", sql);
+                    statement.execute(sql);
+                } catch (Exception e) {
+                    // Don't do anything
+                }
+            }
+            LOGGER.info("Time taken to extract {}: {} ms", AppProperties.getInstance().getNewDatabaseName(), System.currentTimeMillis() - start);
+            RunMetrics.getInstance().writeReports(extracted);
+        }
+    }
 
-            // Remove excluded tables
-            if(!AppProperties.getInstance().getExcludedTables().isEmpty()) {
-                personReferencingTables = personReferencingTables.stream()
-                        .filter(personRefTable -> !AppProperties.getInstance().getExcludedTables().contains(personRefTable.getTable()))
-                        .collect(Collectors.toSet());
-
-                patientReferencingTables = patientReferencingTables.stream()
-                        .filter(patientRefTable -> !AppProperties.getInstance().getExcludedTables().contains(patientRefTable.getTable()))
-                        .collect(Collectors.toSet());
+    /**
+     * Prints the plan of the extraction of the site whose properties are in effect in the current thread, nothing is copied.
+     */
+    private static void plan(final SharedDiscovery discovery, final boolean batch) throws Exception {
+        String patientListQuery = ExtractionUtils.getPatientListQueryFromFile();
+        IncrementalExtraction incremental = AppProperties.getInstance().getIncremental() ? IncrementalExtraction.load() : null;
+        List<String> tablesDumpedFromSource = new ArrayList<>();
+        CopyTaskScheduler scheduler = buildCopyGraph(discovery, ExtractionUtils.getListOfTablesToMove(), patientListQuery, incremental,
+                RunJournal.getInstance(), batch, tablesDumpedFromSource);
+        ExtractionPlanner planner = new ExtractionPlanner(scheduler, discovery.personReferencingTables, discovery.patientReferencingTables,
+                discovery.locationReferringTablesMap, tablesDumpedFromSource);
+        LOGGER.info("Plan of the extraction into {} (discovery took {} ms):\n{}", AppProperties.getInstance().getNewDatabaseName(),
+                discovery.discoveryMillis, planner.plan(patientListQuery));
+    }
 
-                locationReferringTables = locationReferringTables.stream()
-                        .filter(locationRefTable -> !AppProperties.getInstance().getExcludedTables().contains(locationRefTable.getTable()))
-                        .collect(Collectors.toSet());
+    /**
+     * Creates the tables the copy tasks of the graph copy into, in parallel, so that the copy tasks don't run any DDL. The users
+     * tables are only created if users are copied.
+     */
+    private static void createTablesToCopyInto(final CopyTaskScheduler copyGraph, final ExecutorService service) throws Exception {
+        Set<String> tables = new TreeSet<>();
+        for (String name : copyGraph.getTaskNames()) {
+            if(copyGraph.getTask(name) instanceof TableCopierTask) {
+                tables.add(((TableCopierTask) copyGraph.getTask(name)).getTable());
             }
+        }
+        CopyTaskScheduler structure = new CopyTaskScheduler(AdaptiveConcurrencyController.getInstance());
+        for (String table : tables) {
+            structure.addTask(STRUCTURE_TASK_PREFIX.concat(table), () -> {
+                ExtractionUtils.createTableToCopyInto(table);
+                return null;
+            });
+        }
+        structure.run(service);
+    }
 
-            List<TableCopierTask> tobeInvoked = new ArrayList<>();
-            // relationship table has two columns person_a and person_b both referencing person(person_id). This means one record will be copied twice
-            // causing duplicate error in case the relationship is between two persons who both satisfy the conditions for them to be included in the
-            // initial subset of persons. Therefore we need to handle one of them differently.
-            TableReferencingAnother oneRelationshipForSpecialHandlingLater = null;
-            if (!personReferencingTables.isEmpty()) {
-                // Remove from tables to move
-                Set<String> personTableNames = personReferencingTables.stream().map(personTable -> personTable.getTable()).collect(Collectors.toSet());
-                LOGGER.info("Copying tables having a foreign key referencing the person(person_id) table: {}", personTableNames);
-                otherTablesToBeCopied.removeAll(personTableNames);
-                for (TableReferencingAnother personRef : personReferencingTables) {
-                    if("relationship".equals(personRef.getTable())) {
-                        oneRelationshipForSpecialHandlingLater = personRef;
-                        continue;
-                    }
-                    StringBuilder tableCondition = new StringBuilder("t.").append(personRef.getColumnName()).append(" IN (SELECT person_id FROM ")
-                            .append(AppProperties.getInstance().getNewDatabaseName()).append(".person)");
-                    if(AppProperties.getInstance().getRestrictExtraction() && locationReferringTablesMap.containsKey(personRef.getTable())) {
-                        // Add the location condition
-                        TableReferencingAnother foundLocationRef = locationReferringTablesMap.get(personRef.getTable());
-                        tableCondition.append(" AND t.").append(foundLocationRef.getColumnName()).append(" IN (")
-                                .append(AppProperties.getInstance().getLocationsIdsString()).append(")");
-                    }
-                    tobeInvoked.add(new TableCopierTask(personRef.getTable(), tableCondition.toString()));
+    /**
+     * Builds the graph of copy tasks of the site whose properties are in effect in the current thread, a task starts as soon
+     * as the tasks copying the tables its condition selects on are done. Nothing is copied or created, the graph is also used
+     * to plan the extraction (see {@link ExtractionPlanner}).
+     * @param tablesToMove the tables to copy with their records (see {@link ExtractionUtils#getListOfTablesToMove()}), the list
+     *                     is modified.
+     * @param tablesDumpedFromSource gets the tables to dump from the source in batch mode instead of copying them.
+     */
+    static CopyTaskScheduler buildCopyGraph(final SharedDiscovery discovery, final List<String> tablesToMove, final String patientListQuery,
+                                            final IncrementalExtraction incremental, final RunJournal journal, final boolean batch,
+                                            final List<String> tablesDumpedFromSource) throws SQLException {
+        List<String> otherTablesToBeCopied = tablesToMove;
+        final Set<TableReferencingAnother> personReferencingTables = discovery.personReferencingTables;
+        final Set<TableReferencingAnother> patientReferencingTables = discovery.patientReferencingTables;
+        final Map<String, TableReferencingAnother> locationReferringTablesMap = discovery.locationReferringTablesMap;
+
+        CopyTaskScheduler scheduler = new CopyTaskScheduler(AdaptiveConcurrencyController.getInstance(), journal);
+        scheduler.addTask(COHORT_TASK, () -> {
+            new CohortMaterializerTask(patientListQuery).call();
+            if(incremental != null) {
+                incremental.materializeNewCohort();
+            }
+            journal.saveFingerprint(RunJournal.COHORT_FINGERPRINT, getCohortFingerprint("SELECT patient_id FROM "
+                    .concat(ExtractionUtils.getCohortTableName()), true));
+            return null;
+        });
+
+        CopyCondition patCondition = CopyCondition.in("patient_id", ExtractionUtils.getCohortTableName(), "patient_id");
+        addTableCopierTask(scheduler, journal, "patient", incremental == null ? patCondition :
+                incremental.getCohortCondition("patient", "patient_id"), COHORT_TASK);
+
+        CopyCondition personCondition = CopyCondition.in("person_id", ExtractionUtils.getCohortTableName(), "patient_id");
+        addTableCopierTask(scheduler, journal, "person", incremental == null ? personCondition :
+                incremental.getCohortCondition("person", "person_id"), COHORT_TASK);
+
+        // relationship table has two columns person_a and person_b both referencing person(person_id). This means one record will be copied twice
+        // causing duplicate error in case the relationship is between two persons who both satisfy the conditions for them to be included in the
+        // initial subset of persons. Therefore we need to handle the second one differently.
+        List<TableReferencingAnother> relationshipRefs = new ArrayList<>();
+        // A table referencing person and/or patient through several columns is copied by a single task selecting the records
+        // which reference any of the copied persons or patients.
+        Map<String, List<CopyCondition>> scopedConditions = new TreeMap<>();
+        Map<String, Set<String>> scopes = new HashMap<>();
+        if (!personReferencingTables.isEmpty()) {
+            // Remove from tables to move
+            Set<String> personTableNames = personReferencingTables.stream().map(personTable -> personTable.getTable()).collect(Collectors.toSet());
+            LOGGER.info("Copying tables having a foreign key referencing the person(person_id) table: {}", personTableNames);
+            otherTablesToBeCopied.removeAll(personTableNames);
+            for (TableReferencingAnother personRef : personReferencingTables) {
+                if("relationship".equals(personRef.getTable())) {
+                    relationshipRefs.add(personRef);
+                    continue;
                 }
+                scopedConditions.computeIfAbsent(personRef.getTable(), t -> new ArrayList<>()).add(getScopedCondition(personRef.getTable(),
+                        personRef.getColumnName(), "person", "person_id", incremental));
+                scopes.computeIfAbsent(personRef.getTable(), t -> new TreeSet<>()).add("person");
             }
+        }
 
-            if (!patientReferencingTables.isEmpty()) {
-                // Remove from other tables to move.
-                Set<String> tableNames = patientReferencingTables.stream().map(patientTable -> patientTable.getTable()).collect(Collectors.toSet());
-                LOGGER.info("Copying tables having a foreign key referencing the patient(patient_id) table: {}", tableNames);
-                otherTablesToBeCopied.removeAll(tableNames);
-                for (TableReferencingAnother patientRef : patientReferencingTables) {
-                    StringBuilder tableCondition = new StringBuilder("t.").append(patientRef.getColumnName()).append(" in (select patient_id from ")
-                            .append(AppProperties.getInstance().getNewDatabaseName()).append(".patient)");
-
-                    if(AppProperties.getInstance().getRestrictExtraction() && locationReferringTablesMap.containsKey(patientRef.getTable())) {
-                        // Add the location condition
-                        TableReferencingAnother foundLocationRef = locationReferringTablesMap.get(patientRef.getTable());
-                        tableCondition.append(" AND t.").append(foundLocationRef.getColumnName()).append(" IN (")
-                                .append(AppProperties.getInstance().getLocationsIdsString()).append(")");
-                    }
-                    tobeInvoked.add(new TableCopierTask(patientRef.getTable(), tableCondition.toString()));
-                }
+        if (!patientReferencingTables.isEmpty()) {
+            // Remove from other tables to move.
+            Set<String> tableNames = patientReferencingTables.stream().map(patientTable -> patientTable.getTable()).collect(Collectors.toSet());
+            LOGGER.info("Copying tables having a foreign key referencing the patient(patient_id) table: {}", tableNames);
+            otherTablesToBeCopied.removeAll(tableNames);
+            for (TableReferencingAnother patientRef : patientReferencingTables) {
+                scopedConditions.computeIfAbsent(patientRef.getTable(), t -> new ArrayList<>()).add(getScopedCondition(patientRef.getTable(),
+                        patientRef.getColumnName(), "patient", "patient_id", incremental));
+                scopes.computeIfAbsent(patientRef.getTable(), t -> new TreeSet<>()).add("patient");
             }
+        }
 
-            if(!tobeInvoked.isEmpty()) {
-                service.invokeAll(tobeInvoked);
+        Set<String> personAndPatientReferencingTables = scopedConditions.keySet();
+        for (Map.Entry<String, List<CopyCondition>> tableConditions : scopedConditions.entrySet()) {
+            String table = tableConditions.getKey();
+            CopyCondition tableCondition = withLocationCondition(CopyCondition.or(tableConditions.getValue().toArray(new CopyCondition[0])),
+                    table, locationReferringTablesMap);
+            addTableCopierTask(scheduler, journal, table, tableCondition, scopes.get(table).toArray(new String[0]));
+        }
+
+        String lastRelationshipTask = null;
+        for (TableReferencingAnother relationshipRef : relationshipRefs) {
+            CopyCondition tableCondition = getScopedCondition("relationship", relationshipRef.getColumnName(), "person", "person_id",
+                    incremental);
+            if(lastRelationshipTask == null) {
+                lastRelationshipTask = "relationship";
+                addTableCopierTask(scheduler, journal, lastRelationshipTask, tableCondition, "person");
+            } else {
+                LOGGER.trace("Handling relationship dependency {} separately to avoid conflicts", relationshipRef.getColumnName());
+                tableCondition = CopyCondition.and(CopyCondition.notIn("relationship_id",
+                        AppProperties.getInstance().getNewDatabaseName().concat(".relationship"), "relationship_id"), tableCondition);
+                String taskName = "relationship:".concat(relationshipRef.getColumnName());
+                scheduler.addTask(taskName, new TableCopierTask("relationship", tableCondition), lastRelationshipTask);
+                lastRelationshipTask = taskName;
             }
+        }
 
-            LOGGER.trace("Handling one of the relationship dependency separately to avoid conflicts");
-            StringBuilder secondRelationshipTableCondition = new StringBuilder("t.relationship_id NOT IN ")
-                    .append("(SELECT relationship_id FROM ").append(AppProperties.getInstance().getNewDatabaseName()).append(".relationship) AND ")
-                    .append("t.").append(oneRelationshipForSpecialHandlingLater.getColumnName()).append(" IN (SELECT person_id FROM ")
-                    .append(AppProperties.getInstance().getNewDatabaseName()).append(".person)");
-            new TableCopierTask(oneRelationshipForSpecialHandlingLater.getTable(), secondRelationshipTableCondition.toString()).call();
-            copyAssociatedPersonAndPatientTablesRecords("relationship", personReferencingTables, patientReferencingTables, locationReferringTablesMap);
-            LOGGER.debug("Time taken to copy table referencing patient & person tables: {} ms", System.currentTimeMillis() - startOfStep);
-
-            // Special handling of encounter_provider & provider tables.
-            LOGGER.trace("Copying encounter_provider and provider tables");
-            otherTablesToBeCopied.remove("encounter_provider");
-            StringBuilder encProvCondition = new StringBuilder("t.encounter_id IN (SELECT encounter_id FROM ")
-                    .append(AppProperties.getInstance().getNewDatabaseName()).append(".encounter)");
-            new TableCopierTask("encounter_provider", encProvCondition.toString()).call();
-
-            LOGGER.debug("Copying providers associated with encounter_provider records who are not yet copied");
-            StringBuilder provCondition = new StringBuilder("t.provider_id NOT IN (SELECT provider_id FROM ")
-                    .append(AppProperties.getInstance().getNewDatabaseName()).append(".provider)");
-            new TableCopierTask("provider", provCondition.toString()).call();
-            copyAssociatedPersonAndPatientTablesRecords("provider", personReferencingTables, patientReferencingTables, locationReferringTablesMap);
-
-            // Copy patient_state records only for copied patients.
-            LOGGER.trace("Copying patient_state records for copied patient_program records");
-            otherTablesToBeCopied.remove("patient_state");
-            StringBuilder patientStateCondition = new StringBuilder("t.patient_program_id IN (SELECT patient_program_id FROM ")
-                    .append(AppProperties.getInstance().getNewDatabaseName()).append(".patient_program)");
-            new TableCopierTask("patient_state", patientStateCondition.toString()).call();
-
-            // Move other tables.
-            if (!otherTablesToBeCopied.isEmpty()) {
-                LOGGER.info("Copying rest of tables to be copied along with data: {}", otherTablesToBeCopied);
-                tobeInvoked.clear();
-                for (String table : otherTablesToBeCopied) {
-                    if(AppProperties.getInstance().getRestrictExtraction() && locationReferringTablesMap.containsKey(table)) {
-                        // Add the location condition
-                        TableReferencingAnother foundLocationRef = locationReferringTablesMap.get(table);
-                        StringBuilder tableCondition = new StringBuilder("t.").append(foundLocationRef.getColumnName()).append(" IN (")
-                                .append(AppProperties.getInstance().getLocationsIdsString()).append(")");
-                        tobeInvoked.add(new TableCopierTask(table, tableCondition.toString()));
+        // Special handling of encounter_provider & provider tables, the encounter_provider records of the associated persons are
+        // copied by a task of their own.
+        otherTablesToBeCopied.remove("encounter_provider");
+        CopyCondition encProvCondition = getScopedCondition("encounter_provider", "encounter_id", "encounter", "encounter_id", incremental);
+        addTableCopierTask(scheduler, journal, "encounter_provider", encProvCondition, "encounter");
+
+        otherTablesToBeCopied.remove("provider");
+        CopyCondition provCondition = CopyCondition.notIn("provider_id", AppProperties.getInstance().getNewDatabaseName().concat(".provider"),
+                "provider_id");
+        addTableCopierTask(scheduler, journal, "provider", getChangedCondition("provider", provCondition, incremental),
+                "encounter_provider");
+
+        // Persons associated with the copied relationships & providers, their records are copied to all person & patient referencing
+        // tables. The relatives are found first so the relationships of the persons found through relationship are not followed.
+        List<String> associatedPersonsDependencies = new ArrayList<>(personAndPatientReferencingTables);
+        if(lastRelationshipTask != null) {
+            associatedPersonsDependencies.add(lastRelationshipTask);
+        }
+        associatedPersonsDependencies.add("provider");
+        addAssociatedPersonsTasks(scheduler, ASSOCIATED_PERSONS_TASK, ExtractionUtils.ASSOCIATED_PERSONS_TABLE,
+                Arrays.asList(new TableReferencingAnother("relationship", "person_a"), new TableReferencingAnother("relationship", "person_b"),
+                        new TableReferencingAnother("provider", "person_id")), associatedPersonsDependencies, discovery);
+        addAssociatedRecordsTasks(scheduler, ASSOCIATED_PERSONS_TASK);
+
+        // Copy patient_state records only for copied patients, those of the associated persons are copied by a task of their own.
+        otherTablesToBeCopied.remove("patient_state");
+        CopyCondition patientStateCondition = getScopedCondition("patient_state", "patient_program_id", "patient_program", "patient_program_id",
+                incremental);
+        addTableCopierTask(scheduler, journal, "patient_state", patientStateCondition, "patient_program");
+
+        // Move other tables.
+        if (!otherTablesToBeCopied.isEmpty()) {
+            LOGGER.info("Copying rest of tables to be copied along with data: {}", otherTablesToBeCopied);
+            for (String table : otherTablesToBeCopied) {
+                if(AppProperties.getInstance().getRestrictExtraction() && locationReferringTablesMap.containsKey(table)) {
+                    // Add the location condition
+                    TableReferencingAnother foundLocationRef = locationReferringTablesMap.get(table);
+                    CopyCondition tableCondition = CopyCondition.inList(foundLocationRef.getColumnName(),
+                            AppProperties.getInstance().getLocationsIds());
+                    addTableCopierTask(scheduler, journal, table, getChangedCondition(table, tableCondition, incremental));
+                } else {
+                    CopyCondition tableCondition = getChangedCondition(table, null, incremental);
+                    if(tableCondition == null && batch && !AppProperties.getInstance().isCrossServer()) {
+                        tablesDumpedFromSource.add(table);
                     } else {
-                        tobeInvoked.add(new TableCopierTask(table));
+                        addTableCopierTask(scheduler, journal, table, tableCondition);
                     }
                 }
-
-                // Block to ensure that all records are copied before fetching the users being referenced in them.
-                service.invokeAll(tobeInvoked);
             }
+        }
 
-            // Copy users (Find users referenced in every table).
-            Set<TableReferencingAnother> tablesReferencingUsers =
-                    new TablesReferencingAnotherTask( "users", "user_id", "user_property", "user_role").call();
-            List<TableReferencingAnother> sortedList = new ArrayList(tablesReferencingUsers);
-            Collections.sort(sortedList);
-            LOGGER.trace("Tables Referencing users: {}", sortedList);
-
-            Set<Integer> usersToCopy = new HashSet<>();
-            Set<Integer> alreadyCopiedUsers = new HashSet<>();
-            for (TableReferencingAnother table : tablesReferencingUsers) {
-                LOGGER.debug("Fetching user ids from {}.{}", table.getTable(), table.getColumnName());
-                StringBuilder sb = new StringBuilder("SELECT DISTINCT ").append(table.getColumnName()).append(" FROM ")
-                        .append(AppProperties.getInstance().getDatabaseName()).append(".").append(table.getTable())
-                        .append(" WHERE ").append(table.getColumnName()).append(" IS NOT NULL");
-
-                try (Connection con = ConnectionPool.getConnection();
-                     Statement statement = con.createStatement();
-                     ResultSet rs = statement.executeQuery(sb.toString())) {
-
-                    while (rs.next()) {
-                        usersToCopy.add(rs.getInt(table.getColumnName()));
-                    }
-                }
+        // Users referenced in every table are copied after all the records are copied, then the persons of the users.
+        scheduler.addTask(USERS_TASK, () -> {
+            copyUsers(discovery.usersReferencingTables);
+            return null;
+        }, scheduler.getTaskNames());
+        addAssociatedPersonsTasks(scheduler, USERS_PERSONS_TASK, ExtractionUtils.USERS_PERSONS_TABLE,
+                Collections.singletonList(new TableReferencingAnother("users", "person_id")), Collections.singletonList(USERS_TASK), discovery);
+        addAssociatedRecordsTasks(scheduler, USERS_PERSONS_TASK);
+        return scheduler;
+    }
 
-                // Get already copied users
-                String query = "SELECT user_id FROM ".concat(AppProperties.getInstance().getNewDatabaseName()).concat(".users");
-                try (Connection con = ConnectionPool.getConnection();
-                     Statement statement = con.createStatement();
-                     ResultSet rs = statement.executeQuery(query)) {
+    /**
+     * Schedules the copy of the persons referenced by the records of the passed tables whose person records are not copied: a
+     * task selects them into a scratch table (see {@link AssociatedPersonsMaterializerTask}) then their records are copied into
+     * person, patient and the tables referencing them by one task per table, the tables are copied in parallel.
+     * @param taskName name of the task selecting the persons, the copy tasks are named after it and the table.
+     * @param scratchTable the scratch table the persons are selected into
+     * @param references the columns referencing person the persons are found through
+     * @param dependencies the tasks copying the records the persons are found through
+     */
+    private static void addAssociatedPersonsTasks(final CopyTaskScheduler scheduler, final String taskName, final String scratchTable,
+                                                  final List<TableReferencingAnother> references, final Collection<String> dependencies,
+                                                  final SharedDiscovery discovery) {
+        AssociatedPersonsMaterializerTask materializer = new AssociatedPersonsMaterializerTask(
+                ExtractionUtils.getScratchTableName(scratchTable), references);
+        scheduler.addTask(taskName, materializer, dependencies);
+
+        // A task per table, a table referencing person (or patient) through several columns is copied by a single task.
+        Map<String, Set<String>> columnsPerTable = new TreeMap<>();
+        columnsPerTable.put("person", new LinkedHashSet<>(Collections.singleton("person_id")));
+        columnsPerTable.put("patient", new LinkedHashSet<>(Collections.singleton("patient_id")));
+        Stream.concat(discovery.personReferencingTables.stream(), discovery.patientReferencingTables.stream())
+                .forEach(ref -> columnsPerTable.computeIfAbsent(ref.getTable(), t -> new LinkedHashSet<>()).add(ref.getColumnName()));
+        Set<String> referencingTables = references.stream().map(TableReferencingAnother::getTable).collect(Collectors.toSet());
+        for (Map.Entry<String, Set<String>> tableColumns : columnsPerTable.entrySet()) {
+            String table = tableColumns.getKey();
+            if(referencingTables.size() == 1 && referencingTables.contains(table)) continue;
+            CopyCondition condition = withLocationCondition(materializer.getCondition(tableColumns.getValue(), table), table,
+                    discovery.locationReferringTablesMap);
+            String name = taskName.concat(":").concat(table);
+            scheduler.addTask(name, new TableCopierTask(table, condition, KeyRange.ALL, name), taskName);
+        }
+    }
 
-                    while (rs.next()) {
-                        alreadyCopiedUsers.add(rs.getInt("user_id"));
-                    }
-                }
+    /**
+     * Schedules the copy of the encounter_provider and patient_state records of the encounters and patient programs copied for
+     * the associated persons, they are not selected by the tasks copying those tables for the cohort which may be done first.
+     * @param personsTask name of the task selecting the persons (see {@link #addAssociatedPersonsTasks})
+     */
+    private static void addAssociatedRecordsTasks(final CopyTaskScheduler scheduler, final String personsTask) {
+        addAssociatedRecordsTask(scheduler, personsTask, "encounter_provider", "encounter_provider_id", "encounter_id", "encounter");
+        addAssociatedRecordsTask(scheduler, personsTask, "patient_state", "patient_state_id", "patient_program_id", "patient_program");
+    }
 
-                usersToCopy.removeAll(alreadyCopiedUsers);
-            }
+    /**
+     * Adds the task copying the records of a table referencing the records copied for the associated persons, the records
+     * already copied are left out. The task depends on the task copying the table for the cohort and on the task copying the
+     * referenced table for the persons.
+     */
+    private static void addAssociatedRecordsTask(final CopyTaskScheduler scheduler, final String personsTask, final String table,
+                                                 final String keyColumn, final String column, final String referencedTable) {
+        final String newDb = AppProperties.getInstance().getNewDatabaseName();
+        String referencedTableTask = personsTask.concat(":").concat(referencedTable);
+        if(!scheduler.contains(referencedTableTask)) return;
+        CopyCondition condition = CopyCondition.and(CopyCondition.notIn(keyColumn, newDb.concat(".").concat(table), keyColumn),
+                CopyCondition.in(column, newDb.concat(".").concat(referencedTable), column));
+        String name = personsTask.concat(":").concat(table);
+        scheduler.addTask(name, new TableCopierTask(table, condition, KeyRange.ALL, name), referencedTableTask, table);
+    }
 
-            if (!usersToCopy.isEmpty()) {
-                LOGGER.debug("Copying {} users", usersToCopy.size());
-                LOGGER.trace("User IDs of users to be copied are: {}", usersToCopy);
-                StringBuilder usersCondition = new StringBuilder("t.user_id in (");
-                usersToCopy.forEach(id -> usersCondition.append(id).append(","));
-                usersCondition.deleteCharAt(usersCondition.length() - 1);
-                usersCondition.append(")");
-                TableCopierTask usersTask = new TableCopierTask("users", usersCondition.toString());
-                usersTask.call();
-
-                // Copy user_property & user_role (including the excluded users)
-                usersToCopy.addAll(alreadyCopiedUsers);
-                StringBuilder condition = new StringBuilder("t.user_id in (");
-                usersToCopy.forEach(id -> condition.append(id).append(","));
-                condition.deleteCharAt(condition.length() - 1);
-                condition.append(")");
-                new TableCopierTask("user_property", condition.toString()).call();
-                new TableCopierTask("user_role", condition.toString()).call();
-                copyAssociatedPersonAndPatientTablesRecords("users", personReferencingTables, patientReferencingTables, locationReferringTablesMap);
+    /**
+     * Copies the users referenced by the copied records. The referenced user ids are collected on the server from the copied
+     * tables with a single UNION into the user closure table, users are then copied by joining on that table. Users reference
+     * other users (creator, changed_by...) so the closure is extended with the users referenced by the copied users until no
+     * new ones are found. The users referenced by tables dumped from the source are collected from the source tables.
+     * @param tablesReferencingUsers the tables referencing users sorted by name.
+     */
+    private static void copyUsers(final List<TableReferencingAnother> tablesReferencingUsers) throws Exception {
+        final String newDb = AppProperties.getInstance().getNewDatabaseName();
+        final String closureTable = ExtractionUtils.getUserClosureTableName();
+        List<String> copiedTables = ExtractionUtils.getListOfTablesInNewDatabase();
+        List<String> referencedUsersQueries = new ArrayList<>();
+        List<String> usersReferencedByUsersQueries = new ArrayList<>();
+        for (TableReferencingAnother table : tablesReferencingUsers) {
+            if(!copiedTables.contains(table.getTable())) continue;
+            String database = ExtractionUtils.isDumpedFromSource(table.getTable()) ? AppProperties.getInstance().getDatabaseName() : newDb;
+            String query = new StringBuilder("SELECT ").append(table.getColumnName()).append(" FROM ").append(database).append(".")
+                    .append(table.getTable()).append(" WHERE ").append(table.getColumnName()).append(" IS NOT NULL").toString();
+            if("users".equals(table.getTable())) {
+                usersReferencedByUsersQueries.add(query);
+            } else {
+                referencedUsersQueries.add(query);
             }
+        }
 
-            service.shutdown();
-            try {
-                service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            } catch (InterruptedException e) {
-                LOGGER.error("An error occured while waiting for executor to shutdown", e);
-                service.shutdownNow();
+        // The connection of the closure is given back before the users are copied, the copy tasks take connections of their own
+        // and a worker holding more than two at a time could exhaust the pool.
+        String sql = null;
+        int closureSize = 0;
+        try {
+            try (Connection con = ConnectionPool.getTargetConnection();
+                 Statement statement = con.createStatement()) {
+                sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(closureTable)
+                        .append(" (user_id INT NOT NULL, PRIMARY KEY (user_id))").toString();
+                statement.execute(sql);
+                if(!referencedUsersQueries.isEmpty()) {
+                    sql = new StringBuilder("INSERT IGNORE INTO ").append(closureTable).append(" (user_id) ")
+                            .append(String.join(" UNION ", referencedUsersQueries)).toString();
+                    LOGGER.debug("Collecting the users referenced by the copied records: {}", sql);
+                    statement.executeUpdate(sql);
+                }
+                // The closure is counted rather than the rows inserted, when resuming it may already hold all the users.
+                sql = "SELECT COUNT(*) FROM ".concat(closureTable);
+                try (ResultSet rs = statement.executeQuery(sql)) {
+                    rs.next();
+                    closureSize = rs.getInt(1);
+                }
             }
 
-            // Extract
-            String filename = ExtractionUtils.getDumpFilename();
-            StringBuilder cmd = new StringBuilder("mysqldump -u").append(AppProperties.getInstance().getDbUsername())
-                    .append(" -p").append(AppProperties.getInstance().getDbPassword())
-                    .append(" --host=").append(AppProperties.getInstance().getHost())
-                    .append(" --port=").append(AppProperties.getInstance().getPort())
-                    .append(" --protocol=").append("tcp")
-                    .append(" --compact ").append(AppProperties.getInstance().getNewDatabaseName());
-
-            File file = new File(filename);
-
-            LOGGER.info("Creating SQL dump file {}", filename);
-
-            ProcessBuilder processBuilder = new ProcessBuilder(cmd.toString().split(" "));
-            processBuilder.redirectOutput(file);
-            Process process = processBuilder.start();
-            int exitCode = process.waitFor();
-
-            if(exitCode != 0) {
-                BufferedReader buf = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-                String line = "";
-                LOGGER.error("Error while creating the dump file when running: {}", cmd);
-                LOGGER.error("Command exited with exit code {}", exitCode);
-                while ((line=buf.readLine())!=null) {
-                    LOGGER.error(line);
+            if (closureSize == 0) {
+                LOGGER.debug("No users referenced by the copied records");
+                return;
+            }
+            CopyCondition usersCondition = CopyCondition.in("user_id", closureTable, "user_id");
+            int added = closureSize;
+            while (added > 0) {
+                LOGGER.debug("Copying {} more users", added);
+                new TableCopierTask("users", usersCondition).call();
+                if(usersReferencedByUsersQueries.isEmpty()) break;
+                sql = new StringBuilder("INSERT IGNORE INTO ").append(closureTable).append(" (user_id) ")
+                        .append(String.join(" UNION ", usersReferencedByUsersQueries)).toString();
+                try (Connection con = ConnectionPool.getTargetConnection();
+                     Statement statement = con.createStatement()) {
+                    added = statement.executeUpdate(sql);
                 }
+                closureSize += added;
+            }
+            LOGGER.debug("Copied {} users", closureSize);
+
+            // Copy user_property & user_role
+            new TableCopierTask("user_property", usersCondition).call();
+            new TableCopierTask("user_role", usersCondition).call();
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while copying users, running SQL: {}", sql, e);
+            throw e;
+        }
+    }
+
+    static CopyCondition withLocationCondition(final CopyCondition tableCondition, final String table,
+                                               final Map<String, TableReferencingAnother> locationRefsMap) {
+        if(AppProperties.getInstance().getRestrictExtraction() && locationRefsMap.containsKey(table)) {
+            // Add the location condition
+            TableReferencingAnother foundLocationRef = locationRefsMap.get(table);
+            return CopyCondition.and(tableCondition, CopyCondition.inList(foundLocationRef.getColumnName(),
+                    AppProperties.getInstance().getLocationsIds()));
+        }
+        return tableCondition;
+    }
+
+    /**
+     * Adds the task(s) copying a table, tables estimated to have more records than the split threshold are copied by several
+     * tasks each copying a range of primary key values. In that case a task named after the table is done when all the
+     * ranges are done so that the tasks depending on the table wait for all of them. The ranges are saved in the journal by the
+     * first run and reused when resuming, the checkpoints of the range tasks are only valid for the ranges they were saved with.
+     */
+    private static void addTableCopierTask(final CopyTaskScheduler scheduler, final RunJournal journal, final String table,
+                                           final CopyCondition condition, final String... dependencies) throws SQLException {
+        long threshold = AppProperties.getInstance().getSplitThreshold();
+        List<KeyRange> ranges = Collections.singletonList(KeyRange.ALL);
+        if(threshold > 0) {
+            List<KeyRange> savedRanges = journal == null ? null : journal.getRanges(table);
+            if(savedRanges != null) {
+                ranges = savedRanges;
             } else {
-                LOGGER.info("SQL dump file generated successfully");
-                BufferedReader buf = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                String line = "";
-                while ((line=buf.readLine())!=null) {
-                    LOGGER.error(line);
+                long estimatedCount = ExtractionUtils.getEstimatedRowCount(table);
+                if(estimatedCount > threshold) {
+                    int count = (int) Math.min(AppProperties.getInstance().getSplitMaxRanges(), (estimatedCount + threshold - 1) / threshold);
+                    ranges = ExtractionUtils.getKeyRanges(table, count);
                 }
-            }
-        } finally {
-            if(AppProperties.getInstance().getDropNewDbAfter()) {
-                String sql = "DROP DATABASE IF EXISTS " + AppProperties.getInstance().getNewDatabaseName();
-                try(Connection connection = ConnectionPool.getConnection();
-                    Statement statement = connection.createStatement()) {
-                    LOGGER.debug("Running: {}", sql);
-                    statement.execute(sql);
-                } catch (Exception e) {
-                    // Don't do anything
+                if(journal != null) {
+                    journal.saveRanges(table, ranges);
                 }
             }
+        }
 
-            if(!service.isTerminated()) {
-                service.shutdownNow();
+        if(ranges.size() == 1) {
+            scheduler.addTask(table, new TableCopierTask(table, condition, KeyRange.ALL, table), dependencies);
+        } else {
+            LOGGER.debug("Copying {} in {} concurrent key ranges", table, ranges.size());
+            List<String> rangeTasks = new ArrayList<>();
+            for (int i = 0; i < ranges.size(); i++) {
+                String rangeTask = new StringBuilder(table).append("#").append(i + 1).toString();
+                scheduler.addTask(rangeTask, new TableCopierTask(table, condition, ranges.get(i), rangeTask), dependencies);
+                rangeTasks.add(rangeTask);
             }
-
-            long timeTaken = System.currentTimeMillis() - start;
-            LOGGER.info("FINISH TIME: {}", LocalDateTime.now());
-            LOGGER.info("Time taken: {} ms", timeTaken);
+            scheduler.addTask(table, () -> null, rangeTasks);
         }
     }
 
     /**
-     *
-     * @param referencingTable
-     * @param idsToCopy String list of integers in the form (6,3,11,56,79)
-     * @return
-     * @throws SQLException
+     * Fingerprint of the settings which determine the records extracted, a run can only be resumed with the same settings.
      */
-    private static TableCopierTask copyReferencingTableRecordsTask(final TableReferencingAnother referencingTable, final String idsToCopy,
-                                                                   final Map<String, TableReferencingAnother> locationRefsMap) throws SQLException {
-        StringBuilder tableCondition = new StringBuilder("t.").append(referencingTable.getColumnName()).append(" in ").append(idsToCopy);
-        if(AppProperties.getInstance().getRestrictExtraction() && locationRefsMap != null && !locationRefsMap.isEmpty()
-                && locationRefsMap.containsKey(referencingTable.getTable())) {
-            TableReferencingAnother foundLocationRef = locationRefsMap.get(referencingTable.getTable());
-            tableCondition.append(" AND t.").append(foundLocationRef.getColumnName()).append(" IN (")
-                    .append(AppProperties.getInstance().getLocationsIdsString()).append(")");
-        }
-        return new TableCopierTask(referencingTable.getTable(), tableCondition.toString());
+    private static String getConfigurationFingerprint(final String patientListQuery, final IncrementalExtraction incremental) {
+        AppProperties props = AppProperties.getInstance();
+        return RunJournal.getFingerprint(props.getDatabaseName(), props.getNewDatabaseName(), props.getLocationsIdsString(),
+                props.getRestrictExtraction(), props.getEndDate(), new TreeSet<>(props.getExcludedTables()),
+                new TreeSet<>(props.getOnlyStructureTables()), props.getDirectDump(), props.getTargetJdbcUrl(), patientListQuery,
+                incremental == null ? null : incremental.getWatermark(), props.getSplitThreshold(), props.getSplitMaxRanges());
     }
 
-    private static void setLoggingLevel() {
-        ch.qos.logback.classic.Logger root = (ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory.getLogger(ch.qos.logback.classic.Logger.ROOT_LOGGER_NAME);
-        root.setLevel(Level.toLevel(AppProperties.getInstance().getLogLevel(), Level.TRACE));
+    /**
+     * @return condition selecting the records of the table whose column references the records of the scope table copied into the
+     * new database, in incremental mode only the changed records are selected (see {@link IncrementalExtraction})
+     */
+    static CopyCondition getScopedCondition(final String table, final String column, final String scopeTable, final String scopeColumn,
+                                            final IncrementalExtraction incremental) throws SQLException {
+        ExtractionUtils.registerProbedColumn(scopeTable, scopeColumn);
+        if(incremental != null) {
+            return incremental.getScopedCondition(table, column, scopeTable, scopeColumn);
+        }
+        return CopyCondition.in(column, AppProperties.getInstance().getNewDatabaseName().concat(".").concat(scopeTable), scopeColumn);
     }
 
-    private static void copyAssociatedPersonAndPatientTablesRecords(final String table, final Set<TableReferencingAnother> personReferencingTables,
-                                                                    final Set<TableReferencingAnother> patientReferencingTables,
-                                                                    final Map<String, TableReferencingAnother> locationRefsMap) throws SQLException {
-        LOGGER.debug("Fetching person ids for copied {} records whose corresponding person records are not yet copied", table);
-        Set<Integer> associatedPersonIds = new HashSet<>();
-        String query;
-        if("relationship".equals(table)) {
-            StringBuilder sb = new StringBuilder("(SELECT person_a as person_id FROM ").append(AppProperties.getInstance().getNewDatabaseName())
-                    .append(".").append(table).append(" u WHERE NOT EXISTS (SELECT 1 FROM ").append(AppProperties.getInstance().getNewDatabaseName())
-                    .append(".person p WHERE u.person_a = p.person_id))");
-            sb.append(" UNION ");
-            sb.append("(SELECT person_b as person_id FROM ").append(AppProperties.getInstance().getNewDatabaseName())
-                    .append(".").append(table).append(" u WHERE NOT EXISTS (SELECT 1 FROM ").append(AppProperties.getInstance().getNewDatabaseName())
-                    .append(".person p WHERE u.person_b = p.person_id))");
-            query = sb.toString();
-        } else {
-            StringBuilder sb = new StringBuilder("SELECT person_id FROM ").append(AppProperties.getInstance().getNewDatabaseName())
-                    .append(".").append(table).append(" u WHERE NOT EXISTS (SELECT 1 FROM ").append(AppProperties.getInstance().getNewDatabaseName())
-                    .append(".person p WHERE u.person_id = p.person_id)");
-            query = sb.toString();
-        }
+    private static CopyCondition getChangedCondition(final String table, final CopyCondition condition, final IncrementalExtraction incremental)
+            throws SQLException {
+        return incremental == null ? condition : incremental.getChangedCondition(table, condition);
+    }
 
-        LOGGER.trace("Query fetching person records referenced by {} but not yet copied: {} ", table, query);
+    /**
+     * Checks that the configuration and the cohort selected by the patient list query (if it was already materialized) are
+     * the ones the run being resumed was started with.
+     */
+    private static void verifyUnchanged(final RunJournal journal, final String patientListQuery, final String configurationFingerprint)
+            throws Exception {
+        if(!configurationFingerprint.equals(journal.getFingerprint(RunJournal.CONFIGURATION_FINGERPRINT))) {
+            throw new CannotResumeException("the configuration has changed since the extraction was started");
+        }
+        String cohortFingerprint = journal.getFingerprint(RunJournal.COHORT_FINGERPRINT);
+        if(cohortFingerprint != null && !cohortFingerprint.equals(getCohortFingerprint(patientListQuery, false))) {
+            throw new CannotResumeException("the patients selected by the patient list query have changed since the extraction was started");
+        }
+    }
 
-        try (Connection con = ConnectionPool.getConnection();
-             Statement statement = con.createStatement();
-             ResultSet rs = statement.executeQuery(query)) {
-            while (rs.next()) {
-                associatedPersonIds.add(rs.getInt("person_id"));
+    /**
+     * @param query query selecting patient ids
+     * @param onTarget whether to run the query on the server of the new database or on the source server.
+     */
+    private static String getCohortFingerprint(final String query, final boolean onTarget) throws SQLException {
+        try (Connection con = onTarget ? ConnectionPool.getTargetConnection() : ConnectionPool.getConnection();
+             Statement statement = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = statement.executeQuery(query)) {
+                return RunJournal.getCohortFingerprint(IdSet.fromResultSet(rs));
             }
         }
+    }
 
-        if (!associatedPersonIds.isEmpty()) {
-            String setOfIds = ExtractionUtils.stringifySetOfIntegers(associatedPersonIds);
-            LOGGER.trace("set of person_id found for table {} is {}", table, setOfIds);
-            StringBuilder personTableCondition = new StringBuilder("t.person_id in ").append(setOfIds);
-            new TableCopierTask("person", personTableCondition.toString()).call();
+    /**
+     * Records the time taken by a phase of the extraction in the {@link RunMetrics}.
+     * @param phase the phase
+     * @param startOfStep when the phase started (milliseconds)
+     * @return the time taken in milliseconds
+     */
+    private static long endPhase(final String phase, final long startOfStep) {
+        long elapsed = System.currentTimeMillis() - startOfStep;
+        RunMetrics.getInstance().recordPhase(phase, TimeUnit.MILLISECONDS.toNanos(elapsed));
+        return elapsed;
+    }
 
-            if (!personReferencingTables.isEmpty()) {
-                for (TableReferencingAnother personRef : personReferencingTables) {
-                    if(table.equals(personRef.getTable())) continue;
-                    copyReferencingTableRecordsTask(personRef, setOfIds, locationRefsMap).call();
-                }
-            }
+    private static void setLoggingLevel() {
+        ch.qos.logback.classic.Logger root = (ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory.getLogger(ch.qos.logback.classic.Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.toLevel(AppProperties.getInstance().getLogLevel(), Level.TRACE));
+    }
 
-            // Do the same for patient tables
-            StringBuilder patientTableCondition = new StringBuilder("t.patient_id in ").append(setOfIds);
-            new TableCopierTask("patient", patientTableCondition.toString()).call();
+    /**
+     * What is found about the source database once and used for the extraction of all the sites.
+     */
+    static final class SharedDiscovery {
+        private final Set<TableReferencingAnother> personReferencingTables;
+        private final Set<TableReferencingAnother> patientReferencingTables;
+        private final Map<String, TableReferencingAnother> locationReferringTablesMap;
+        private final List<TableReferencingAnother> usersReferencingTables;
+        private final long discoveryMillis;
+
+        /**
+         * The references to person and patient of the tables copied by tasks of their own, for example provider and users, are
+         * left out.
+         */
+        SharedDiscovery(final Set<TableReferencingAnother> personReferencingTables, final Set<TableReferencingAnother> patientReferencingTables,
+                        final Map<String, TableReferencingAnother> locationReferringTablesMap,
+                        final List<TableReferencingAnother> usersReferencingTables, final long discoveryMillis) {
+            this.personReferencingTables = withoutTablesWithOwnTasks(personReferencingTables);
+            this.patientReferencingTables = withoutTablesWithOwnTasks(patientReferencingTables);
+            this.locationReferringTablesMap = locationReferringTablesMap;
+            this.usersReferencingTables = usersReferencingTables;
+            this.discoveryMillis = discoveryMillis;
+        }
 
-            if (!patientReferencingTables.isEmpty()) {
-                for (TableReferencingAnother patientRef : patientReferencingTables) {
-                    if(table.equals(patientRef.getTable())) continue;
-                    copyReferencingTableRecordsTask(patientRef, setOfIds, locationRefsMap).call();
-                }
-            }
+        private static Set<TableReferencingAnother> withoutTablesWithOwnTasks(final Set<TableReferencingAnother> references) {
+            return references.stream().filter(ref -> !TABLES_WITH_OWN_TASKS.contains(ref.getTable())).collect(Collectors.toSet());
         }
     }
 }
@@ -0,0 +1,137 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable in memory graph of the foreign keys of the source database. It is loaded with a single query against
+ * information_schema instead of a metadata lookup per pair of tables, all lookups of tables referencing another table are
+ * answered from it.
+ */
+public class ForeignKeyGraph {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForeignKeyGraph.class);
+    private static final String FOREIGN_KEYS_QUERY = "SELECT k.TABLE_NAME, k.COLUMN_NAME, k.REFERENCED_TABLE_NAME, k.REFERENCED_COLUMN_NAME " +
+            "FROM information_schema.REFERENTIAL_CONSTRAINTS r INNER JOIN information_schema.KEY_COLUMN_USAGE k " +
+            "ON k.CONSTRAINT_SCHEMA = r.CONSTRAINT_SCHEMA AND k.CONSTRAINT_NAME = r.CONSTRAINT_NAME AND k.TABLE_NAME = r.TABLE_NAME " +
+            "WHERE r.CONSTRAINT_SCHEMA = ? AND k.REFERENCED_TABLE_SCHEMA = ? " +
+            "ORDER BY k.TABLE_NAME, k.CONSTRAINT_NAME, k.ORDINAL_POSITION";
+    private static volatile ForeignKeyGraph instance;
+
+    private final Map<String, List<ForeignKey>> foreignKeysByReferencedTable;
+    private final Map<String, List<ForeignKey>> foreignKeysByTable;
+
+    private ForeignKeyGraph(final List<ForeignKey> foreignKeys) {
+        Map<String, List<ForeignKey>> byReferencedTable = new HashMap<>();
+        Map<String, List<ForeignKey>> byTable = new HashMap<>();
+        for (ForeignKey foreignKey : foreignKeys) {
+            byReferencedTable.computeIfAbsent(foreignKey.getReferencedTable(), k -> new ArrayList<>()).add(foreignKey);
+            byTable.computeIfAbsent(foreignKey.getTable(), k -> new ArrayList<>()).add(foreignKey);
+        }
+        byReferencedTable.replaceAll((table, keys) -> Collections.unmodifiableList(keys));
+        byTable.replaceAll((table, keys) -> Collections.unmodifiableList(keys));
+        this.foreignKeysByReferencedTable = Collections.unmodifiableMap(byReferencedTable);
+        this.foreignKeysByTable = Collections.unmodifiableMap(byTable);
+    }
+
+    /**
+     * Returns the foreign key graph of the source database, loading it at the first call.
+     * @return ForeignKeyGraph
+     * @throws SQLException
+     */
+    public static ForeignKeyGraph getInstance() throws SQLException {
+        if(instance == null) {
+            synchronized (ForeignKeyGraph.class) {
+                if(instance == null) {
+                    instance = load();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param referencedTable the referenced (parent) table
+     * @return foreign keys in all tables referencing the passed table.
+     */
+    public List<ForeignKey> getForeignKeysReferencing(final String referencedTable) {
+        return foreignKeysByReferencedTable.getOrDefault(referencedTable, Collections.emptyList());
+    }
+
+    /**
+     * @param table the referencing (child) table
+     * @return foreign keys declared by the passed table.
+     */
+    public List<ForeignKey> getForeignKeys(final String table) {
+        return foreignKeysByTable.getOrDefault(table, Collections.emptyList());
+    }
+
+    private static ForeignKeyGraph load() throws SQLException {
+        long start = System.currentTimeMillis();
+        final String DB_NAME = AppProperties.getInstance().getDatabaseName();
+        List<ForeignKey> foreignKeys = new ArrayList<>();
+        try (Connection connection = ConnectionPool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(FOREIGN_KEYS_QUERY)) {
+            statement.setString(1, DB_NAME);
+            statement.setString(2, DB_NAME);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    foreignKeys.add(new ForeignKey(rs.getString("TABLE_NAME"), rs.getString("COLUMN_NAME"),
+                            rs.getString("REFERENCED_TABLE_NAME"), rs.getString("REFERENCED_COLUMN_NAME")));
+                }
+            }
+        } catch (SQLException sqle) {
+            LOGGER.error("Error while loading the foreign keys of {}", DB_NAME, sqle);
+            throw sqle;
+        }
+        LOGGER.debug("Loaded {} foreign key columns of {} in {} ms", foreignKeys.size(), DB_NAME, System.currentTimeMillis() - start);
+        return new ForeignKeyGraph(foreignKeys);
+    }
+
+    /**
+     * A column of a table referencing a column of another table.
+     */
+    public static class ForeignKey {
+        private final String table;
+        private final String column;
+        private final String referencedTable;
+        private final String referencedColumn;
+
+        public ForeignKey(String table, String column, String referencedTable, String referencedColumn) {
+            this.table = table;
+            this.column = column;
+            this.referencedTable = referencedTable;
+            this.referencedColumn = referencedColumn;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public String getReferencedTable() {
+            return referencedTable;
+        }
+
+        public String getReferencedColumn() {
+            return referencedColumn;
+        }
+
+        @Override
+        public String toString() {
+            return table.concat(".").concat(column).concat(" -> ").concat(referencedTable).concat(".").concat(referencedColumn);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package tz.co.juutech.extractor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of integer ids kept as a sorted array of primitive ints, this takes 4 bytes per id instead of a boxed Integer and a
+ * hash map entry per id in a HashSet. Ids are appended as they come and the array is sorted and deduplicated the first time the
+ * set is read.
+ */
+public class IdSet {
+    private static final int INITIAL_CAPACITY = 16;
+    private int[] ids;
+    private int size;
+    private boolean compacted = true;
+
+    public IdSet() {
+        this.ids = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Reads the ids in the first column of all the rows of a result set, null values are skipped.
+     * @param resultSet the result set
+     * @return IdSet
+     * @throws SQLException
+     */
+    public static IdSet fromResultSet(final ResultSet resultSet) throws SQLException {
+        IdSet idSet = new IdSet();
+        while (resultSet.next()) {
+            int id = resultSet.getInt(1);
+            if(!resultSet.wasNull()) {
+                idSet.add(id);
+            }
+        }
+        return idSet;
+    }
+
+    public void add(final int id) {
+        if(size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        if(compacted && size > 0 && id <= ids[size - 1]) {
+            compacted = false;
+        }
+        ids[size++] = id;
+    }
+
+    public boolean contains(final int id) {
+        compact();
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    public int size() {
+        compact();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param consumer called with each id in ascending order.
+     */
+    public void forEach(final IntConsumer consumer) {
+        compact();
+        for (int i = 0; i < size; i++) {
+            consumer.accept(ids[i]);
+        }
+    }
+
+    /**
+     * @return the ids in ascending order.
+     */
+    public int[] toArray() {
+        compact();
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return the ids as a list acceptable in SQL for example "(4,5,71,98)"
+     */
+    public String toSqlList() {
+        compact();
+        StringBuilder sb = new StringBuilder(size * 8 + 2).append("(");
+        for (int i = 0; i < size; i++) {
+            if(i > 0) sb.append(",");
+            sb.append(ids[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    private void compact() {
+        if(compacted) {
+            return;
+        }
+        Arrays.sort(ids, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if(unique == 0 || ids[i] != ids[unique - 1]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        size = unique;
+        compacted = true;
+    }
+
+    @Override
+    public String toString() {
+        return size() > 20 ? "[" + size + " ids]" : toSqlList();
+    }
+}
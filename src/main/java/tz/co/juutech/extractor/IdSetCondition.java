@@ -0,0 +1,93 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds conditions selecting the records whose column value is in a set of ids. Small sets are written as literal IN lists,
+ * larger ones are loaded once (in chunks) into a primary keyed scratch table of the new database and the conditions select
+ * from that table, this keeps the SQL short however many ids there are. The scratch table is dropped on close, its name is
+ * unique to the run so that the tables left behind by a failed run never get in the way of the run resuming it.
+ */
+public class IdSetCondition implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdSetCondition.class);
+    private static final String IDS_TABLE_PREFIX = ExtractionUtils.SCRATCH_TABLE_PREFIX + "ids_";
+    private static final int LOAD_CHUNK_SIZE = 1000;
+    private static final AtomicInteger TABLE_COUNTER = new AtomicInteger();
+    // Identifies the run (JVM) in the names of the scratch tables.
+    private static final String RUN_ID = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private final IdSet ids;
+    private final String idsTable;
+
+    /**
+     * @param ids the ids, if there are more than {@link AppProperties#getIdListThreshold()} they are loaded into a scratch table.
+     * @throws SQLException
+     */
+    public IdSetCondition(final IdSet ids) throws SQLException {
+        assert ids != null;
+        this.ids = ids;
+        if(ids.size() > AppProperties.getInstance().getIdListThreshold()) {
+            this.idsTable = AppProperties.getInstance().getNewDatabaseName().concat(".").concat(IDS_TABLE_PREFIX)
+                    .concat(RUN_ID).concat("_").concat(String.valueOf(TABLE_COUNTER.incrementAndGet()));
+            load();
+        } else {
+            this.idsTable = null;
+        }
+    }
+
+    /**
+     * @param column the column (qualified with the table alias) for example t.person_id
+     * @return the condition
+     */
+    public String getCondition(final String column) {
+        StringBuilder sb = new StringBuilder(column).append(" IN ");
+        if(idsTable == null) {
+            return sb.append(ids.toSqlList()).toString();
+        }
+        return sb.append("(SELECT id FROM ").append(idsTable).append(")").toString();
+    }
+
+    private void load() throws SQLException {
+        long start = System.currentTimeMillis();
+        final StringBuilder sql = new StringBuilder("DROP TABLE IF EXISTS ").append(idsTable);
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql.toString());
+            sql.setLength(0);
+            sql.append("CREATE TABLE ").append(idsTable).append(" (id INT NOT NULL, PRIMARY KEY (id))");
+            statement.execute(sql.toString());
+            final String insertPrefix = "INSERT INTO ".concat(idsTable).concat(" (id) VALUES ");
+            int[] values = ids.toArray();
+            for (int from = 0; from < values.length; from += LOAD_CHUNK_SIZE) {
+                sql.setLength(0);
+                sql.append(insertPrefix);
+                int to = Math.min(values.length, from + LOAD_CHUNK_SIZE);
+                for (int i = from; i < to; i++) {
+                    if(i > from) sql.append(",");
+                    sql.append("(").append(values[i]).append(")");
+                }
+                statement.executeUpdate(sql.toString());
+            }
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while loading ids into {}, running SQL: {}", idsTable, sql, e);
+            throw e;
+        }
+        LOGGER.trace("Loaded {} ids into {} in {} ms", ids.size(), idsTable, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if(idsTable == null) {
+            return;
+        }
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS ".concat(idsTable));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Incremental (delta) extraction of a site. The time the previous extraction of the site started (the watermark) and its cohort
+ * are kept in state files named after the new database, the next extraction only copies the records created, changed or voided
+ * after the watermark. Patients who were not in the previous cohort are copied in full. The dump of such an extraction is
+ * written as upserts so it can be loaded over the previous one.
+ *
+ * Conditions selecting records through tables copied into the new database (for example obs of the copied persons) select
+ * through the source tables restricted to the cohort instead, since only the changed records of those tables are copied.
+ */
+public class IncrementalExtraction {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalExtraction.class);
+    public static final String NEW_COHORT_TABLE = ExtractionUtils.SCRATCH_TABLE_PREFIX + "new_cohort";
+    private static final String WATERMARK_PROP = "watermark";
+    private static final String[] CHANGE_COLUMNS = { "date_created", "date_changed", "date_voided" };
+
+    private final LocalDateTime watermark;
+    private final IdSet previousCohort;
+
+    private IncrementalExtraction(final LocalDateTime watermark, final IdSet previousCohort) {
+        this.watermark = watermark;
+        this.previousCohort = previousCohort;
+    }
+
+    /**
+     * Loads the state of the previous extraction of the site.
+     * @return the incremental extraction or null if the site was never extracted, in that case the extraction is a full one.
+     * @throws IOException
+     */
+    public static IncrementalExtraction load() throws IOException {
+        Path stateFile = getStateFile();
+        Path cohortFile = getCohortFile();
+        if(!Files.exists(stateFile) || !Files.exists(cohortFile)) {
+            LOGGER.info("No previous extraction state in {}, extracting everything", stateFile.toAbsolutePath());
+            return null;
+        }
+        Properties state = new Properties();
+        try (InputStream in = Files.newInputStream(stateFile)) {
+            state.load(in);
+        }
+        LocalDateTime watermark = LocalDateTime.parse(state.getProperty(WATERMARK_PROP));
+        if(AppProperties.getInstance().getIncrementalSince() != null) {
+            watermark = AppProperties.getInstance().getIncrementalSince().atStartOfDay();
+        }
+        IdSet previousCohort = new IdSet();
+        try (BufferedReader reader = Files.newBufferedReader(cohortFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if(!line.trim().isEmpty()) {
+                    previousCohort.add(Integer.parseInt(line.trim()));
+                }
+            }
+        }
+        LOGGER.info("Extracting records created, changed or voided since {}, the previous cohort had {} patients", watermark,
+                previousCohort.size());
+        return new IncrementalExtraction(watermark, previousCohort);
+    }
+
+    /**
+     * Saves the state for the next extraction of the site, called after the dump is written.
+     * @param startedAt when this extraction started, records changed after this are extracted next time.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static void save(final LocalDateTime startedAt) throws IOException, SQLException {
+        Files.createDirectories(getStateFile().toAbsolutePath().getParent());
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT patient_id FROM ".concat(ExtractionUtils.getCohortTableName()));
+             BufferedWriter writer = Files.newBufferedWriter(getCohortFile(), StandardCharsets.UTF_8)) {
+            IdSet cohort = IdSet.fromResultSet(rs);
+            for (int id : cohort.toArray()) {
+                writer.write(String.valueOf(id));
+                writer.newLine();
+            }
+        }
+        Properties state = new Properties();
+        state.setProperty(WATERMARK_PROP, startedAt.toString());
+        try (OutputStream out = Files.newOutputStream(getStateFile())) {
+            state.store(out, "Watermark of the last extraction of " + AppProperties.getInstance().getNewDatabaseName());
+        }
+        LOGGER.info("Saved the watermark {} for the next incremental extraction in {}", startedAt, getStateFile().toAbsolutePath());
+    }
+
+    public LocalDateTime getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Stores the patients of the cohort who were not in the previous cohort into the new cohort table, their records are
+     * copied in full. Called once the cohort table is materialized.
+     * @return the number of new patients
+     * @throws SQLException
+     */
+    public int materializeNewCohort() throws SQLException {
+        String sql = null;
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement();
+             IdSetCondition previous = new IdSetCondition(previousCohort)) {
+            sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(getNewCohortTableName())
+                    .append(" (patient_id INT NOT NULL, PRIMARY KEY (patient_id))").toString();
+            statement.execute(sql);
+            sql = new StringBuilder("INSERT IGNORE INTO ").append(getNewCohortTableName()).append(" (patient_id) SELECT t.patient_id FROM ")
+                    .append(ExtractionUtils.getCohortTableName()).append(" t")
+                    .append(previousCohort.isEmpty() ? "" : " WHERE NOT ".concat(previous.getCondition("t.patient_id"))).toString();
+            int newPatients = statement.executeUpdate(sql);
+            LOGGER.info("{} patients are new to the cohort and are extracted in full", newPatients);
+            return newPatients;
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while finding the new patients of the cohort, running SQL: {}", sql, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @param table the table
+     * @return condition selecting the records of the table created, changed or voided after the watermark or null if the
+     * table has none of the date_created, date_changed and date_voided columns (all the records are then copied)
+     * @throws SQLException
+     */
+    public CopyCondition getChangedCondition(final String table) throws SQLException {
+        Map<String, String> columns = ExtractionUtils.getColumnDefinitions(table);
+        List<CopyCondition> predicates = new ArrayList<>();
+        for (String column : CHANGE_COLUMNS) {
+            if(columns.containsKey(column)) {
+                predicates.add(CopyCondition.after(column, watermark));
+            }
+        }
+        return predicates.isEmpty() ? null : CopyCondition.or(predicates.toArray(new CopyCondition[0]));
+    }
+
+    /**
+     * @param table the table
+     * @param condition the condition selecting the records of the table in a full extraction or null.
+     * @return the condition further restricted to the changed records.
+     * @throws SQLException
+     */
+    public CopyCondition getChangedCondition(final String table, final CopyCondition condition) throws SQLException {
+        return CopyCondition.and(condition, getChangedCondition(table));
+    }
+
+    /**
+     * @param table the table
+     * @param column the column of the table holding patient (person) ids.
+     * @return condition selecting the changed records of the cohort patients and all the records of the new patients.
+     * @throws SQLException
+     */
+    public CopyCondition getCohortCondition(final String table, final String column) throws SQLException {
+        return getScopedCondition(table, getCohortScope(column, ExtractionUtils.getCohortTableName()),
+                getCohortScope(column, getNewCohortTableName()));
+    }
+
+    /**
+     * The incremental version of "t.column IN (SELECT scopeColumn FROM newDb.scopeTable)", the records of the scope table are
+     * selected from the source restricted to the cohort.
+     * @param table the table
+     * @param column the column of the table referencing the scope table
+     * @param scopeTable the table whose records select the records of this table
+     * @param scopeColumn the referenced column of the scope table
+     * @return the condition
+     * @throws SQLException
+     */
+    public CopyCondition getScopedCondition(final String table, final String column, final String scopeTable, final String scopeColumn)
+            throws SQLException {
+        CopyCondition cohortScope = getSourceScope(column, scopeTable, scopeColumn, ExtractionUtils.getCohortTableName());
+        if(cohortScope == null) {
+            LOGGER.debug("{} has no patient column, selecting {} records through the copied records", scopeTable, table);
+            return getChangedCondition(table, CopyCondition.in(column,
+                    AppProperties.getInstance().getNewDatabaseName().concat(".").concat(scopeTable), scopeColumn));
+        }
+        return getScopedCondition(table, cohortScope, getSourceScope(column, scopeTable, scopeColumn, getNewCohortTableName()));
+    }
+
+    private CopyCondition getScopedCondition(final String table, final CopyCondition cohortScope, final CopyCondition newCohortScope)
+            throws SQLException {
+        CopyCondition changed = getChangedCondition(table);
+        if(changed == null) {
+            return cohortScope;
+        }
+        return CopyCondition.and(cohortScope, CopyCondition.or(changed, newCohortScope));
+    }
+
+    private static CopyCondition getCohortScope(final String column, final String cohortTable) {
+        return CopyCondition.in(column, cohortTable, "patient_id");
+    }
+
+    private static CopyCondition getSourceScope(final String column, final String scopeTable, final String scopeColumn,
+                                                final String cohortTable) throws SQLException {
+        if("person".equals(scopeTable) || "patient".equals(scopeTable)) {
+            return getCohortScope(column, cohortTable);
+        }
+        for (ForeignKeyGraph.ForeignKey foreignKey : ForeignKeyGraph.getInstance().getForeignKeys(scopeTable)) {
+            if("patient".equals(foreignKey.getReferencedTable()) || "person".equals(foreignKey.getReferencedTable())) {
+                return CopyCondition.in(column, AppProperties.getInstance().getDatabaseName().concat(".").concat(scopeTable), scopeColumn,
+                        getCohortScope(foreignKey.getColumn(), cohortTable));
+            }
+        }
+        return null;
+    }
+
+    public static String getNewCohortTableName() {
+        return AppProperties.getInstance().getNewDatabaseName().concat(".").concat(NEW_COHORT_TABLE);
+    }
+
+    private static Path getStateFile() {
+        return AppProperties.getInstance().getIncrementalStateDir().resolve(AppProperties.getInstance().getNewDatabaseName().concat(".watermark"));
+    }
+
+    private static Path getCohortFile() {
+        return AppProperties.getInstance().getIncrementalStateDir().resolve(AppProperties.getInstance().getNewDatabaseName().concat(".cohort"));
+    }
+}
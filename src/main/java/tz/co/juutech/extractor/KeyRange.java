@@ -0,0 +1,41 @@
+package tz.co.juutech.extractor;
+
+import java.util.Arrays;
+
+/**
+ * A range of primary key values of a table, from after the lower key (exclusive) up to the upper key (inclusive). A null
+ * key means the range is not bounded on that side.
+ */
+public class KeyRange {
+    public static final KeyRange ALL = new KeyRange(null, null);
+
+    private final Object[] lowerKey;
+    private final Object[] upperKey;
+
+    public KeyRange(final Object[] lowerKey, final Object[] upperKey) {
+        this.lowerKey = lowerKey;
+        this.upperKey = upperKey;
+    }
+
+    public Object[] getLowerKey() {
+        return lowerKey;
+    }
+
+    public Object[] getUpperKey() {
+        return upperKey;
+    }
+
+    public boolean hasLowerKey() {
+        return lowerKey != null;
+    }
+
+    public boolean hasUpperKey() {
+        return upperKey != null;
+    }
+
+    @Override
+    public String toString() {
+        return "(".concat(lowerKey == null ? "-" : Arrays.toString(lowerKey)).concat(", ")
+                .concat(upperKey == null ? "-" : Arrays.toString(upperKey)).concat("]");
+    }
+}
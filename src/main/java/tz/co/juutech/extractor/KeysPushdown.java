@@ -0,0 +1,150 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conditions select the records to copy through the keys of tables already copied into the new database, for example the
+ * records of the copied persons. When the new database is on another server those semi-joins can't run on the source server,
+ * so the keys (restricted by the filter of the semi-join if any) are loaded from the new database into temporary tables of
+ * the source connection and the semi-joins are rewritten to select from those. Temporary tables are allowed on read only
+ * replicas.
+ *
+ * The key column of a temporary table has the type of the key column in the source database, keys of scratch tables which
+ * are not in the source have to be integers. The temporary tables belong to the session of the passed connection which goes
+ * back to the pool, they are dropped on close.
+ */
+public class KeysPushdown implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeysPushdown.class);
+    private static final String KEYS_TABLE_PREFIX = ExtractionUtils.SCRATCH_TABLE_PREFIX + "keys_";
+    private final Connection sourceConnection;
+    private final String newDatabasePrefix;
+    // Keys table of each keys query, keys used several times in a condition are loaded once.
+    private final Map<String, String> keysTables = new HashMap<>();
+    private int tableCount;
+
+    /**
+     * @param sourceConnection the connection on which the rewritten condition is going to be used.
+     */
+    public KeysPushdown(final Connection sourceConnection) {
+        assert sourceConnection != null;
+        this.sourceConnection = sourceConnection;
+        this.newDatabasePrefix = AppProperties.getInstance().getNewDatabaseName().concat(".");
+    }
+
+    /**
+     * Loads the keys of each semi-join on the new database into a temporary table and rewrites the semi-join to select from it,
+     * a condition without such semi-joins is returned as is.
+     * @param condition the condition or null
+     * @param planner the planner rendering the rewritten condition, it is given the number of keys loaded.
+     * @return the condition to use on the source connection.
+     * @throws SQLException
+     */
+    public CopyCondition rewrite(final CopyCondition condition, final ConditionPlanner planner) throws SQLException {
+        if(condition instanceof CopyCondition.SemiJoin) {
+            CopyCondition.SemiJoin semiJoin = (CopyCondition.SemiJoin) condition;
+            if(semiJoin.getTable().startsWith(newDatabasePrefix)) {
+                String keysQuery = semiJoin.getKeysQuery(ConditionPlanner.AS_WRITTEN);
+                String keysTable = keysTables.get(keysQuery);
+                if(keysTable == null) {
+                    keysTable = KEYS_TABLE_PREFIX + (++tableCount);
+                    planner.setEstimatedRowCount(keysTable, loadKeys(keysTable, keysQuery, semiJoin));
+                    keysTables.put(keysQuery, keysTable);
+                }
+                return semiJoin.withKeys(keysTable, "id", null);
+            }
+            CopyCondition filter = rewrite(semiJoin.getFilter(), planner);
+            return filter == semiJoin.getFilter() ? semiJoin : semiJoin.withKeys(semiJoin.getTable(), semiJoin.getKeyColumn(), filter);
+        } else if(condition instanceof CopyCondition.Conjunction) {
+            CopyCondition.Conjunction conjunction = (CopyCondition.Conjunction) condition;
+            List<CopyCondition> operands = new ArrayList<>();
+            for (CopyCondition operand : conjunction.getOperands()) {
+                operands.add(rewrite(operand, planner));
+            }
+            CopyCondition[] rewritten = operands.toArray(new CopyCondition[0]);
+            return conjunction.isDisjunction() ? CopyCondition.or(rewritten) : CopyCondition.and(rewritten);
+        }
+        return condition;
+    }
+
+    /**
+     * @return the number of keys loaded.
+     */
+    private long loadKeys(final String keysTable, final String selectSql, final CopyCondition.SemiJoin semiJoin) throws SQLException {
+        long start = System.currentTimeMillis();
+        String insertSql = "INSERT IGNORE INTO ".concat(keysTable).concat(" (id) VALUES (?)");
+        int batchSize = AppProperties.getInstance().getCopyWriterBatchSize();
+        long count = 0;
+        try (Connection targetConnection = ConnectionPool.getTargetConnection();
+             Statement select = targetConnection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+             PreparedStatement insert = sourceConnection.prepareStatement(insertSql)) {
+            select.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = select.executeQuery(selectSql)) {
+                try (Statement s = sourceConnection.createStatement()) {
+                    s.execute(new StringBuilder("CREATE TEMPORARY TABLE ").append(keysTable).append(" (id ")
+                            .append(getKeyColumnType(semiJoin, rs.getMetaData())).append(" NOT NULL, PRIMARY KEY (id))").toString());
+                }
+                while (rs.next()) {
+                    Object key = rs.getObject(1);
+                    if(key == null) continue;
+                    insert.setObject(1, key);
+                    insert.addBatch();
+                    if(++count % batchSize == 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            insert.executeBatch();
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while loading the keys selected by {} into {}", selectSql, keysTable, e);
+            throw e;
+        }
+        LOGGER.trace("Loaded {} keys selected by {} into {} in {} ms", count, selectSql, keysTable, System.currentTimeMillis() - start);
+        return count;
+    }
+
+    /**
+     * @return the type of the key column of the semi-join in the source database, BIGINT for the integer keys of scratch tables.
+     * @throws SQLException if the keys are neither in a table of the source database nor integers.
+     */
+    private String getKeyColumnType(final CopyCondition.SemiJoin semiJoin, final ResultSetMetaData metaData) throws SQLException {
+        String table = semiJoin.getTable().substring(newDatabasePrefix.length());
+        if(!ExtractionUtils.isScratchTable(table)) {
+            String definition = ExtractionUtils.getColumnDefinitions(table).get(semiJoin.getKeyColumn());
+            if(definition != null) {
+                return definition.replaceFirst(" (NOT )?NULL$", "");
+            }
+        }
+        switch (metaData.getColumnType(1)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return "BIGINT";
+            default:
+                throw new SQLException(String.format("The keys of %s.%s (%s) can't be loaded into the source server", semiJoin.getTable(),
+                        semiJoin.getKeyColumn(), metaData.getColumnTypeName(1)));
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (Statement s = sourceConnection.createStatement()) {
+            for (int i = 1; i <= tableCount; i++) {
+                s.execute("DROP TEMPORARY TABLE IF EXISTS ".concat(KEYS_TABLE_PREFIX).concat(String.valueOf(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package tz.co.juutech.extractor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JSON metrics report of a run (see {@link RunMetrics#writeReports(boolean)}) read back into its fields, the planner
+ * takes the throughput of the last successful run from it.
+ */
+class MetricsReport {
+    private final Map<String, Object> report;
+
+    private MetricsReport(final Map<String, Object> report) {
+        this.report = report;
+    }
+
+    /**
+     * @param file the report file
+     * @return the report
+     * @throws IOException if the file can't be read or is not a JSON object.
+     */
+    static MetricsReport read(final Path file) throws IOException {
+        return parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param json the JSON of a report
+     * @return the report
+     * @throws IOException if the text is not a JSON object.
+     */
+    static MetricsReport parse(final String json) throws IOException {
+        Parser parser = new Parser(json);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if(!(value instanceof Map) || parser.position < json.length()) {
+            throw new IOException("The metrics report is not a JSON object");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> report = (Map<String, Object>) value;
+        return new MetricsReport(report);
+    }
+
+    boolean isSucceeded() {
+        return Boolean.TRUE.equals(report.get("succeeded"));
+    }
+
+    /**
+     * @param phase the phase
+     * @return the duration of the phase in milliseconds or 0 if the run did not record it.
+     */
+    long getPhaseMillis(final String phase) {
+        return getLong(getObject(getObject(report, "phases"), phase), "millis");
+    }
+
+    /**
+     * @param field a field of the tables, for example rows or dumpBytes
+     * @return the sum of the field over all the tables of the run.
+     */
+    long getTablesTotal(final String field) {
+        long total = 0;
+        for (Object table : getObject(report, "tables").values()) {
+            if(table instanceof Map) {
+                total += getLong(asObject(table), field);
+            }
+        }
+        return total;
+    }
+
+    private static Map<String, Object> getObject(final Map<String, Object> object, final String name) {
+        return asObject(object.get(name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asObject(final Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap();
+    }
+
+    private static long getLong(final Map<String, Object> object, final String name) {
+        Object value = object.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Reads JSON values into maps, lists, strings, numbers (long or double), booleans and nulls.
+     */
+    private static final class Parser {
+        private final String json;
+        private int position;
+
+        private Parser(final String json) {
+            this.json = json;
+        }
+
+        private Object readValue() throws IOException {
+            skipWhitespace();
+            if(position >= json.length()) {
+                throw error("a value");
+            }
+            char c = json.charAt(position);
+            switch (c) {
+                case '{': return readObject();
+                case '[': return readArray();
+                case '"': return readString();
+                case 't': return readLiteral("true", Boolean.TRUE);
+                case 'f': return readLiteral("false", Boolean.FALSE);
+                case 'n': return readLiteral("null", null);
+                default:
+                    if(c == '-' || Character.isDigit(c)) {
+                        return readNumber();
+                    }
+                    throw error("a value");
+            }
+        }
+
+        private Map<String, Object> readObject() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if(consume('}')) {
+                return object;
+            }
+            do {
+                skipWhitespace();
+                if(position >= json.length() || json.charAt(position) != '"') {
+                    throw error("a name");
+                }
+                String name = readString();
+                skipWhitespace();
+                expect(':');
+                object.put(name, readValue());
+                skipWhitespace();
+            } while (consume(','));
+            expect('}');
+            return object;
+        }
+
+        private List<Object> readArray() throws IOException {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if(consume(']')) {
+                return array;
+            }
+            do {
+                array.add(readValue());
+                skipWhitespace();
+            } while (consume(','));
+            expect(']');
+            return array;
+        }
+
+        private String readString() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            position++;
+            while (position < json.length()) {
+                char c = json.charAt(position++);
+                if(c == '"') {
+                    return sb.toString();
+                }
+                if(c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if(position >= json.length()) {
+                    break;
+                }
+                char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if(position + 4 > json.length()) {
+                            throw error("4 hex digits");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("4 hex digits");
+                        }
+                        position += 4;
+                        break;
+                    default: sb.append(escaped);
+                }
+            }
+            throw error("the end of the string");
+        }
+
+        private Number readNumber() throws IOException {
+            int start = position;
+            boolean decimal = false;
+            while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+                char c = json.charAt(position++);
+                decimal |= c == '.' || c == 'e' || c == 'E';
+            }
+            String number = json.substring(start, position);
+            try {
+                return decimal ? (Number) Double.parseDouble(number) : (Number) Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number " + number + " at " + start + " of the metrics report");
+            }
+        }
+
+        private Object readLiteral(final String literal, final Object value) throws IOException {
+            if(!json.startsWith(literal, position)) {
+                throw error(literal);
+            }
+            position += literal.length();
+            return value;
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean consume(final char c) {
+            if(position < json.length() && json.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(final char c) throws IOException {
+            if(!consume(c)) {
+                throw error("'" + c + "'");
+            }
+        }
+
+        private IOException error(final String expected) {
+            return new IOException("Expected " + expected + " at " + position + " of the metrics report");
+        }
+    }
+}
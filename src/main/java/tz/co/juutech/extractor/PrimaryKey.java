@@ -0,0 +1,156 @@
+package tz.co.juutech.extractor;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The primary key of a table as reported by the database metadata, used to order and page (keyset/seek pagination) through
+ * the records of that table. Composite keys are supported, the columns are kept in their key sequence order.
+ */
+public class PrimaryKey {
+    private final String table;
+    private final List<String> columns;
+
+    public PrimaryKey(final String table, final List<String> columns) {
+        assert table != null;
+        assert columns != null;
+        this.table = table;
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public boolean isEmpty() {
+        return columns.isEmpty();
+    }
+
+    /**
+     * @param alias the alias of the table in the query.
+     * @return comma separated list of the key columns qualified with the alias for example "t.obs_id"
+     */
+    public String getColumnList(final String alias) {
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns) {
+            if(sb.length() > 0) sb.append(", ");
+            sb.append(alias).append(".").append(column);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Predicate selecting the rows whose key comes after a given key in the key order. For composite keys (a, b) this is
+     * "t.a >= ? AND (t.a > ? OR (t.a = ? AND t.b > ?))", the leading redundant condition is there to let MySQL use a range scan.
+     * The parameters are bound using {@link #bindAfter(PreparedStatement, int, Object[])}
+     * @param alias the alias of the table in the query.
+     * @return String
+     */
+    public String getAfterKeyPredicate(final String alias) {
+        return getComparisonPredicate(alias, ">", ">=", false);
+    }
+
+    /**
+     * Predicate selecting the rows whose key is equal to or comes before a given key in the key order.
+     * The parameters are bound using {@link #bindUpTo(PreparedStatement, int, Object[])}
+     * @param alias the alias of the table in the query.
+     * @return String
+     */
+    public String getUpToKeyPredicate(final String alias) {
+        return getComparisonPredicate(alias, "<", "<=", true);
+    }
+
+    /**
+     * Binds the key values for the predicate returned by {@link #getAfterKeyPredicate(String)}
+     * @param statement the statement to bind to
+     * @param index the index of the first parameter to bind
+     * @param key the key values in key column order.
+     * @return the index of the next parameter after the bound ones.
+     * @throws SQLException
+     */
+    public int bindAfter(final PreparedStatement statement, final int index, final Object[] key) throws SQLException {
+        return bindComparison(statement, index, key, false);
+    }
+
+    /**
+     * Binds the key values for the predicate returned by {@link #getUpToKeyPredicate(String)}
+     * @see #bindAfter(PreparedStatement, int, Object[])
+     */
+    public int bindUpTo(final PreparedStatement statement, final int index, final Object[] key) throws SQLException {
+        return bindComparison(statement, index, key, true);
+    }
+
+    /**
+     * Reads the key values of the current row of the result set, the result set has to have the key columns selected.
+     * @param resultSet the result set
+     * @return the key values in key column order.
+     * @throws SQLException
+     */
+    public Object[] readKey(final ResultSet resultSet) throws SQLException {
+        Object[] key = new Object[columns.size()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = resultSet.getObject(columns.get(i));
+        }
+        return key;
+    }
+
+    private String getComparisonPredicate(final String alias, final String strictOperator, final String operator, final boolean inclusive) {
+        if(columns.size() == 1) {
+            return new StringBuilder(alias).append(".").append(columns.get(0)).append(" ").append(inclusive ? operator : strictOperator)
+                    .append(" ?").toString();
+        }
+        StringBuilder sb = new StringBuilder(alias).append(".").append(columns.get(0)).append(" ").append(operator).append(" ? AND (");
+        for (int i = 0; i < columns.size(); i++) {
+            if(i > 0) sb.append(" OR ");
+            sb.append("(");
+            for (int j = 0; j < i; j++) {
+                sb.append(alias).append(".").append(columns.get(j)).append(" = ? AND ");
+            }
+            sb.append(alias).append(".").append(columns.get(i)).append(" ").append(strictOperator).append(" ?)");
+        }
+        if(inclusive) {
+            sb.append(" OR (");
+            for (int i = 0; i < columns.size(); i++) {
+                if(i > 0) sb.append(" AND ");
+                sb.append(alias).append(".").append(columns.get(i)).append(" = ?");
+            }
+            sb.append(")");
+        }
+        return sb.append(")").toString();
+    }
+
+    private int bindComparison(final PreparedStatement statement, final int index, final Object[] key, final boolean inclusive)
+            throws SQLException {
+        assert key != null && key.length == columns.size();
+        int i = index;
+        if(columns.size() == 1) {
+            statement.setObject(i++, key[0]);
+            return i;
+        }
+        statement.setObject(i++, key[0]);
+        for (int c = 0; c < columns.size(); c++) {
+            for (int j = 0; j <= c; j++) {
+                statement.setObject(i++, key[j]);
+            }
+        }
+        if(inclusive) {
+            for (Object value : key) {
+                statement.setObject(i++, value);
+            }
+        }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return "[table: ".concat(table).concat(", columns: ").concat(columns.toString()).concat("]");
+    }
+}
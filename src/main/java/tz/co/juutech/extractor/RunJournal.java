@@ -0,0 +1,276 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Records the progress of an extraction in a table of the new database so that a failed run can be resumed. The journal
+ * holds an entry per finished copy task, the key of the last committed batch of tables being copied in batches, the key
+ * ranges of the tables copied by several tasks and the fingerprints of the configuration and the cohort the run was started
+ * with. A checkpoint is written in the same transaction as the batch it records so they can't disagree, but for the records
+ * streamed to another server whose checkpoint is committed after them (see {@link StreamingCopier}).
+ */
+public class RunJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunJournal.class);
+    public static final String JOURNAL_TABLE = ExtractionUtils.SCRATCH_TABLE_PREFIX + "journal";
+    public static final String CONFIGURATION_FINGERPRINT = "fingerprint:configuration";
+    public static final String COHORT_FINGERPRINT = "fingerprint:cohort";
+    public static final String STARTED_AT = "started_at";
+    private static final String DONE = "DONE";
+    private static final String CHECKPOINT = "CHECKPOINT";
+    private static final String FINGERPRINT = "FINGERPRINT";
+    private static final String RANGES = "RANGES";
+    private static final String RANGES_PREFIX = "ranges:";
+    private static final String KEY_SEPARATOR = ",";
+    private static final String BOUND_SEPARATOR = ":";
+    private static final String RANGE_SEPARATOR = ";";
+    // Never produced by URL encoding a key value.
+    private static final String UNBOUNDED = "!";
+    private static final Map<String, RunJournal> INSTANCES = new ConcurrentHashMap<>();
+
+    private final String journalTable;
+
+    private RunJournal(final String journalTable) {
+        this.journalTable = journalTable;
+    }
+
+    /**
+     * @return the journal of the new database being extracted (there is one per site in batch mode).
+     */
+    public static RunJournal getInstance() {
+        return INSTANCES.computeIfAbsent(AppProperties.getInstance().getNewDatabaseName(),
+                newDb -> new RunJournal(newDb.concat(".").concat(JOURNAL_TABLE)));
+    }
+
+    public void create() throws SQLException {
+        execute(new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(journalTable)
+                .append(" (name VARCHAR(255) NOT NULL, state VARCHAR(16) NOT NULL, value TEXT NULL, ")
+                .append("updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, PRIMARY KEY (name))").toString());
+    }
+
+    /**
+     * @return true if the new database has a journal, that is it was created by a run which can be resumed.
+     * @throws SQLException
+     */
+    public boolean exists() throws SQLException {
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             ResultSet rs = connection.getMetaData().getTables(AppProperties.getInstance().getNewDatabaseName(), null, JOURNAL_TABLE, null)) {
+            return rs.next();
+        }
+    }
+
+    public boolean isDone(final String name) throws SQLException {
+        return DONE.equals(getState(name));
+    }
+
+    public void markDone(final String name) throws SQLException {
+        try (Connection connection = ConnectionPool.getTargetConnection()) {
+            put(connection, name, DONE, null);
+        }
+    }
+
+    /**
+     * Saves the key of the last copied record of a table (or key range) using the passed connection, it is committed along with
+     * the copied records.
+     * @param connection the connection the records are copied with, it has to be on the server of the new database.
+     * @param name the name of the copy
+     * @param key the key values
+     * @throws SQLException
+     */
+    public void saveCheckpoint(final Connection connection, final String name, final Object[] key) throws SQLException {
+        put(connection, name, CHECKPOINT, encodeKey(key));
+    }
+
+    /**
+     * @param name the name of the copy
+     * @return the key of the last copied record or null if there is no checkpoint, the values are strings which MySQL converts
+     * when comparing to the key columns.
+     * @throws SQLException
+     */
+    public Object[] getCheckpoint(final String name) throws SQLException {
+        String[] entry = get(name);
+        if(entry == null || !CHECKPOINT.equals(entry[0]) || entry[1] == null) {
+            return null;
+        }
+        return decodeKey(entry[1]);
+    }
+
+    /**
+     * Saves the key ranges a table is copied in so that a resumed run copies the same ranges, the ranges computed from the
+     * records of the source at that time could differ and leave records out.
+     * @param table the table
+     * @param ranges the key ranges, in order.
+     * @throws SQLException
+     */
+    public void saveRanges(final String table, final List<KeyRange> ranges) throws SQLException {
+        StringBuilder value = new StringBuilder();
+        for (KeyRange range : ranges) {
+            if(value.length() > 0) value.append(RANGE_SEPARATOR);
+            value.append(range.hasLowerKey() ? encodeKey(range.getLowerKey()) : UNBOUNDED).append(BOUND_SEPARATOR)
+                    .append(range.hasUpperKey() ? encodeKey(range.getUpperKey()) : UNBOUNDED);
+        }
+        try (Connection connection = ConnectionPool.getTargetConnection()) {
+            put(connection, RANGES_PREFIX.concat(table), RANGES, value.toString());
+        }
+    }
+
+    /**
+     * @param table the table
+     * @return the key ranges saved for the table or null if there are none, the key values are strings like the ones of
+     * {@link #getCheckpoint(String)}.
+     * @throws SQLException
+     */
+    public List<KeyRange> getRanges(final String table) throws SQLException {
+        String[] entry = get(RANGES_PREFIX.concat(table));
+        if(entry == null || !RANGES.equals(entry[0]) || entry[1] == null) {
+            return null;
+        }
+        List<KeyRange> ranges = new ArrayList<>();
+        for (String range : entry[1].split(RANGE_SEPARATOR)) {
+            String[] bounds = range.split(BOUND_SEPARATOR, -1);
+            ranges.add(new KeyRange(UNBOUNDED.equals(bounds[0]) ? null : decodeKey(bounds[0]),
+                    UNBOUNDED.equals(bounds[1]) ? null : decodeKey(bounds[1])));
+        }
+        return ranges;
+    }
+
+    public void saveFingerprint(final String name, final String fingerprint) throws SQLException {
+        try (Connection connection = ConnectionPool.getTargetConnection()) {
+            put(connection, name, FINGERPRINT, fingerprint);
+        }
+    }
+
+    public String getFingerprint(final String name) throws SQLException {
+        String[] entry = get(name);
+        return entry == null ? null : entry[1];
+    }
+
+    /**
+     * @param parts the values to fingerprint, null values are allowed.
+     * @return hex encoded SHA-256 digest of the values.
+     */
+    public static String getFingerprint(final Object... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Object part : parts) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param cohort the patient ids of the cohort
+     * @return fingerprint made of the number of patients and a checksum of their sorted ids.
+     */
+    public static String getCohortFingerprint(final IdSet cohort) {
+        final CRC32 crc = new CRC32();
+        cohort.forEach(id -> {
+            crc.update(id >>> 24);
+            crc.update(id >>> 16);
+            crc.update(id >>> 8);
+            crc.update(id);
+        });
+        return cohort.size() + ":" + Long.toHexString(crc.getValue());
+    }
+
+    private String getState(final String name) throws SQLException {
+        String[] entry = get(name);
+        return entry == null ? null : entry[0];
+    }
+
+    private String[] get(final String name) throws SQLException {
+        String sql = "SELECT state, value FROM ".concat(journalTable).concat(" WHERE name = ?");
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, name);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? new String[] { rs.getString("state"), rs.getString("value") } : null;
+            }
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while reading the journal entry of {}", name, e);
+            throw e;
+        }
+    }
+
+    private void put(final Connection connection, final String name, final String state, final String value) throws SQLException {
+        String sql = "REPLACE INTO ".concat(journalTable).concat(" (name, state, value) VALUES (?, ?, ?)");
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, name);
+            statement.setString(2, state);
+            statement.setString(3, value);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while writing the journal entry of {}", name, e);
+            throw e;
+        }
+    }
+
+    private void execute(final String sql) throws SQLException {
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        } catch (SQLException e) {
+            LOGGER.error("An error occurred while running sql: {}", sql, e);
+            throw e;
+        }
+    }
+
+    private static String encodeKey(final Object[] key) {
+        StringBuilder value = new StringBuilder();
+        for (Object keyValue : key) {
+            if(value.length() > 0) value.append(KEY_SEPARATOR);
+            value.append(encode(String.valueOf(keyValue)));
+        }
+        return value.toString();
+    }
+
+    private static Object[] decodeKey(final String value) {
+        String[] parts = value.split(KEY_SEPARATOR, -1);
+        Object[] key = new Object[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            key[i] = decode(parts[i]);
+        }
+        return key;
+    }
+
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
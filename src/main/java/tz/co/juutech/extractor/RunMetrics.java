@@ -0,0 +1,404 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance metrics of the extraction of a new database (one per site in batch mode): rows, bytes, batches and batch latency
+ * histograms per table, time spent per phase, time copy tasks waited for the tasks they depend on and for a copy worker, and
+ * time spent waiting for a database connection. Recording only updates counters so it can be done on every batch.
+ *
+ * At the end of the run a JSON report is written into {@link AppProperties#getMetricsReportDir()} and, if configured, a Prometheus
+ * textfile (for the node exporter textfile collector) into {@link AppProperties#getMetricsPrometheusDir()}. Bytes copied by
+ * INSERT ... SELECT statements never leave the server, they are estimated from the average row length of the source table.
+ */
+public class RunMetrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunMetrics.class);
+    private static final Map<String, RunMetrics> INSTANCES = new ConcurrentHashMap<>();
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final String METRIC_PREFIX = "fgh_extractor_";
+
+    private final String newDatabaseName;
+    private final LocalDateTime startedAt = LocalDateTime.now();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, TableMetrics> tables = new ConcurrentHashMap<>();
+    private final Map<String, TaskMetrics> tasks = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LongAdder connectionWaits = new LongAdder();
+    private final LongAdder connectionWaitNanos = new LongAdder();
+    private final AtomicLong maxConnectionWaitNanos = new AtomicLong();
+
+    private RunMetrics(final String newDatabaseName) {
+        this.newDatabaseName = newDatabaseName;
+    }
+
+    /**
+     * @return the metrics of the new database being extracted.
+     */
+    public static RunMetrics getInstance() {
+        return INSTANCES.computeIfAbsent(AppProperties.getInstance().getNewDatabaseName(), RunMetrics::new);
+    }
+
+    /**
+     * Records a batch of records copied into a table of the new database.
+     * @param table the table
+     * @param rows the number of rows copied
+     * @param bytes the (estimated) number of bytes copied
+     * @param elapsedNanos the time taken by the batch
+     */
+    public void recordBatch(final String table, final long rows, final long bytes, final long elapsedNanos) {
+        TableMetrics tableMetrics = getTable(table);
+        tableMetrics.rows.add(rows);
+        tableMetrics.bytes.add(bytes);
+        tableMetrics.batchLatency.record(elapsedNanos);
+        batchLatency.record(elapsedNanos);
+    }
+
+    /**
+     * Records a commit of the records copied into a table, the committed records are visible in the new database.
+     * @param table the table
+     * @param rows the number of rows committed
+     * @param elapsedNanos the time taken by the commit
+     */
+    public void recordCommit(final String table, final long rows, final long elapsedNanos) {
+        TableMetrics tableMetrics = getTable(table);
+        tableMetrics.committedRows.add(rows);
+        tableMetrics.commitLatency.record(elapsedNanos);
+        commitLatency.record(elapsedNanos);
+    }
+
+    /**
+     * @param table the table
+     * @return the number of rows committed into the table so far.
+     */
+    public long getCommittedRows(final String table) {
+        return getTable(table).committedRows.sum();
+    }
+
+    /**
+     * Records the records of a table written into the dump.
+     */
+    public void recordDump(final String table, final long rows, final long bytes, final long elapsedNanos) {
+        TableMetrics tableMetrics = getTable(table);
+        tableMetrics.dumpRows.add(rows);
+        tableMetrics.dumpBytes.add(bytes);
+        tableMetrics.dumpNanos.add(elapsedNanos);
+    }
+
+    /**
+     * Records how long a copy task waited before it ran.
+     * @param task the name of the task
+     * @param dependenciesWaitNanos time from the start of the run to when all its dependencies were done.
+     * @param workerWaitNanos time from then to when a copy worker was available.
+     * @param runNanos time the task ran.
+     */
+    public void recordTask(final String task, final long dependenciesWaitNanos, final long workerWaitNanos, final long runNanos) {
+        tasks.put(task, new TaskMetrics(dependenciesWaitNanos, workerWaitNanos, runNanos));
+    }
+
+    public void recordPhase(final String phase, final long elapsedNanos) {
+        phaseNanos.computeIfAbsent(phase, p -> new LongAdder()).add(elapsedNanos);
+    }
+
+    public void recordConnectionWait(final long elapsedNanos) {
+        connectionWaits.increment();
+        connectionWaitNanos.add(elapsedNanos);
+        maxConnectionWaitNanos.accumulateAndGet(elapsedNanos, Math::max);
+    }
+
+    /**
+     * Writes the JSON report and the Prometheus textfile if configured, failures are logged since the extraction itself is done.
+     * @param succeeded whether the extraction succeeded.
+     */
+    public void writeReports(final boolean succeeded) {
+        long durationNanos = System.nanoTime() - startNanos;
+        Path report = AppProperties.getInstance().getMetricsReportDir().resolve(new StringBuilder(newDatabaseName).append(".")
+                .append(startedAt.format(FILE_TIMESTAMP)).append(".metrics.json").toString());
+        try {
+            Files.createDirectories(report.toAbsolutePath().getParent());
+            write(report, toJson(succeeded, durationNanos));
+            LOGGER.info("Metrics report written into {}", report.toAbsolutePath());
+            Path prometheusDir = AppProperties.getInstance().getMetricsPrometheusDir();
+            if(prometheusDir != null) {
+                Files.createDirectories(prometheusDir);
+                Path textfile = prometheusDir.resolve(METRIC_PREFIX.concat(newDatabaseName).concat(".prom"));
+                // Written to a temporary file first so the collector never reads a partial file.
+                Path temporary = prometheusDir.resolve(METRIC_PREFIX.concat(newDatabaseName).concat(".prom.tmp"));
+                write(temporary, toPrometheus(succeeded, durationNanos));
+                Files.move(temporary, textfile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                LOGGER.info("Prometheus metrics written into {}", textfile.toAbsolutePath());
+            }
+        } catch (IOException e) {
+            LOGGER.error("An error occurred while writing the metrics of {}", newDatabaseName, e);
+        }
+    }
+
+    String toJson(final boolean succeeded, final long durationNanos) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"newDatabase\": ").append(quote(newDatabaseName)).append(",\n");
+        json.append("  \"sourceDatabase\": ").append(quote(AppProperties.getInstance().getDatabaseName())).append(",\n");
+        json.append("  \"locations\": ").append(quote(AppProperties.getInstance().getLocationsIdsString())).append(",\n");
+        json.append("  \"version\": ").append(quote(RunMetrics.class.getPackage().getImplementationVersion())).append(",\n");
+        json.append("  \"startedAt\": ").append(quote(startedAt.toString())).append(",\n");
+        json.append("  \"durationMillis\": ").append(millis(durationNanos)).append(",\n");
+        json.append("  \"succeeded\": ").append(succeeded).append(",\n");
+        json.append("  \"connectionPool\": {\"waits\": ").append(connectionWaits.sum()).append(", \"waitMillis\": ")
+                .append(millis(connectionWaitNanos.sum())).append(", \"maxWaitMillis\": ").append(millis(maxConnectionWaitNanos.get()))
+                .append("},\n");
+
+        json.append("  \"phases\": {");
+        appendEntries(json, new TreeMap<>(phaseNanos), (sb, nanos) -> sb.append("{\"millis\": ").append(millis(nanos.sum())).append("}"));
+        json.append("},\n");
+
+        long dependenciesWait = 0;
+        long workerWait = 0;
+        for (TaskMetrics task : tasks.values()) {
+            dependenciesWait += task.dependenciesWaitNanos;
+            workerWait += task.workerWaitNanos;
+        }
+        json.append("  \"scheduler\": {\"tasks\": ").append(tasks.size()).append(", \"dependenciesWaitMillis\": ")
+                .append(millis(dependenciesWait)).append(", \"workerWaitMillis\": ").append(millis(workerWait)).append("},\n");
+        json.append("  \"batchLatency\": ");
+        batchLatency.appendJson(json);
+        json.append(",\n");
+        json.append("  \"commitLatency\": ");
+        commitLatency.appendJson(json);
+        json.append(",\n");
+
+        json.append("  \"tasks\": {");
+        appendEntries(json, new TreeMap<>(tasks), (sb, task) -> sb.append("{\"dependenciesWaitMillis\": ")
+                .append(millis(task.dependenciesWaitNanos)).append(", \"workerWaitMillis\": ").append(millis(task.workerWaitNanos))
+                .append(", \"runMillis\": ").append(millis(task.runNanos)).append("}"));
+        json.append("},\n");
+
+        json.append("  \"tables\": {");
+        appendEntries(json, new TreeMap<>(tables), (sb, table) -> {
+            sb.append("{\"rows\": ").append(table.rows.sum()).append(", \"bytes\": ").append(table.bytes.sum())
+                    .append(", \"batches\": ").append(table.batchLatency.getCount()).append(", \"committedRows\": ")
+                    .append(table.committedRows.sum()).append(", \"commits\": ").append(table.commitLatency.getCount()).append(", \"dumpRows\": ").append(table.dumpRows.sum())
+                    .append(", \"dumpBytes\": ").append(table.dumpBytes.sum()).append(", \"dumpMillis\": ").append(millis(table.dumpNanos.sum()))
+                    .append(", \"batchLatency\": ");
+            table.batchLatency.appendJson(sb);
+            sb.append(", \"commitLatency\": ");
+            table.commitLatency.appendJson(sb);
+            sb.append("}");
+        });
+        json.append("}\n}\n");
+        return json.toString();
+    }
+
+    String toPrometheus(final boolean succeeded, final long durationNanos) {
+        StringBuilder text = new StringBuilder();
+        String database = "database=".concat(quote(newDatabaseName));
+        appendMetric(text, "run_duration_seconds", "gauge", "Duration of the extraction.", database, seconds(durationNanos));
+        appendMetric(text, "run_success", "gauge", "1 if the extraction succeeded.", database, succeeded ? "1" : "0");
+        appendMetric(text, "connection_waits_total", "counter", "Connections taken from the pool.", database,
+                String.valueOf(connectionWaits.sum()));
+        appendMetric(text, "connection_wait_seconds_total", "counter", "Time spent waiting for a connection.", database,
+                seconds(connectionWaitNanos.sum()));
+
+        appendHelp(text, "phase_duration_seconds", "gauge", "Duration of each phase of the extraction.");
+        new TreeMap<>(phaseNanos).forEach((phase, nanos) -> appendSample(text, "phase_duration_seconds",
+                database.concat(",phase=").concat(quote(phase)), seconds(nanos.sum())));
+
+        appendHelp(text, "table_rows_total", "counter", "Rows copied into each table.");
+        new TreeMap<>(tables).forEach((table, metrics) -> appendSample(text, "table_rows_total",
+                database.concat(",table=").concat(quote(table)), String.valueOf(metrics.rows.sum())));
+        appendHelp(text, "table_bytes_total", "counter", "Bytes (estimated) copied into each table.");
+        new TreeMap<>(tables).forEach((table, metrics) -> appendSample(text, "table_bytes_total",
+                database.concat(",table=").concat(quote(table)), String.valueOf(metrics.bytes.sum())));
+        appendHelp(text, "table_batches_total", "counter", "Batches copied into each table.");
+        new TreeMap<>(tables).forEach((table, metrics) -> appendSample(text, "table_batches_total",
+                database.concat(",table=").concat(quote(table)), String.valueOf(metrics.batchLatency.getCount())));
+        appendHelp(text, "table_committed_rows_total", "counter", "Rows committed into each table.");
+        new TreeMap<>(tables).forEach((table, metrics) -> appendSample(text, "table_committed_rows_total",
+                database.concat(",table=").concat(quote(table)), String.valueOf(metrics.committedRows.sum())));
+        appendHelp(text, "table_dump_bytes_total", "counter", "Bytes of SQL written into the dump for each table.");
+        new TreeMap<>(tables).forEach((table, metrics) -> appendSample(text, "table_dump_bytes_total",
+                database.concat(",table=").concat(quote(table)), String.valueOf(metrics.dumpBytes.sum())));
+
+        long dependenciesWait = 0;
+        long workerWait = 0;
+        for (TaskMetrics task : tasks.values()) {
+            dependenciesWait += task.dependenciesWaitNanos;
+            workerWait += task.workerWaitNanos;
+        }
+        appendHelp(text, "task_wait_seconds_total", "counter", "Time copy tasks waited for their dependencies and for a worker.");
+        appendSample(text, "task_wait_seconds_total", database.concat(",on=\"dependencies\""), seconds(dependenciesWait));
+        appendSample(text, "task_wait_seconds_total", database.concat(",on=\"worker\""), seconds(workerWait));
+
+        appendHelp(text, "batch_latency_seconds", "histogram", "Latency of the copied batches.");
+        batchLatency.appendPrometheus(text, METRIC_PREFIX.concat("batch_latency_seconds"), database);
+        appendHelp(text, "commit_latency_seconds", "histogram", "Latency of the commits of the copied records.");
+        commitLatency.appendPrometheus(text, METRIC_PREFIX.concat("commit_latency_seconds"), database);
+        return text.toString();
+    }
+
+    private TableMetrics getTable(final String table) {
+        TableMetrics tableMetrics = tables.get(table);
+        if(tableMetrics == null) {
+            tableMetrics = tables.computeIfAbsent(table, t -> new TableMetrics());
+        }
+        return tableMetrics;
+    }
+
+    private static <V> void appendEntries(final StringBuilder json, final Map<String, V> entries, final EntryWriter<V> writer) {
+        boolean first = true;
+        for (Map.Entry<String, V> entry : entries.entrySet()) {
+            json.append(first ? "\n    " : ",\n    ").append(quote(entry.getKey())).append(": ");
+            writer.write(json, entry.getValue());
+            first = false;
+        }
+        if(!first) {
+            json.append("\n  ");
+        }
+    }
+
+    private static void appendMetric(final StringBuilder text, final String name, final String type, final String help,
+                                     final String labels, final String value) {
+        appendHelp(text, name, type, help);
+        appendSample(text, name, labels, value);
+    }
+
+    private static void appendHelp(final StringBuilder text, final String name, final String type, final String help) {
+        text.append("# HELP ").append(METRIC_PREFIX).append(name).append(" ").append(help).append("\n");
+        text.append("# TYPE ").append(METRIC_PREFIX).append(name).append(" ").append(type).append("\n");
+    }
+
+    private static void appendSample(final StringBuilder text, final String name, final String labels, final String value) {
+        text.append(METRIC_PREFIX).append(name).append("{").append(labels).append("} ").append(value).append("\n");
+    }
+
+    private static void write(final Path file, final String content) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+    }
+
+    /**
+     * @return the value as a JSON string, null if the value is null.
+     */
+    static String quote(final String value) {
+        if(value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                default:
+                    if(c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    private static long millis(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static String seconds(final long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+
+    private interface EntryWriter<V> {
+        void write(StringBuilder json, V value);
+    }
+
+    private static class TableMetrics {
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder dumpRows = new LongAdder();
+        private final LongAdder dumpBytes = new LongAdder();
+        private final LongAdder dumpNanos = new LongAdder();
+        private final LatencyHistogram batchLatency = new LatencyHistogram();
+        private final LongAdder committedRows = new LongAdder();
+        private final LatencyHistogram commitLatency = new LatencyHistogram();
+    }
+
+    private static class TaskMetrics {
+        private final long dependenciesWaitNanos;
+        private final long workerWaitNanos;
+        private final long runNanos;
+
+        private TaskMetrics(final long dependenciesWaitNanos, final long workerWaitNanos, final long runNanos) {
+            this.dependenciesWaitNanos = dependenciesWaitNanos;
+            this.workerWaitNanos = workerWaitNanos;
+            this.runNanos = runNanos;
+        }
+    }
+
+    /**
+     * Histogram of latencies with fixed buckets (upper bounds in milliseconds), the last bucket counts everything above.
+     */
+    static class LatencyHistogram {
+        static final long[] BUCKET_BOUNDS_MILLIS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        private final LongAdder totalNanos = new LongAdder();
+
+        void record(final long elapsedNanos) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && elapsedMillis > BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            totalNanos.add(elapsedNanos);
+        }
+
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        void appendJson(final StringBuilder json) {
+            json.append("{\"count\": ").append(getCount()).append(", \"totalMillis\": ").append(millis(totalNanos.sum()))
+                    .append(", \"buckets\": {");
+            for (int i = 0; i < counts.length(); i++) {
+                if(i > 0) json.append(", ");
+                json.append("\"").append(i < BUCKET_BOUNDS_MILLIS.length ? "le_" + BUCKET_BOUNDS_MILLIS[i] : "inf").append("\": ")
+                        .append(counts.get(i));
+            }
+            json.append("}}");
+        }
+
+        void appendPrometheus(final StringBuilder text, final String name, final String labels) {
+            // Prometheus buckets are cumulative.
+            long cumulative = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                cumulative += counts.get(i);
+                String bound = i < BUCKET_BOUNDS_MILLIS.length ? String.valueOf(BUCKET_BOUNDS_MILLIS[i] / 1e3) : "+Inf";
+                text.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ").append(cumulative).append("\n");
+            }
+            text.append(name).append("_sum{").append(labels).append("} ").append(seconds(totalNanos.sum())).append("\n");
+            text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append("\n");
+        }
+    }
+}
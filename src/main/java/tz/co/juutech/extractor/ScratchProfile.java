@@ -0,0 +1,136 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk load settings for a new database which is only a staging area for the dump (scratch.profile). The copy connections
+ * skip the binary log and the unique checks of secondary indexes, and when the new database is on its own server the log
+ * flush of that server is relaxed for the run. Each setting is only applied where the user is permitted to change it.
+ */
+public class ScratchProfile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScratchProfile.class);
+    private static final String[] SESSION_VARIABLES = { "sql_log_bin=0", "unique_checks=0" };
+    private static final String[][] RELAXED_GLOBAL_VARIABLES = { { "innodb_flush_log_at_trx_commit", "2" }, { "sync_binlog", "0" } };
+    private static final Pattern ENGINE = Pattern.compile("ENGINE=\\w+");
+    private static final Pattern ENGINE_NAME = Pattern.compile("\\w+");
+    // Values of the global variables before they were relaxed, restored after the run.
+    private static final Map<String, String> RELAXED_GLOBALS = new LinkedHashMap<>();
+
+    /**
+     * @param url JDBC url of the server of the new database
+     * @param username the user
+     * @param password the password
+     * @return the url with the sessionVariables the user is permitted to set on the copy connections.
+     */
+    public static String withSessionVariables(final String url, final String username, final String password) {
+        List<String> permitted = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection(url, username, password);
+             Statement statement = connection.createStatement()) {
+            for (String variable : SESSION_VARIABLES) {
+                try {
+                    statement.execute("SET SESSION ".concat(variable));
+                    permitted.add(variable);
+                } catch (SQLException e) {
+                    LOGGER.warn("Copy connections can't set {} ({})", variable, e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Could not check the session variables of the scratch profile, the copy connections are not tuned", e);
+        }
+        if(permitted.isEmpty()) {
+            return url;
+        }
+        LOGGER.info("Copy connections set {}", permitted);
+        return url.concat(url.contains("?") ? "&" : "?").concat("sessionVariables=").concat(String.join(",", permitted));
+    }
+
+    /**
+     * Relaxes the flush of the redo & binary logs on the server of the new database when it is not the source server, a crash
+     * of that server during the run may lose the last second of records copied which a resumed run copies again.
+     */
+    public static synchronized void relaxFlush() {
+        if(!AppProperties.getInstance().isCrossServer()) {
+            LOGGER.info("The log flush is only relaxed when the new database is on its own server ({})", AppProperties.TARGET_JDBC_URL_PROP);
+            return;
+        }
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement()) {
+            for (String[] variable : RELAXED_GLOBAL_VARIABLES) {
+                String previous;
+                try (ResultSet rs = statement.executeQuery("SELECT @@GLOBAL.".concat(variable[0]))) {
+                    rs.next();
+                    previous = rs.getString(1);
+                }
+                if(variable[1].equals(previous)) continue;
+                try {
+                    statement.execute(new StringBuilder("SET GLOBAL ").append(variable[0]).append(" = ").append(variable[1]).toString());
+                    RELAXED_GLOBALS.put(variable[0], previous);
+                    LOGGER.info("Set {} to {} on the target server for the run (was {})", variable[0], variable[1], previous);
+                } catch (SQLException e) {
+                    LOGGER.warn("Can't set {} on the target server ({})", variable[0], e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Could not relax the log flush of the target server", e);
+        }
+    }
+
+    /**
+     * Restores the global variables changed by {@link #relaxFlush()}.
+     */
+    public static synchronized void restoreFlush() {
+        if(RELAXED_GLOBALS.isEmpty()) {
+            return;
+        }
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement()) {
+            for (Map.Entry<String, String> variable : RELAXED_GLOBALS.entrySet()) {
+                statement.execute(new StringBuilder("SET GLOBAL ").append(variable.getKey()).append(" = ").append(variable.getValue()).toString());
+                LOGGER.info("Restored {} to {} on the target server", variable.getKey(), variable.getValue());
+            }
+            RELAXED_GLOBALS.clear();
+        } catch (SQLException e) {
+            LOGGER.error("Could not restore {} on the target server, set them back by hand", RELAXED_GLOBALS, e);
+        }
+    }
+
+    /**
+     * @param createTableSql CREATE TABLE statement of a source table
+     * @return the statement with the engine replaced by the scratch.engine if set, it only creates the tables of the new database,
+     * the dump creates the tables with the statements of the source.
+     */
+    public static String withScratchEngine(final String createTableSql) {
+        String engine = AppProperties.getInstance().getScratchEngine();
+        if(engine == null) {
+            return createTableSql;
+        }
+        // The table options follow the line closing the definitions (partitioning clauses come after them).
+        int tableOptions = Math.max(0, createTableSql.indexOf("\n)"));
+        Matcher matcher = ENGINE.matcher(createTableSql).region(tableOptions, createTableSql.length());
+        if(matcher.find()) {
+            return new StringBuilder(createTableSql).replace(matcher.start(), matcher.end(), "ENGINE=".concat(engine)).toString();
+        }
+        return createTableSql.concat(" ENGINE=").concat(engine);
+    }
+
+    /**
+     * @param engine storage engine name
+     * @return true if the name can be used in a CREATE TABLE statement.
+     */
+    public static boolean isValidEngine(final String engine) {
+        return ENGINE_NAME.matcher(engine).matches();
+    }
+}
@@ -0,0 +1,116 @@
+package tz.co.juutech.extractor;
+
+import tz.co.juutech.extractor.exception.InvalidMandatoryPropertyValueException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A site extracted in batch mode. Sites are read from the batch sites file, one per line in the form
+ * "name;location ids;end date" for example "chiure;12,23,45;31-12-2026". The end date is in the end.date.pattern and is
+ * optional (end.date is used when it is blank), blank lines and lines starting with # are ignored. The new database of a site
+ * is named newDb.name followed by an underscore and the site name.
+ */
+public class SiteDefinition {
+    private static final Pattern NAME_PATTERN = Pattern.compile("\\w+");
+    private static final String FIELD_SEPARATOR = ";";
+
+    private final String name;
+    private final String locationsIdsString;
+    private final Set<Integer> locationsIds;
+    private final LocalDate endDate;
+
+    public SiteDefinition(final String name, final Set<Integer> locationsIds, final LocalDate endDate) {
+        assert name != null;
+        assert locationsIds != null && !locationsIds.isEmpty();
+        assert endDate != null;
+        this.name = name;
+        this.locationsIds = Collections.unmodifiableSet(new LinkedHashSet<>(locationsIds));
+        this.locationsIdsString = this.locationsIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+        this.endDate = endDate;
+    }
+
+    /**
+     * Reads the sites from a file.
+     * @param file the batch sites file
+     * @return the sites in the order they are in the file.
+     * @throws IOException
+     * @throws InvalidMandatoryPropertyValueException if a line is not valid or two sites have the same name.
+     */
+    public static List<SiteDefinition> load(final Path file) throws IOException, InvalidMandatoryPropertyValueException {
+        List<SiteDefinition> sites = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                SiteDefinition site = parse(line);
+                if(!names.add(site.getName())) {
+                    throw new InvalidMandatoryPropertyValueException(AppProperties.BATCH_SITES_FILE_PROP, line);
+                }
+                sites.add(site);
+            }
+        }
+        return sites;
+    }
+
+    private static SiteDefinition parse(final String line) throws InvalidMandatoryPropertyValueException {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        if(fields.length < 2 || fields.length > 3 || !NAME_PATTERN.matcher(fields[0].trim()).matches()) {
+            throw new InvalidMandatoryPropertyValueException(AppProperties.BATCH_SITES_FILE_PROP, line);
+        }
+        Set<Integer> locationsIds = new LinkedHashSet<>();
+        try {
+            for (String locationId : fields[1].split(",")) {
+                locationsIds.add(Integer.parseInt(locationId.trim()));
+            }
+        } catch (NumberFormatException e) {
+            throw new InvalidMandatoryPropertyValueException(AppProperties.BATCH_SITES_FILE_PROP, line);
+        }
+        LocalDate endDate = AppProperties.getInstance().getEndDate();
+        if(fields.length == 3 && !fields[2].trim().isEmpty()) {
+            try {
+                endDate = LocalDate.parse(fields[2].trim(), AppProperties.getInstance().getEndDateFormatter());
+            } catch (DateTimeParseException e) {
+                throw new InvalidMandatoryPropertyValueException(AppProperties.BATCH_SITES_FILE_PROP, line);
+            }
+        }
+        return new SiteDefinition(fields[0].trim(), locationsIds, endDate);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLocationsIdsString() {
+        return locationsIdsString;
+    }
+
+    public Set<Integer> getLocationsIds() {
+        return locationsIds;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (locations: " + locationsIdsString + ", end date: " + endDate + ")";
+    }
+}
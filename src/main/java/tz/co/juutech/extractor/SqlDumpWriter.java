@@ -0,0 +1,369 @@
+package tz.co.juutech.extractor;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes an SQL dump file loadable with the mysql client, table structures are written as they are given and table records
+ * as extended (multi-row) INSERT statements whose size is bounded. The output goes through a buffered file channel and is
+ * optionally compressed with gzip or zstd.
+ *
+ * An upsert dump is meant to be loaded over a previous dump (incremental extraction), its tables are created only if they don't
+ * exist and the records are written as INSERT ... ON DUPLICATE KEY UPDATE statements replacing the existing records.
+ */
+public class SqlDumpWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int NUMBER_VALUE = 0;
+    private static final int STRING_VALUE = 1;
+    private static final int BINARY_VALUE = 2;
+
+    public enum Compression {
+        NONE(""), GZIP(".gz"), ZSTD(".zst");
+
+        private final String fileExtension;
+
+        Compression(final String fileExtension) {
+            this.fileExtension = fileExtension;
+        }
+
+        public String getFileExtension() {
+            return fileExtension;
+        }
+    }
+
+    private final OutputStream out;
+    private final int maxStatementSize;
+    private final boolean upsert;
+    private final StringBuilder statement;
+    private final StringBuilder row = new StringBuilder(1024);
+    private String statementSuffix;
+    private long statementBytes;
+    private long bytesWritten;
+
+    /**
+     * @param file the dump file, it is created or truncated.
+     * @param compression the compression to apply.
+     * @param maxStatementSize the maximum size in bytes (UTF-8) of an INSERT statement, a statement always has at least one row.
+     * @throws IOException
+     */
+    public SqlDumpWriter(final Path file, final Compression compression, final int maxStatementSize) throws IOException {
+        this(file, compression, maxStatementSize, false);
+    }
+
+    /**
+     * @param file the dump file, it is created or truncated.
+     * @param compression the compression to apply.
+     * @param maxStatementSize the maximum size in bytes (UTF-8) of an INSERT statement, a statement always has at least one row.
+     * @param upsert whether to write an upsert dump.
+     * @throws IOException
+     */
+    public SqlDumpWriter(final Path file, final Compression compression, final int maxStatementSize, final boolean upsert) throws IOException {
+        this(file, compression, maxStatementSize, upsert, null);
+    }
+
+    /**
+     * @param file the dump file, it is created or truncated.
+     * @param compression the compression to apply.
+     * @param maxStatementSize the maximum size in bytes (UTF-8) of an INSERT statement, a statement always has at least one row.
+     * @param upsert whether to write an upsert dump.
+     * @param fileDigest digest updated with the bytes written into the file (after compression) or null.
+     * @throws IOException
+     */
+    public SqlDumpWriter(final Path file, final Compression compression, final int maxStatementSize, final boolean upsert,
+                         final MessageDigest fileDigest) throws IOException {
+        OutputStream channelStream = Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        if(fileDigest != null) {
+            channelStream = new DigestOutputStream(channelStream, fileDigest);
+        }
+        switch (compression) {
+            case GZIP:
+                channelStream = new GZIPOutputStream(channelStream, BUFFER_SIZE);
+                break;
+            case ZSTD:
+                channelStream = new ZstdOutputStream(channelStream);
+                break;
+            default:
+                break;
+        }
+        this.out = new BufferedOutputStream(channelStream, BUFFER_SIZE);
+        this.maxStatementSize = maxStatementSize;
+        this.upsert = upsert;
+        this.statement = new StringBuilder(Math.min(maxStatementSize, BUFFER_SIZE) + 1024);
+    }
+
+    /**
+     * Writes the session settings needed to load the dump, these are restored by {@link #writeFooter()}.
+     * @throws IOException
+     */
+    public void writeHeader() throws IOException {
+        write("/*!40101 SET @OLD_CHARACTER_SET_CLIENT=@@CHARACTER_SET_CLIENT */;\n" +
+                "/*!40101 SET NAMES utf8 */;\n" +
+                "/*!50503 SET NAMES utf8mb4 */;\n" +
+                "/*!40014 SET @OLD_UNIQUE_CHECKS=@@UNIQUE_CHECKS, UNIQUE_CHECKS=0 */;\n" +
+                "/*!40014 SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0 */;\n" +
+                "/*!40101 SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;\n");
+    }
+
+    public void writeFooter() throws IOException {
+        write("/*!40101 SET SQL_MODE=@OLD_SQL_MODE */;\n" +
+                "/*!40014 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS */;\n" +
+                "/*!40014 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS */;\n" +
+                "/*!40101 SET CHARACTER_SET_CLIENT=@OLD_CHARACTER_SET_CLIENT */;\n");
+    }
+
+    /**
+     * @param createTableSql the statement creating the table as returned by SHOW CREATE TABLE
+     * @throws IOException
+     */
+    public void writeCreateTable(final String createTableSql) throws IOException {
+        write(upsert ? createTableSql.replaceFirst("^CREATE TABLE ", "CREATE TABLE IF NOT EXISTS ") : createTableSql);
+        write(";\n");
+    }
+
+    /**
+     * Writes all the rows of the result set as INSERT statements into the passed table, the result set is consumed row by row
+     * so it can (and for large tables should) be a streaming one.
+     * @param table the table name
+     * @param resultSet the rows, the columns have to be in the table's column order.
+     * @return the number of rows written.
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long writeRows(final String table, final ResultSet resultSet) throws SQLException, IOException {
+        return writeRows(table, resultSet, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the rows of the result set as INSERT statements into the passed table until the (uncompressed) bytes written reach
+     * the passed size, the remaining rows can be written by another writer.
+     * @param table the table name
+     * @param resultSet the rows, the columns have to be in the table's column order.
+     * @param maxBytesWritten no more statements are written once {@link #getBytesWritten()} reaches this.
+     * @return the number of rows written.
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long writeRows(final String table, final ResultSet resultSet, final long maxBytesWritten) throws SQLException, IOException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        final int columnCount = metaData.getColumnCount();
+        final int[] kinds = new int[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            kinds[i] = getValueKind(metaData.getColumnType(i + 1), metaData.getColumnTypeName(i + 1));
+        }
+        final String insertPrefix;
+        if(upsert) {
+            StringBuilder columns = new StringBuilder();
+            StringBuilder updates = new StringBuilder(" ON DUPLICATE KEY UPDATE ");
+            for (int i = 1; i <= columnCount; i++) {
+                String column = "`".concat(metaData.getColumnLabel(i)).concat("`");
+                if(i > 1) {
+                    columns.append(",");
+                    updates.append(",");
+                }
+                columns.append(column);
+                updates.append(column).append("=VALUES(").append(column).append(")");
+            }
+            insertPrefix = "INSERT INTO `".concat(table).concat("` (").concat(columns.toString()).concat(") VALUES ");
+            statementSuffix = updates.toString();
+        } else {
+            insertPrefix = "INSERT INTO `".concat(table).concat("` VALUES ");
+            statementSuffix = "";
+        }
+
+        long rows = 0;
+        statement.setLength(0);
+        statementBytes = 0;
+        final long prefixBytes = getUtf8Length(insertPrefix);
+        // The suffix and the statement terminator are counted in the size of the statement.
+        final long suffixBytes = getUtf8Length(statementSuffix) + 2;
+        // The size is checked first so that no row is consumed from the result set once it is reached.
+        while (bytesWritten < maxBytesWritten && resultSet.next()) {
+            row.setLength(0);
+            row.append('(');
+            for (int i = 0; i < columnCount; i++) {
+                if(i > 0) row.append(',');
+                appendValue(resultSet, i + 1, kinds[i]);
+            }
+            row.append(')');
+            long rowBytes = getUtf8Length(row);
+            if(statement.length() > 0 && statementBytes + 1 + rowBytes + suffixBytes > maxStatementSize) {
+                flushStatement();
+            }
+            if(statement.length() == 0) {
+                statement.append(insertPrefix);
+                statementBytes = prefixBytes;
+            } else {
+                statement.append(',');
+                statementBytes++;
+            }
+            statement.append(row);
+            statementBytes += rowBytes;
+            rows++;
+        }
+        if(statement.length() > 0) {
+            flushStatement();
+        }
+        return rows;
+    }
+
+    /**
+     * @return the number of (uncompressed) bytes written so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void flushStatement() throws IOException {
+        statement.append(statementSuffix).append(";\n");
+        write(statement.toString());
+        statement.setLength(0);
+        statementBytes = 0;
+    }
+
+    /**
+     * @return the number of bytes of the text encoded in UTF-8.
+     */
+    static long getUtf8Length(final CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c < 0x80) {
+                length++;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void write(final String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        bytesWritten += bytes.length;
+    }
+
+    /**
+     * @return true if the values of a column with the passed JDBC type are to be handled as bytes rather than as text.
+     */
+    static boolean isBinaryColumn(final int type, final String typeName) {
+        return getValueKind(type, typeName) == BINARY_VALUE;
+    }
+
+    /**
+     * Connector/J reports TINYINT(1) columns as {@link Types#BIT} (tinyInt1isBit), those are numbers unlike real BIT columns.
+     */
+    private static int getValueKind(final int type, final String typeName) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return NUMBER_VALUE;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return typeName != null && typeName.toUpperCase().startsWith("BIT") ? BINARY_VALUE : NUMBER_VALUE;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BINARY_VALUE;
+            default:
+                return STRING_VALUE;
+        }
+    }
+
+    private void appendValue(final ResultSet resultSet, final int column, final int kind) throws SQLException {
+        if(kind == BINARY_VALUE) {
+            byte[] value = resultSet.getBytes(column);
+            if(value == null) {
+                row.append("NULL");
+            } else if(value.length == 0) {
+                row.append("''");
+            } else {
+                appendHex(value);
+            }
+            return;
+        }
+        String value = resultSet.getString(column);
+        if(value == null) {
+            row.append("NULL");
+        } else if(kind == NUMBER_VALUE) {
+            row.append(value);
+        } else {
+            appendQuoted(value);
+        }
+    }
+
+    private void appendHex(final byte[] value) {
+        row.append("0x");
+        for (byte b : value) {
+            row.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+        }
+    }
+
+    private void appendQuoted(final String value) {
+        row.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case 0:
+                    row.append("\\0");
+                    break;
+                case '\n':
+                    row.append("\\n");
+                    break;
+                case '\r':
+                    row.append("\\r");
+                    break;
+                case '\\':
+                    row.append("\\\\");
+                    break;
+                case '\'':
+                    row.append("\\'");
+                    break;
+                case '"':
+                    row.append("\\\"");
+                    break;
+                case '\032':
+                    row.append("\\Z");
+                    break;
+                default:
+                    row.append(c);
+            }
+        }
+        row.append('\'');
+    }
+}
@@ -0,0 +1,377 @@
+package tz.co.juutech.extractor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the rows returned by a query on the source server into a table of the new database on the target server, this is
+ * used instead of INSERT ... SELECT when the two databases are not on the same server. The calling thread is the reader, it
+ * streams the rows of the query and hands them in chunks through a bounded queue to writer threads which insert them with
+ * batched prepared statements (sent as multi-row inserts since the target connections use rewriteBatchedStatements).
+ *
+ * When the queue is full the reader waits for the writers (the target is the bottleneck) and when it is empty the writers wait
+ * for the reader (the source is the bottleneck), the time spent waiting on each side and how full the queue got are logged
+ * after each copy and summed up over the whole extraction.
+ *
+ * Each writer commits once it wrote commit.rows rows or commit.bytes (estimated) bytes since its last commit. When the copy is
+ * journaled the rows are read in key order and, once all the chunks up to a chunk are committed, the key of the last row of
+ * that chunk is saved as the checkpoint of the copy. The checkpoint is committed after the rows it covers, a resumed run may
+ * read again rows which were already written, they are ignored.
+ */
+public class StreamingCopier {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingCopier.class);
+    private static final Chunk END_OF_ROWS = new Chunk(-1, Collections.emptyList(), null);
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "copy-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicLong TOTAL_ROWS = new AtomicLong();
+    private static final AtomicLong TOTAL_READER_BLOCKED_NANOS = new AtomicLong();
+    private static final AtomicLong TOTAL_WRITERS_IDLE_NANOS = new AtomicLong();
+
+    private final String targetTable;
+    private final int queueDepth;
+    private final int batchSize;
+    private final int writerCount;
+    private final String journalName;
+    private final PrimaryKey primaryKey;
+
+    /**
+     * @param targetTable the fully qualified table in the new database to insert into.
+     */
+    public StreamingCopier(final String targetTable) {
+        this(targetTable, null, null);
+    }
+
+    /**
+     * Creates a copier which saves the key of the last committed row in the {@link RunJournal} under the passed name, the
+     * query has to select the rows in key order.
+     * @param targetTable the fully qualified table in the new database to insert into.
+     * @param journalName the name of the copy in the journal or null
+     * @param primaryKey the key of the rows, the query has to select its columns.
+     */
+    public StreamingCopier(final String targetTable, final String journalName, final PrimaryKey primaryKey) {
+        this(targetTable, AppProperties.getInstance().getCopyQueueDepth(), AppProperties.getInstance().getCopyWriterBatchSize(),
+                AppProperties.getInstance().getCopyWriters(), journalName, primaryKey);
+    }
+
+    StreamingCopier(final String targetTable, final int queueDepth, final int batchSize, final int writerCount,
+                    final String journalName, final PrimaryKey primaryKey) {
+        assert targetTable != null;
+        assert queueDepth > 0 && batchSize > 0 && writerCount > 0;
+        assert journalName == null || (primaryKey != null && !primaryKey.isEmpty());
+        this.targetTable = targetTable;
+        this.queueDepth = queueDepth;
+        this.batchSize = batchSize;
+        this.writerCount = writerCount;
+        this.journalName = journalName;
+        this.primaryKey = primaryKey;
+    }
+
+    /**
+     * Runs the query and copies all its rows, the columns of the target table are named after the column labels of the query.
+     * Rows which already exist in the target table are ignored.
+     * @param query the query on the source server with all its parameters bound.
+     * @return the number of rows read from the source.
+     * @throws SQLException
+     */
+    public long copy(final PreparedStatement query) throws SQLException {
+        return copy(query, null);
+    }
+
+    /**
+     * Same as {@link #copy(PreparedStatement)} but inserting into the passed columns of the target table.
+     * @param query the query on the source server with all its parameters bound.
+     * @param targetColumns the columns to insert into in the order of the query columns or null to use the column labels.
+     * @return the number of rows read from the source.
+     * @throws SQLException
+     */
+    public long copy(final PreparedStatement query, final List<String> targetColumns) throws SQLException {
+        final long start = System.nanoTime();
+        final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(queueDepth);
+        final CommitProgress progress = journalName == null ? null : new CommitProgress(journalName);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final AtomicLong writersIdleNanos = new AtomicLong();
+        List<Future<Long>> writers = new ArrayList<>(writerCount);
+        long rows = 0;
+        long readerBlockedNanos = 0;
+        int highWaterMark = 0;
+        try {
+            // Makes Connector/J stream the rows one by one instead of reading the whole result into memory.
+            query.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = query.executeQuery()) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                final int columnCount = metaData.getColumnCount();
+                final boolean[] binary = new boolean[columnCount];
+                List<String> columns = new ArrayList<>(columnCount);
+                for (int i = 0; i < columnCount; i++) {
+                    binary[i] = SqlDumpWriter.isBinaryColumn(metaData.getColumnType(i + 1), metaData.getColumnTypeName(i + 1));
+                    columns.add("`".concat(targetColumns == null ? metaData.getColumnLabel(i + 1) : targetColumns.get(i)).concat("`"));
+                }
+                final String insertSql = getInsertSql(columns);
+                // The writers record their batches in the metrics of the site being extracted by this thread.
+                final AppProperties siteProperties = AppProperties.getSiteProperties();
+                for (int i = 0; i < writerCount; i++) {
+                    writers.add(WRITERS.submit(() -> AppProperties.callWithSite(siteProperties,
+                            () -> write(insertSql, queue, aborted, writersIdleNanos, progress))));
+                }
+
+                List<Object[]> chunk = new ArrayList<>(batchSize);
+                long sequence = 0;
+                Object[] lastKey = null;
+                while (rs.next()) {
+                    Object[] row = new Object[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        row[i] = binary[i] ? rs.getBytes(i + 1) : rs.getString(i + 1);
+                    }
+                    chunk.add(row);
+                    rows++;
+                    if(progress != null) {
+                        lastKey = primaryKey.readKey(rs);
+                    }
+                    if(chunk.size() == batchSize) {
+                        readerBlockedNanos += put(queue, new Chunk(sequence++, chunk, lastKey), aborted, writers);
+                        highWaterMark = Math.max(highWaterMark, queue.size());
+                        chunk = new ArrayList<>(batchSize);
+                    }
+                }
+                if(!chunk.isEmpty()) {
+                    readerBlockedNanos += put(queue, new Chunk(sequence, chunk, lastKey), aborted, writers);
+                }
+                for (int i = 0; i < writerCount; i++) {
+                    readerBlockedNanos += put(queue, END_OF_ROWS, aborted, writers);
+                }
+            }
+            long written = 0;
+            for (Future<Long> writer : writers) {
+                written += getWritten(writer);
+            }
+            LOGGER.trace("Read {} rows, writers reported {} row updates in {}", rows, written, targetTable);
+        } catch (SQLException|RuntimeException e) {
+            aborted.set(true);
+            throw e;
+        } catch (InterruptedException e) {
+            aborted.set(true);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while copying into ".concat(targetTable), e);
+        }
+
+        TOTAL_ROWS.addAndGet(rows);
+        TOTAL_READER_BLOCKED_NANOS.addAndGet(readerBlockedNanos);
+        TOTAL_WRITERS_IDLE_NANOS.addAndGet(writersIdleNanos.get());
+        LOGGER.debug("Streamed {} rows into {} in {} ms, reader blocked: {} ms, writers idle: {} ms, queue high-water mark: {}/{}",
+                rows, targetTable, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.NANOSECONDS.toMillis(readerBlockedNanos),
+                TimeUnit.NANOSECONDS.toMillis(writersIdleNanos.get()), highWaterMark, queueDepth);
+        return rows;
+    }
+
+    /**
+     * Logs the rows streamed and the waiting times of all the copies done so far, a reader blocked much longer than the writers
+     * are idle means the target server is the bottleneck (more writers or bigger batches may help) and the other way round the
+     * source server is.
+     */
+    public static void logTotals() {
+        LOGGER.info("Streamed {} rows in total, readers blocked: {} ms, writers idle: {} ms", TOTAL_ROWS.get(),
+                TimeUnit.NANOSECONDS.toMillis(TOTAL_READER_BLOCKED_NANOS.get()), TimeUnit.NANOSECONDS.toMillis(TOTAL_WRITERS_IDLE_NANOS.get()));
+    }
+
+    private String getInsertSql(final List<String> columns) {
+        StringBuilder sql = new StringBuilder("INSERT IGNORE INTO ").append(targetTable).append(" (")
+                .append(String.join(", ", columns)).append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            if(i > 0) sql.append(", ");
+            sql.append("?");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * Puts a chunk in the queue waiting as long as it is full, gives up if a writer failed.
+     * @return the time spent waiting.
+     */
+    private long put(final BlockingQueue<Chunk> queue, final Chunk chunk, final AtomicBoolean aborted,
+                     final List<Future<Long>> writers) throws InterruptedException, SQLException {
+        if(queue.offer(chunk)) {
+            return 0;
+        }
+        long waitStart = System.nanoTime();
+        while (!queue.offer(chunk, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            for (Future<Long> writer : writers) {
+                if(writer.isDone()) {
+                    // A writer which is done before the end of the rows has failed, this throws its error.
+                    getWritten(writer);
+                }
+            }
+            if(aborted.get()) {
+                throw new SQLException("Copying into ".concat(targetTable).concat(" was aborted"));
+            }
+        }
+        return System.nanoTime() - waitStart;
+    }
+
+    private long write(final String insertSql, final BlockingQueue<Chunk> queue, final AtomicBoolean aborted,
+                       final AtomicLong idleNanos, final CommitProgress progress) throws SQLException, InterruptedException {
+        final String table = targetTable.substring(targetTable.lastIndexOf('.') + 1);
+        long written = 0;
+        // Chunks written since the last commit.
+        List<Chunk> uncommitted = new ArrayList<>();
+        long uncommittedRows = 0;
+        long uncommittedBytes = 0;
+        try (Connection connection = ConnectionPool.getTargetConnection();
+             Statement statement = connection.createStatement();
+             PreparedStatement insert = connection.prepareStatement(insertSql)) {
+            connection.setAutoCommit(false);
+            try {
+                statement.execute("set foreign_key_checks=0");
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    Chunk chunk;
+                    while ((chunk = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                        if(aborted.get()) {
+                            connection.rollback();
+                            return written;
+                        }
+                    }
+                    idleNanos.addAndGet(System.nanoTime() - waitStart);
+                    if(chunk == END_OF_ROWS) {
+                        if(!uncommitted.isEmpty()) {
+                            commit(connection, table, uncommitted, uncommittedRows, progress);
+                        }
+                        return written;
+                    }
+
+                    long batchStart = System.nanoTime();
+                    long bytes = 0;
+                    for (Object[] row : chunk.rows) {
+                        for (int i = 0; i < row.length; i++) {
+                            if(row[i] == null) {
+                                insert.setNull(i + 1, Types.NULL);
+                            } else if(row[i] instanceof byte[]) {
+                                insert.setBytes(i + 1, (byte[]) row[i]);
+                                bytes += ((byte[]) row[i]).length;
+                            } else {
+                                insert.setString(i + 1, (String) row[i]);
+                                bytes += ((String) row[i]).length();
+                            }
+                        }
+                        insert.addBatch();
+                    }
+                    for (int count : insert.executeBatch()) {
+                        // Multi-row inserts report SUCCESS_NO_INFO (-2) for each row.
+                        written += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                    long elapsedNanos = System.nanoTime() - batchStart;
+                    AdaptiveConcurrencyController.getInstance().recordBatch(table, chunk.rows.size(), elapsedNanos);
+                    RunMetrics.getInstance().recordBatch(table, chunk.rows.size(), bytes, elapsedNanos);
+                    uncommitted.add(chunk);
+                    uncommittedRows += chunk.rows.size();
+                    uncommittedBytes += bytes;
+                    if(uncommittedRows >= AppProperties.getInstance().getCommitRows()
+                            || uncommittedBytes >= AppProperties.getInstance().getCommitBytes()) {
+                        commit(connection, table, uncommitted, uncommittedRows, progress);
+                        uncommitted.clear();
+                        uncommittedRows = 0;
+                        uncommittedBytes = 0;
+                    }
+                }
+            } finally {
+                ConnectionPool.restoreAutoCommit(connection);
+            }
+        } catch (SQLException e) {
+            aborted.set(true);
+            LOGGER.error("An error occurred while writing into {} running SQL: {}", targetTable, insertSql, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Commits the chunks written since the last commit then advances the checkpoint if the copy is journaled.
+     */
+    private void commit(final Connection connection, final String table, final List<Chunk> chunks, final long rows,
+                        final CommitProgress progress) throws SQLException {
+        long commitStart = System.nanoTime();
+        connection.commit();
+        RunMetrics.getInstance().recordCommit(table, rows, System.nanoTime() - commitStart);
+        if(progress != null) {
+            progress.committed(connection, chunks);
+        }
+    }
+
+    private long getWritten(final Future<Long> writer) throws SQLException, InterruptedException {
+        try {
+            return writer.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Writing into ".concat(targetTable).concat(" failed"), e.getCause());
+        }
+    }
+
+    /**
+     * Rows handed by the reader to the writers, numbered in the order they are read.
+     */
+    private static final class Chunk {
+        private final long sequence;
+        private final List<Object[]> rows;
+        private final Object[] lastKey;
+
+        private Chunk(final long sequence, final List<Object[]> rows, final Object[] lastKey) {
+            this.sequence = sequence;
+            this.rows = rows;
+            this.lastKey = lastKey;
+        }
+    }
+
+    /**
+     * The chunks committed by the writers of a journaled copy, they commit in any order so the checkpoint is the key of the last
+     * chunk of the committed chunks with no gap before them.
+     */
+    private static final class CommitProgress {
+        private final String journalName;
+        private final Map<Long, Object[]> committedKeys = new HashMap<>();
+        private long nextSequence;
+
+        private CommitProgress(final String journalName) {
+            this.journalName = journalName;
+        }
+
+        private synchronized void committed(final Connection connection, final List<Chunk> chunks) throws SQLException {
+            for (Chunk chunk : chunks) {
+                committedKeys.put(chunk.sequence, chunk.lastKey);
+            }
+            Object[] checkpoint = null;
+            while (committedKeys.containsKey(nextSequence)) {
+                checkpoint = committedKeys.remove(nextSequence++);
+            }
+            if(checkpoint != null) {
+                RunJournal.getInstance().saveCheckpoint(connection, journalName, checkpoint);
+                connection.commit();
+            }
+        }
+    }
+}
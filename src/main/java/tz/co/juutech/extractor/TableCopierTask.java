@@ -4,9 +4,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 
 /**
@@ -14,10 +16,12 @@ import java.util.concurrent.Callable;
  */
 public class TableCopierTask implements Callable<Void> {
     private String table;
-    private String condition;
+    private CopyCondition condition;
+    private KeyRange keyRange = KeyRange.ALL;
+    private String journalName;
     private static final Logger LOGGER = LoggerFactory.getLogger(TableCopierTask.class);
 
-    public TableCopierTask(String table, String condition) {
+    public TableCopierTask(String table, CopyCondition condition) {
         assert table != null;
         this.table = table;
         this.condition = condition;
@@ -28,69 +32,211 @@ public class TableCopierTask implements Callable<Void> {
         this.table = table;
     }
 
+    /**
+     * Creates a task copying only the records of the table whose primary key is in the passed range, this is used to copy
+     * a large table with several tasks running concurrently.
+     * @param table the table
+     * @param condition the condition or null
+     * @param keyRange the range of primary key values to copy.
+     */
+    public TableCopierTask(String table, CopyCondition condition, KeyRange keyRange) {
+        this(table, condition);
+        assert keyRange != null;
+        this.keyRange = keyRange;
+    }
+
+    /**
+     * Creates a task which records the key of each copied batch in the {@link RunJournal} under the passed name, when the task
+     * is run again (resumed) it continues after the recorded key.
+     * @param table the table
+     * @param condition the condition or null
+     * @param keyRange the range of primary key values to copy.
+     * @param journalName the name of the copy in the journal.
+     */
+    public TableCopierTask(String table, CopyCondition condition, KeyRange keyRange, String journalName) {
+        this(table, condition, keyRange);
+        assert journalName != null;
+        this.journalName = journalName;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public CopyCondition getCondition() {
+        return condition;
+    }
+
+    public KeyRange getKeyRange() {
+        return keyRange;
+    }
+
     @Override
     public Void call() throws SQLException {
-        ResultSet resultSet = null;
+        if(AppProperties.getInstance().isCrossServer()) {
+            return copyAcrossServers();
+        }
         String copyingSql = null;
         try (   Connection connection = ConnectionPool.getConnection();
                 Statement statement = connection.createStatement()) {
             connection.setAutoCommit(false);
-            statement.execute("set foreign_key_checks=0");
-            ExtractionUtils.copyOnlyStructure(this.table);
-
-            resultSet = statement.executeQuery(ExtractionUtils.getCountingQuery(table, condition));
-            resultSet.next();
-            int countToMove = resultSet.getInt(1);
-            int batchSize = AppProperties.getInstance().getBatchSize();
-            if(countToMove > batchSize) {
-                LOGGER.trace("Copying {} records from {} in batches of {}", countToMove, this.table, batchSize);
-                int start = 0;
-                int temp = countToMove;
-                // TODO: Assuming the openmrs convention where primary key column is always table_id, need to find a robust way of obtaining this.
-                String orderColumn = table + "_id";
-                if("users".equalsIgnoreCase(table)) {
-                    // users table is different in this case.
-                    orderColumn = "user_id";
-                }
-                int batchCount = 1;
-                int totalCopied = 0;
-                while (temp % batchSize > 0) {
-                    if (temp / batchSize > 0) {
-                        LOGGER.trace("Copying batch # {} of {} table, copied:  {}, copying: {}, remaining: {}", batchCount++, this.table, totalCopied,
-                                batchSize, countToMove - totalCopied);
-                        copyingSql = ExtractionUtils.getCopyingSQLWithOrderAndPaging(table, condition, orderColumn, start, batchSize);
-                        temp -= batchSize;
-                        totalCopied += batchSize;
-                    } else {
-                        LOGGER.trace("Copying batch # {} of {} table, copied:  {}, copying: {}, remaining: {}", batchCount++, this.table, totalCopied,
-                                temp, countToMove - totalCopied);
-                        copyingSql = ExtractionUtils.getCopyingSQLWithOrderAndPaging(table, condition, orderColumn, start, temp);
-                        temp = 0;
-                        totalCopied += temp;
+            try {
+                statement.execute("set foreign_key_checks=0");
+                ExtractionUtils.createTableToCopyInto(this.table);
+                ConditionPlanner planner = ConditionPlanner.forTable(connection, table);
+
+                int batchSize = AppProperties.getInstance().getBatchSize();
+                PrimaryKey primaryKey = ExtractionUtils.getPrimaryKey(table);
+                long estimatedCount = ExtractionUtils.getEstimatedRowCount(table);
+                long totalCopied = 0;
+                // Records copied since the last commit, the transaction is committed once they reach commit.rows or commit.bytes.
+                long uncommittedRows = 0;
+                long uncommittedBytes = 0;
+                Object[] lastKey = null;
+                if(!primaryKey.isEmpty() && (estimatedCount > batchSize || keyRange != KeyRange.ALL)) {
+                    LOGGER.trace("Copying records from {} with keys in {} in batches of {} ordered by {}", this.table, keyRange, batchSize,
+                            primaryKey.getColumns());
+                    Object[] lowerKey = keyRange.getLowerKey();
+                    Object[] checkpoint = journalName == null ? null : RunJournal.getInstance().getCheckpoint(journalName);
+                    if(checkpoint != null) {
+                        LOGGER.info("Resuming copying records from {} after key {}", this.table, Arrays.toString(checkpoint));
+                        lowerKey = checkpoint;
+                    }
+                    int batchCount = 1;
+                    boolean lastBatch = false;
+                    while (!lastBatch) {
+                        // Find the key of the last record of this batch, this only walks the primary key index.
+                        Object[] upperKey = null;
+                        copyingSql = ExtractionUtils.getKeysetBoundaryQuery(table, primaryKey, lowerKey != null, keyRange.hasUpperKey(), batchSize);
+                        try (PreparedStatement boundaryStatement = connection.prepareStatement(copyingSql)) {
+                            int index = 1;
+                            if(lowerKey != null) {
+                                index = primaryKey.bindAfter(boundaryStatement, index, lowerKey);
+                            }
+                            if(keyRange.hasUpperKey()) {
+                                primaryKey.bindUpTo(boundaryStatement, index, keyRange.getUpperKey());
+                            }
+                            try (ResultSet resultSet = boundaryStatement.executeQuery()) {
+                                if(resultSet.next()) {
+                                    upperKey = primaryKey.readKey(resultSet);
+                                }
+                            }
+                        }
+                        if(upperKey == null) {
+                            // Less than a batch remaining, the last batch goes up to the end of the range.
+                            lastBatch = true;
+                            upperKey = keyRange.getUpperKey();
+                        }
+
+                        copyingSql = ExtractionUtils.getCopyingSQLWithKeyset(table, condition, planner, primaryKey, lowerKey != null, upperKey != null);
+                        LOGGER.trace("Copying batch # {} of {} table, copied: {}", batchCount++, this.table, totalCopied);
+                        LOGGER.debug("Running SQL statement: {}", copyingSql);
+                        try (PreparedStatement copyingStatement = connection.prepareStatement(copyingSql)) {
+                            int index = 1;
+                            if(lowerKey != null) {
+                                index = primaryKey.bindAfter(copyingStatement, index, lowerKey);
+                            }
+                            if(upperKey != null) {
+                                primaryKey.bindUpTo(copyingStatement, index, upperKey);
+                            }
+                            long batchStart = System.nanoTime();
+                            int copied = copyingStatement.executeUpdate();
+                            recordBatch(copied, System.nanoTime() - batchStart);
+                            totalCopied += copied;
+                            uncommittedRows += copied;
+                            uncommittedBytes += copied * ExtractionUtils.getAverageRowLength(table);
+                        }
+                        if(!lastBatch && (uncommittedRows >= AppProperties.getInstance().getCommitRows()
+                                || uncommittedBytes >= AppProperties.getInstance().getCommitBytes())) {
+                            commit(connection, upperKey, uncommittedRows);
+                            uncommittedRows = 0;
+                            uncommittedBytes = 0;
+                        }
+                        lowerKey = upperKey;
                     }
-                    start += batchSize;
-                    LOGGER.debug("Running SQL statement: {}", copyingSql);
-                    statement.execute(copyingSql);
+                    lastKey = lowerKey;
+                } else {
+                    // few records to move or no key to page with.
+                    copyingSql = ExtractionUtils.getCopyingSQL(table, condition, planner);
+                    LOGGER.trace("Running SQL statement: {}", copyingSql);
+                    long batchStart = System.nanoTime();
+                    totalCopied = statement.executeUpdate(copyingSql);
+                    recordBatch(totalCopied, System.nanoTime() - batchStart);
+                    uncommittedRows = totalCopied;
                 }
-            } else {
-                // few records to move.
-                copyingSql = ExtractionUtils.getCopyingSQL(table, condition);
-                LOGGER.trace("Running SQL statement: {}", copyingSql);
-                statement.execute(copyingSql);
-            }
 
-            connection.commit();
-            LOGGER.debug("Done copying {} records for table {}", countToMove, this.table);
-            return null;
+                commit(connection, lastKey, uncommittedRows);
+                LOGGER.debug("Done copying {} records for table {}{}", totalCopied, this.table, keyRange == KeyRange.ALL ? "" : " with keys in " + keyRange);
+                return null;
+            } finally {
+                ConnectionPool.restoreAutoCommit(connection);
+            }
         } catch (SQLException e) {
             LOGGER.error("An error has occured while copying records for table {}, running SQL: {}", this.table, copyingSql, e);
             throw e;
-        } finally {
-            if(resultSet != null) {
-                try {
-                    resultSet.close();
-                } catch (SQLException e){}
+        }
+    }
+
+    /**
+     * Commits the records copied since the last commit, when the task is journaled the key of the last record copied is
+     * committed along with them so a resumed run continues right after it.
+     * @param checkpoint the key of the last record copied, null if unknown.
+     * @param rows the number of records copied since the last commit.
+     */
+    private void commit(final Connection connection, final Object[] checkpoint, final long rows) throws SQLException {
+        if(journalName != null && checkpoint != null) {
+            RunJournal.getInstance().saveCheckpoint(connection, journalName, checkpoint);
+        }
+        long commitStart = System.nanoTime();
+        connection.commit();
+        RunMetrics.getInstance().recordCommit(table, rows, System.nanoTime() - commitStart);
+        LOGGER.trace("Committed {} records of {}, {} committed so far", rows, table, RunMetrics.getInstance().getCommittedRows(table));
+    }
+
+    private void recordBatch(final long copied, final long elapsedNanos) throws SQLException {
+        AdaptiveConcurrencyController.getInstance().recordBatch(table, copied, elapsedNanos);
+        RunMetrics.getInstance().recordBatch(table, copied, copied * ExtractionUtils.getAverageRowLength(table), elapsedNanos);
+    }
+
+    /**
+     * Copies the records when the new database is on another server, the records are streamed from the source and written
+     * by the {@link StreamingCopier}. The key range is selected in a single streaming query, no need for paging since the rows
+     * are not held by the server in a single statement. When the task is journaled the records are selected in key order so
+     * that the copier can save the key of the last committed record, a resumed run selects the records after it.
+     */
+    private Void copyAcrossServers() throws SQLException {
+        String selectingSql = null;
+        ExtractionUtils.createTableToCopyInto(this.table);
+        try (Connection connection = ConnectionPool.getConnection();
+             KeysPushdown keysPushdown = new KeysPushdown(connection)) {
+            PrimaryKey primaryKey = ExtractionUtils.getPrimaryKey(table);
+            boolean journaled = journalName != null && !primaryKey.isEmpty();
+            Object[] lowerKey = keyRange.getLowerKey();
+            Object[] checkpoint = journaled ? RunJournal.getInstance().getCheckpoint(journalName) : null;
+            if(checkpoint != null) {
+                LOGGER.info("Resuming copying records from {} after key {}", this.table, Arrays.toString(checkpoint));
+                lowerKey = checkpoint;
+            }
+            ConditionPlanner planner = ConditionPlanner.forTable(connection, table);
+            selectingSql = ExtractionUtils.getSelectingSQL(table, keysPushdown.rewrite(condition, planner), planner,
+                    primaryKey.isEmpty() ? null : primaryKey, lowerKey != null, keyRange.hasUpperKey(), journaled);
+            LOGGER.debug("Streaming records selected by: {}", selectingSql);
+            try (PreparedStatement statement = connection.prepareStatement(selectingSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                int index = 1;
+                if(lowerKey != null) {
+                    index = primaryKey.bindAfter(statement, index, lowerKey);
+                }
+                if(keyRange.hasUpperKey()) {
+                    primaryKey.bindUpTo(statement, index, keyRange.getUpperKey());
+                }
+                String targetTable = AppProperties.getInstance().getNewDatabaseName().concat(".").concat(table);
+                long copied = new StreamingCopier(targetTable, journaled ? journalName : null, primaryKey).copy(statement);
+                LOGGER.debug("Done copying {} records for table {}{}", copied, this.table, keyRange == KeyRange.ALL ? "" : " with keys in " + keyRange);
             }
+            return null;
+        } catch (SQLException e) {
+            LOGGER.error("An error has occured while copying records for table {}, running SQL: {}", this.table, selectingSql, e);
+            throw e;
         }
     }
 }
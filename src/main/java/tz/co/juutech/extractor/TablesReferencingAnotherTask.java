@@ -3,9 +3,6 @@ package tz.co.juutech.extractor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,23 +37,14 @@ public class TablesReferencingAnotherTask implements Callable<Set<TableReferenci
 
     private Set<TableReferencingAnother> getTablesReferencingAnother() throws SQLException {
         Set<TableReferencingAnother> tablesReferencingAnother = new HashSet<>();
-        try (Connection connection = ConnectionPool.getConnection()) {
-            List<String> allTables = new ArrayList<>(getListOfAllTables());
+        try {
+            Set<String> allTables = new HashSet<>(getListOfAllTables());
             if(!tablesToExclude.isEmpty()) {
                 allTables.removeAll(tablesToExclude);
             }
-            if (!allTables.isEmpty()) {
-                final DatabaseMetaData DB_MD = connection.getMetaData();
-                final String DB_NAME = AppProperties.getInstance().getDatabaseName();
-                for (String tableName : allTables) {
-                    try(ResultSet references = DB_MD.getCrossReference(null, DB_NAME, parentTable, null, DB_NAME, tableName)) {
-                        while (references.next()) {
-                            if (references.getString("PKCOLUMN_NAME").contentEquals(pkColumn)) {
-                                tablesReferencingAnother.
-                                        add(new TableReferencingAnother(references.getString("FKTABLE_NAME"), references.getString("FKCOLUMN_NAME")));
-                            }
-                        }
-                    }
+            for (ForeignKeyGraph.ForeignKey foreignKey : ForeignKeyGraph.getInstance().getForeignKeysReferencing(parentTable)) {
+                if (allTables.contains(foreignKey.getTable()) && foreignKey.getReferencedColumn().contentEquals(pkColumn)) {
+                    tablesReferencingAnother.add(new TableReferencingAnother(foreignKey.getTable(), foreignKey.getColumn()));
                 }
             }
             return tablesReferencingAnother;
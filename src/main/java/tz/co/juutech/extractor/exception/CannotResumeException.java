@@ -0,0 +1,10 @@
+package tz.co.juutech.extractor.exception;
+
+/**
+ * Thrown when a failed extraction can't be resumed, the reason is in the message.
+ */
+public class CannotResumeException extends Exception {
+    public CannotResumeException(String reason) {
+        super(String.format("The extraction can't be resumed: %s", reason));
+    }
+}
@@ -0,0 +1,12 @@
+package tz.co.juutech.extractor.exception;
+
+import java.util.List;
+
+/**
+ * Thrown in batch mode when the extraction of some of the sites failed.
+ */
+public class SitesExtractionFailedException extends Exception {
+    public SitesExtractionFailedException(List<String> sites) {
+        super(String.format("The extraction of the sites %s failed", sites));
+    }
+}
@@ -0,0 +1,62 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AdaptiveConcurrencyControllerTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void wideTablesShouldNotReduceTheWorkers() throws Exception {
+        // An interval of 0 adjusts the limit after every batch.
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 4, 0);
+        long start = System.nanoTime();
+        controller.acquire();
+        controller.recordBatch("obs", 1000, TimeUnit.MILLISECONDS.toNanos(10), start + SECOND);
+        assertEquals(2, controller.getLimit());
+
+        controller.acquire();
+        controller.recordBatch("person_attribute", 2000, TimeUnit.MILLISECONDS.toNanos(1000), start + 2 * SECOND);
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void workersShouldOnlyBeRemovedAfterSustainedDegradation() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 8, 0);
+        long start = System.nanoTime();
+        for (int i = 1; i <= 4; i++) {
+            controller.acquire();
+            controller.recordBatch("obs", 1000 * i, TimeUnit.MILLISECONDS.toNanos(10), start + i * SECOND);
+        }
+        assertEquals(5, controller.getLimit());
+
+        controller.recordBatch("obs", 4000, TimeUnit.MILLISECONDS.toNanos(100), start + 5 * SECOND);
+        assertEquals(5, controller.getLimit());
+        controller.recordBatch("obs", 4000, TimeUnit.MILLISECONDS.toNanos(100), start + 6 * SECOND);
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void workersShouldOnlyBeAddedWhileTheThroughputRises() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 8, 0);
+        long start = System.nanoTime();
+        controller.acquire();
+        controller.recordBatch("obs", 1000, TimeUnit.MILLISECONDS.toNanos(10), start + SECOND);
+        controller.acquire();
+        controller.recordBatch("obs", 2000, TimeUnit.MILLISECONDS.toNanos(10), start + 2 * SECOND);
+        assertEquals(3, controller.getLimit());
+
+        // The third worker brings no more rows per second, the latency of the batches is unchanged.
+        controller.acquire();
+        controller.recordBatch("obs", 2000, TimeUnit.MILLISECONDS.toNanos(10), start + 3 * SECOND);
+        assertEquals(3, controller.getLimit());
+
+        controller.recordBatch("obs", 1500, TimeUnit.MILLISECONDS.toNanos(8), start + 4 * SECOND);
+        assertEquals(3, controller.getLimit());
+        controller.recordBatch("obs", 1000, TimeUnit.MILLISECONDS.toNanos(5), start + 5 * SECOND);
+        assertEquals(2, controller.getLimit());
+    }
+}
@@ -0,0 +1,77 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class CopyConditionTest {
+    private static final CopyCondition PERSON = CopyCondition.in("person_id", "extracted.person", "person_id");
+    private static final CopyCondition LOCATION = CopyCondition.inList("location_id", Arrays.asList(1, 2));
+
+    @Test
+    public void semiJoinsShouldRenderAsInSubqueriesAsWritten() {
+        assertEquals("t.person_id IN (SELECT s1.person_id FROM extracted.person s1)", PERSON.toString());
+        assertEquals("t.provider_id NOT IN (SELECT s1.provider_id FROM extracted.provider s1)",
+                CopyCondition.notIn("provider_id", "extracted.provider", "provider_id").toString());
+    }
+
+    @Test
+    public void filtersShouldReferenceTheTableOfTheirSubquery() {
+        CopyCondition condition = CopyCondition.in("encounter_id", "extracted.encounter", "encounter_id",
+                CopyCondition.and(CopyCondition.inList("voided", Collections.singletonList(0)),
+                        CopyCondition.in("patient_id", "extracted.patient", "patient_id")));
+        assertEquals("t.encounter_id IN (SELECT s1.encounter_id FROM extracted.encounter s1 WHERE (s1.voided = 0 AND "
+                + "s1.patient_id IN (SELECT s2.patient_id FROM extracted.patient s2)))", condition.toString());
+    }
+
+    @Test
+    public void inListsShouldRenderOneValueAsAComparison() {
+        assertEquals("t.location_id IN (1, 2)", LOCATION.toString());
+        assertEquals("t.location_id = 1", CopyCondition.inList("location_id", Collections.singletonList(1)).toString());
+        assertEquals("t.found_in <> 'obs'", CopyCondition.notInList("found_in", Collections.singletonList("obs")).toString());
+        assertEquals("t.found_in NOT IN ('obs', 'visit')", CopyCondition.notInList("found_in", Arrays.asList("obs", "visit")).toString());
+    }
+
+    @Test
+    public void emptyInListsShouldSelectNothingOrEverything() {
+        assertEquals("1 = 0", CopyCondition.inList("location_id", Collections.emptyList()).toString());
+        assertEquals("1 = 1", CopyCondition.notInList("location_id", Collections.emptyList()).toString());
+    }
+
+    @Test
+    public void literalsShouldBeQuotedAndEscaped() {
+        assertEquals("t.date_changed > '2026-01-02 03:04:05'",
+                CopyCondition.after("date_changed", LocalDateTime.of(2026, 1, 2, 3, 4, 5)).toString());
+        assertEquals("t.family_name = 'O''Brien\\\\'",
+                CopyCondition.inList("family_name", Collections.singletonList("O'Brien\\")).toString());
+        assertEquals("42", CopyCondition.toLiteral(42L));
+    }
+
+    @Test
+    public void andShouldLeaveOutNullConditions() {
+        assertNull(CopyCondition.and(null, null));
+        assertSame(PERSON, CopyCondition.and(null, PERSON));
+        assertEquals("(t.person_id IN (SELECT s1.person_id FROM extracted.person s1) AND t.location_id IN (1, 2))",
+                CopyCondition.and(PERSON, null, LOCATION).toString());
+    }
+
+    @Test
+    public void orShouldSelectAllTheRecordsWhenAnOperandIsNull() {
+        assertNull(CopyCondition.or(PERSON, null));
+        assertSame(PERSON, CopyCondition.or(PERSON));
+        CopyCondition voided = CopyCondition.inList("voided", Collections.singletonList(0));
+        assertEquals("((t.person_id IN (SELECT s1.person_id FROM extracted.person s1) OR t.location_id IN (1, 2)) AND t.voided = 0)",
+                CopyCondition.and(CopyCondition.or(PERSON, LOCATION), voided).toString());
+    }
+
+    @Test
+    public void nullConditionsShouldRenderAsNull() {
+        assertNull(ConditionPlanner.AS_WRITTEN.render(null));
+    }
+}
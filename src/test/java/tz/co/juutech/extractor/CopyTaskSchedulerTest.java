@@ -0,0 +1,109 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CopyTaskSchedulerTest {
+    private final ExecutorService service = Executors.newFixedThreadPool(4);
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    public void shutdown() {
+        service.shutdownNow();
+    }
+
+    @Test
+    public void tasksShouldStartOnceTheirDependenciesAreDone() throws Exception {
+        CopyTaskScheduler scheduler = newScheduler();
+        scheduler.addTask("obs", task("obs"), "person", "concept");
+        scheduler.addTask("person", task("person"));
+        scheduler.addTask("concept", task("concept"));
+        scheduler.addTask("person_name", task("person_name"), "person");
+        scheduler.addTask("encounter", task("encounter"), "person");
+        scheduler.addTask("encounter_provider", task("encounter_provider"), "encounter");
+        scheduler.addTask("provider", task("provider"), "encounter_provider");
+        scheduler.run(service);
+
+        assertEquals(14, events.size());
+        for (String name : scheduler.getTaskNames()) {
+            for (String dependency : scheduler.getDependencies(name)) {
+                assertTrue(events.indexOf("done:" + dependency) < events.indexOf("start:" + name),
+                        dependency + " before " + name + ": " + events);
+            }
+        }
+        assertEquals(Arrays.asList("person", "encounter", "encounter_provider", "provider"), scheduler.getCriticalPath());
+    }
+
+    @Test
+    public void cyclicDependenciesShouldFailBeforeAnyTaskStarts() {
+        CopyTaskScheduler scheduler = newScheduler();
+        scheduler.addTask("person", task("person"));
+        scheduler.addTask("encounter_provider", task("encounter_provider"), "person", "provider");
+        scheduler.addTask("provider", task("provider"), "encounter_provider");
+
+        assertThrows(IllegalStateException.class, () -> scheduler.run(service));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void dependenciesOnTasksNotAddedShouldBeIgnored() throws Exception {
+        CopyTaskScheduler scheduler = newScheduler();
+        scheduler.addTask("obs", task("obs"), "person", "excluded_table");
+        scheduler.addTask("person", task("person"));
+
+        assertEquals(Collections.singleton("person"), scheduler.getDependencies("obs"));
+        scheduler.run(service);
+        assertEquals(Arrays.asList("start:person", "done:person", "start:obs", "done:obs"), events);
+    }
+
+    @Test
+    public void addingATaskTwiceShouldFail() {
+        CopyTaskScheduler scheduler = newScheduler();
+        Callable<Void> person = task("person");
+        scheduler.addTask("person", person);
+
+        assertThrows(IllegalArgumentException.class, () -> scheduler.addTask("person", task("person")));
+        assertSame(person, scheduler.getTask("person"));
+    }
+
+    @Test
+    public void aFailedTaskShouldStopItsDependents() throws Exception {
+        CopyTaskScheduler scheduler = newScheduler();
+        SQLException failure = new SQLException("Table 'openmrs.person' doesn't exist");
+        scheduler.addTask("person", () -> {
+            throw failure;
+        });
+        scheduler.addTask("obs", task("obs"), "person");
+
+        assertSame(failure, assertThrows(SQLException.class, () -> scheduler.run(service)));
+        assertFalse(events.contains("start:obs"));
+    }
+
+    private CopyTaskScheduler newScheduler() {
+        return new CopyTaskScheduler(new AdaptiveConcurrencyController(4, 4, 0));
+    }
+
+    private Callable<Void> task(final String name) {
+        return () -> {
+            events.add("start:" + name);
+            Thread.sleep(5);
+            events.add("done:" + name);
+            return null;
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DirectDumpTest {
+    private FakeDatabase database;
+
+    @BeforeEach
+    public void install() throws Exception {
+        database = FakeDatabase.install();
+        database.setProperty("directDump", true);
+    }
+
+    @AfterEach
+    public void uninstall() throws Exception {
+        database.uninstall();
+    }
+
+    @Test
+    public void bookkeepingColumnsShouldBeThePrimaryAndForeignKeyColumns() throws Exception {
+        assertEquals(Arrays.asList("encounter_id", "patient_id", "location_id"), ExtractionUtils.getBookkeepingColumns("encounter"));
+        assertEquals(Collections.singletonList("location_id"), ExtractionUtils.getBookkeepingColumns("location"));
+        // Can't be joined back to the source without a primary key.
+        assertNull(ExtractionUtils.getBookkeepingColumns("audit_log"));
+    }
+
+    @Test
+    public void onlyTheBookkeepingColumnsShouldBeCopied() throws Exception {
+        ExtractionUtils.copyOnlyStructure("encounter");
+
+        assertEquals(Collections.singletonList("CREATE TABLE IF NOT EXISTS extracted.encounter (`encounter_id` int(11) NOT NULL, "
+                + "`patient_id` int(11) NOT NULL, `location_id` int(11) NULL, PRIMARY KEY (encounter_id))"),
+                database.getStatements("CREATE TABLE"));
+        assertEquals("INSERT IGNORE INTO extracted.encounter (encounter_id, patient_id, location_id) (SELECT t.encounter_id, "
+                + "t.patient_id, t.location_id FROM openmrs.encounter AS t WHERE t.voided = 0)",
+                ExtractionUtils.getCopyingSQL("encounter", CopyCondition.inList("voided", Collections.singletonList(0)),
+                        ConditionPlanner.AS_WRITTEN));
+    }
+
+    @Test
+    public void theDumpShouldReadTheWholeRecordsFromTheSource() throws Exception {
+        assertEquals("SELECT s.* FROM openmrs.encounter s INNER JOIN extracted.encounter k ON s.encounter_id = k.encounter_id",
+                ExtractionUtils.getDumpQuery("encounter", null, false, false));
+        assertEquals(FakeDatabase.ENCOUNTER, ExtractionUtils.getDumpCreateTableStatement("encounter"));
+        assertTrue(ExtractionUtils.isDumpedWithRecords("encounter"));
+        assertEquals("SELECT t.* FROM extracted.audit_log t", ExtractionUtils.getDumpQuery("audit_log", null, false, false));
+    }
+
+    @Test
+    public void theWholeRecordsShouldBeCopiedWithoutDirectDump() throws Exception {
+        database.setProperty("directDump", false);
+
+        assertNull(ExtractionUtils.getBookkeepingColumns("encounter"));
+        assertEquals("INSERT IGNORE INTO extracted.encounter (SELECT * FROM openmrs.encounter AS t)",
+                ExtractionUtils.getCopyingSQL("encounter", null, ConditionPlanner.AS_WRITTEN));
+        assertEquals("SELECT t.* FROM extracted.encounter t", ExtractionUtils.getDumpQuery("encounter", null, false, false));
+    }
+}
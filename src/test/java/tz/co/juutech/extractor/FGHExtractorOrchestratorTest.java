@@ -0,0 +1,86 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FGHExtractorOrchestratorTest {
+    // Tables of the OpenMRS schema as returned by ExtractionUtils.getListOfTablesToMove(), without person, patient & users tables.
+    private static final List<String> TABLES_TO_MOVE = Arrays.asList("concept", "encounter", "encounter_provider", "encounter_type",
+            "location", "obs", "patient_identifier", "patient_program", "patient_state", "person_address", "person_attribute",
+            "person_merge_log", "person_name", "program", "provider", "relationship", "role", "visit");
+
+    @Test
+    public void buildCopyGraphShouldScheduleEachTableOnceForTheOpenmrsSchema() throws Exception {
+        Set<TableReferencingAnother> personRefs = references("obs.person_id", "person_address.person_id", "person_attribute.person_id",
+                "person_merge_log.winner_person", "person_merge_log.loser_person", "person_name.person_id", "provider.person_id",
+                "relationship.person_a", "relationship.person_b", "users.person_id", "visit.patient_id");
+        Set<TableReferencingAnother> patientRefs = references("encounter.patient_id", "patient_identifier.patient_id",
+                "patient_program.patient_id", "visit.patient_id");
+        FGHExtractorOrchestrator.SharedDiscovery discovery = new FGHExtractorOrchestrator.SharedDiscovery(personRefs, patientRefs,
+                Collections.emptyMap(), new ArrayList<>(references("obs.creator", "users.creator")), 0);
+
+        List<String> tablesDumpedFromSource = new ArrayList<>();
+        CopyTaskScheduler scheduler = FGHExtractorOrchestrator.buildCopyGraph(discovery, new ArrayList<>(TABLES_TO_MOVE),
+                "SELECT patient_id FROM patient", null, null, false, tablesDumpedFromSource);
+
+        for (String table : TABLES_TO_MOVE) {
+            assertInstanceOf(TableCopierTask.class, scheduler.getTask(table), table);
+        }
+        assertTrue(tablesDumpedFromSource.isEmpty());
+        // provider & users have tasks of their own, they are not copied through their references to person.
+        assertEquals(Collections.singleton("encounter_provider"), scheduler.getDependencies("provider"));
+        assertFalse(scheduler.getTask("users") instanceof TableCopierTask);
+        assertFalse(scheduler.contains("associated:persons:provider"));
+        assertFalse(scheduler.contains("associated:persons:users"));
+
+        // A table referencing person twice or person & patient is copied by one task selecting on all its references.
+        String mergeLogCondition = ((TableCopierTask) scheduler.getTask("person_merge_log")).getCondition().toString();
+        assertTrue(mergeLogCondition.contains("t.winner_person IN") && mergeLogCondition.contains("t.loser_person IN"), mergeLogCondition);
+        assertEquals(new HashSet<>(Arrays.asList("patient", "person")), scheduler.getDependencies("visit"));
+        assertTrue(scheduler.contains("relationship:person_b") || scheduler.contains("relationship:person_a"));
+    }
+
+    @Test
+    public void buildCopyGraphShouldCopyTheRecordsReferencingTheRecordsOfTheAssociatedPersons() throws Exception {
+        Set<TableReferencingAnother> personRefs = references("provider.person_id", "relationship.person_a", "relationship.person_b",
+                "users.person_id");
+        Set<TableReferencingAnother> patientRefs = references("encounter.patient_id", "patient_program.patient_id");
+        FGHExtractorOrchestrator.SharedDiscovery discovery = new FGHExtractorOrchestrator.SharedDiscovery(personRefs, patientRefs,
+                Collections.emptyMap(), new ArrayList<>(references("encounter.creator")), 0);
+
+        CopyTaskScheduler scheduler = FGHExtractorOrchestrator.buildCopyGraph(discovery, new ArrayList<>(TABLES_TO_MOVE),
+                "SELECT patient_id FROM patient", null, null, false, new ArrayList<>());
+
+        for (String personsTask : Arrays.asList("associated:persons", "users:persons")) {
+            assertEquals(new HashSet<>(Arrays.asList(personsTask + ":encounter", "encounter_provider")),
+                    scheduler.getDependencies(personsTask + ":encounter_provider"));
+            assertEquals(new HashSet<>(Arrays.asList(personsTask + ":patient_program", "patient_state")),
+                    scheduler.getDependencies(personsTask + ":patient_state"));
+            String condition = ((TableCopierTask) scheduler.getTask(personsTask + ":patient_state")).getCondition().toString();
+            assertTrue(condition.contains("t.patient_state_id NOT IN") && condition.contains("t.patient_program_id IN"), condition);
+        }
+        // The records of the associated persons are copied before the users they reference are collected.
+        assertTrue(scheduler.getDependencies("users").contains("associated:persons:patient_state"));
+        assertEquals(Collections.singleton("patient_program"), scheduler.getDependencies("patient_state"));
+    }
+
+    private static Set<TableReferencingAnother> references(final String... columns) {
+        Set<TableReferencingAnother> references = new HashSet<>();
+        for (String column : columns) {
+            String[] tableAndColumn = column.split("\\.");
+            references.add(new TableReferencingAnother(tableAndColumn[0], tableAndColumn[1]));
+        }
+        return references;
+    }
+}
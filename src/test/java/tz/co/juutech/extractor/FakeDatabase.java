@@ -0,0 +1,361 @@
+package tz.co.juutech.extractor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A JDBC driver standing in for the MySQL one in the tests going through the connection pool. It serves the structure of a few
+ * OpenMRS like source tables (SHOW CREATE TABLE, the database metadata and the information_schema queries of the extractor)
+ * and records the statements run so the tests can check them, nothing is stored.
+ */
+final class FakeDatabase implements Driver {
+    static final String LOCATION = "CREATE TABLE `location` (\n"
+            + "  `location_id` int(11) NOT NULL AUTO_INCREMENT,\n"
+            + "  `name` varchar(255) NOT NULL DEFAULT '',\n"
+            + "  `description` varchar(255) DEFAULT NULL,\n"
+            + "  `uuid` char(38) NOT NULL,\n"
+            + "  PRIMARY KEY (`location_id`),\n"
+            + "  UNIQUE KEY `location_uuid_index` (`uuid`),\n"
+            + "  KEY `name_of_location` (`name`)\n"
+            + ") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+    static final String PATIENT = "CREATE TABLE `patient` (\n"
+            + "  `patient_id` int(11) NOT NULL,\n"
+            + "  `voided` tinyint(1) NOT NULL DEFAULT '0',\n"
+            + "  PRIMARY KEY (`patient_id`)\n"
+            + ") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+    static final String ENCOUNTER = "CREATE TABLE `encounter` (\n"
+            + "  `encounter_id` int(11) NOT NULL AUTO_INCREMENT,\n"
+            + "  `encounter_type` int(11) NOT NULL,\n"
+            + "  `patient_id` int(11) NOT NULL DEFAULT '0',\n"
+            + "  `location_id` int(11) DEFAULT NULL,\n"
+            + "  `encounter_datetime` datetime NOT NULL,\n"
+            + "  `voided` tinyint(1) NOT NULL DEFAULT '0',\n"
+            + "  `uuid` char(38) NOT NULL,\n"
+            + "  PRIMARY KEY (`encounter_id`),\n"
+            + "  UNIQUE KEY `encounter_uuid_index` (`uuid`),\n"
+            + "  KEY `encounter_datetime_idx` (`encounter_datetime`),\n"
+            + "  KEY `encounter_patient` (`patient_id`),\n"
+            + "  KEY `encounter_location` (`location_id`),\n"
+            + "  CONSTRAINT `encounter_location` FOREIGN KEY (`location_id`) REFERENCES `location` (`location_id`),\n"
+            + "  CONSTRAINT `encounter_patient` FOREIGN KEY (`patient_id`) REFERENCES `patient` (`patient_id`) ON UPDATE CASCADE\n"
+            + ") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+    static final String AUDIT_LOG = "CREATE TABLE `audit_log` (\n"
+            + "  `message` text,\n"
+            + "  `date_created` datetime NOT NULL\n"
+            + ") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+
+    private static final Pattern COLUMN = Pattern.compile("^`(\\w+)` (\\S+)");
+    private static final Pattern PRIMARY_KEY = Pattern.compile("^PRIMARY KEY \\((.+)\\)");
+    private static final Pattern FOREIGN_KEY = Pattern.compile("FOREIGN KEY \\(`(\\w+)`\\) REFERENCES `(\\w+)` \\(`(\\w+)`\\)");
+
+    // Shared by the installed databases as the pooled connections outlive them.
+    private static final List<String> STATEMENTS = Collections.synchronizedList(new ArrayList<>());
+
+    private final Map<String, String> createTableStatements = new LinkedHashMap<>();
+    private final List<Driver> replacedDrivers = new ArrayList<>();
+    private final Map<String, Object> replacedProperties = new HashMap<>();
+
+    private FakeDatabase() {
+        for (String createTableSql : new String[] { LOCATION, PATIENT, ENCOUNTER, AUDIT_LOG }) {
+            createTableStatements.put(createTableSql.substring(createTableSql.indexOf('`') + 1, createTableSql.indexOf("` (")),
+                    createTableSql);
+        }
+    }
+
+    /**
+     * Registers the fake driver in place of the other drivers, connections of the pool opened after this call are fake ones.
+     * @return the database
+     */
+    static FakeDatabase install() throws Exception {
+        // Loaded first so that it does not register itself again once replaced.
+        Class.forName("com.mysql.jdbc.Driver");
+        FakeDatabase database = new FakeDatabase();
+        for (Driver driver : Collections.list(DriverManager.getDrivers())) {
+            DriverManager.deregisterDriver(driver);
+            database.replacedDrivers.add(driver);
+        }
+        DriverManager.registerDriver(database);
+        database.clearStatements();
+        return database;
+    }
+
+    /**
+     * Puts the replaced drivers and application properties back.
+     */
+    void uninstall() throws Exception {
+        DriverManager.deregisterDriver(this);
+        for (Driver driver : replacedDrivers) {
+            DriverManager.registerDriver(driver);
+        }
+        for (Map.Entry<String, Object> property : replacedProperties.entrySet()) {
+            setField(property.getKey(), property.getValue());
+        }
+    }
+
+    /**
+     * Changes one of the application properties until {@link #uninstall()}.
+     * @param field the name of the field of {@link AppProperties}, for example directDump
+     * @param value the value
+     */
+    void setProperty(final String field, final Object value) throws Exception {
+        replacedProperties.putIfAbsent(field, setField(field, value));
+    }
+
+    /**
+     * @return the statements run so far in the order they were run.
+     */
+    List<String> getStatements() {
+        synchronized (STATEMENTS) {
+            return new ArrayList<>(STATEMENTS);
+        }
+    }
+
+    void clearStatements() {
+        STATEMENTS.clear();
+    }
+
+    /**
+     * @param prefix the start of the statements
+     * @return the statements run starting with the prefix.
+     */
+    List<String> getStatements(final String prefix) {
+        List<String> matching = new ArrayList<>();
+        for (String sql : getStatements()) {
+            if(sql.startsWith(prefix)) {
+                matching.add(sql);
+            }
+        }
+        return matching;
+    }
+
+    @Override
+    public Connection connect(final String url, final Properties info) {
+        return acceptsURL(url) ? newConnection() : null;
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) {
+        return url != null && url.startsWith("jdbc:mysql:");
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static Object setField(final String field, final Object value) throws Exception {
+        Field declaredField = AppProperties.class.getDeclaredField(field);
+        declaredField.setAccessible(true);
+        Object previous = declaredField.get(AppProperties.getInstance());
+        declaredField.set(AppProperties.getInstance(), value);
+        return previous;
+    }
+
+    private Connection newConnection() {
+        Connection[] connection = new Connection[1];
+        DatabaseMetaData metaData = proxy(DatabaseMetaData.class, (method, args) -> {
+            switch (method) {
+                case "getTables": return getTables();
+                case "getPrimaryKeys": return getPrimaryKey((String) args[2]);
+                case "getConnection": return connection[0];
+                default: return null;
+            }
+        });
+        connection[0] = proxy(Connection.class, (method, args) -> {
+            switch (method) {
+                case "createStatement": return newStatement(connection[0], null);
+                case "prepareStatement": return newStatement(connection[0], (String) args[0]);
+                case "getMetaData": return metaData;
+                case "getAutoCommit":
+                case "isValid": return true;
+                default: return null;
+            }
+        });
+        return connection[0];
+    }
+
+    private Statement newStatement(final Connection connection, final String preparedSql) {
+        Map<Integer, Object> parameters = new HashMap<>();
+        return proxy(PreparedStatement.class, (method, args) -> {
+            switch (method) {
+                case "setString":
+                case "setObject":
+                case "setInt":
+                case "setLong":
+                    parameters.put((Integer) args[0], args[1]);
+                    return null;
+                case "executeQuery":
+                    String sql = preparedSql == null ? (String) args[0] : preparedSql;
+                    STATEMENTS.add(sql);
+                    return executeQuery(sql, parameters);
+                case "execute":
+                case "executeUpdate":
+                    STATEMENTS.add(preparedSql == null ? (String) args[0] : preparedSql);
+                    return method.equals("execute") ? (Object) false : (Object) 0;
+                case "getConnection": return connection;
+                default: return null;
+            }
+        });
+    }
+
+    private ResultSet executeQuery(final String sql, final Map<Integer, Object> parameters) throws SQLException {
+        if(sql.startsWith("SHOW CREATE TABLE ")) {
+            String table = sql.substring(sql.lastIndexOf('.') + 1).replace("`", "");
+            if(!createTableStatements.containsKey(table)) {
+                throw new SQLException("Table '" + table + "' doesn't exist");
+            }
+            return InMemoryResultSets.create(new String[] { "Table", "Create Table" }, new int[] { Types.VARCHAR, Types.VARCHAR },
+                    new String[] { "VARCHAR", "VARCHAR" }, Collections.singletonList(new Object[] { table, createTableStatements.get(table) }));
+        }
+        if(sql.contains("information_schema.COLUMNS")) {
+            return getColumns((String) parameters.get(2));
+        }
+        if(sql.contains("information_schema.REFERENTIAL_CONSTRAINTS")) {
+            return getForeignKeys();
+        }
+        if(sql.contains("information_schema.STATISTICS")) {
+            // No index in the new database yet.
+            return InMemoryResultSets.create(new String[] { "INDEX_NAME", "KEY" }, new int[] { Types.VARCHAR, Types.VARCHAR },
+                    new String[] { "VARCHAR", "VARCHAR" }, Collections.emptyList());
+        }
+        throw new SQLException("The fake database does not answer " + sql);
+    }
+
+    private ResultSet getTables() throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        for (String table : createTableStatements.keySet()) {
+            rows.add(new Object[] { table });
+        }
+        return InMemoryResultSets.create(new String[] { "TABLE_NAME" }, new int[] { Types.VARCHAR }, new String[] { "VARCHAR" }, rows);
+    }
+
+    private ResultSet getPrimaryKey(final String table) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        for (String definition : getDefinitions(table)) {
+            Matcher primaryKey = PRIMARY_KEY.matcher(definition);
+            if(primaryKey.find()) {
+                short sequence = 1;
+                for (String column : primaryKey.group(1).split(",")) {
+                    rows.add(new Object[] { sequence++, column.trim().replace("`", "") });
+                }
+            }
+        }
+        return InMemoryResultSets.create(new String[] { "KEY_SEQ", "COLUMN_NAME" }, new int[] { Types.SMALLINT, Types.VARCHAR },
+                new String[] { "SMALLINT", "VARCHAR" }, rows);
+    }
+
+    private ResultSet getColumns(final String table) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        for (String definition : getDefinitions(table)) {
+            Matcher column = COLUMN.matcher(definition);
+            if(column.find()) {
+                rows.add(new Object[] { column.group(1), column.group(2), definition.contains("NOT NULL") ? "NO" : "YES" });
+            }
+        }
+        return InMemoryResultSets.create(new String[] { "COLUMN_NAME", "COLUMN_TYPE", "IS_NULLABLE" },
+                new int[] { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR }, new String[] { "VARCHAR", "VARCHAR", "VARCHAR" }, rows);
+    }
+
+    private ResultSet getForeignKeys() throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        for (String table : createTableStatements.keySet()) {
+            for (String definition : getDefinitions(table)) {
+                Matcher foreignKey = FOREIGN_KEY.matcher(definition);
+                if(foreignKey.find()) {
+                    rows.add(new Object[] { table, foreignKey.group(1), foreignKey.group(2), foreignKey.group(3) });
+                }
+            }
+        }
+        return InMemoryResultSets.create(new String[] { "TABLE_NAME", "COLUMN_NAME", "REFERENCED_TABLE_NAME", "REFERENCED_COLUMN_NAME" },
+                new int[] { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR },
+                new String[] { "VARCHAR", "VARCHAR", "VARCHAR", "VARCHAR" }, rows);
+    }
+
+    /**
+     * @return the column, key and constraint definitions of a table, one per line of its CREATE TABLE statement.
+     */
+    private List<String> getDefinitions(final String table) {
+        List<String> definitions = new ArrayList<>();
+        String[] lines = createTableStatements.getOrDefault(table, "").split("\n");
+        for (int i = 1; i < lines.length - 1; i++) {
+            String definition = lines[i].trim();
+            definitions.add(definition.endsWith(",") ? definition.substring(0, definition.length() - 1) : definition);
+        }
+        return definitions;
+    }
+
+    private interface Invocation {
+        Object invoke(String method, Object[] args) throws SQLException;
+    }
+
+    /**
+     * @return an implementation of the interface answering the calls with the invocation, the calls it returns null for
+     * return the default value of their return type.
+     */
+    private static <T> T proxy(final Class<T> type, final Invocation invocation) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals": return proxy == args[0];
+                case "hashCode": return System.identityHashCode(proxy);
+                case "toString": return "Fake".concat(type.getSimpleName());
+                default:
+            }
+            Object value = invocation.invoke(method.getName(), args);
+            if(value != null || !method.getReturnType().isPrimitive()) {
+                return value;
+            }
+            Class<?> returnType = method.getReturnType();
+            if(returnType == boolean.class) return false;
+            if(returnType == void.class) return null;
+            if(returnType == long.class) return 0L;
+            if(returnType == short.class) return (short) 0;
+            if(returnType == byte.class) return (byte) 0;
+            if(returnType == double.class) return 0d;
+            if(returnType == float.class) return 0f;
+            return 0;
+        };
+        return type.cast(Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+}
@@ -0,0 +1,64 @@
+package tz.co.juutech.extractor;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result sets held in memory (cached row sets of the JDK) for the tests reading rows.
+ */
+final class InMemoryResultSets {
+    private InMemoryResultSets() {}
+
+    /**
+     * @param count the number of rows
+     * @param name the value of the name column of every row
+     * @return result set of person_name like rows (person_name_id INT, given_name VARCHAR) numbered from 1.
+     */
+    static CachedRowSet names(final int count, final String name) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            rows.add(new Object[] { i, name });
+        }
+        return create(new String[] { "person_name_id", "given_name" }, new int[] { Types.INTEGER, Types.VARCHAR },
+                new String[] { "INT", "VARCHAR" }, rows);
+    }
+
+    /**
+     * @param columns the column names
+     * @param types the JDBC types of the columns
+     * @param typeNames the database type names of the columns
+     * @param rows the rows, values are Integer, Double, String, java.sql.Timestamp, byte[] or null.
+     * @return the result set positioned before the first row.
+     */
+    static CachedRowSet create(final String[] columns, final int[] types, final String[] typeNames, final List<Object[]> rows)
+            throws SQLException {
+        CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+        RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+        metaData.setColumnCount(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            metaData.setColumnName(i + 1, columns[i]);
+            metaData.setColumnLabel(i + 1, columns[i]);
+            metaData.setColumnType(i + 1, types[i]);
+            metaData.setColumnTypeName(i + 1, typeNames[i]);
+            metaData.setNullable(i + 1, RowSetMetaDataImpl.columnNullable);
+        }
+        rowSet.setMetaData(metaData);
+        rowSet.moveToInsertRow();
+        // Each row is inserted before the previous ones.
+        for (int r = rows.size() - 1; r >= 0; r--) {
+            Object[] row = rows.get(r);
+            for (int i = 0; i < row.length; i++) {
+                rowSet.updateObject(i + 1, row[i]);
+            }
+            rowSet.insertRow();
+        }
+        rowSet.moveToCurrentRow();
+        rowSet.beforeFirst();
+        return rowSet;
+    }
+}
@@ -0,0 +1,42 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsReportTest {
+
+    @Test
+    public void readShouldReturnTheFieldsOfTheReportWrittenByRunMetrics() throws Exception {
+        RunMetrics metrics = RunMetrics.getInstance();
+        metrics.recordPhase("copy", TimeUnit.MILLISECONDS.toNanos(4000));
+        metrics.recordPhase("dump", TimeUnit.MILLISECONDS.toNanos(1500));
+        metrics.recordBatch("obs", 1000, 64000, TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.recordBatch("person \"quoted\"", 10, 800, TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.recordDump("obs", 1000, 120000, TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.recordDump("person \"quoted\"", 10, 1500, TimeUnit.MILLISECONDS.toNanos(1));
+
+        MetricsReport report = MetricsReport.parse(metrics.toJson(true, TimeUnit.SECONDS.toNanos(6)));
+
+        assertTrue(report.isSucceeded());
+        assertEquals(4000, report.getPhaseMillis("copy"));
+        assertEquals(1500, report.getPhaseMillis("dump"));
+        assertEquals(0, report.getPhaseMillis("indexes"));
+        assertEquals(1010, report.getTablesTotal("rows"));
+        assertEquals(121500, report.getTablesTotal("dumpBytes"));
+        assertFalse(MetricsReport.parse(metrics.toJson(false, 0)).isSucceeded());
+    }
+
+    @Test
+    public void parseShouldRejectWhatIsNotAJsonObject() {
+        assertThrows(IOException.class, () -> MetricsReport.parse("{\"succeeded\": true, \"phases\": {"));
+        assertThrows(IOException.class, () -> MetricsReport.parse("[1, 2]"));
+        assertThrows(IOException.class, () -> MetricsReport.parse("{} trailing"));
+    }
+}
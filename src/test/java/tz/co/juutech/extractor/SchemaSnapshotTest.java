@@ -0,0 +1,86 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SchemaSnapshotTest {
+    private FakeDatabase database;
+
+    @BeforeEach
+    public void install() throws Exception {
+        database = FakeDatabase.install();
+    }
+
+    @AfterEach
+    public void uninstall() throws Exception {
+        database.uninstall();
+    }
+
+    @Test
+    public void theSnapshotShouldBeTakenOnceWithTheStatementsOfShowCreateTable() throws Exception {
+        ExtractionUtils.loadSchemaSnapshot();
+        ExtractionUtils.loadSchemaSnapshot();
+
+        assertEquals(Arrays.asList("SHOW CREATE TABLE openmrs.`location`", "SHOW CREATE TABLE openmrs.`patient`",
+                "SHOW CREATE TABLE openmrs.`encounter`", "SHOW CREATE TABLE openmrs.`audit_log`"),
+                database.getStatements("SHOW CREATE TABLE"));
+        database.clearStatements();
+        assertEquals(FakeDatabase.LOCATION, ExtractionUtils.getCreateTableStatement("location"));
+        assertEquals(FakeDatabase.PATIENT, ExtractionUtils.getCreateTableStatement("patient"));
+        assertEquals(FakeDatabase.ENCOUNTER, ExtractionUtils.getCreateTableStatement("encounter"));
+        assertEquals(FakeDatabase.AUDIT_LOG, ExtractionUtils.getCreateTableStatement("audit_log"));
+        assertEquals(Collections.emptyList(), database.getStatements());
+    }
+
+    @Test
+    public void tablesShouldBeCreatedOnceWithoutTheIndexesToDefer() throws Exception {
+        database.setProperty("deferSecondaryIndexes", true);
+        ExtractionUtils.registerProbedColumn("encounter", "patient_id");
+
+        ExtractionUtils.createTableToCopyInto("encounter");
+        ExtractionUtils.createTableToCopyInto("encounter");
+        ExtractionUtils.buildDeferredIndexes("encounter");
+
+        assertEquals(Collections.singletonList("CREATE TABLE IF NOT EXISTS extracted.`encounter` (\n"
+                + "  `encounter_id` int(11) NOT NULL AUTO_INCREMENT,\n"
+                + "  `encounter_type` int(11) NOT NULL,\n"
+                + "  `patient_id` int(11) NOT NULL DEFAULT '0',\n"
+                + "  `location_id` int(11) DEFAULT NULL,\n"
+                + "  `encounter_datetime` datetime NOT NULL,\n"
+                + "  `voided` tinyint(1) NOT NULL DEFAULT '0',\n"
+                + "  `uuid` char(38) NOT NULL,\n"
+                + "  PRIMARY KEY (`encounter_id`),\n"
+                + "  KEY `encounter_patient` (`patient_id`)\n"
+                + ") ENGINE=InnoDB DEFAULT CHARSET=utf8"), database.getStatements("CREATE TABLE"));
+        assertEquals(Collections.singletonList("ALTER TABLE extracted.encounter ADD UNIQUE KEY `encounter_uuid_index` (`uuid`), "
+                + "ADD KEY `encounter_datetime_idx` (`encounter_datetime`), ADD KEY `encounter_location` (`location_id`), "
+                + "ADD CONSTRAINT `encounter_location` FOREIGN KEY (`location_id`) REFERENCES `location` (`location_id`), "
+                + "ADD CONSTRAINT `encounter_patient` FOREIGN KEY (`patient_id`) REFERENCES `patient` (`patient_id`) ON UPDATE CASCADE"),
+                database.getStatements("ALTER TABLE"));
+    }
+
+    @Test
+    public void splitDeferredIndexesShouldOnlyLeaveOutTheSecondaryIndexes() {
+        List<String> deferred = new ArrayList<>();
+        assertEquals(FakeDatabase.PATIENT, ExtractionUtils.splitDeferredIndexes("patient", FakeDatabase.PATIENT, deferred));
+        assertEquals(Collections.emptyList(), deferred);
+
+        assertEquals("CREATE TABLE `location` (\n"
+                + "  `location_id` int(11) NOT NULL AUTO_INCREMENT,\n"
+                + "  `name` varchar(255) NOT NULL DEFAULT '',\n"
+                + "  `description` varchar(255) DEFAULT NULL,\n"
+                + "  `uuid` char(38) NOT NULL,\n"
+                + "  PRIMARY KEY (`location_id`)\n"
+                + ") ENGINE=InnoDB DEFAULT CHARSET=utf8",
+                ExtractionUtils.splitDeferredIndexes("location", FakeDatabase.LOCATION, deferred));
+        assertEquals(Arrays.asList("UNIQUE KEY `location_uuid_index` (`uuid`)", "KEY `name_of_location` (`name`)"), deferred);
+    }
+}
@@ -0,0 +1,110 @@
+package tz.co.juutech.extractor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SqlDumpWriterTest {
+    private static final int MAX_STATEMENT_SIZE = 512;
+    private static final int CHUNK_SIZE = 2048;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void statementsShouldNotExceedTheMaximumSizeInBytes() throws Exception {
+        assertStatementsWithinMaximumSize(false);
+    }
+
+    @Test
+    public void upsertStatementsShouldNotExceedTheMaximumSizeInBytes() throws Exception {
+        assertStatementsWithinMaximumSize(true);
+    }
+
+    @Test
+    public void utf8LengthShouldCountTheEncodedBytes() {
+        String text = "Jos\u00E9 \u4E2D\u6587 \uD83D\uDE00";
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, SqlDumpWriter.getUtf8Length(text));
+    }
+
+    @Test
+    public void chunksShouldSplitTheRowsWithoutLosingOrRepeatingAny() throws Exception {
+        ResultSet rs = InMemoryResultSets.names(200, "Jos\u00E9");
+        List<Path> chunks = new ArrayList<>();
+        long total = 0;
+        // As ChunkedDump writes them, chunks are started until the result set is exhausted.
+        boolean exhausted = false;
+        for (int part = 1; !exhausted; part++) {
+            Path file = directory.resolve("person_name." + part + ".sql");
+            long rows;
+            long headerBytes;
+            try (SqlDumpWriter writer = new SqlDumpWriter(file, SqlDumpWriter.Compression.NONE, MAX_STATEMENT_SIZE, false)) {
+                writer.writeHeader();
+                headerBytes = writer.getBytesWritten();
+                long limit = headerBytes + CHUNK_SIZE;
+                rows = writer.writeRows("person_name", rs, limit);
+                exhausted = writer.getBytesWritten() < limit;
+                writer.writeFooter();
+            }
+            if(rows == 0) {
+                break;
+            }
+            // The limit is checked between statements, a chunk goes over it by less than a statement.
+            assertTrue(Files.size(file) - headerBytes < CHUNK_SIZE + MAX_STATEMENT_SIZE + 256, file + ": " + Files.size(file));
+            chunks.add(file);
+            total += rows;
+        }
+        assertEquals(200, total);
+        assertTrue(chunks.size() > 1);
+
+        Set<Integer> ids = new HashSet<>();
+        for (Path chunk : chunks) {
+            List<String> lines = Files.readAllLines(chunk, StandardCharsets.UTF_8);
+            // Every chunk can be loaded on its own.
+            assertTrue(lines.get(0).contains("CHARACTER_SET_CLIENT"), chunk.toString());
+            assertTrue(lines.get(lines.size() - 1).contains("CHARACTER_SET_CLIENT"), chunk.toString());
+            for (String line : lines) {
+                if(!line.startsWith("INSERT")) continue;
+                for (String row : line.substring(line.indexOf('(') + 1).split("\\),\\(")) {
+                    assertTrue(ids.add(Integer.valueOf(row.substring(0, row.indexOf(',')))), chunk + " repeats " + row);
+                }
+            }
+        }
+        assertEquals(200, ids.size());
+        assertTrue(ids.containsAll(IntStream.rangeClosed(1, 200).boxed().collect(Collectors.toList())));
+    }
+
+    private void assertStatementsWithinMaximumSize(final boolean upsert) throws Exception {
+        Path file = directory.resolve("dump.sql");
+        long rows;
+        try (SqlDumpWriter writer = new SqlDumpWriter(file, SqlDumpWriter.Compression.NONE, MAX_STATEMENT_SIZE, upsert)) {
+            // Two bytes per character in UTF-8.
+            rows = writer.writeRows("person_name", InMemoryResultSets.names(200, "Jos\u00E9 \u00C1lvaro"));
+        }
+        assertEquals(200, rows);
+        List<String> statements = Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                .filter(line -> line.startsWith("INSERT")).collect(Collectors.toList());
+        assertTrue(statements.size() > 1);
+        int written = 0;
+        for (String statement : statements) {
+            int size = (statement + "\n").getBytes(StandardCharsets.UTF_8).length;
+            assertTrue(size <= MAX_STATEMENT_SIZE, size + " bytes: " + statement);
+            assertTrue(statement.endsWith(upsert ? "`given_name`=VALUES(`given_name`);" : ");"), statement);
+            written += statement.split("\\),\\(").length;
+        }
+        assertEquals(200, written);
+    }
+}